@@ -0,0 +1,124 @@
+package com.example.environment.setup.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * class BenchmarkDataGenerator: Writes the seed manifest, user CSV, site definitions and permission matrix the setup step
+ * benchmarks load. The build runs this
+ * before the benchmarks and puts the output directory on their class path.
+ *
+ * @author dnebinger
+ */
+public class BenchmarkDataGenerator {
+
+	public static final String RESOURCE_PATH = "com/example/environment/setup/benchmarks/";
+	public static final String SEED_MANIFEST = RESOURCE_PATH + "seed-manifest-benchmark.xml";
+	public static final String USER_CSV = RESOURCE_PATH + "users-benchmark.csv";
+	public static final String SITES = RESOURCE_PATH + "sites-benchmark.xml";
+	public static final String PERMISSIONS = RESOURCE_PATH + "permissions-benchmark.xml";
+
+	public static final int MANIFEST_ROLES = 100;
+	public static final int MANIFEST_USER_GROUPS = 100;
+	public static final int MANIFEST_USERS = 1000;
+	public static final int CSV_USERS = 10000;
+	public static final int SITE_COUNT = 100;
+
+	/**
+	 * main: Writes the files under the given directory.
+	 * @param args The output directory.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args[0], RESOURCE_PATH);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+
+		writeSeedManifest(new File(args[0], SEED_MANIFEST));
+		writeUserCsv(new File(args[0], USER_CSV));
+		writeSites(new File(args[0], SITES));
+		writePermissions(new File(args[0], PERMISSIONS));
+	}
+
+	protected static void writeSeedManifest(final File file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			writer.println("<seed-manifest>");
+
+			for (int i = 1; i <= MANIFEST_ROLES; i++) {
+				writer.println("\t<role name=\"Benchmark Role " + i + "\" type=\"regular\" description=\"Benchmark role " + i + ".\" />");
+			}
+
+			for (int i = 1; i <= MANIFEST_USER_GROUPS; i++) {
+				writer.println("\t<user-group name=\"Benchmark User Group " + i + "\" description=\"Benchmark user group " + i + ".\" />");
+			}
+
+			for (int i = 1; i <= MANIFEST_USERS; i++) {
+				writer.println("\t<user screen-name=\"manifestuser" + i + "\" email-address=\"manifestuser" + i + "@example.com\" first-name=\"Manifest\" last-name=\"User " + i + "\">");
+				writer.println("\t\t<user-group name=\"Benchmark User Group " + (i % MANIFEST_USER_GROUPS + 1) + "\" />");
+				writer.println("\t</user>");
+			}
+
+			for (int i = 1; i <= MANIFEST_ROLES; i++) {
+				writer.println("\t<role-assignment role=\"Benchmark Role " + i + "\" user-group=\"Benchmark User Group " + (i % MANIFEST_USER_GROUPS + 1) + "\" />");
+			}
+
+			writer.println("</seed-manifest>");
+		}
+	}
+
+	protected static void writeUserCsv(final File file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			writer.println("screenName,emailAddress,firstName,lastName,jobTitle,userGroups");
+
+			// the user groups are the ones the InMemoryPortal is populated with.
+			for (int i = 1; i <= CSV_USERS; i++) {
+				writer.println("csvuser" + i + ",csvuser" + i + "@example.com,Csv,User " + i + ",Tester,User Group " + (i % BenchmarkEnvironment.DEFAULT_USER_GROUP_COUNT + 1));
+			}
+		}
+	}
+
+	protected static void writeSites(final File file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			writer.println("<sites>");
+
+			for (int i = 1; i <= SITE_COUNT; i++) {
+				writer.println("\t<site name=\"Benchmark Site " + i + "\" friendly-url=\"/benchmark-" + i + "\" description=\"Benchmark site " + i + ".\">");
+				writer.println("\t\t<page name=\"Home\" friendly-url=\"/home\" />");
+				writer.println("\t\t<page name=\"Catalog\" friendly-url=\"/catalog\">");
+				writer.println("\t\t\t<page name=\"Product\" friendly-url=\"/product\" hidden=\"true\" />");
+				writer.println("\t\t</page>");
+				writer.println("\t\t<page name=\"Results\" friendly-url=\"/results\" private=\"true\" />");
+				writer.println("\t</site>");
+			}
+
+			writer.println("</sites>");
+		}
+	}
+
+	protected static void writePermissions(final File file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			writer.println("<permissions>");
+
+			// the roles are the ones of the seed manifest, the sites the ones written by writeSites().
+			for (int i = 1; i <= MANIFEST_ROLES; i++) {
+				writer.println("\t<role name=\"Benchmark Role " + i + "\">");
+
+				for (int site = i; site <= SITE_COUNT; site += MANIFEST_ROLES) {
+					writer.println("\t\t<permission resource=\"com.liferay.portal.kernel.model.Group\" scope=\"group\" site=\"Benchmark Site " + site + "\" actions=\"VIEW\" />");
+					writer.println("\t\t<permission resource=\"com.liferay.portal.kernel.model.Layout\" scope=\"group\" site=\"Benchmark Site " + site + "\" actions=\"VIEW,UPDATE\" />");
+				}
+
+				writer.println("\t</role>");
+			}
+
+			writer.println("</permissions>");
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.CompanyAdminUserResolver;
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.TaskGraphEnvironmentSetup;
+import com.example.environment.setup.benchmarks.fakes.DetachedEnvironmentSetup;
+import com.example.environment.setup.benchmarks.fakes.FakeCompanyLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeDynamicQuery;
+import com.example.environment.setup.benchmarks.fakes.FakeGroupLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeLayoutLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeOrganizationLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeProps;
+import com.example.environment.setup.benchmarks.fakes.FakeResourceActionLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeResourcePermissionLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeRoleLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeRoleService;
+import com.example.environment.setup.benchmarks.fakes.FakeServices;
+import com.example.environment.setup.benchmarks.fakes.FakeTransactionInvoker;
+import com.example.environment.setup.benchmarks.fakes.FakeUserGroupLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeUserGroupRoleLocalService;
+import com.example.environment.setup.benchmarks.fakes.FakeUserGroupRoleService;
+import com.example.environment.setup.benchmarks.fakes.FakeUserGroupService;
+import com.example.environment.setup.benchmarks.fakes.FakeUserLocalService;
+import com.example.environment.setup.benchmarks.fakes.InMemoryPortal;
+import com.example.environment.setup.instrument.ServiceCallListener;
+import com.example.environment.setup.instrument.ServiceProxies;
+import com.example.environment.setup.loadtest.LoadTestDataSetup;
+import com.example.environment.setup.loadtest.LoadTestProfile;
+import com.example.environment.setup.manifest.ManifestEnvironmentSetup;
+import com.example.environment.setup.permission.PermissionGrantSetup;
+import com.example.environment.setup.permission.ResourcePermissionGrantEngine;
+import com.example.environment.setup.provisioning.BulkUserProvisioningSetup;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.example.environment.setup.site.SiteSeedingSetup;
+import com.example.environment.setup.squashed.SquashedEnvironmentSetup;
+import com.example.environment.setup.v1_0_0.InitialEnvironmentSetup;
+import com.example.environment.setup.v1_1_0.UserGroupEnvironmentSetup;
+import com.example.environment.setup.v1_2_0.UserGroupRoleEnvironmentSetup;
+import com.liferay.portal.kernel.service.CompanyLocalService;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.LayoutLocalService;
+import com.liferay.portal.kernel.service.OrganizationLocalService;
+import com.liferay.portal.kernel.service.ResourceActionLocalService;
+import com.liferay.portal.kernel.service.ResourcePermissionLocalService;
+import com.liferay.portal.kernel.service.RoleLocalService;
+import com.liferay.portal.kernel.service.RoleService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserGroupLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleService;
+import com.liferay.portal.kernel.service.UserGroupService;
+import com.liferay.portal.kernel.service.UserLocalService;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+
+/**
+ * class BenchmarkEnvironment: The fake portal shared by the benchmarks, populated once per trial.
+ *
+ * The fakes are wired together the same way the EnvironmentSetupUpgradeStepRegistrator wires the real services, and
+ * newStep() creates the steps with the same arguments register() does, except that the data files are the generated ones
+ * of BenchmarkDataGenerator and everything runs on one thread since the InMemoryPortal is not thread safe. Set a
+ * ServiceCallListener before setUp() to have every call to the fakes reported to it, the way the registrator reports the
+ * calls to the real services.
+ *
+ * @author dnebinger
+ */
+@State(Scope.Benchmark)
+public class BenchmarkEnvironment {
+
+	public static final int DEFAULT_USER_GROUP_COUNT = 100;
+
+	/**
+	 * STEPS: The setup steps in the order they are registered.
+	 */
+	public static final String[] STEPS = {"InitialEnvironmentSetup", "UserGroupEnvironmentSetup", "UserGroupRoleEnvironmentSetup", "ManifestEnvironmentSetup", "BulkUserProvisioningSetup",
+			"LoadTestDataSetup", "SiteSeedingSetup", "PermissionGrantSetup"};
+
+	/**
+	 * FRESH_COMPANY_STEPS: The steps a fresh company runs instead of STEPS, each does the work of all of them.
+	 */
+	public static final String[] FRESH_COMPANY_STEPS = {"TaskGraphEnvironmentSetup", "SquashedEnvironmentSetup"};
+
+	/**
+	 * LOAD_TEST_PROFILE: The load test data LoadTestDataSetup generates, a single worker since the fakes are not thread safe.
+	 */
+	public static final LoadTestProfile LOAD_TEST_PROFILE = new LoadTestProfile(true, 20200101L, 10000, 50, 20, 100, 10, 2, 1, 1, 2.0, 1, ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE);
+
+	@Param("1000000")
+	public int userCount;
+
+	@Param("10000")
+	public int groupCount;
+
+	@Param("2000")
+	public int adminRoleUserCount;
+
+	@Setup
+	public void setUp() {
+		FakeDynamicQuery.install();
+		FakeTransactionInvoker.install();
+		FakeProps.install();
+
+		inMemoryPortal = new InMemoryPortal(userCount, groupCount, DEFAULT_USER_GROUP_COUNT, adminRoleUserCount, SEED);
+
+		companyLocalService = createService(CompanyLocalService.class, new FakeCompanyLocalService(inMemoryPortal));
+		userLocalService = createService(UserLocalService.class, new FakeUserLocalService(inMemoryPortal));
+		groupLocalService = createService(GroupLocalService.class, new FakeGroupLocalService(inMemoryPortal));
+		roleLocalService = createService(RoleLocalService.class, new FakeRoleLocalService(inMemoryPortal));
+		userGroupLocalService = createService(UserGroupLocalService.class, new FakeUserGroupLocalService(inMemoryPortal));
+		userGroupRoleLocalService = createService(UserGroupRoleLocalService.class, new FakeUserGroupRoleLocalService(inMemoryPortal));
+		roleService = createService(RoleService.class, new FakeRoleService(inMemoryPortal));
+		userGroupService = createService(UserGroupService.class, new FakeUserGroupService(inMemoryPortal));
+		userGroupRoleService = createService(UserGroupRoleService.class, new FakeUserGroupRoleService(inMemoryPortal));
+		organizationLocalService = createService(OrganizationLocalService.class, new FakeOrganizationLocalService(inMemoryPortal));
+		layoutLocalService = createService(LayoutLocalService.class, new FakeLayoutLocalService(inMemoryPortal));
+		resourcePermissionLocalService = createService(ResourcePermissionLocalService.class, new FakeResourcePermissionLocalService(inMemoryPortal));
+		resourceActionLocalService = createService(ResourceActionLocalService.class, new FakeResourceActionLocalService(inMemoryPortal));
+
+		setupLookupCache = new SetupLookupCache(InMemoryPortal.COMPANY_ID);
+
+		adminUserId = newCompanyAdminUserResolver().getCompanyAdminUserId(InMemoryPortal.COMPANY_ID);
+	}
+
+	public CompanyAdminUserResolver newCompanyAdminUserResolver() {
+		return new CompanyAdminUserResolver(companyLocalService, userLocalService, groupLocalService, roleLocalService);
+	}
+
+	public EnvironmentReconciler newEnvironmentReconciler() {
+		EnvironmentSnapshot environmentSnapshot = new EnvironmentSnapshot(InMemoryPortal.COMPANY_ID, setupLookupCache, roleLocalService, userGroupLocalService, userLocalService, userGroupRoleLocalService);
+
+		return new EnvironmentReconciler(environmentSnapshot, roleService, userGroupService, userGroupRoleService, groupLocalService, userLocalService);
+	}
+
+	/**
+	 * newStep: Creates the named step, see STEPS and FRESH_COMPANY_STEPS.
+	 * @param name
+	 * @return RemoteServiceDependentBaseUpgradeProcess The step.
+	 */
+	public RemoteServiceDependentBaseUpgradeProcess newStep(final String name) {
+		return newStep(name, newEnvironmentReconciler());
+	}
+
+	/**
+	 * newStep: Creates the named step with the given reconciler.
+	 * @param name
+	 * @param environmentReconciler
+	 * @return RemoteServiceDependentBaseUpgradeProcess The step.
+	 */
+	protected RemoteServiceDependentBaseUpgradeProcess newStep(final String name, final EnvironmentReconciler environmentReconciler) {
+		long companyId = InMemoryPortal.COMPANY_ID;
+
+		switch (name) {
+			case "InitialEnvironmentSetup":
+				return new InitialEnvironmentSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler);
+			case "UserGroupEnvironmentSetup":
+				return new UserGroupEnvironmentSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler);
+			case "UserGroupRoleEnvironmentSetup":
+				return new UserGroupRoleEnvironmentSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler);
+			case "ManifestEnvironmentSetup":
+				return new ManifestEnvironmentSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler, BenchmarkDataGenerator.SEED_MANIFEST, ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE);
+			case "BulkUserProvisioningSetup":
+				return new BulkUserProvisioningSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler, BenchmarkDataGenerator.USER_CSV, ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE);
+			case "LoadTestDataSetup":
+				return new LoadTestDataSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler, organizationLocalService, LOAD_TEST_PROFILE);
+			case "SiteSeedingSetup":
+				return new SiteSeedingSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, layoutLocalService, BenchmarkDataGenerator.SITES, 1);
+			case "PermissionGrantSetup":
+				ResourcePermissionGrantEngine resourcePermissionGrantEngine = new ResourcePermissionGrantEngine(environmentReconciler.getEnvironmentSnapshot(), resourcePermissionLocalService, resourceActionLocalService, ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE);
+
+				return new PermissionGrantSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, resourcePermissionGrantEngine, BenchmarkDataGenerator.PERMISSIONS);
+			case "TaskGraphEnvironmentSetup":
+				// the parts of the squashed step, the graph runs them with upgrade() so they have to be detached.
+				return new TaskGraphEnvironmentSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, "SquashedEnvironmentSetup", 1)
+						.addStep("role", newDetachedStep(STEPS[0], environmentReconciler))
+						.addStep("user-group", newDetachedStep(STEPS[1], environmentReconciler))
+						.addStep("assign", newDetachedStep(STEPS[2], environmentReconciler), "role", "user-group");
+			case "SquashedEnvironmentSetup":
+				SquashedEnvironmentSetup squashedEnvironmentSetup = new SquashedEnvironmentSetup(companyId, adminUserId, null, userLocalService, groupLocalService, setupLookupCache, environmentReconciler)
+						.includeStep(newStep("TaskGraphEnvironmentSetup", environmentReconciler));
+
+				// the registrator runs the load test data in the background, here it is included like the others.
+				for (int i = 3; i < STEPS.length; i++) {
+					squashedEnvironmentSetup.includeStep(newStep(STEPS[i], environmentReconciler));
+				}
+
+				return squashedEnvironmentSetup;
+			default:
+				throw new IllegalArgumentException("Unknown step " + name);
+		}
+	}
+
+	/**
+	 * runStep: Creates the named step and runs its setupEnvironment() through a DetachedEnvironmentSetup, without the
+	 * upgrade process around it.
+	 * @param name
+	 * @throws Exception
+	 */
+	public void runStep(final String name) throws Exception {
+		new DetachedEnvironmentSetup(newStep(name), newServiceContext()).upgrade();
+	}
+
+	protected DetachedEnvironmentSetup newDetachedStep(final String name, final EnvironmentReconciler environmentReconciler) {
+		return new DetachedEnvironmentSetup(newStep(name, environmentReconciler), newServiceContext());
+	}
+
+	/**
+	 * newServiceContext: Creates the service context the same way RemoteServiceDependentBaseUpgradeProcess does.
+	 * @return ServiceContext The service context.
+	 */
+	public ServiceContext newServiceContext() {
+		ServiceContext serviceContext = new ServiceContext();
+
+		Date current = new Date();
+
+		serviceContext.setCompanyId(InMemoryPortal.COMPANY_ID);
+		serviceContext.setCreateDate(current);
+		serviceContext.setModifiedDate(current);
+		serviceContext.setUserId(adminUserId);
+
+		return serviceContext;
+	}
+
+	/**
+	 * clearSetupLookupCache: Drops the cached lookups, the way the end of a chain of steps does.
+	 */
+	public void clearSetupLookupCache() {
+		setupLookupCache.clear();
+	}
+
+	public InMemoryPortal getInMemoryPortal() {
+		return inMemoryPortal;
+	}
+
+	public long getAdminUserId() {
+		return adminUserId;
+	}
+
+	public SetupLookupCache getSetupLookupCache() {
+		return setupLookupCache;
+	}
+
+	public UserLocalService getUserLocalService() {
+		return userLocalService;
+	}
+
+	public GroupLocalService getGroupLocalService() {
+		return groupLocalService;
+	}
+
+	public void setServiceCallListener(final ServiceCallListener serviceCallListener) {
+		this.serviceCallListener = serviceCallListener;
+	}
+
+	/**
+	 * createService: Creates the fake service, reporting its calls to the ServiceCallListener if there is one.
+	 * @param serviceInterface
+	 * @param fake
+	 * @return T The service.
+	 */
+	protected <T> T createService(final Class<T> serviceInterface, final Object fake) {
+		T service = FakeServices.create(serviceInterface, fake);
+
+		if (serviceCallListener == null) {
+			return service;
+		}
+
+		return ServiceProxies.wrap(serviceInterface, service, serviceCallListener);
+	}
+
+	private static final long SEED = 42;
+
+	private InMemoryPortal inMemoryPortal;
+	private long adminUserId;
+	private SetupLookupCache setupLookupCache;
+	private ServiceCallListener serviceCallListener;
+
+	private CompanyLocalService companyLocalService;
+	private UserLocalService userLocalService;
+	private GroupLocalService groupLocalService;
+	private RoleLocalService roleLocalService;
+	private UserGroupLocalService userGroupLocalService;
+	private UserGroupRoleLocalService userGroupRoleLocalService;
+	private RoleService roleService;
+	private UserGroupService userGroupService;
+	private UserGroupRoleService userGroupRoleService;
+	private OrganizationLocalService organizationLocalService;
+	private LayoutLocalService layoutLocalService;
+	private ResourcePermissionLocalService resourcePermissionLocalService;
+	private ResourceActionLocalService resourceActionLocalService;
+}
@@ -0,0 +1,69 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.CompanyAdminUserResolver;
+import com.example.environment.setup.benchmarks.fakes.InMemoryPortal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class CompanyAdminUserResolverBenchmark: Measures the admin user lookup.
+ *
+ * The Administrator role has adminRoleUserCount members and only the last one is still active, so an uncached lookup
+ * has to get past every inactive member before it finds the admin.
+ *
+ * @author dnebinger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CompanyAdminUserResolverBenchmark {
+
+	@Setup
+	public void setUp(BenchmarkEnvironment benchmarkEnvironment) {
+		this.benchmarkEnvironment = benchmarkEnvironment;
+
+		cachingResolver = benchmarkEnvironment.newCompanyAdminUserResolver();
+		adminRoleUserIds = benchmarkEnvironment.getInMemoryPortal().getRoleUserIds(benchmarkEnvironment.getInMemoryPortal().getAdminRoleId());
+	}
+
+	/**
+	 * getCompanyAdminUserId: A lookup with nothing cached, which is what the first step run in a company pays.
+	 */
+	@Benchmark
+	public long getCompanyAdminUserId() {
+		return benchmarkEnvironment.newCompanyAdminUserResolver().getCompanyAdminUserId(InMemoryPortal.COMPANY_ID);
+	}
+
+	/**
+	 * getCompanyAdminUserIdCached: A lookup once the admin has been cached, which is what every later step run pays.
+	 */
+	@Benchmark
+	public long getCompanyAdminUserIdCached() {
+		return cachingResolver.getCompanyAdminUserId(InMemoryPortal.COMPANY_ID);
+	}
+
+	/**
+	 * getActiveUserIdFromArray: Finding the one active user among the Administrator role members.
+	 */
+	@Benchmark
+	public long getActiveUserIdFromArray() {
+		return cachingResolver.getActiveUserIdFromArray(adminRoleUserIds);
+	}
+
+	private BenchmarkEnvironment benchmarkEnvironment;
+	private CompanyAdminUserResolver cachingResolver;
+	private long[] adminRoleUserIds;
+}
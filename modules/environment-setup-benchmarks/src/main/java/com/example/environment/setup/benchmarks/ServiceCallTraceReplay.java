@@ -0,0 +1,195 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.instrument.ServiceCallListener;
+import com.example.environment.setup.instrument.ServiceCallTrace;
+import com.example.environment.setup.instrument.ServiceCallTraceReader;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * class ServiceCallTraceReplay: Replays a trace recorded with environment.setup.trace.file by running the setup steps
+ * against the InMemoryPortal fakes, with each service method taking the mean latency the trace recorded for it, so the
+ * shape of a prod setup run can be profiled and tuned on a laptop.
+ *
+ * The steps run for real, the fakes only stand in for the database and the search engine. Methods are matched on the
+ * service, the name and the parameter descriptor, so overloads get their own latency. A method the trace has no calls of
+ * takes as long as the fake does. A latency scale below 1 shows what a faster database or search engine would do.
+ *
+ * The trace usually covers many companies while the fake portal has one, so the recorded calls are compared per company.
+ *
+ * gradlew :modules:environment-setup-benchmarks:replayTrace -Ptrace.args="/tmp/setup.trace 0.5 100000 1000"
+ *
+ * @author dnebinger
+ */
+public class ServiceCallTraceReplay implements ServiceCallListener {
+
+	/**
+	 * main: Replays the trace and prints the timings.
+	 * @param args The trace file, then optionally the latency scale, the number of users and the number of sites.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: ServiceCallTraceReplay <trace file> [latency scale] [users] [sites]");
+
+			System.exit(1);
+		}
+
+		double latencyScale = (args.length > 1) ? Double.parseDouble(args[1]) : 1;
+
+		ServiceCallTraceReplay serviceCallTraceReplay = new ServiceCallTraceReplay(latencyScale);
+
+		serviceCallTraceReplay.readTrace(args[0]);
+
+		BenchmarkEnvironment benchmarkEnvironment = new BenchmarkEnvironment();
+
+		benchmarkEnvironment.userCount = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+		benchmarkEnvironment.groupCount = (args.length > 3) ? Integer.parseInt(args[3]) : 1000;
+		benchmarkEnvironment.adminRoleUserCount = 200;
+
+		serviceCallTraceReplay.replay(benchmarkEnvironment);
+
+		System.out.println();
+
+		serviceCallTraceReplay.printMethodStats();
+	}
+
+	public ServiceCallTraceReplay(final double latencyScale) {
+		super();
+
+		this.latencyScale = latencyScale;
+	}
+
+	/**
+	 * readTrace: Reads the recorded latencies of every method in the trace.
+	 * @param fileName
+	 * @throws Exception
+	 */
+	public void readTrace(final String fileName) throws Exception {
+		Set<Long> companyIds = new HashSet<>();
+
+		try (ServiceCallTraceReader serviceCallTraceReader = new ServiceCallTraceReader(fileName)) {
+			ServiceCallTrace.Call call;
+
+			while ((call = serviceCallTraceReader.next()) != null) {
+				getMethodStats(call.getMethodKey()).addRecorded(call);
+
+				companyIds.add(call.getCompanyId());
+			}
+		}
+
+		recordedCompanies = Math.max(1, companyIds.size());
+	}
+
+	/**
+	 * replay: Populates the fake portal and runs every step of BenchmarkEnvironment.STEPS against it, in order.
+	 * @param benchmarkEnvironment A new environment, the replay sets it up.
+	 * @throws Exception
+	 */
+	public void replay(final BenchmarkEnvironment benchmarkEnvironment) throws Exception {
+		benchmarkEnvironment.setServiceCallListener(this);
+		benchmarkEnvironment.setUp();
+
+		long total = 0;
+
+		for (String step : BenchmarkEnvironment.STEPS) {
+			long start = System.nanoTime();
+
+			benchmarkEnvironment.runStep(step);
+
+			long elapsed = System.nanoTime() - start;
+
+			total += elapsed;
+
+			System.out.println(String.format("%-35s %10d ms", step, TimeUnit.NANOSECONDS.toMillis(elapsed)));
+		}
+
+		System.out.println(String.format("%-35s %10d ms, latency scale %s, %d companies in the trace", "Total", TimeUnit.NANOSECONDS.toMillis(total), latencyScale, recordedCompanies));
+	}
+
+	/**
+	 * afterCall: Makes the call take the recorded latency of its method, on top of what the fake took.
+	 */
+	@Override
+	public void afterCall(Class<?> serviceInterface, Method method, Object[] args, Object result, long elapsedNanos, Throwable throwable) {
+		MethodStats stats = getMethodStats(methodKeys.computeIfAbsent(method, key -> serviceInterface.getSimpleName() + "." + method.getName() + ServiceCallTrace.getParameterDescriptor(method)));
+
+		long latency = (long) (stats.getRecordedMeanNanos() * latencyScale);
+
+		park(latency);
+
+		stats.addReplayed(elapsedNanos + latency);
+	}
+
+	protected void printMethodStats() {
+		List<Map.Entry<String, MethodStats>> entries = new ArrayList<>(methodStats.entrySet());
+
+		entries.sort((a, b) -> Long.compare(b.getValue().recordedNanos.get(), a.getValue().recordedNanos.get()));
+
+		System.out.println(String.format("%-90s %12s %12s %12s %12s %12s", "Method", "Rec/company", "Rec mean us", "Replayed", "Rec ms", "Replayed ms"));
+
+		for (Map.Entry<String, MethodStats> entry : entries) {
+			MethodStats stats = entry.getValue();
+
+			System.out.println(String.format("%-90s %12d %12d %12d %12d %12d", entry.getKey(), stats.recordedCalls.get() / recordedCompanies, TimeUnit.NANOSECONDS.toMicros(stats.getRecordedMeanNanos()),
+					stats.replayedCalls.get(), TimeUnit.NANOSECONDS.toMillis(stats.recordedNanos.get() / recordedCompanies), TimeUnit.NANOSECONDS.toMillis(stats.replayedNanos.get())));
+		}
+	}
+
+	private MethodStats getMethodStats(final String methodKey) {
+		return methodStats.computeIfAbsent(methodKey, key -> new MethodStats());
+	}
+
+	private static void park(final long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		long remaining = nanos;
+
+		// parkNanos can return early.
+		while (remaining > 0) {
+			LockSupport.parkNanos(remaining);
+
+			remaining = deadline - System.nanoTime();
+		}
+	}
+
+	/**
+	 * class MethodStats: The recorded and replayed calls of one service method.
+	 */
+	private static class MethodStats {
+
+		void addRecorded(final ServiceCallTrace.Call call) {
+			recordedCalls.incrementAndGet();
+			recordedNanos.addAndGet(call.getElapsedNanos());
+		}
+
+		void addReplayed(final long nanos) {
+			replayedCalls.incrementAndGet();
+			replayedNanos.addAndGet(nanos);
+		}
+
+		long getRecordedMeanNanos() {
+			long calls = recordedCalls.get();
+
+			return (calls == 0) ? 0 : recordedNanos.get() / calls;
+		}
+
+		private final AtomicLong recordedCalls = new AtomicLong();
+		private final AtomicLong recordedNanos = new AtomicLong();
+		private final AtomicLong replayedCalls = new AtomicLong();
+		private final AtomicLong replayedNanos = new AtomicLong();
+	}
+
+	private final double latencyScale;
+	private final Map<String, MethodStats> methodStats = new ConcurrentHashMap<>();
+	private final Map<Method, String> methodKeys = new ConcurrentHashMap<>();
+	private int recordedCompanies = 1;
+}
@@ -0,0 +1,97 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.benchmarks.fakes.InMemoryPortal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class SetupEnvironmentBenchmark: Measures the setupEnvironment() of each setup step.
+ *
+ * In the "fresh" mode every invocation runs against a company where the earlier steps have been applied but this one has
+ * not, the writes of the previous invocation are rolled back first. In the "reapply" mode the step has already been
+ * applied, which measures the cost of finding out there is nothing to do.
+ *
+ * The steps of BenchmarkEnvironment.FRESH_COMPANY_STEPS replace all the others, so in the "fresh" mode they run against
+ * the populated company without any of the other steps applied.
+ *
+ * @author dnebinger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SetupEnvironmentBenchmark {
+
+	@Param({"InitialEnvironmentSetup", "UserGroupEnvironmentSetup", "UserGroupRoleEnvironmentSetup", "ManifestEnvironmentSetup", "BulkUserProvisioningSetup",
+			"LoadTestDataSetup", "SiteSeedingSetup", "PermissionGrantSetup", "TaskGraphEnvironmentSetup", "SquashedEnvironmentSetup"})
+	public String step;
+
+	@Param({"fresh", "reapply"})
+	public String mode;
+
+	@Setup(Level.Trial)
+	public void setUp(BenchmarkEnvironment benchmarkEnvironment) throws Exception {
+		this.benchmarkEnvironment = benchmarkEnvironment;
+
+		inMemoryPortal = benchmarkEnvironment.getInMemoryPortal();
+
+		// the environment is shared with the other benchmarks, leave it the way we found it.
+		initialMark = inMemoryPortal.mark();
+
+		if (Arrays.asList(BenchmarkEnvironment.FRESH_COMPANY_STEPS).contains(step)) {
+			if ("reapply".equals(mode)) {
+				benchmarkEnvironment.runStep(step);
+			}
+		} else {
+			int index = Arrays.asList(BenchmarkEnvironment.STEPS).indexOf(step);
+			int prerequisites = "reapply".equals(mode) ? index + 1 : index;
+
+			for (int i = 0; i < prerequisites; i++) {
+				benchmarkEnvironment.runStep(BenchmarkEnvironment.STEPS[i]);
+			}
+		}
+
+		mark = inMemoryPortal.mark();
+	}
+
+	@Setup(Level.Invocation)
+	public void rollback() {
+		inMemoryPortal.rollback(mark);
+
+		// the lookup cache would still have the ids of what was rolled back.
+		benchmarkEnvironment.clearSetupLookupCache();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		inMemoryPortal.rollback(initialMark);
+
+		benchmarkEnvironment.clearSetupLookupCache();
+	}
+
+	@Benchmark
+	public void setupEnvironment() throws Exception {
+		benchmarkEnvironment.runStep(step);
+	}
+
+	private BenchmarkEnvironment benchmarkEnvironment;
+	private InMemoryPortal inMemoryPortal;
+	private int initialMark;
+	private int mark;
+}
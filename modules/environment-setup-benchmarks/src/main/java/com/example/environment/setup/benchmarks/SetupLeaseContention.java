@@ -0,0 +1,153 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.SetupLease;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class SetupLeaseContention: Has several contenders run the same step under a SetupLease against an embedded H2
+ * database, then checks the step was completed exactly once.
+ *
+ * With the default in-memory database the contenders are threads. To use separate JVMs, point them all at the same file
+ * database in auto server mode and start them together, i.e. run in a few terminals at once:
+ *
+ * gradlew :modules:environment-setup-benchmarks:leaseContention -Please.args="jdbc:h2:file:/tmp/lease;AUTO_SERVER=TRUE 1 5000"
+ *
+ * The arguments are the JDBC URL, the number of contenders, how long the step takes in ms and how many contenders fail
+ * the first time they run it. A failed run releases the lease and one of the waiting contenders takes over.
+ *
+ * @author dnebinger
+ */
+public class SetupLeaseContention {
+
+	public static final String DEFAULT_URL = "jdbc:h2:mem:lease;DB_CLOSE_DELAY=-1";
+
+	public static void main(String[] args) throws Exception {
+		String url = (args.length > 0) ? args[0] : DEFAULT_URL;
+		int contenders = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		long workMillis = (args.length > 2) ? Long.parseLong(args[2]) : 2000;
+		int failures = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+
+		createTables(url);
+
+		AtomicInteger failuresLeft = new AtomicInteger(failures);
+		AtomicInteger ran = new AtomicInteger();
+		AtomicInteger skipped = new AtomicInteger();
+		CountDownLatch startLatch = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+		for (int i = 0; i < contenders; i++) {
+			String owner = SetupLease.getNodeOwner() + "-" + i;
+			SetupLease setupLease = new SetupLease(() -> DriverManager.getConnection(url), COMPANY_ID, STEP_NAME, owner, LEASE_DURATION_MILLIS);
+
+			Thread thread = new Thread(() -> {
+				try {
+					startLatch.await();
+
+					while (true) {
+						try {
+							boolean didRun = setupLease.runExclusively(() -> {
+								Thread.sleep(workMillis);
+
+								if (failuresLeft.getAndDecrement() > 0) {
+									throw new IllegalStateException(owner + " failed on purpose");
+								}
+
+								recordRun(url, owner);
+							});
+
+							(didRun ? ran : skipped).incrementAndGet();
+
+							return;
+						} catch (IllegalStateException e) {
+							// like a failed upgrade step, the contender tries again.
+							System.out.println(e.getMessage());
+						}
+					}
+				} catch (Exception e) {
+					// anything but the failures we asked for means the contender never finished, the run fails.
+					errors.add(owner + ": " + e);
+				}
+			}, "contender-" + i);
+
+			thread.start();
+			threads.add(thread);
+		}
+
+		long start = System.nanoTime();
+
+		startLatch.countDown();
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int runs = countRuns(url);
+
+		System.out.println("Contenders: " + contenders + ", ran here: " + ran.get() + ", skipped here: " + skipped.get() + ", completed runs recorded: " + runs + ", took " + ((System.nanoTime() - start) / 1000000) + " ms");
+
+		if (!errors.isEmpty()) {
+			System.out.println("FAILED: " + errors.size() + " contenders failed");
+
+			for (String error : errors) {
+				System.out.println(error);
+			}
+
+			System.exit(1);
+		}
+
+		// with several JVMs on one database, the later ones skip and all of them see the one run.
+		if (runs != 1) {
+			System.out.println("FAILED: the step was completed " + runs + " times");
+
+			System.exit(1);
+		}
+	}
+
+	protected static void createTables(final String url) throws SQLException {
+		try (Connection connection = DriverManager.getConnection(url);
+			Statement statement = connection.createStatement()) {
+
+			// the portal translates LONG when it runs the create statement, H2 needs it spelled out.
+			statement.execute(SetupLease.TABLE_SQL_CREATE.replace("create table", "create table if not exists").replace(" LONG", " BIGINT"));
+			statement.execute("create table if not exists " + RUN_TABLE_NAME + " (owner VARCHAR(200))");
+		}
+	}
+
+	protected static void recordRun(final String url, final String owner) throws SQLException {
+		try (Connection connection = DriverManager.getConnection(url);
+			PreparedStatement preparedStatement = connection.prepareStatement("insert into " + RUN_TABLE_NAME + " (owner) values (?)")) {
+
+			preparedStatement.setString(1, owner);
+
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	protected static int countRuns(final String url) throws SQLException {
+		try (Connection connection = DriverManager.getConnection(url);
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery("select count(*) from " + RUN_TABLE_NAME)) {
+
+			resultSet.next();
+
+			return resultSet.getInt(1);
+		}
+	}
+
+	private static final long COMPANY_ID = 20116;
+	private static final String STEP_NAME = "LeaseContentionStep";
+	private static final String RUN_TABLE_NAME = "LeaseContentionRun";
+	private static final long LEASE_DURATION_MILLIS = 3000;
+}
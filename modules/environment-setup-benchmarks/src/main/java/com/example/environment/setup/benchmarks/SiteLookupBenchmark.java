@@ -0,0 +1,88 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.benchmarks.fakes.InMemoryPortal;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.service.ServiceContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class SiteLookupBenchmark: Measures getSiteId() for site names spread over all of the sites, plus a missing one which
+ * falls back to the company group. Found sites end up in the company's lookup cache, so after the first pass over the
+ * names this measures the cached lookup.
+ *
+ * @author dnebinger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SiteLookupBenchmark {
+
+	@Setup
+	public void setUp(BenchmarkEnvironment benchmarkEnvironment) {
+		siteLookupStep = new SiteLookupStep(benchmarkEnvironment);
+
+		List<String> names = new ArrayList<>();
+
+		for (Group group : benchmarkEnvironment.getInMemoryPortal().getGroups()) {
+			if (group.isRegularSite()) {
+				names.add(group.getGroupKey());
+			}
+		}
+
+		Collections.shuffle(names, new Random(42));
+
+		names.add("Missing Site");
+
+		siteNames = names.toArray(new String[0]);
+	}
+
+	@Benchmark
+	public long getSiteId() {
+		String siteName = siteNames[next];
+
+		next = (next + 1) % siteNames.length;
+
+		return siteLookupStep.lookupSiteId(siteName);
+	}
+
+	/**
+	 * class SiteLookupStep: A step with nothing to set up, it gives the benchmark the getSiteId() the steps inherit.
+	 */
+	private static class SiteLookupStep extends RemoteServiceDependentBaseUpgradeProcess {
+
+		SiteLookupStep(final BenchmarkEnvironment benchmarkEnvironment) {
+			super(InMemoryPortal.COMPANY_ID, benchmarkEnvironment.getAdminUserId(), null, benchmarkEnvironment.getUserLocalService(), benchmarkEnvironment.getGroupLocalService(), benchmarkEnvironment.getSetupLookupCache());
+		}
+
+		long lookupSiteId(final String siteName) {
+			return getSiteId(siteName);
+		}
+
+		@Override
+		protected void setupEnvironment(final ServiceContext serviceContext) {
+		}
+	}
+
+	private SiteLookupStep siteLookupStep;
+	private String[] siteNames;
+	private int next;
+}
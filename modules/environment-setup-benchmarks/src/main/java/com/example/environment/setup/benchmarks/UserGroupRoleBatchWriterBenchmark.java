@@ -0,0 +1,98 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.benchmarks.fakes.DetachedUserGroupRoleBatchWriter;
+import com.example.environment.setup.benchmarks.fakes.JdbcUserGroupRoles;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.UserGroupRoleBatchWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class UserGroupRoleBatchWriterBenchmark: Measures seeding userGroupRoleCount user group roles into an empty embedded H2
+ * UserGroupRole table, through the service and through the UserGroupRoleBatchWriter.
+ *
+ * The service path is JdbcUserGroupRoles, which writes the way the service persistence does (a lookup and an insert per
+ * role, a commit per call) but without the permission checks and model listeners, so in a portal the gap is wider than
+ * what is measured here. UserGroupRoleBatchWriterTest checks both paths write the same rows.
+ *
+ * Every user gets ROLE_COUNT roles in each of the user groups, userGroupRoleCount should be a multiple of
+ * ROLE_COUNT * UserGroupRoleFixtures.USER_GROUP_COUNT.
+ *
+ * @author dnebinger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class UserGroupRoleBatchWriterBenchmark {
+
+	public static final int ROLE_COUNT = 4;
+
+	@Param({"120000"})
+	public int userGroupRoleCount;
+
+	@Setup
+	public void setUp() throws SQLException {
+		connection = DriverManager.getConnection("jdbc:h2:mem:ugr-benchmark;DB_CLOSE_DELAY=-1");
+
+		desiredState = UserGroupRoleFixtures.newDesiredState(userGroupRoleCount / (ROLE_COUNT * UserGroupRoleFixtures.USER_GROUP_COUNT), ROLE_COUNT);
+	}
+
+	/**
+	 * setUpInvocation: Every invocation starts with an empty table and a fresh snapshot.
+	 */
+	@Setup(Level.Invocation)
+	public void setUpInvocation() throws Exception {
+		JdbcUserGroupRoles jdbcUserGroupRoles = UserGroupRoleFixtures.createTable(connection, UserGroupRoleFixtures.COMPANY_ID_COLUMNS, true);
+
+		environmentReconciler = UserGroupRoleFixtures.newReconciler(jdbcUserGroupRoles, ROLE_COUNT);
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		connection.close();
+	}
+
+	/**
+	 * reconcileThroughService: One service call per user and group, which is what the step does without
+	 * environment.setup.user.group.role.batch.
+	 */
+	@Benchmark
+	public int reconcileThroughService() throws Exception {
+		return environmentReconciler.reconcile(desiredState, null);
+	}
+
+	/**
+	 * reconcileThroughBatchWriter: Batched inserts of UserGroupRoleBatchWriter.DEFAULT_BATCH_SIZE rows, one commit per
+	 * batch.
+	 */
+	@Benchmark
+	public int reconcileThroughBatchWriter() throws Exception {
+		environmentReconciler.setUserGroupRoleBatchWriter(new DetachedUserGroupRoleBatchWriter(connection, UserGroupRoleFixtures.COMPANY_ID, UserGroupRoleBatchWriter.DEFAULT_BATCH_SIZE));
+
+		return environmentReconciler.reconcile(desiredState, null);
+	}
+
+	private Connection connection;
+	private DesiredState desiredState;
+	private EnvironmentReconciler environmentReconciler;
+}
@@ -0,0 +1,108 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.benchmarks.fakes.FakeServices;
+import com.example.environment.setup.benchmarks.fakes.JdbcUserGroupRoles;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.liferay.portal.kernel.service.UserGroupRoleLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleService;
+
+import java.sql.Connection;
+
+/**
+ * class UserGroupRoleFixtures: The desired state, reconciler and UserGroupRole table shared by
+ * UserGroupRoleBatchWriterBenchmark and UserGroupRoleBatchWriterTest.
+ *
+ * The service path is JdbcUserGroupRoles, a fake that writes over JDBC the rows the user group role service persistence
+ * writes. The real persistence needs a running portal, so the batch writer is only ever compared with the fake here.
+ *
+ * @author dnebinger
+ */
+public class UserGroupRoleFixtures {
+
+	public static final long COMPANY_ID = 20116;
+	public static final int USER_GROUP_COUNT = 3;
+
+	public static final String COLUMNS = "mvccVersion BIGINT, userId BIGINT, groupId BIGINT, roleId BIGINT";
+	public static final String COMPANY_ID_COLUMNS = COLUMNS + ", companyId BIGINT";
+	public static final String PRIMARY_KEY = "userId, groupId, roleId";
+
+	/**
+	 * newDesiredState: Every user gets the given number of roles in each of the user groups.
+	 * @param users
+	 * @param roles
+	 * @return DesiredState The desired state.
+	 */
+	public static DesiredState newDesiredState(final int users, final int roles) {
+		DesiredState desiredState = new DesiredState();
+
+		for (int user = 0; user < users; user++) {
+			for (int userGroup = 0; userGroup < USER_GROUP_COUNT; userGroup++) {
+				for (int role = 0; role < roles; role++) {
+					desiredState.addUserGroupRole(getUserId(user), getUserGroupName(userGroup), getRoleName(role));
+				}
+			}
+		}
+
+		return desiredState;
+	}
+
+	/**
+	 * newReconciler: Creates a reconciler over the table. The roles and user groups come from the lookup cache, so the
+	 * only services it needs are the user group role ones.
+	 * @param jdbcUserGroupRoles
+	 * @param roles The number of roles the desired state uses.
+	 * @return EnvironmentReconciler The reconciler.
+	 */
+	public static EnvironmentReconciler newReconciler(final JdbcUserGroupRoles jdbcUserGroupRoles, final int roles) {
+		SetupLookupCache setupLookupCache = new SetupLookupCache(COMPANY_ID);
+
+		for (int role = 0; role < roles; role++) {
+			setupLookupCache.putRoleId(getRoleName(role), getRoleId(role));
+		}
+
+		for (int userGroup = 0; userGroup < USER_GROUP_COUNT; userGroup++) {
+			setupLookupCache.putUserGroup(getUserGroupName(userGroup), 30000 + userGroup, getGroupId(userGroup));
+		}
+
+		EnvironmentSnapshot environmentSnapshot = new EnvironmentSnapshot(COMPANY_ID, setupLookupCache, null, null, null, FakeServices.create(UserGroupRoleLocalService.class, jdbcUserGroupRoles));
+
+		return new EnvironmentReconciler(environmentSnapshot, null, null, FakeServices.create(UserGroupRoleService.class, jdbcUserGroupRoles), null, null);
+	}
+
+	/**
+	 * createTable: Creates an empty UserGroupRole table with the given columns.
+	 * @param connection
+	 * @param columns I.e. COLUMNS for portal 7.0, COMPANY_ID_COLUMNS for the later ones.
+	 * @param companyIdColumn Whether the columns include companyId.
+	 * @return JdbcUserGroupRoles The service fake over the table.
+	 * @throws Exception
+	 */
+	public static JdbcUserGroupRoles createTable(final Connection connection, final String columns, final boolean companyIdColumn) throws Exception {
+		JdbcUserGroupRoles.createTable(connection, columns, PRIMARY_KEY);
+
+		return new JdbcUserGroupRoles(connection, COMPANY_ID, companyIdColumn);
+	}
+
+	public static long getUserId(final int user) {
+		return 100000 + user;
+	}
+
+	public static long getGroupId(final int userGroup) {
+		return 40000 + userGroup;
+	}
+
+	public static long getRoleId(final int role) {
+		return 20000 + role;
+	}
+
+	private static String getRoleName(final int role) {
+		return "Seeded Role " + role;
+	}
+
+	private static String getUserGroupName(final int userGroup) {
+		return "Seeded User Group " + userGroup;
+	}
+}
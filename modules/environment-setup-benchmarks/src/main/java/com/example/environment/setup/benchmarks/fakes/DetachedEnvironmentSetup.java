@@ -0,0 +1,52 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.upgrade.UpgradeException;
+
+/**
+ * class DetachedEnvironmentSetup: Runs a setup step in a plain JVM. upgrade() goes straight to the step's
+ * setupEnvironment() on the current thread, there is no database so there is no upgrade connection, no lease and no
+ * creation log, and without a connection the step reads and saves no checkpoints.
+ *
+ * Wrap the parts of a TaskGraphEnvironmentSetup in one as well, the graph runs its parts with upgrade().
+ *
+ * @author dnebinger
+ */
+public class DetachedEnvironmentSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * DetachedEnvironmentSetup: Constructor.
+	 * @param upgradeProcess The step to run.
+	 * @param serviceContext The service context the step gets.
+	 */
+	public DetachedEnvironmentSetup(final RemoteServiceDependentBaseUpgradeProcess upgradeProcess, final ServiceContext serviceContext) {
+		super(upgradeProcess.getCompanyId(), upgradeProcess.getAdminUserId(), upgradeProcess.getPermissionCheckerFactory(), upgradeProcess.getUserLocalService(), upgradeProcess.getGroupLocalService(), upgradeProcess.getSetupLookupCache());
+
+		this.upgradeProcess = upgradeProcess;
+		this.serviceContext = serviceContext;
+	}
+
+	@Override
+	public void upgrade() throws UpgradeException {
+		try {
+			setupEnvironment(serviceContext);
+		} catch (UpgradeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new UpgradeException(e);
+		}
+	}
+
+	@Override
+	protected void setupEnvironment(final ServiceContext serviceContext) throws Exception {
+		runIncludedStep(upgradeProcess, serviceContext);
+	}
+
+	public RemoteServiceDependentBaseUpgradeProcess getUpgradeProcess() {
+		return upgradeProcess;
+	}
+
+	private final RemoteServiceDependentBaseUpgradeProcess upgradeProcess;
+	private final ServiceContext serviceContext;
+}
@@ -0,0 +1,36 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.example.environment.setup.reconcile.UserGroupRoleBatchWriter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+
+/**
+ * class DetachedUserGroupRoleBatchWriter: A UserGroupRoleBatchWriter for a plain JVM. It writes the rows the same way,
+ * but there are no portal caches to clear and no search engine to reindex the users in.
+ *
+ * @author dnebinger
+ */
+public class DetachedUserGroupRoleBatchWriter extends UserGroupRoleBatchWriter {
+
+	/**
+	 * DetachedUserGroupRoleBatchWriter: Constructor.
+	 * @param connection
+	 * @param companyId
+	 * @param batchSize Number of rows per batch.
+	 * @throws SQLException
+	 * @throws IllegalStateException If the table has columns the writer can't fill.
+	 */
+	public DetachedUserGroupRoleBatchWriter(final Connection connection, final long companyId, final int batchSize) throws SQLException {
+		super(connection, companyId, getColumns(connection), batchSize);
+	}
+
+	@Override
+	protected void clearCaches(final Set<Long> userIds) {
+	}
+
+	@Override
+	protected void reindex(final Set<Long> userIds) {
+	}
+}
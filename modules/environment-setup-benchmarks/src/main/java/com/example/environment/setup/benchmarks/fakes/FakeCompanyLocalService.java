@@ -0,0 +1,31 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.Company;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class FakeCompanyLocalService: The CompanyLocalService methods the setup code uses, backed by an InMemoryPortal with
+ * its single company.
+ *
+ * @author dnebinger
+ */
+public class FakeCompanyLocalService {
+
+	public FakeCompanyLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public Company fetchCompany(long companyId) {
+		return (companyId == InMemoryPortal.COMPANY_ID) ? inMemoryPortal.getCompany() : null;
+	}
+
+	public List<Company> getCompanies() {
+		return Collections.singletonList(inMemoryPortal.getCompany());
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
@@ -0,0 +1,84 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * class FakeCriterion: A restriction added to a FakeDynamicQuery, i.e. eq("status", 0) or in("userId", ids).
+ *
+ * A SQL restriction keeps its SQL as the property and its parameter as the value. It can't be evaluated here, the fake
+ * service running the query has to recognize it.
+ *
+ * @author dnebinger
+ */
+public class FakeCriterion {
+
+	public enum Operator {
+		EQ, NE, IN, IS_NOT_NULL, SQL
+	}
+
+	public FakeCriterion(final Operator operator, final String property, final Object value, final Collection<?> values) {
+		super();
+
+		this.operator = operator;
+		this.property = property;
+		this.value = value;
+		this.values = values;
+	}
+
+	/**
+	 * matches: Checks the value of the property against the restriction.
+	 * @param actual
+	 * @return boolean <code>true</code> if the value passes.
+	 */
+	public boolean matches(final Object actual) {
+		switch (operator) {
+			case EQ:
+				return isEqual(actual, value);
+			case NE:
+				return (actual != null) && !isEqual(actual, value);
+			case IN:
+				for (Object candidate : values) {
+					if (isEqual(actual, candidate)) {
+						return true;
+					}
+				}
+
+				return false;
+			case IS_NOT_NULL:
+				return actual != null;
+			default:
+				return false;
+		}
+	}
+
+	public Operator getOperator() {
+		return operator;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public Collection<?> getValues() {
+		return values;
+	}
+
+	private static boolean isEqual(final Object actual, final Object expected) {
+		// the database doesn't care whether an id was passed as an int or a long, neither should we.
+		if ((actual instanceof Number) && (expected instanceof Number)) {
+			return ((Number) actual).longValue() == ((Number) expected).longValue();
+		}
+
+		return Objects.equals(actual, expected);
+	}
+
+	private final Operator operator;
+	private final String property;
+	private final Object value;
+	private final Collection<?> values;
+}
@@ -0,0 +1,173 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.dao.orm.Criterion;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.Order;
+import com.liferay.portal.kernel.dao.orm.OrderFactory;
+import com.liferay.portal.kernel.dao.orm.OrderFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.Projection;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactory;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactory;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class FakeDynamicQuery: Records the restrictions, projection and order of a dynamic query so a fake service can run it
+ * against its in-memory data.
+ *
+ * install() points the RestrictionsFactoryUtil, ProjectionFactoryUtil and OrderFactoryUtil at fakes producing what this
+ * class understands, which covers what the setup code uses: eq, ne, in, isNotNull and single parameter sqlRestriction
+ * restrictions, a single property projection and ascending or descending order on a single property.
+ *
+ * @author dnebinger
+ */
+public class FakeDynamicQuery {
+
+	/**
+	 * install: Installs the fake factories. Call once before any code under test builds a query.
+	 */
+	public static void install() {
+		new RestrictionsFactoryUtil().setRestrictionsFactory(FakeServices.create(RestrictionsFactory.class, new FakeRestrictionsFactory()));
+		new ProjectionFactoryUtil().setProjectionFactory(FakeServices.create(ProjectionFactory.class, new FakeProjectionFactory()));
+		new OrderFactoryUtil().setOrderFactory(FakeServices.create(OrderFactory.class, new FakeOrderFactory()));
+	}
+
+	/**
+	 * create: Creates a new, empty query.
+	 * @return DynamicQuery The query.
+	 */
+	public static DynamicQuery create() {
+		return FakeServices.create(DynamicQuery.class, new FakeDynamicQuery());
+	}
+
+	/**
+	 * unwrap: Returns the recorded query behind a DynamicQuery created by create().
+	 * @param dynamicQuery
+	 * @return FakeDynamicQuery The recorded query.
+	 */
+	public static FakeDynamicQuery unwrap(final DynamicQuery dynamicQuery) {
+		return (FakeDynamicQuery) FakeServices.unwrap(dynamicQuery);
+	}
+
+	public FakeDynamicQuery add(final Criterion criterion) {
+		criteria.add((FakeCriterion) FakeServices.unwrap(criterion));
+
+		return this;
+	}
+
+	public FakeDynamicQuery addOrder(final Order order) {
+		orders.add((OrderSpec) FakeServices.unwrap(order));
+
+		return this;
+	}
+
+	public FakeDynamicQuery setProjection(final Projection projection) {
+		this.projection = ((ProjectionSpec) FakeServices.unwrap(projection)).property;
+
+		return this;
+	}
+
+	public List<FakeCriterion> getCriteria() {
+		return criteria;
+	}
+
+	/**
+	 * getProjection: Returns the projected property.
+	 * @return String The property or <code>null</code> if whole entities are wanted.
+	 */
+	public String getProjection() {
+		return projection;
+	}
+
+	/**
+	 * getOrderProperty: Returns the property to order by.
+	 * @return String The property or <code>null</code> if there is no order.
+	 */
+	public String getOrderProperty() {
+		return orders.isEmpty() ? null : orders.get(0).property;
+	}
+
+	public boolean isOrderAscending() {
+		return orders.isEmpty() || orders.get(0).ascending;
+	}
+
+	public static class FakeRestrictionsFactory {
+
+		public Criterion eq(String property, Object value) {
+			return criterion(FakeCriterion.Operator.EQ, property, value, null);
+		}
+
+		public Criterion ne(String property, Object value) {
+			return criterion(FakeCriterion.Operator.NE, property, value, null);
+		}
+
+		public Criterion in(String property, Collection<?> values) {
+			return criterion(FakeCriterion.Operator.IN, property, null, values);
+		}
+
+		public Criterion in(String property, Object[] values) {
+			return criterion(FakeCriterion.Operator.IN, property, null, Arrays.asList(values));
+		}
+
+		public Criterion isNotNull(String property) {
+			return criterion(FakeCriterion.Operator.IS_NOT_NULL, property, null, Collections.emptyList());
+		}
+
+		public Criterion sqlRestriction(String sql, Object value, Type type) {
+			return criterion(FakeCriterion.Operator.SQL, sql, value, null);
+		}
+
+		private static Criterion criterion(FakeCriterion.Operator operator, String property, Object value, Collection<?> values) {
+			return FakeServices.create(Criterion.class, new FakeCriterion(operator, property, value, values));
+		}
+	}
+
+	public static class FakeProjectionFactory {
+
+		public Projection property(String property) {
+			return FakeServices.create(Projection.class, new ProjectionSpec(property));
+		}
+	}
+
+	public static class FakeOrderFactory {
+
+		public Order asc(String property) {
+			return FakeServices.create(Order.class, new OrderSpec(property, true));
+		}
+
+		public Order desc(String property) {
+			return FakeServices.create(Order.class, new OrderSpec(property, false));
+		}
+	}
+
+	private static class ProjectionSpec {
+
+		ProjectionSpec(String property) {
+			this.property = property;
+		}
+
+		private final String property;
+	}
+
+	private static class OrderSpec {
+
+		OrderSpec(String property, boolean ascending) {
+			this.property = property;
+			this.ascending = ascending;
+		}
+
+		private final String property;
+		private final boolean ascending;
+	}
+
+	private final List<FakeCriterion> criteria = new ArrayList<>();
+	private final List<OrderSpec> orders = new ArrayList<>();
+	private String projection;
+}
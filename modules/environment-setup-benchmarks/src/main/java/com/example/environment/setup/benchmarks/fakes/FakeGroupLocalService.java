@@ -0,0 +1,65 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.service.ServiceContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * class FakeGroupLocalService: The GroupLocalService methods the setup code uses, backed by an InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeGroupLocalService {
+
+	public FakeGroupLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public Group fetchGroup(long groupId) {
+		return inMemoryPortal.fetchGroup(groupId);
+	}
+
+	public Group fetchGroup(long companyId, String groupKey) {
+		return inMemoryPortal.fetchGroup(groupKey);
+	}
+
+	public Group fetchCompanyGroup(long companyId) {
+		return inMemoryPortal.getCompanyGroup();
+	}
+
+	public List<Group> getRoleGroups(long roleId) {
+		List<Group> groups = new ArrayList<>();
+
+		for (long groupId : inMemoryPortal.getRoleGroupIds(roleId)) {
+			groups.add(inMemoryPortal.fetchGroup(groupId));
+		}
+
+		return groups;
+	}
+
+	public long[] getUserPrimaryKeys(long groupId) {
+		return inMemoryPortal.getGroupUserIds(groupId);
+	}
+
+	public Group addGroup(long userId, long parentGroupId, String className, long classPK, long liveGroupId, Map<Locale, String> nameMap, Map<Locale, String> descriptionMap,
+			int type, boolean manualMembership, int membershipRestriction, String friendlyURL, boolean site, boolean inheritContent, boolean active, ServiceContext serviceContext) {
+
+		return inMemoryPortal.addGroup(nameMap.values().iterator().next());
+	}
+
+	public void addGroupUsers(long groupId, long[] userIds) {
+		inMemoryPortal.addGroupUsers(groupId, userIds);
+	}
+
+	public void addRoleGroups(long roleId, long[] groupIds) {
+		inMemoryPortal.addRoleGroups(roleId, groupIds);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
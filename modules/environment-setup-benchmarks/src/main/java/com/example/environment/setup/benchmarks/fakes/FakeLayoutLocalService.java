@@ -0,0 +1,26 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.service.ServiceContext;
+
+/**
+ * class FakeLayoutLocalService: The LayoutLocalService methods the setup code uses, backed by an InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeLayoutLocalService {
+
+	public FakeLayoutLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public Layout addLayout(long userId, long groupId, boolean privateLayout, long parentLayoutId, String name, String title, String description, String type,
+			boolean hidden, String friendlyURL, ServiceContext serviceContext) {
+
+		return inMemoryPortal.addLayout(groupId, privateLayout, parentLayoutId, name, hidden, friendlyURL);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
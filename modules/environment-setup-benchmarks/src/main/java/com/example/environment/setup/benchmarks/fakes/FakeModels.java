@@ -0,0 +1,89 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * class FakeModels: Creates model instances (User, Role, Group...) backed by a map of property values. The model
+ * implementations live in portal-impl, which the benchmarks don't have.
+ *
+ * Getters read the property named after the method, i.e. getUserId() reads "userId" and isActive() reads "active".
+ * Missing primitive properties read as 0 or false, everything else that is not a getter is unsupported.
+ *
+ * @author dnebinger
+ */
+public class FakeModels {
+
+	/**
+	 * create: Creates the model.
+	 * @param modelInterface The model interface, i.e. User.class.
+	 * @param values The property values.
+	 * @return T The model.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T create(final Class<T> modelInterface, final Map<String, Object> values) {
+		return (T) Proxy.newProxyInstance(FakeModels.class.getClassLoader(), new Class<?>[] {modelInterface}, (proxy, method, args) -> {
+			String name = method.getName();
+
+			if ("equals".equals(name) && (method.getParameterCount() == 1)) {
+				return proxy == args[0];
+			}
+
+			if ("hashCode".equals(name) && (method.getParameterCount() == 0)) {
+				return System.identityHashCode(proxy);
+			}
+
+			if ("toString".equals(name) && (method.getParameterCount() == 0)) {
+				return modelInterface.getSimpleName() + values;
+			}
+
+			if ("getModelAttributes".equals(name)) {
+				return values;
+			}
+
+			if (method.getParameterCount() == 0) {
+				if (name.startsWith("get") && (name.length() > 3)) {
+					return getValue(method, values, name.substring(3));
+				}
+
+				if (name.startsWith("is") && (name.length() > 2)) {
+					return getValue(method, values, name.substring(2));
+				}
+			}
+
+			throw new UnsupportedOperationException(modelInterface.getSimpleName() + "." + name + " is not faked");
+		});
+	}
+
+	private static Object getValue(final Method method, final Map<String, Object> values, final String property) {
+		Object value = values.get(Character.toLowerCase(property.charAt(0)) + property.substring(1));
+
+		if (value != null || !method.getReturnType().isPrimitive()) {
+			return value;
+		}
+
+		Class<?> returnType = method.getReturnType();
+
+		if (returnType == boolean.class) {
+			return false;
+		}
+
+		if (returnType == long.class) {
+			return 0L;
+		}
+
+		if (returnType == int.class) {
+			return 0;
+		}
+
+		if (returnType == double.class) {
+			return 0D;
+		}
+
+		return null;
+	}
+
+	private FakeModels() {
+	}
+}
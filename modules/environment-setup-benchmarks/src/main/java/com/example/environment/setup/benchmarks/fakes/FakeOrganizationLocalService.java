@@ -0,0 +1,32 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.Organization;
+
+/**
+ * class FakeOrganizationLocalService: The OrganizationLocalService methods the setup code uses, backed by an
+ * InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeOrganizationLocalService {
+
+	public FakeOrganizationLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public Organization fetchOrganization(long companyId, String name) {
+		return inMemoryPortal.fetchOrganization(name);
+	}
+
+	public Organization addOrganization(long userId, long parentOrganizationId, String name, boolean site) {
+		return inMemoryPortal.addOrganization(name, parentOrganizationId);
+	}
+
+	public long[] getUserPrimaryKeys(long organizationId) {
+		return inMemoryPortal.getOrganizationUserIds(organizationId);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
@@ -0,0 +1,31 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.util.Props;
+import com.liferay.portal.kernel.util.PropsUtil;
+
+/**
+ * class FakeProps: A portal-ext.properties with nothing set, so every environment.setup property has its default.
+ *
+ * @author dnebinger
+ */
+public class FakeProps {
+
+	/**
+	 * install: Points the PropsUtil at the fake.
+	 */
+	public static void install() {
+		PropsUtil.setProps(FakeServices.create(Props.class, new FakeProps()));
+	}
+
+	public boolean contains(String key) {
+		return false;
+	}
+
+	public String get(String key) {
+		return null;
+	}
+
+	public String[] getArray(String key) {
+		return new String[0];
+	}
+}
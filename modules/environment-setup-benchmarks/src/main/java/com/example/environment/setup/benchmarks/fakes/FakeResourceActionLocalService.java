@@ -0,0 +1,26 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.ResourceAction;
+
+import java.util.List;
+
+/**
+ * class FakeResourceActionLocalService: The ResourceActionLocalService methods the setup code uses, backed by an
+ * InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeResourceActionLocalService {
+
+	public FakeResourceActionLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public List<ResourceAction> getResourceActions(String name) {
+		return inMemoryPortal.getResourceActions(name);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
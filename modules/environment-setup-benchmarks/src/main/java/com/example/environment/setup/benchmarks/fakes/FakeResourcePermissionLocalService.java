@@ -0,0 +1,30 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.ResourcePermission;
+
+import java.util.List;
+
+/**
+ * class FakeResourcePermissionLocalService: The ResourcePermissionLocalService methods the setup code uses, backed by an
+ * InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeResourcePermissionLocalService {
+
+	public FakeResourcePermissionLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public List<ResourcePermission> getRoleResourcePermissions(long roleId) {
+		return inMemoryPortal.getRoleResourcePermissions(roleId);
+	}
+
+	public void setResourcePermissions(long companyId, String name, int scope, String primKey, long roleId, String[] actionIds) {
+		inMemoryPortal.setResourcePermissions(name, scope, primKey, roleId, actionIds);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
@@ -0,0 +1,44 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.exception.NoSuchRoleException;
+import com.liferay.portal.kernel.model.Role;
+
+import java.util.List;
+
+/**
+ * class FakeRoleLocalService: The RoleLocalService methods the setup code uses, backed by an InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeRoleLocalService {
+
+	public FakeRoleLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public Role fetchRole(long companyId, String name) {
+		return inMemoryPortal.getRole(name);
+	}
+
+	public Role getRole(long companyId, String name) throws NoSuchRoleException {
+		Role role = inMemoryPortal.getRole(name);
+
+		if (role == null) {
+			throw new NoSuchRoleException("No role " + name);
+		}
+
+		return role;
+	}
+
+	public List<Role> getRoles(long companyId) {
+		return inMemoryPortal.getRoles();
+	}
+
+	public long[] getGroupPrimaryKeys(long roleId) {
+		return inMemoryPortal.getRoleGroupIds(roleId);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
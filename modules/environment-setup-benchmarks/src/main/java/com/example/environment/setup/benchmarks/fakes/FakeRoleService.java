@@ -0,0 +1,29 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.util.LocaleUtil;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * class FakeRoleService: The RoleService methods the setup code uses, backed by an InMemoryPortal. The fake does no
+ * permission checks.
+ *
+ * @author dnebinger
+ */
+public class FakeRoleService {
+
+	public FakeRoleService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public Role addRole(String className, long classPK, String name, Map<Locale, String> titleMap, Map<Locale, String> descriptionMap, int type, String subtype, ServiceContext serviceContext) {
+		return inMemoryPortal.addRole(name, type, (descriptionMap == null) ? null : descriptionMap.get(LocaleUtil.getDefault()));
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
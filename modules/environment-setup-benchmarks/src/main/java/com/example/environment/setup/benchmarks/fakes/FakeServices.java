@@ -0,0 +1,121 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * class FakeServices: Implements a (large) Liferay interface with a dynamic proxy that forwards calls to a plain object
+ * implementing only the methods the code under test actually uses.
+ *
+ * A call is forwarded to the public method of the implementation with the same name and parameter types, or failing that
+ * the same name and number of parameters. Anything else fails with an UnsupportedOperationException naming the method, so
+ * a benchmark that wanders into an unfaked method is obvious.
+ *
+ * @author dnebinger
+ */
+public class FakeServices {
+
+	/**
+	 * create: Creates the fake.
+	 * @param serviceInterface The interface to fake, i.e. UserLocalService.class.
+	 * @param implementation The object implementing the methods that are needed.
+	 * @return T The fake.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T create(final Class<T> serviceInterface, final Object implementation) {
+		return (T) Proxy.newProxyInstance(FakeServices.class.getClassLoader(), new Class<?>[] {serviceInterface}, new FakeInvocationHandler(serviceInterface, implementation));
+	}
+
+	/**
+	 * unwrap: Returns the implementation behind a fake created by create().
+	 * @param fake
+	 * @return Object The implementation.
+	 */
+	public static Object unwrap(final Object fake) {
+		if (fake == null || !Proxy.isProxyClass(fake.getClass())) {
+			throw new IllegalArgumentException(fake + " is not a fake");
+		}
+
+		InvocationHandler invocationHandler = Proxy.getInvocationHandler(fake);
+
+		if (!(invocationHandler instanceof FakeInvocationHandler)) {
+			throw new IllegalArgumentException(fake + " is not a fake");
+		}
+
+		return ((FakeInvocationHandler) invocationHandler).implementation;
+	}
+
+	private static class FakeInvocationHandler implements InvocationHandler {
+
+		FakeInvocationHandler(Class<?> serviceInterface, Object implementation) {
+			this.serviceInterface = serviceInterface;
+			this.implementation = implementation;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				if ("equals".equals(method.getName())) {
+					return proxy == args[0];
+				}
+
+				if ("hashCode".equals(method.getName())) {
+					return System.identityHashCode(proxy);
+				}
+
+				return serviceInterface.getSimpleName() + "[" + implementation + "]";
+			}
+
+			Method target = targets.computeIfAbsent(method, this::findTarget);
+
+			if (target == NOT_FAKED) {
+				throw new UnsupportedOperationException(serviceInterface.getSimpleName() + "." + method.getName() + " is not faked");
+			}
+
+			try {
+				Object result = target.invoke(implementation, args);
+
+				// builder style methods return the implementation, the caller needs to get the fake back.
+				return (result == implementation) ? proxy : result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		private Method findTarget(Method method) {
+			try {
+				return implementation.getClass().getMethod(method.getName(), method.getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				// the fake may declare wider primitive types, i.e. long where the interface uses int.
+				for (Method candidate : implementation.getClass().getMethods()) {
+					if (candidate.getName().equals(method.getName()) && (candidate.getParameterCount() == method.getParameterCount())) {
+						return candidate;
+					}
+				}
+			}
+
+			return NOT_FAKED;
+		}
+
+		private final Class<?> serviceInterface;
+		private final Object implementation;
+		private final Map<Method, Method> targets = new ConcurrentHashMap<>();
+	}
+
+	private static final Method NOT_FAKED;
+
+	static {
+		try {
+			NOT_FAKED = Object.class.getMethod("toString");
+		} catch (NoSuchMethodException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private FakeServices() {
+	}
+}
@@ -0,0 +1,26 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.transaction.TransactionConfig;
+import com.liferay.portal.kernel.transaction.TransactionInvoker;
+import com.liferay.portal.kernel.transaction.TransactionInvokerUtil;
+
+import java.util.concurrent.Callable;
+
+/**
+ * class FakeTransactionInvoker: Runs the callable without a transaction, there is no database behind the fakes.
+ *
+ * @author dnebinger
+ */
+public class FakeTransactionInvoker {
+
+	/**
+	 * install: Points the TransactionInvokerUtil at the fake.
+	 */
+	public static void install() {
+		new TransactionInvokerUtil().setTransactionInvoker(FakeServices.create(TransactionInvoker.class, new FakeTransactionInvoker()));
+	}
+
+	public Object invoke(TransactionConfig transactionConfig, Callable<?> callable) throws Exception {
+		return callable.call();
+	}
+}
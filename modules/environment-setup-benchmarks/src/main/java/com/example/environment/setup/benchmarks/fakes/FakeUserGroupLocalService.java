@@ -0,0 +1,29 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.UserGroup;
+
+import java.util.List;
+
+/**
+ * class FakeUserGroupLocalService: The UserGroupLocalService methods the setup code uses, backed by an InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeUserGroupLocalService {
+
+	public FakeUserGroupLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public List<UserGroup> getUserGroups(long companyId) {
+		return inMemoryPortal.getUserGroups();
+	}
+
+	public long[] getUserPrimaryKeys(long userGroupId) {
+		return inMemoryPortal.getUserGroupUserIds(userGroupId);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
@@ -0,0 +1,26 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.UserGroupRole;
+
+import java.util.List;
+
+/**
+ * class FakeUserGroupRoleLocalService: The UserGroupRoleLocalService methods the setup code uses, backed by an
+ * InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeUserGroupRoleLocalService {
+
+	public FakeUserGroupRoleLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public List<UserGroupRole> getUserGroupRolesByGroup(long groupId) {
+		return inMemoryPortal.getUserGroupRolesByGroup(groupId);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
@@ -0,0 +1,22 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+/**
+ * class FakeUserGroupRoleService: The UserGroupRoleService methods the setup code uses, backed by an InMemoryPortal. The
+ * fake does no permission checks.
+ *
+ * @author dnebinger
+ */
+public class FakeUserGroupRoleService {
+
+	public FakeUserGroupRoleService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public void addUserGroupRoles(long userId, long groupId, long[] roleIds) {
+		inMemoryPortal.addUserGroupRoles(userId, groupId, roleIds);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
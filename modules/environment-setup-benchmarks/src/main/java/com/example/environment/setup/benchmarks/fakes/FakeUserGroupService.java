@@ -0,0 +1,25 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.service.ServiceContext;
+
+/**
+ * class FakeUserGroupService: The UserGroupService methods the setup code uses, backed by an InMemoryPortal. The fake
+ * does no permission checks.
+ *
+ * @author dnebinger
+ */
+public class FakeUserGroupService {
+
+	public FakeUserGroupService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public UserGroup addUserGroup(String name, String description, ServiceContext serviceContext) {
+		return inMemoryPortal.addUserGroup(name, description);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
@@ -0,0 +1,68 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.service.ServiceContext;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * class FakeUserLocalService: The UserLocalService methods the setup code uses, backed by an InMemoryPortal.
+ *
+ * @author dnebinger
+ */
+public class FakeUserLocalService {
+
+	public FakeUserLocalService(final InMemoryPortal inMemoryPortal) {
+		super();
+
+		this.inMemoryPortal = inMemoryPortal;
+	}
+
+	public DynamicQuery dynamicQuery() {
+		return FakeDynamicQuery.create();
+	}
+
+	public List<Object> dynamicQuery(DynamicQuery dynamicQuery) {
+		return inMemoryPortal.queryUsers(dynamicQuery, -1, -1);
+	}
+
+	public List<Object> dynamicQuery(DynamicQuery dynamicQuery, int start, int end) {
+		return inMemoryPortal.queryUsers(dynamicQuery, start, end);
+	}
+
+	public User fetchUser(long userId) {
+		return inMemoryPortal.fetchUser(userId);
+	}
+
+	public User addUser(long creatorUserId, long companyId, boolean autoPassword, String password1, String password2, boolean autoScreenName, String screenName,
+			String emailAddress, long facebookId, String openId, Locale locale, String firstName, String middleName, String lastName,
+			long prefixId, long suffixId, boolean male, int birthdayMonth, int birthdayDay, int birthdayYear, String jobTitle,
+			long[] groupIds, long[] organizationIds, long[] roleIds, long[] userGroupIds, boolean sendEmail, ServiceContext serviceContext) {
+
+		return inMemoryPortal.addUser(screenName, emailAddress, firstName, lastName);
+	}
+
+	public long[] getRoleUserIds(long roleId) {
+		return inMemoryPortal.getRoleUserIds(roleId);
+	}
+
+	public void addRoleUsers(long roleId, long[] userIds) {
+		inMemoryPortal.addRoleUsers(roleId, userIds);
+	}
+
+	public void addUserGroupUsers(long userGroupId, long[] userIds) {
+		inMemoryPortal.addUserGroupUsers(userGroupId, userIds);
+	}
+
+	public void addGroupUsers(long groupId, long[] userIds) {
+		inMemoryPortal.addGroupUsers(groupId, userIds);
+	}
+
+	public void addOrganizationUsers(long organizationId, long[] userIds) {
+		inMemoryPortal.addOrganizationUsers(organizationId, userIds);
+	}
+
+	private final InMemoryPortal inMemoryPortal;
+}
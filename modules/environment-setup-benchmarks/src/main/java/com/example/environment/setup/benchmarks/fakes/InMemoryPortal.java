@@ -0,0 +1,775 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.model.Company;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.model.Organization;
+import com.liferay.portal.kernel.model.ResourceAction;
+import com.liferay.portal.kernel.model.ResourcePermission;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.RoleConstants;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.model.UserGroupRole;
+import com.liferay.portal.kernel.security.permission.ActionKeys;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.workflow.WorkflowConstants;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * class InMemoryPortal: The data behind the fake services, a single company populated at realistic sizes.
+ *
+ * Users are kept in columns rather than as model instances so a million of them fit in a normal heap; User models are
+ * only created for the rows a query returns. Queries on the user id or screen name use an index, like the database would,
+ * anything else scans.
+ *
+ * Every write is recorded in an undo log, so a benchmark can take a mark() once its fixture is ready and rollback() to it
+ * before each invocation. Not thread safe, the benchmarks using it run single threaded.
+ *
+ * @author dnebinger
+ */
+public class InMemoryPortal {
+
+	public static final long COMPANY_ID = 20099;
+
+	/**
+	 * InMemoryPortal: Constructor which populates the company. The same seed always gives the same data.
+	 * @param userCount Number of users, not counting the default user.
+	 * @param groupCount Number of sites.
+	 * @param userGroupCount Number of user groups.
+	 * @param adminRoleUserCount Number of users with the Administrator role. Only the last one is still active, like a
+	 *                           long lived environment where the original administrators have left.
+	 * @param seed
+	 */
+	public InMemoryPortal(final int userCount, final int groupCount, final int userGroupCount, final int adminRoleUserCount, final long seed) {
+		super();
+
+		Random random = new Random(seed);
+
+		company = FakeModels.create(Company.class, values("companyId", COMPANY_ID, "webId", "liferay.com"));
+		companyGroup = addGroupRecord("Guest", 0, false, false);
+
+		firstUserId = nextId;
+
+		int capacity = userCount + 1;
+
+		screenNames = new String[capacity];
+		emailAddresses = new String[capacity];
+		firstNames = new String[capacity];
+		lastNames = new String[capacity];
+		statuses = new int[capacity];
+		screenNameIndex = new HashMap<>(capacity * 2);
+
+		// the default user is always the first one.
+		addUserRecord("default", "default@liferay.com", "", "", WorkflowConstants.STATUS_APPROVED);
+
+		for (int i = 1; i <= userCount; i++) {
+			int status = (random.nextInt(100) < 5) ? WorkflowConstants.STATUS_INACTIVE : WorkflowConstants.STATUS_APPROVED;
+
+			addUserRecord("user" + i, null, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)], LAST_NAMES[random.nextInt(LAST_NAMES.length)], status);
+		}
+
+		for (String name : REGULAR_ROLES) {
+			addRoleRecord(name, RoleConstants.TYPE_REGULAR, null);
+		}
+
+		for (String name : SITE_ROLES) {
+			addRoleRecord(name, RoleConstants.TYPE_SITE, null);
+		}
+
+		long adminRoleId = rolesByName.get(RoleConstants.ADMINISTRATOR).getRoleId();
+
+		Set<Long> adminUserIds = new LinkedHashSet<>();
+
+		while (adminUserIds.size() < Math.min(adminRoleUserCount, userCount)) {
+			adminUserIds.add(firstUserId + 1 + random.nextInt(userCount));
+		}
+
+		int remaining = adminUserIds.size();
+
+		for (long adminUserId : adminUserIds) {
+			statuses[getRow(adminUserId)] = (--remaining == 0) ? WorkflowConstants.STATUS_APPROVED : WorkflowConstants.STATUS_INACTIVE;
+		}
+
+		roleUserIds.put(adminRoleId, adminUserIds);
+
+		for (int i = 1; i <= groupCount; i++) {
+			Group group = addGroupRecord("Site " + i, 0, true, false);
+
+			Set<Long> members = new LinkedHashSet<>();
+
+			for (int j = 0; j < Math.min(SITE_MEMBERS, userCount); j++) {
+				members.add(firstUserId + 1 + random.nextInt(userCount));
+			}
+
+			groupUserIds.put(group.getGroupId(), members);
+		}
+
+		for (int i = 1; i <= userGroupCount; i++) {
+			addUserGroupRecord("User Group " + i, null);
+		}
+	}
+
+	/**
+	 * mark: Returns the current position in the undo log.
+	 * @return int The mark.
+	 */
+	public int mark() {
+		return undoLog.size();
+	}
+
+	/**
+	 * rollback: Undoes every write made since the mark was taken.
+	 * @param mark
+	 */
+	public void rollback(final int mark) {
+		while (undoLog.size() > mark) {
+			undoLog.pop().run();
+		}
+	}
+
+	public Company getCompany() {
+		return company;
+	}
+
+	public Group getCompanyGroup() {
+		return companyGroup;
+	}
+
+	public int getUserCount() {
+		return userCount;
+	}
+
+	public long getFirstUserId() {
+		return firstUserId;
+	}
+
+	public long getDefaultUserId() {
+		return firstUserId;
+	}
+
+	public long getAdminRoleId() {
+		return rolesByName.get(RoleConstants.ADMINISTRATOR).getRoleId();
+	}
+
+	public Collection<Group> getGroups() {
+		return groupsById.values();
+	}
+
+	// users
+
+	public User fetchUser(final long userId) {
+		int row = getRow(userId);
+
+		return (row < 0) ? null : toUser(row);
+	}
+
+	public User addUser(final String screenName, final String emailAddress, final String firstName, final String lastName) {
+		String key = (screenName == null || screenName.isEmpty()) ? String.valueOf(nextId) : screenName.toLowerCase();
+
+		if (screenNameIndex.containsKey(key)) {
+			throw new IllegalArgumentException("Duplicate screen name " + key);
+		}
+
+		int row = addUserRecord(key, emailAddress, firstName, lastName, WorkflowConstants.STATUS_APPROVED);
+
+		undoLog.push(() -> {
+			screenNameIndex.remove(key);
+			userCount--;
+		});
+
+		return toUser(row);
+	}
+
+	/**
+	 * queryUsers: Runs a dynamic query against the users.
+	 * @param dynamicQuery
+	 * @param start
+	 * @param end
+	 * @return List The users or the projected values.
+	 */
+	public List<Object> queryUsers(final DynamicQuery dynamicQuery, final int start, final int end) {
+		FakeDynamicQuery fakeDynamicQuery = FakeDynamicQuery.unwrap(dynamicQuery);
+
+		List<Integer> rows = new ArrayList<>();
+
+		for (int row : getCandidateRows(fakeDynamicQuery)) {
+			if (matches(row, fakeDynamicQuery)) {
+				rows.add(row);
+			}
+		}
+
+		String orderProperty = fakeDynamicQuery.getOrderProperty();
+
+		if (orderProperty != null) {
+			Comparator<Integer> comparator = Comparator.comparing(row -> (Comparable) getUserValue(row, orderProperty));
+
+			rows.sort(fakeDynamicQuery.isOrderAscending() ? comparator : comparator.reversed());
+		}
+
+		if (start >= 0 && end >= 0) {
+			rows = rows.subList(Math.min(start, rows.size()), Math.min(end, rows.size()));
+		}
+
+		List<Object> results = new ArrayList<>(rows.size());
+
+		for (int row : rows) {
+			results.add((fakeDynamicQuery.getProjection() == null) ? toUser(row) : getUserValue(row, fakeDynamicQuery.getProjection()));
+		}
+
+		return results;
+	}
+
+	// roles
+
+	public Role getRole(final String name) {
+		return rolesByName.get(name);
+	}
+
+	public List<Role> getRoles() {
+		return new ArrayList<>(rolesByName.values());
+	}
+
+	public Role addRole(final String name, final int type, final String description) {
+		if (rolesByName.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate role " + name);
+		}
+
+		Role role = addRoleRecord(name, type, description);
+
+		undoLog.push(() -> rolesByName.remove(name));
+
+		return role;
+	}
+
+	public long[] getRoleUserIds(final long roleId) {
+		return toArray(roleUserIds.get(roleId));
+	}
+
+	public void addRoleUsers(final long roleId, final long[] userIds) {
+		addAll(roleUserIds, roleId, userIds);
+	}
+
+	public long[] getRoleGroupIds(final long roleId) {
+		return toArray(roleGroupIds.get(roleId));
+	}
+
+	public void addRoleGroups(final long roleId, final long[] groupIds) {
+		addAll(roleGroupIds, roleId, groupIds);
+	}
+
+	// groups
+
+	public Group fetchGroup(final long groupId) {
+		return groupsById.get(groupId);
+	}
+
+	public Group fetchGroup(final String groupKey) {
+		return groupsByKey.get(groupKey);
+	}
+
+	public Group addGroup(final String name) {
+		if (groupsByKey.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate group " + name);
+		}
+
+		Group group = addGroupRecord(name, 0, true, false);
+
+		undoLog.push(() -> {
+			groupsById.remove(group.getGroupId());
+			groupsByKey.remove(name);
+		});
+
+		return group;
+	}
+
+	public long[] getGroupUserIds(final long groupId) {
+		return toArray(groupUserIds.get(groupId));
+	}
+
+	public void addGroupUsers(final long groupId, final long[] userIds) {
+		addAll(groupUserIds, groupId, userIds);
+	}
+
+	// layouts
+
+	public List<Layout> getLayouts(final long groupId) {
+		return new ArrayList<>(layoutsByGroupId.getOrDefault(groupId, Collections.emptyList()));
+	}
+
+	/**
+	 * addLayout: Adds a page to the site. Layout ids are numbered per site and side, like the portal does.
+	 * @param groupId
+	 * @param privateLayout
+	 * @param parentLayoutId
+	 * @param name
+	 * @param hidden
+	 * @param friendlyURL
+	 * @return Layout The page.
+	 */
+	public Layout addLayout(final long groupId, final boolean privateLayout, final long parentLayoutId, final String name, final boolean hidden, final String friendlyURL) {
+		List<Layout> layouts = layoutsByGroupId.computeIfAbsent(groupId, id -> new ArrayList<>());
+
+		long layoutId = 1;
+
+		for (Layout layout : layouts) {
+			if (layout.isPrivateLayout() == privateLayout) {
+				layoutId = Math.max(layoutId, layout.getLayoutId() + 1);
+			}
+		}
+
+		Layout layout = FakeModels.create(Layout.class, values("plid", nextId(), "groupId", groupId, "companyId", COMPANY_ID, "privateLayout", privateLayout,
+				"layoutId", layoutId, "parentLayoutId", parentLayoutId, "name", name, "hidden", hidden, "friendlyURL", friendlyURL));
+
+		layouts.add(layout);
+
+		undoLog.push(() -> layouts.remove(layout));
+
+		return layout;
+	}
+
+	// organizations
+
+	public Organization fetchOrganization(final String name) {
+		return organizationsByName.get(name);
+	}
+
+	public Organization addOrganization(final String name, final long parentOrganizationId) {
+		if (organizationsByName.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate organization " + name);
+		}
+
+		Organization organization = FakeModels.create(Organization.class, values("organizationId", nextId(), "companyId", COMPANY_ID, "name", name,
+				"parentOrganizationId", parentOrganizationId));
+
+		organizationsByName.put(name, organization);
+
+		undoLog.push(() -> organizationsByName.remove(name));
+
+		return organization;
+	}
+
+	public long[] getOrganizationUserIds(final long organizationId) {
+		return toArray(organizationUserIds.get(organizationId));
+	}
+
+	public void addOrganizationUsers(final long organizationId, final long[] userIds) {
+		addAll(organizationUserIds, organizationId, userIds);
+	}
+
+	// resource permissions
+
+	/**
+	 * getResourceActions: Returns the actions of the resource. Every resource has the same few actions.
+	 * @param name The resource name.
+	 * @return List The actions.
+	 */
+	public List<ResourceAction> getResourceActions(final String name) {
+		List<ResourceAction> resourceActions = new ArrayList<>(RESOURCE_ACTIONS.length);
+
+		for (int i = 0; i < RESOURCE_ACTIONS.length; i++) {
+			resourceActions.add(FakeModels.create(ResourceAction.class, values("name", name, "actionId", RESOURCE_ACTIONS[i], "bitwiseValue", 1L << i)));
+		}
+
+		return resourceActions;
+	}
+
+	public List<ResourcePermission> getRoleResourcePermissions(final long roleId) {
+		return new ArrayList<>(resourcePermissionsByRoleId.getOrDefault(roleId, Collections.emptyMap()).values());
+	}
+
+	/**
+	 * setResourcePermissions: Replaces the actions the role has on the resource.
+	 * @param name
+	 * @param scope
+	 * @param primKey
+	 * @param roleId
+	 * @param actionIds The action names, see getResourceActions().
+	 */
+	public void setResourcePermissions(final String name, final int scope, final String primKey, final long roleId, final String[] actionIds) {
+		long bitmask = 0;
+
+		for (String actionId : actionIds) {
+			int index = Arrays.asList(RESOURCE_ACTIONS).indexOf(actionId);
+
+			if (index < 0) {
+				throw new IllegalArgumentException("No action " + actionId + " on " + name);
+			}
+
+			bitmask |= 1L << index;
+		}
+
+		Map<String, ResourcePermission> resourcePermissions = resourcePermissionsByRoleId.computeIfAbsent(roleId, id -> new LinkedHashMap<>());
+
+		String key = name + "_" + scope + "_" + primKey;
+
+		ResourcePermission previous = resourcePermissions.put(key, FakeModels.create(ResourcePermission.class, values("resourcePermissionId", nextId(), "companyId", COMPANY_ID,
+				"name", name, "scope", scope, "primKey", primKey, "roleId", roleId, "actionIds", bitmask)));
+
+		undoLog.push(() -> {
+			if (previous == null) {
+				resourcePermissions.remove(key);
+			} else {
+				resourcePermissions.put(key, previous);
+			}
+		});
+	}
+
+	// user groups
+
+	public List<UserGroup> getUserGroups() {
+		return new ArrayList<>(userGroupsByName.values());
+	}
+
+	public UserGroup addUserGroup(final String name, final String description) {
+		if (userGroupsByName.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate user group " + name);
+		}
+
+		UserGroup userGroup = addUserGroupRecord(name, description);
+
+		undoLog.push(() -> {
+			userGroupsByName.remove(name);
+			groupsById.remove(userGroup.getGroupId());
+			groupsByKey.remove(name);
+		});
+
+		return userGroup;
+	}
+
+	public long[] getUserGroupUserIds(final long userGroupId) {
+		return toArray(userGroupUserIds.get(userGroupId));
+	}
+
+	public void addUserGroupUsers(final long userGroupId, final long[] userIds) {
+		addAll(userGroupUserIds, userGroupId, userIds);
+	}
+
+	public List<UserGroupRole> getUserGroupRolesByGroup(final long groupId) {
+		List<UserGroupRole> userGroupRoles = new ArrayList<>();
+
+		for (String key : userGroupRoleKeys.getOrDefault(groupId, Collections.emptySet())) {
+			String[] ids = key.split("_");
+
+			userGroupRoles.add(FakeModels.create(UserGroupRole.class, values("userId", Long.valueOf(ids[0]), "groupId", groupId, "roleId", Long.valueOf(ids[1]))));
+		}
+
+		return userGroupRoles;
+	}
+
+	public void addUserGroupRoles(final long userId, final long groupId, final long[] roleIds) {
+		Set<String> keys = userGroupRoleKeys.computeIfAbsent(groupId, id -> new LinkedHashSet<>());
+
+		for (long roleId : roleIds) {
+			String key = userId + "_" + roleId;
+
+			if (keys.add(key)) {
+				undoLog.push(() -> keys.remove(key));
+			}
+		}
+	}
+
+	protected int getRow(final long userId) {
+		long row = userId - firstUserId;
+
+		return (row < 0 || row >= userCount) ? -1 : (int) row;
+	}
+
+	protected Iterable<Integer> getCandidateRows(final FakeDynamicQuery fakeDynamicQuery) {
+		for (FakeCriterion fakeCriterion : fakeDynamicQuery.getCriteria()) {
+			Collection<?> keys = null;
+
+			if (fakeCriterion.getOperator() == FakeCriterion.Operator.SQL) {
+				// a membership sub select, the members are the candidates.
+				List<Integer> rows = new ArrayList<>();
+
+				for (long userId : getMemberUserIds(fakeCriterion)) {
+					int row = getRow(userId);
+
+					if (row >= 0) {
+						rows.add(row);
+					}
+				}
+
+				return rows;
+			}
+
+			if (fakeCriterion.getOperator() == FakeCriterion.Operator.IN) {
+				keys = fakeCriterion.getValues();
+			} else if (fakeCriterion.getOperator() == FakeCriterion.Operator.EQ) {
+				keys = Collections.singletonList(fakeCriterion.getValue());
+			}
+
+			if (keys == null) {
+				continue;
+			}
+
+			if ("userId".equals(fakeCriterion.getProperty())) {
+				List<Integer> rows = new ArrayList<>(keys.size());
+
+				for (Object key : keys) {
+					int row = getRow(((Number) key).longValue());
+
+					if (row >= 0) {
+						rows.add(row);
+					}
+				}
+
+				return rows;
+			}
+
+			if ("screenName".equals(fakeCriterion.getProperty())) {
+				List<Integer> rows = new ArrayList<>(keys.size());
+
+				for (Object key : keys) {
+					Integer row = screenNameIndex.get(key);
+
+					if (row != null) {
+						rows.add(row);
+					}
+				}
+
+				return rows;
+			}
+		}
+
+		// no usable index, scan everything.
+		List<Integer> rows = new ArrayList<>(userCount);
+
+		for (int row = 0; row < userCount; row++) {
+			rows.add(row);
+		}
+
+		return rows;
+	}
+
+	protected boolean matches(final int row, final FakeDynamicQuery fakeDynamicQuery) {
+		for (FakeCriterion fakeCriterion : fakeDynamicQuery.getCriteria()) {
+			if (fakeCriterion.getOperator() == FakeCriterion.Operator.SQL) {
+				if (!ArrayUtil.contains(getMemberUserIds(fakeCriterion), firstUserId + row)) {
+					return false;
+				}
+
+				continue;
+			}
+
+			if (!fakeCriterion.matches(getUserValue(row, fakeCriterion.getProperty()))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * getMemberUserIds: Returns the members selected by a membership sub select, the only SQL restriction the setup code
+	 * adds to a user query.
+	 * @param fakeCriterion
+	 * @return long[] The user ids.
+	 */
+	protected long[] getMemberUserIds(final FakeCriterion fakeCriterion) {
+		String sql = fakeCriterion.getProperty();
+		long classPK = ((Number) fakeCriterion.getValue()).longValue();
+
+		if (sql.contains("Users_Roles")) {
+			return getRoleUserIds(classPK);
+		}
+
+		if (sql.contains("Users_Groups")) {
+			return getGroupUserIds(classPK);
+		}
+
+		if (sql.contains("Users_UserGroups")) {
+			return getUserGroupUserIds(classPK);
+		}
+
+		if (sql.contains("Users_Orgs")) {
+			return getOrganizationUserIds(classPK);
+		}
+
+		throw new UnsupportedOperationException("User query restriction " + sql + " is not faked");
+	}
+
+	protected Object getUserValue(final int row, final String property) {
+		switch (property) {
+			case "userId":
+				return firstUserId + row;
+			case "companyId":
+				return COMPANY_ID;
+			case "screenName":
+				return screenNames[row];
+			case "emailAddress":
+				return (emailAddresses[row] != null) ? emailAddresses[row] : screenNames[row] + "@example.com";
+			case "firstName":
+				return firstNames[row];
+			case "lastName":
+				return lastNames[row];
+			case "status":
+				return statuses[row];
+			case "defaultUser":
+				return row == 0;
+			default:
+				throw new UnsupportedOperationException("User." + property + " is not faked");
+		}
+	}
+
+	protected User toUser(final int row) {
+		Map<String, Object> values = values("userId", firstUserId + row, "companyId", COMPANY_ID, "screenName", screenNames[row],
+				"emailAddress", getUserValue(row, "emailAddress"), "firstName", firstNames[row], "lastName", lastNames[row],
+				"status", statuses[row], "defaultUser", row == 0);
+
+		values.put("active", statuses[row] == WorkflowConstants.STATUS_APPROVED);
+
+		return FakeModels.create(User.class, values);
+	}
+
+	private int addUserRecord(final String screenName, final String emailAddress, final String firstName, final String lastName, final int status) {
+		if (userCount == screenNames.length) {
+			int capacity = screenNames.length + (screenNames.length >> 1) + 1;
+
+			screenNames = Arrays.copyOf(screenNames, capacity);
+			emailAddresses = Arrays.copyOf(emailAddresses, capacity);
+			firstNames = Arrays.copyOf(firstNames, capacity);
+			lastNames = Arrays.copyOf(lastNames, capacity);
+			statuses = Arrays.copyOf(statuses, capacity);
+		}
+
+		int row = userCount++;
+
+		screenNames[row] = screenName;
+		emailAddresses[row] = emailAddress;
+		firstNames[row] = firstName;
+		lastNames[row] = lastName;
+		statuses[row] = status;
+
+		screenNameIndex.put(screenName, row);
+
+		// user ids are contiguous so the row can be found from the id.
+		nextId = firstUserId + userCount;
+
+		return row;
+	}
+
+	private Role addRoleRecord(final String name, final int type, final String description) {
+		Role role = FakeModels.create(Role.class, values("roleId", nextId(), "companyId", COMPANY_ID, "name", name, "type", type, "description", description));
+
+		rolesByName.put(name, role);
+
+		return role;
+	}
+
+	private Group addGroupRecord(final String name, final long classPK, final boolean site, final boolean userGroup) {
+		Group group = FakeModels.create(Group.class, values("groupId", nextId(), "companyId", COMPANY_ID, "groupKey", name, "name", name,
+				"classPK", classPK, "site", site || !userGroup, "regularSite", site, "userGroup", userGroup, "organization", false, "active", true));
+
+		groupsById.put(group.getGroupId(), group);
+		groupsByKey.put(name, group);
+
+		return group;
+	}
+
+	private UserGroup addUserGroupRecord(final String name, final String description) {
+		long userGroupId = nextId();
+
+		Group group = addGroupRecord(name, userGroupId, false, true);
+
+		UserGroup userGroup = FakeModels.create(UserGroup.class, values("userGroupId", userGroupId, "companyId", COMPANY_ID, "name", name,
+				"description", description, "groupId", group.getGroupId()));
+
+		userGroupsByName.put(name, userGroup);
+
+		return userGroup;
+	}
+
+	private long nextId() {
+		// user ids have to stay contiguous, everything else is numbered well above them.
+		return otherIds++;
+	}
+
+	private void addAll(final Map<Long, Set<Long>> map, final long key, final long[] ids) {
+		Set<Long> set = map.computeIfAbsent(key, k -> new LinkedHashSet<>());
+
+		for (long id : ids) {
+			if (set.add(id)) {
+				undoLog.push(() -> set.remove(id));
+			}
+		}
+	}
+
+	private static long[] toArray(final Set<Long> ids) {
+		if (ids == null) {
+			return new long[0];
+		}
+
+		long[] array = new long[ids.size()];
+		int i = 0;
+
+		for (long id : ids) {
+			array[i++] = id;
+		}
+
+		return array;
+	}
+
+	static Map<String, Object> values(final Object... keyValues) {
+		Map<String, Object> values = new HashMap<>();
+
+		for (int i = 0; i < keyValues.length; i += 2) {
+			values.put((String) keyValues[i], keyValues[i + 1]);
+		}
+
+		return values;
+	}
+
+	private static final String[] REGULAR_ROLES = {RoleConstants.ADMINISTRATOR, RoleConstants.GUEST, RoleConstants.OWNER, RoleConstants.POWER_USER, RoleConstants.USER};
+	private static final String[] SITE_ROLES = {RoleConstants.SITE_ADMINISTRATOR, RoleConstants.SITE_MEMBER, RoleConstants.SITE_OWNER};
+	private static final String[] FIRST_NAMES = {"Alex", "Blake", "Casey", "Dana", "Emery", "Finley", "Gray", "Harper", "Jordan", "Kai", "Logan", "Morgan", "Quinn", "Riley", "Sage", "Taylor"};
+	private static final String[] LAST_NAMES = {"Anders", "Brooks", "Chen", "Diaz", "Evans", "Fischer", "Garcia", "Hughes", "Ito", "Jensen", "Kim", "Lopez", "Novak", "Okafor", "Patel", "Silva"};
+	private static final String[] RESOURCE_ACTIONS = {ActionKeys.VIEW, ActionKeys.UPDATE, ActionKeys.DELETE, ActionKeys.PERMISSIONS, ActionKeys.ADD_LAYOUT};
+	private static final int SITE_MEMBERS = 50;
+
+	private final Company company;
+	private final Group companyGroup;
+
+	private final long firstUserId;
+	private int userCount;
+	private long nextId = 30000;
+	private long otherIds = 10000000000L;
+	private String[] screenNames;
+	private String[] emailAddresses;
+	private String[] firstNames;
+	private String[] lastNames;
+	private int[] statuses;
+	private final Map<String, Integer> screenNameIndex;
+
+	private final Map<String, Role> rolesByName = new LinkedHashMap<>();
+	private final Map<Long, Group> groupsById = new LinkedHashMap<>();
+	private final Map<String, Group> groupsByKey = new HashMap<>();
+	private final Map<String, UserGroup> userGroupsByName = new LinkedHashMap<>();
+	private final Map<Long, Set<Long>> roleUserIds = new HashMap<>();
+	private final Map<Long, Set<Long>> roleGroupIds = new HashMap<>();
+	private final Map<Long, Set<Long>> groupUserIds = new HashMap<>();
+	private final Map<Long, Set<Long>> userGroupUserIds = new HashMap<>();
+	private final Map<Long, Set<String>> userGroupRoleKeys = new HashMap<>();
+	private final Map<Long, List<Layout>> layoutsByGroupId = new HashMap<>();
+	private final Map<String, Organization> organizationsByName = new LinkedHashMap<>();
+	private final Map<Long, Set<Long>> organizationUserIds = new HashMap<>();
+	private final Map<Long, Map<String, ResourcePermission>> resourcePermissionsByRoleId = new HashMap<>();
+
+	private final Deque<Runnable> undoLog = new ArrayDeque<>();
+}
@@ -0,0 +1,147 @@
+package com.example.environment.setup.benchmarks.fakes;
+
+import com.liferay.portal.kernel.model.UserGroupRole;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * class JdbcUserGroupRoles: The UserGroupRoleService and UserGroupRoleLocalService methods the setup code uses, backed by
+ * a UserGroupRole table over JDBC rather than an InMemoryPortal, so the rows the service writes can be compared with the
+ * ones UserGroupRoleBatchWriter writes. Wrap it with FakeServices.create() for either interface.
+ *
+ * addUserGroupRoles() writes the way the service persistence does: a lookup and an insert per role and a commit per
+ * call, since every service call is its own transaction. The permission checks and model listeners are not faked.
+ *
+ * @author dnebinger
+ */
+public class JdbcUserGroupRoles {
+
+	/**
+	 * createTable: Creates the UserGroupRole table.
+	 * @param connection
+	 * @param columns The column definitions, i.e. "mvccVersion BIGINT, userId BIGINT, groupId BIGINT, roleId BIGINT".
+	 * @param primaryKey The primary key columns.
+	 * @throws SQLException
+	 */
+	public static void createTable(final Connection connection, final String columns, final String primaryKey) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("drop table if exists UserGroupRole");
+			statement.execute("create table UserGroupRole (" + columns + ", primary key (" + primaryKey + "))");
+		}
+	}
+
+	/**
+	 * JdbcUserGroupRoles: Constructor.
+	 * @param connection
+	 * @param companyId
+	 * @param companyIdColumn Whether the table has the companyId column.
+	 */
+	public JdbcUserGroupRoles(final Connection connection, final long companyId, final boolean companyIdColumn) {
+		super();
+
+		this.connection = connection;
+		this.companyId = companyId;
+		this.companyIdColumn = companyIdColumn;
+	}
+
+	public void addUserGroupRoles(long userId, long groupId, long[] roleIds) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+
+		try (PreparedStatement fetchStatement = connection.prepareStatement("select roleId from UserGroupRole where userId = ? and groupId = ? and roleId = ?");
+			PreparedStatement insertStatement = connection.prepareStatement(companyIdColumn ?
+					"insert into UserGroupRole (mvccVersion, userId, groupId, roleId, companyId) values (0, ?, ?, ?, ?)" :
+					"insert into UserGroupRole (mvccVersion, userId, groupId, roleId) values (0, ?, ?, ?)")) {
+
+			connection.setAutoCommit(false);
+
+			for (long roleId : roleIds) {
+				fetchStatement.setLong(1, userId);
+				fetchStatement.setLong(2, groupId);
+				fetchStatement.setLong(3, roleId);
+
+				try (ResultSet resultSet = fetchStatement.executeQuery()) {
+					if (resultSet.next()) {
+						continue;
+					}
+				}
+
+				insertStatement.setLong(1, userId);
+				insertStatement.setLong(2, groupId);
+				insertStatement.setLong(3, roleId);
+
+				if (companyIdColumn) {
+					insertStatement.setLong(4, companyId);
+				}
+
+				insertStatement.executeUpdate();
+			}
+
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	public List<UserGroupRole> getUserGroupRolesByGroup(long groupId) throws SQLException {
+		List<UserGroupRole> userGroupRoles = new ArrayList<>();
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement("select userId, roleId from UserGroupRole where groupId = ?")) {
+			preparedStatement.setLong(1, groupId);
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				while (resultSet.next()) {
+					userGroupRoles.add(FakeModels.create(UserGroupRole.class, InMemoryPortal.values("userId", resultSet.getLong(1), "groupId", groupId, "roleId", resultSet.getLong(2))));
+				}
+			}
+		}
+
+		return userGroupRoles;
+	}
+
+	/**
+	 * getRows: Returns every row of the table.
+	 * @return Set The rows as "mvccVersion_userId_groupId_roleId[_companyId]", sorted.
+	 * @throws SQLException
+	 */
+	public Set<String> getRows() throws SQLException {
+		Set<String> rows = new TreeSet<>();
+
+		try (Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery(companyIdColumn ?
+					"select mvccVersion, userId, groupId, roleId, companyId from UserGroupRole" :
+					"select mvccVersion, userId, groupId, roleId from UserGroupRole")) {
+
+			while (resultSet.next()) {
+				StringBuilder sb = new StringBuilder();
+
+				for (int i = 1; i <= resultSet.getMetaData().getColumnCount(); i++) {
+					if (i > 1) {
+						sb.append('_');
+					}
+
+					sb.append(resultSet.getLong(i));
+				}
+
+				rows.add(sb.toString());
+			}
+		}
+
+		return rows;
+	}
+
+	private final Connection connection;
+	private final long companyId;
+	private final boolean companyIdColumn;
+}
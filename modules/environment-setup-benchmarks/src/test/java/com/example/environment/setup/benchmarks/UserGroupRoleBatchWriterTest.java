@@ -0,0 +1,101 @@
+package com.example.environment.setup.benchmarks;
+
+import com.example.environment.setup.benchmarks.fakes.DetachedUserGroupRoleBatchWriter;
+import com.example.environment.setup.benchmarks.fakes.JdbcUserGroupRoles;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.UserGroupRoleBatchWriter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * class UserGroupRoleBatchWriterTest: Checks that UserGroupRoleBatchWriter writes the same UserGroupRole rows as the
+ * service path does, against embedded H2 databases.
+ *
+ * The service path is JdbcUserGroupRoles, a fake of the user group role service persistence, so this checks the batch
+ * writer is consistent with that fake rather than with the portal's persistence itself.
+ *
+ * @author dnebinger
+ */
+public class UserGroupRoleBatchWriterTest {
+
+	@Before
+	public void setUp() throws SQLException {
+		serviceConnection = DriverManager.getConnection("jdbc:h2:mem:ugr-service");
+		batchConnection = DriverManager.getConnection("jdbc:h2:mem:ugr-batch");
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		serviceConnection.close();
+		batchConnection.close();
+	}
+
+	@Test
+	public void testSameRowsWithoutCompanyId() throws Exception {
+		assertSameRows(UserGroupRoleFixtures.COLUMNS, false);
+	}
+
+	@Test
+	public void testSameRowsWithCompanyId() throws Exception {
+		assertSameRows(UserGroupRoleFixtures.COMPANY_ID_COLUMNS, true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRefusesUserGroupRoleIdTable() throws Exception {
+		JdbcUserGroupRoles.createTable(batchConnection, "userGroupRoleId BIGINT, ctCollectionId BIGINT, " + UserGroupRoleFixtures.COMPANY_ID_COLUMNS, "ctCollectionId, userGroupRoleId");
+
+		new DetachedUserGroupRoleBatchWriter(batchConnection, UserGroupRoleFixtures.COMPANY_ID, UserGroupRoleBatchWriter.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * assertSameRows: Reconciles the same desired state through the service and through the batch writer, over tables
+	 * that already have some of the rows, then reconciles the batch table again.
+	 * @param columns
+	 * @param companyIdColumn
+	 * @throws Exception
+	 */
+	protected void assertSameRows(final String columns, final boolean companyIdColumn) throws Exception {
+		DesiredState desiredState = UserGroupRoleFixtures.newDesiredState(USERS, ROLES);
+
+		JdbcUserGroupRoles serviceRows = UserGroupRoleFixtures.createTable(serviceConnection, columns, companyIdColumn);
+		JdbcUserGroupRoles batchRows = UserGroupRoleFixtures.createTable(batchConnection, columns, companyIdColumn);
+
+		// the reconciler has to leave the rows that are already there alone on both paths.
+		for (int user = 0; user < USERS; user += 10) {
+			long[] roleIds = {UserGroupRoleFixtures.getRoleId(0)};
+
+			serviceRows.addUserGroupRoles(UserGroupRoleFixtures.getUserId(user), UserGroupRoleFixtures.getGroupId(0), roleIds);
+			batchRows.addUserGroupRoles(UserGroupRoleFixtures.getUserId(user), UserGroupRoleFixtures.getGroupId(0), roleIds);
+		}
+
+		int serviceWrites = UserGroupRoleFixtures.newReconciler(serviceRows, ROLES).reconcile(desiredState, null);
+		int batchWrites = newBatchReconciler(batchRows).reconcile(desiredState, null);
+
+		Assert.assertEquals(serviceWrites, batchWrites);
+		Assert.assertEquals(serviceRows.getRows(), batchRows.getRows());
+		Assert.assertEquals(USERS * UserGroupRoleFixtures.USER_GROUP_COUNT * ROLES, batchRows.getRows().size());
+
+		Assert.assertEquals(0, newBatchReconciler(batchRows).reconcile(desiredState, null));
+	}
+
+	protected EnvironmentReconciler newBatchReconciler(final JdbcUserGroupRoles batchRows) throws SQLException {
+		EnvironmentReconciler environmentReconciler = UserGroupRoleFixtures.newReconciler(batchRows, ROLES);
+
+		environmentReconciler.setUserGroupRoleBatchWriter(new DetachedUserGroupRoleBatchWriter(batchConnection, UserGroupRoleFixtures.COMPANY_ID, UserGroupRoleBatchWriter.DEFAULT_BATCH_SIZE));
+
+		return environmentReconciler;
+	}
+
+	private static final int USERS = 200;
+	private static final int ROLES = 4;
+
+	private Connection serviceConnection;
+	private Connection batchConnection;
+}
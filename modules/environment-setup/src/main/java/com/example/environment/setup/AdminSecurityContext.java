@@ -0,0 +1,51 @@
+package com.example.environment.setup;
+
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.permission.PermissionChecker;
+
+/**
+ * class AdminSecurityContext: The admin user of a company and the permission checker built for them, shared by every
+ * step of an upgrade chain that runs in the company.
+ *
+ * Contexts are handed out by the AdminSecurityContextRegistry and live as long as the chain, don't create them directly.
+ *
+ * @author dnebinger
+ */
+public class AdminSecurityContext {
+
+	AdminSecurityContext(final long companyId, final User adminUser, final PermissionChecker permissionChecker) {
+		super();
+
+		this.companyId = companyId;
+		this.adminUser = adminUser;
+		this.permissionChecker = permissionChecker;
+	}
+
+	/**
+	 * apply: Makes the admin the principal and permission checker of the current thread.
+	 * @return SetupThreadContext The context the thread had before, use it to restore the thread.
+	 */
+	public SetupThreadContext apply() {
+		return SetupThreadContext.forUser(companyId, adminUser.getUserId(), permissionChecker).apply();
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	public User getAdminUser() {
+		return adminUser;
+	}
+
+	public long getAdminUserId() {
+		return adminUser.getUserId();
+	}
+
+	public PermissionChecker getPermissionChecker() {
+		return permissionChecker;
+	}
+
+	private final long companyId;
+	private final User adminUser;
+	private final PermissionChecker permissionChecker;
+}
@@ -0,0 +1,161 @@
+package com.example.environment.setup;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.upgrade.UpgradeStep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class AdminSecurityContextRegistry: Hands out one AdminSecurityContext per company for a chain of upgrade steps.
+ *
+ * On a fresh environment every registered step runs back to back. Rather than fetch the admin and build a new permission
+ * checker in every step, the first step to run in a company builds the context and the rest of the chain reuses it.
+ *
+ * A context lives as long as the chain does. It is built by the first step that needs it in the company and dropped when
+ * a final step finishes or when any step fails, since the upgrade framework stops the chain at a failure. The registry
+ * only holds the admin and the permission checker, it never touches a thread: each step run puts back the principal and
+ * permission checker its thread had with the SetupThreadContext that AdminSecurityContext.apply() returns.
+ *
+ * @author dnebinger
+ */
+public class AdminSecurityContextRegistry {
+
+	public AdminSecurityContextRegistry(final UserLocalService userLocalService, final PermissionCheckerFactory permissionCheckerFactory) {
+		super();
+
+		this.userLocalService = userLocalService;
+		this.permissionCheckerFactory = permissionCheckerFactory;
+	}
+
+	/**
+	 * getContext: Returns the context for the company, building it if the chain does not have one yet.
+	 * @param companyId
+	 * @param adminUserId
+	 * @return AdminSecurityContext The context.
+	 */
+	public AdminSecurityContext getContext(final long companyId, final long adminUserId) {
+		synchronized (this) {
+			AdminSecurityContext adminSecurityContext = getChainContext(companyId, adminUserId);
+
+			if (adminSecurityContext != null) {
+				return adminSecurityContext;
+			}
+		}
+
+		// building the permission checker is the expensive part, other companies should not have to wait for it.
+		AdminSecurityContext created = create(companyId, adminUserId);
+
+		synchronized (this) {
+			AdminSecurityContext adminSecurityContext = getChainContext(companyId, adminUserId);
+
+			if (adminSecurityContext == null) {
+				adminSecurityContext = created;
+
+				chainContexts.put(companyId, adminSecurityContext);
+			}
+
+			return adminSecurityContext;
+		}
+	}
+
+	/**
+	 * stepFinished: Called by every step when it is done with all of the companies. Ends the chain if the step failed or
+	 * was a final step.
+	 * @param upgradeStep
+	 * @param failed
+	 */
+	public synchronized void stepFinished(final UpgradeStep upgradeStep, final boolean failed) {
+		if (failed || finalSteps.contains(upgradeStep)) {
+			endChain();
+		}
+	}
+
+	/**
+	 * endChain: Drops all of the contexts and runs the chain end listeners.
+	 */
+	public synchronized void endChain() {
+		if (!chainContexts.isEmpty() && _log.isDebugEnabled()) {
+			_log.debug("Dropped the admin security contexts for companies " + chainContexts.keySet());
+		}
+
+		chainContexts.clear();
+
+		for (Runnable chainEndListener : chainEndListeners) {
+			chainEndListener.run();
+		}
+	}
+
+	/**
+	 * addChainEndListener: Adds a listener which is run when the chain ends, for other state that should only live as long
+	 * as the chain does.
+	 * @param chainEndListener
+	 */
+	public synchronized void addChainEndListener(final Runnable chainEndListener) {
+		chainEndListeners.add(chainEndListener);
+	}
+
+	/**
+	 * setFinalSteps: Sets the steps that end a chain, the last incremental step and the squashed step for fresh
+	 * environments. The chain ends when either finishes.
+	 * @param finalSteps
+	 */
+	public synchronized void setFinalSteps(final UpgradeStep... finalSteps) {
+		this.finalSteps = Arrays.asList(finalSteps);
+	}
+
+	/**
+	 * getChainContext: Returns the chain's context for the company, if it was built for the same admin.
+	 * @param companyId
+	 * @param adminUserId
+	 * @return AdminSecurityContext The context or <code>null</code> if the chain does not have one.
+	 */
+	protected synchronized AdminSecurityContext getChainContext(final long companyId, final long adminUserId) {
+		AdminSecurityContext adminSecurityContext = chainContexts.get(companyId);
+
+		if ((adminSecurityContext != null) && (adminSecurityContext.getAdminUserId() != adminUserId)) {
+			// the admin changed since the context was built, the chain lets go of the old one.
+			chainContexts.remove(companyId);
+
+			return null;
+		}
+
+		return adminSecurityContext;
+	}
+
+	protected AdminSecurityContext create(final long companyId, final long adminUserId) {
+		long start = System.nanoTime();
+
+		User adminUser = userLocalService.fetchUser(adminUserId);
+
+		if (adminUser == null) {
+			throw new IllegalStateException("Unable to find admin user " + adminUserId + " in company " + companyId);
+		}
+
+		AdminSecurityContext adminSecurityContext = new AdminSecurityContext(companyId, adminUser, permissionCheckerFactory.create(adminUser));
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Built the admin security context for company " + companyId + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+
+		return adminSecurityContext;
+	}
+
+	private final UserLocalService userLocalService;
+	private final PermissionCheckerFactory permissionCheckerFactory;
+
+	private final Map<Long, AdminSecurityContext> chainContexts = new HashMap<>();
+	private final List<Runnable> chainEndListeners = new ArrayList<>();
+	private List<UpgradeStep> finalSteps = Collections.emptyList();
+
+	private static final Log _log = LogFactoryUtil.getLog(AdminSecurityContextRegistry.class);
+}
@@ -0,0 +1,235 @@
+package com.example.environment.setup;
+
+import com.example.environment.setup.metrics.EnvironmentSetupMetrics;
+import com.example.environment.setup.metrics.StepMetrics;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Company;
+import com.liferay.portal.kernel.service.CompanyLocalService;
+import com.liferay.portal.kernel.upgrade.DBProcessContext;
+import com.liferay.portal.kernel.upgrade.UpgradeException;
+import com.liferay.portal.kernel.upgrade.UpgradeStep;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class AllCompaniesUpgradeStep: An upgrade step that runs a setup step once for every company (virtual instance).
+ *
+ * Nothing is resolved until the upgrade framework actually runs the step. At that point the companies are loaded and each
+ * one gets its own step instance, created by the CompanySetupStepFactory, running on a bounded executor with its own
+ * company, principal and permission checker thread locals.
+ *
+ * A failure in one company does not stop the others. Once every company has finished the failures are reported together
+ * so the upgrade framework will not record the new schema version.
+ *
+ * The admin user and permission checker of a company come from the AdminSecurityContextRegistry, so a chain of steps
+ * builds them once per company instead of once per step.
+ *
+ * Each company's run is tracked in the EnvironmentSetupMetrics, which logs a summary line for it when it finishes.
+ *
+ * @author dnebinger
+ */
+public class AllCompaniesUpgradeStep implements UpgradeStep {
+
+	/**
+	 * AllCompaniesUpgradeStep: Constructor which takes the values we need to run a step for every company.
+	 * @param description A short description used in the log and by toString().
+	 * @param companyLocalService
+	 * @param companyAdminUserResolver
+	 * @param companySetupStepFactory Factory which creates the step for a company.
+	 * @param parallelism Max number of companies to set up at the same time.
+	 * @param environmentSetupMetrics Collects the metrics of each company's run.
+	 * @param adminSecurityContextRegistry Shares the admin security contexts across the chain of steps.
+	 */
+	public AllCompaniesUpgradeStep(final String description, final CompanyLocalService companyLocalService, final CompanyAdminUserResolver companyAdminUserResolver, final CompanySetupStepFactory companySetupStepFactory, final int parallelism, final EnvironmentSetupMetrics environmentSetupMetrics, final AdminSecurityContextRegistry adminSecurityContextRegistry) {
+		super();
+
+		this.description = description;
+		this.companyLocalService = companyLocalService;
+		this.companyAdminUserResolver = companyAdminUserResolver;
+		this.companySetupStepFactory = companySetupStepFactory;
+		this.parallelism = Math.max(1, parallelism);
+		this.environmentSetupMetrics = environmentSetupMetrics;
+		this.adminSecurityContextRegistry = adminSecurityContextRegistry;
+	}
+
+	/**
+	 * upgrade: Runs the setup step for every company and waits for all of them to finish.
+	 * @param dbProcessContext
+	 * @throws UpgradeException If the step failed for any of the companies.
+	 */
+	@Override
+	public void upgrade(DBProcessContext dbProcessContext) throws UpgradeException {
+		boolean failed = true;
+
+		try {
+			upgradeCompanies();
+
+			failed = false;
+		} finally {
+			adminSecurityContextRegistry.stepFinished(this, failed);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+	/**
+	 * upgradeCompanies: Runs the setup step for every company and waits for all of them to finish.
+	 * @throws UpgradeException If the step failed for any of the companies.
+	 */
+	protected void upgradeCompanies() throws UpgradeException {
+		List<Long> companyIds = getCompanyIds();
+
+		if (companyIds.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, companyIds.size()), new SetupThreadFactory(description));
+
+		Map<Long, Future<Void>> futures = new LinkedHashMap<>();
+
+		try {
+			for (long companyId : companyIds) {
+				futures.put(companyId, executorService.submit(SetupThreadContext.forCompany(companyId).wrap(() -> {
+					upgradeCompany(companyId);
+
+					return null;
+				})));
+			}
+
+			List<Long> failedCompanyIds = new ArrayList<>();
+			UpgradeException upgradeException = null;
+
+			for (Map.Entry<Long, Future<Void>> entry : futures.entrySet()) {
+				try {
+					entry.getValue().get();
+				} catch (ExecutionException e) {
+					_log.error(description + " failed for company " + entry.getKey() + ": " + e.getCause().getMessage(), e.getCause());
+
+					failedCompanyIds.add(entry.getKey());
+
+					if (upgradeException == null) {
+						upgradeException = new UpgradeException(e.getCause());
+					} else {
+						upgradeException.addSuppressed(e.getCause());
+					}
+				}
+			}
+
+			if (upgradeException != null) {
+				throw new UpgradeException(description + " failed for companies " + failedCompanyIds, upgradeException);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new UpgradeException(e);
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info(description + " completed for " + companyIds.size() + " companies in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+	}
+
+	/**
+	 * upgradeCompany: Resolves the admin user for the company, creates the step and runs it. This is called on a worker
+	 * thread that already has the company thread local set.
+	 * @param companyId
+	 * @throws UpgradeException
+	 */
+	protected void upgradeCompany(final long companyId) throws UpgradeException {
+		StepMetrics stepMetrics = environmentSetupMetrics.startStep(description, companyId);
+		boolean failed = true;
+
+		try {
+			long start = System.nanoTime();
+
+			long adminUserId = companyAdminUserResolver.getCompanyAdminUserId(companyId);
+
+			if (_log.isDebugEnabled()) {
+				_log.debug("Resolved admin user " + adminUserId + " for company " + companyId + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+			}
+
+			RemoteServiceDependentBaseUpgradeProcess upgradeProcess = companySetupStepFactory.create(companyId, adminUserId);
+
+			if (adminUserId < 0) {
+				upgradeProcess.upgrade();
+			} else {
+				// with the admin already in place the step will not build its own permission checker.
+				SetupThreadContext previous = adminSecurityContextRegistry.getContext(companyId, adminUserId).apply();
+
+				try {
+					upgradeProcess.upgrade();
+				} finally {
+					previous.apply();
+				}
+			}
+
+			failed = false;
+		} finally {
+			environmentSetupMetrics.finishStep(stepMetrics, failed);
+		}
+	}
+
+	/**
+	 * getCompanyIds: Returns the ids of all of the companies.
+	 * @return List The company ids.
+	 */
+	protected List<Long> getCompanyIds() {
+		List<Long> companyIds = new ArrayList<>();
+
+		for (Company company : companyLocalService.getCompanies()) {
+			companyIds.add(company.getCompanyId());
+		}
+
+		return companyIds;
+	}
+
+	/**
+	 * class SetupThreadFactory: Names the worker threads after the step so they are easy to spot in a thread dump.
+	 */
+	private static class SetupThreadFactory implements ThreadFactory {
+
+		SetupThreadFactory(String description) {
+			this.description = description;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "environment-setup-" + description + "-" + count.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+
+		private final String description;
+		private final AtomicInteger count = new AtomicInteger();
+	}
+
+	private final String description;
+	private final CompanyLocalService companyLocalService;
+	private final CompanyAdminUserResolver companyAdminUserResolver;
+	private final CompanySetupStepFactory companySetupStepFactory;
+	private final int parallelism;
+	private final EnvironmentSetupMetrics environmentSetupMetrics;
+	private final AdminSecurityContextRegistry adminSecurityContextRegistry;
+
+	private static final Log _log = LogFactoryUtil.getLog(AllCompaniesUpgradeStep.class);
+}
@@ -0,0 +1,172 @@
+package com.example.environment.setup;
+
+import com.example.environment.setup.reset.SetupCreationLog;
+import com.liferay.portal.kernel.transaction.Propagation;
+import com.liferay.portal.kernel.transaction.TransactionConfig;
+import com.liferay.portal.kernel.transaction.TransactionInvokerUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * class ChunkedTransactionProcessor: Collects items into chunks and hands each full chunk to a handler inside its own
+ * transaction.
+ *
+ * Committing once per chunk instead of once per entity keeps the transaction overhead down for large data sets, while
+ * still keeping each transaction (and the memory held for the chunk) small.
+ *
+ * On a step's thread the SetupCreationLog records of the chunk are written just before the chunk commits.
+ *
+ * @author dnebinger
+ */
+public class ChunkedTransactionProcessor<T> implements AutoCloseable {
+
+	/**
+	 * DEFAULT_CHUNK_SIZE: Number of items committed per transaction when no chunk size is given.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 250;
+
+	/**
+	 * interface ChunkHandler: Does the actual work for a chunk. Called inside the chunk's transaction.
+	 */
+	@FunctionalInterface
+	public interface ChunkHandler<T> {
+
+		void process(List<T> chunk) throws Exception;
+	}
+
+	/**
+	 * interface CommitHandler: Called with each chunk once its transaction has committed, i.e. to record progress.
+	 */
+	@FunctionalInterface
+	public interface CommitHandler<T> {
+
+		void committed(List<T> chunk) throws Exception;
+	}
+
+	/**
+	 * ChunkedTransactionProcessor: Constructor which takes the handler and the number of items per chunk.
+	 * @param chunkHandler
+	 * @param chunkSize
+	 */
+	public ChunkedTransactionProcessor(final ChunkHandler<T> chunkHandler, final int chunkSize) {
+		this(chunkHandler, chunkSize, null);
+	}
+
+	/**
+	 * ChunkedTransactionProcessor: Constructor which also takes a handler called after each chunk has committed.
+	 * @param chunkHandler
+	 * @param chunkSize
+	 * @param commitHandler May be <code>null</code>.
+	 */
+	public ChunkedTransactionProcessor(final ChunkHandler<T> chunkHandler, final int chunkSize, final CommitHandler<T> commitHandler) {
+		super();
+
+		this.chunkHandler = chunkHandler;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.chunk = new ArrayList<>(this.chunkSize);
+		this.commitHandler = commitHandler;
+	}
+
+	/**
+	 * add: Adds an item to the current chunk, processing the chunk when it is full.
+	 * @param item
+	 * @throws Exception
+	 */
+	public void add(T item) throws Exception {
+		chunk.add(item);
+
+		if (chunk.size() >= chunkSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * flush: Processes whatever is in the current chunk in its own transaction.
+	 * @throws Exception
+	 */
+	public void flush() throws Exception {
+		if (chunk.isEmpty()) {
+			return;
+		}
+
+		final List<T> items = new ArrayList<>(chunk);
+
+		chunk.clear();
+
+		try {
+			TransactionInvokerUtil.invoke(_transactionConfig, () -> {
+				_inChunk.set(Boolean.TRUE);
+
+				try {
+					chunkHandler.process(items);
+				} finally {
+					_inChunk.remove();
+				}
+
+				// rolls the chunk back if another node took the step over.
+				SetupLease.checkHeld();
+
+				// before the commit, so nothing the chunk creates is committed without its record.
+				SetupCreationLog.flushCurrent();
+
+				return null;
+			});
+		} catch (Exception e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new Exception(t);
+		}
+
+		processedCount += items.size();
+		chunkCount++;
+
+		if (commitHandler != null) {
+			commitHandler.committed(items);
+		}
+	}
+
+	/**
+	 * close: Processes the final, partial chunk.
+	 * @throws Exception
+	 */
+	@Override
+	public void close() throws Exception {
+		flush();
+	}
+
+	/**
+	 * isInChunk: Tells whether the current thread is inside a chunk handler, i.e. in a transaction that has not committed
+	 * yet.
+	 * @return boolean <code>true</code> if it is.
+	 */
+	public static boolean isInChunk() {
+		return _inChunk.get() != null;
+	}
+
+	/**
+	 * getProcessedCount: Returns the number of items in committed chunks.
+	 * @return long The count.
+	 */
+	public long getProcessedCount() {
+		return processedCount;
+	}
+
+	/**
+	 * getChunkCount: Returns the number of committed chunks.
+	 * @return long The count.
+	 */
+	public long getChunkCount() {
+		return chunkCount;
+	}
+
+	private final ChunkHandler<T> chunkHandler;
+	private final CommitHandler<T> commitHandler;
+	private final int chunkSize;
+	private final List<T> chunk;
+	private long processedCount;
+	private long chunkCount;
+
+	private static final ThreadLocal<Boolean> _inChunk = new ThreadLocal<>();
+	private static final TransactionConfig _transactionConfig = TransactionConfig.Factory.create(Propagation.REQUIRES_NEW, new Class<?>[] {Exception.class});
+}
@@ -0,0 +1,377 @@
+package com.example.environment.setup;
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.OrderFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.Type;
+import com.liferay.portal.kernel.exception.ModelListenerException;
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.BaseModelListener;
+import com.liferay.portal.kernel.model.Company;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.RoleConstants;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.service.CompanyLocalService;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.RoleLocalService;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.Validator;
+import com.liferay.portal.kernel.workflow.WorkflowConstants;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class CompanyAdminUserResolver: Finds an active administrator user id for a company.
+ *
+ * The members of the Administrator role, and of the organizations, sites and user groups it is assigned to, are checked
+ * with one database query per membership, which joins the membership table with User_ and returns only the first
+ * active, non-default user with a first and last name. Nothing goes through the search index and the members are never
+ * loaded, so memory use stays the same however large the membership is. Resolved ids are cached per company id; the
+ * UserListener and RoleListener model listeners invalidate the cache when users or roles change.
+ *
+ * @author dnebinger
+ */
+public class CompanyAdminUserResolver {
+
+	/**
+	 * DEFAULT_BATCH_SIZE: Number of candidate ids checked per query by getActiveUserIdFromArray(). Kept well below the
+	 * IN clause limits of the supported databases.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * CompanyAdminUserResolver: Constructor which takes the services we need to find the admin user.
+	 * @param companyLocalService
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param roleLocalService
+	 */
+	public CompanyAdminUserResolver(CompanyLocalService companyLocalService, UserLocalService userLocalService, GroupLocalService groupLocalService, RoleLocalService roleLocalService) {
+		this(companyLocalService, userLocalService, groupLocalService, roleLocalService, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * CompanyAdminUserResolver: Constructor which also takes the number of candidate ids to check per query.
+	 * @param companyLocalService
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param roleLocalService
+	 * @param batchSize
+	 */
+	public CompanyAdminUserResolver(CompanyLocalService companyLocalService, UserLocalService userLocalService, GroupLocalService groupLocalService, RoleLocalService roleLocalService, int batchSize) {
+		super();
+
+		this.companyLocalService = companyLocalService;
+		this.userLocalService = userLocalService;
+		this.groupLocalService = groupLocalService;
+		this.roleLocalService = roleLocalService;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * getCompanyAdminUserId: Return an admin user id for the given company id.
+	 * @param companyId
+	 * @return long The admin user id or <code>-1</code> if there isn't one.
+	 */
+	public long getCompanyAdminUserId(final long companyId) {
+		Long cachedUserId = adminUserIds.get(companyId);
+
+		if (cachedUserId != null) {
+			return cachedUserId;
+		}
+
+		Company company = companyLocalService.fetchCompany(companyId);
+
+		return getCompanyAdminUserId(company);
+	}
+
+	/**
+	 * getCompanyAdminUserId: Finds a user id who is an admin for the given company.
+	 * @param company
+	 * @return long The admin user id or <code>-1</code> if there isn't one.
+	 */
+	public long getCompanyAdminUserId(Company company) {
+		if (Validator.isNull(company)) {
+			// no company, nothing to find.
+			return -1;
+		}
+
+		Long cachedUserId = adminUserIds.get(company.getCompanyId());
+
+		if (cachedUserId != null) {
+			return cachedUserId;
+		}
+
+		// remember the generation so an invalidation that happens while we search will not be overwritten by a stale result.
+		long currentGeneration = generation.get();
+
+		long adminUserId = findCompanyAdminUserId(company);
+
+		if ((adminUserId != -1) && (currentGeneration == generation.get())) {
+			adminUserIds.put(company.getCompanyId(), adminUserId);
+		}
+
+		return adminUserId;
+	}
+
+	/**
+	 * getActiveUserIdFromArray: Find an active, non-default user id from the given array. The ids are checked in batches,
+	 * one query per batch, stopping at the first batch that has a match.
+	 * @param userIds
+	 * @return long An active user id or <code>-1</code> if there isn't one.
+	 */
+	public long getActiveUserIdFromArray(long[] userIds) {
+		if (ArrayUtil.isEmpty(userIds)) {
+			return -1;
+		}
+
+		for (int start = 0; start < userIds.length; start += batchSize) {
+			int end = Math.min(start + batchSize, userIds.length);
+
+			long activeUserId = getActiveUserIdFromBatch(ArrayUtil.toArray(ArrayUtil.subset(userIds, start, end)));
+
+			if (activeUserId != -1) {
+				return activeUserId;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * isActive: Utility method to determine if the found user would be active
+	 * and not the default user.
+	 * @param userId
+	 * @return boolean <code>true</code> if the user is active and not default.
+	 */
+	public boolean isActive(final long userId) {
+		User user = userLocalService.fetchUser(userId);
+
+		if (Validator.isNull(user)) {
+			return false;
+		}
+
+		if (!user.isActive()) return false;
+
+		if (Validator.isNull(user.getFirstName()) || Validator.isNull(user.getLastName())) {
+			return false;
+		}
+
+		// we also want to skip the default user
+		return ! user.isDefaultUser();
+	}
+
+	/**
+	 * invalidate: Drops the cached admin user id for the given company.
+	 * @param companyId
+	 */
+	public void invalidate(final long companyId) {
+		generation.incrementAndGet();
+
+		adminUserIds.remove(companyId);
+	}
+
+	/**
+	 * invalidateAll: Drops all of the cached admin user ids.
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+
+		adminUserIds.clear();
+	}
+
+	/**
+	 * findCompanyAdminUserId: Does the actual search for an admin user, first the direct role members and then the
+	 * members of the groups the admin role has been assigned to.
+	 * @param company
+	 * @return long The admin user id or <code>-1</code> if there isn't one.
+	 */
+	protected long findCompanyAdminUserId(Company company) {
+		Role role = null;
+		try {
+			role = roleLocalService.getRole(company.getCompanyId(), RoleConstants.ADMINISTRATOR);
+		} catch (PortalException e) {
+			_log.error("Error fetching admin role for company: " + e.getMessage(), e);
+
+			return -1;
+		}
+
+		long activeUserId = findActiveMemberUserId(company.getCompanyId(), "Users_Roles", "roleId", role.getRoleId());
+
+		if (activeUserId != -1) {
+			return activeUserId;
+		}
+
+		List<Group> groups = groupLocalService.getRoleGroups(role.getRoleId());
+
+		for (Group group : groups) {
+			activeUserId = -1;
+
+			if (group.isOrganization()) {
+				activeUserId = findActiveMemberUserId(company.getCompanyId(), "Users_Orgs", "organizationId", group.getClassPK());
+			} else if (group.isRegularSite()) {
+				activeUserId = findActiveMemberUserId(company.getCompanyId(), "Users_Groups", "groupId", group.getGroupId());
+			} else if (group.isUserGroup()) {
+				activeUserId = findActiveMemberUserId(company.getCompanyId(), "Users_UserGroups", "userGroupId", group.getClassPK());
+			}
+
+			if (activeUserId != -1) {
+				return activeUserId;
+			}
+		}
+
+		_log.error("Unable to find an administrator user in company " + company.getCompanyId());
+
+		return -1;
+	}
+
+	/**
+	 * findActiveMemberUserId: Finds an active member of a role, organization, site or user group in the database. The
+	 * membership table is joined with User_ through a sub select, the user conditions are the same as for
+	 * getActiveUserIdFromBatch() and the query is ordered by the userId primary key and limited to its first row, so the
+	 * database stops at the first match instead of the members being paged through.
+	 * @param companyId
+	 * @param membershipTable The mapping table, i.e. Users_Roles, Users_Orgs, Users_Groups or Users_UserGroups.
+	 * @param membershipColumn The column of the mapping table holding the classPK, i.e. roleId.
+	 * @param classPK The id of the role, organization, site or user group.
+	 * @return long An active user id or <code>-1</code> if there isn't one.
+	 */
+	protected long findActiveMemberUserId(final long companyId, final String membershipTable, final String membershipColumn, final long classPK) {
+		DynamicQuery dynamicQuery = userLocalService.dynamicQuery();
+
+		dynamicQuery.add(RestrictionsFactoryUtil.eq("companyId", companyId));
+		dynamicQuery.add(RestrictionsFactoryUtil.sqlRestriction("{alias}.userId in (select " + membershipTable + ".userId from " + membershipTable + " where " + membershipTable + "." + membershipColumn + " = ?)", classPK, Type.LONG));
+
+		return getFirstActiveUserId(dynamicQuery);
+	}
+
+	/**
+	 * getActiveUserIdFromBatch: Uses a single query to find the lowest active, non-default user id with both a first and
+	 * last name among the given ids.
+	 * @param userIds
+	 * @return long An active user id or <code>-1</code> if there isn't one.
+	 */
+	protected long getActiveUserIdFromBatch(Long[] userIds) {
+		DynamicQuery dynamicQuery = userLocalService.dynamicQuery();
+
+		dynamicQuery.add(RestrictionsFactoryUtil.in("userId", userIds));
+
+		return getFirstActiveUserId(dynamicQuery);
+	}
+
+	/**
+	 * getFirstActiveUserId: Adds the active user conditions to the query and returns the lowest matching user id.
+	 * @param dynamicQuery The query selecting the candidates.
+	 * @return long An active user id or <code>-1</code> if there isn't one.
+	 */
+	protected long getFirstActiveUserId(final DynamicQuery dynamicQuery) {
+		dynamicQuery.add(RestrictionsFactoryUtil.eq("status", WorkflowConstants.STATUS_APPROVED));
+		dynamicQuery.add(RestrictionsFactoryUtil.eq("defaultUser", false));
+		dynamicQuery.add(RestrictionsFactoryUtil.isNotNull("firstName"));
+		dynamicQuery.add(RestrictionsFactoryUtil.ne("firstName", ""));
+		dynamicQuery.add(RestrictionsFactoryUtil.isNotNull("lastName"));
+		dynamicQuery.add(RestrictionsFactoryUtil.ne("lastName", ""));
+
+		// we only need the id, no reason to hydrate the full user entity.
+		dynamicQuery.setProjection(ProjectionFactoryUtil.property("userId"));
+		dynamicQuery.addOrder(OrderFactoryUtil.asc("userId"));
+
+		List<Long> activeUserIds = userLocalService.dynamicQuery(dynamicQuery, 0, 1);
+
+		if (activeUserIds.isEmpty()) {
+			return -1;
+		}
+
+		return activeUserIds.get(0);
+	}
+
+	/**
+	 * class UserListener: Invalidates the cached admin user ids when a user changes or when a user's role, group,
+	 * organization or user group memberships change.
+	 */
+	public static class UserListener extends BaseModelListener<User> {
+
+		public UserListener(CompanyAdminUserResolver companyAdminUserResolver) {
+			super();
+
+			this.companyAdminUserResolver = companyAdminUserResolver;
+		}
+
+		@Override
+		public void onAfterUpdate(User user) throws ModelListenerException {
+			companyAdminUserResolver.invalidate(user.getCompanyId());
+		}
+
+		@Override
+		public void onAfterRemove(User user) throws ModelListenerException {
+			companyAdminUserResolver.invalidate(user.getCompanyId());
+		}
+
+		@Override
+		public void onAfterAddAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			// only the user id is available here, so we just drop everything.
+			companyAdminUserResolver.invalidateAll();
+		}
+
+		@Override
+		public void onAfterRemoveAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			companyAdminUserResolver.invalidateAll();
+		}
+
+		private final CompanyAdminUserResolver companyAdminUserResolver;
+	}
+
+	/**
+	 * class RoleListener: Invalidates the cached admin user ids when a role changes or when a role's user or group
+	 * assignments change.
+	 */
+	public static class RoleListener extends BaseModelListener<Role> {
+
+		public RoleListener(CompanyAdminUserResolver companyAdminUserResolver) {
+			super();
+
+			this.companyAdminUserResolver = companyAdminUserResolver;
+		}
+
+		@Override
+		public void onAfterUpdate(Role role) throws ModelListenerException {
+			companyAdminUserResolver.invalidate(role.getCompanyId());
+		}
+
+		@Override
+		public void onAfterRemove(Role role) throws ModelListenerException {
+			companyAdminUserResolver.invalidate(role.getCompanyId());
+		}
+
+		@Override
+		public void onAfterAddAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			companyAdminUserResolver.invalidateAll();
+		}
+
+		@Override
+		public void onAfterRemoveAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			companyAdminUserResolver.invalidateAll();
+		}
+
+		private final CompanyAdminUserResolver companyAdminUserResolver;
+	}
+
+	private final CompanyLocalService companyLocalService;
+	private final UserLocalService userLocalService;
+	private final GroupLocalService groupLocalService;
+	private final RoleLocalService roleLocalService;
+	private final int batchSize;
+
+	private final Map<Long, Long> adminUserIds = new ConcurrentHashMap<>();
+	private final AtomicLong generation = new AtomicLong();
+
+	private static final Log _log = LogFactoryUtil.getLog(CompanyAdminUserResolver.class);
+}
@@ -0,0 +1,19 @@
+package com.example.environment.setup;
+
+/**
+ * interface CompanySetupStepFactory: Creates the setup step for a single company. The registrator hands one of these to
+ * each AllCompaniesUpgradeStep so a fresh step instance is created for every company.
+ *
+ * @author dnebinger
+ */
+@FunctionalInterface
+public interface CompanySetupStepFactory {
+
+	/**
+	 * create: Creates the setup step for the given company.
+	 * @param companyId
+	 * @param adminUserId
+	 * @return RemoteServiceDependentBaseUpgradeProcess The step to run for the company.
+	 */
+	RemoteServiceDependentBaseUpgradeProcess create(long companyId, long adminUserId);
+}
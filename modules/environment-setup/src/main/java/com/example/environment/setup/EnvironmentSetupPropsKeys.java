@@ -0,0 +1,98 @@
+package com.example.environment.setup;
+
+/**
+ * class EnvironmentSetupPropsKeys: The portal-ext.properties keys the environment setup reads. Each environment in the
+ * configs folder can override these in its own portal-ext.properties.
+ *
+ * @author dnebinger
+ */
+public class EnvironmentSetupPropsKeys {
+
+	/**
+	 * COMPANY_PARALLELISM: Max number of companies (virtual instances) set up at the same time. Defaults to the number of
+	 * available processors.
+	 */
+	public static final String COMPANY_PARALLELISM = "environment.setup.company.parallelism";
+
+	/**
+	 * TASK_PARALLELISM: Max number of independent parts of a TaskGraphEnvironmentSetup run at the same time in a company.
+	 * Defaults to the number of available processors.
+	 */
+	public static final String TASK_PARALLELISM = "environment.setup.task.parallelism";
+
+	/**
+	 * SITE_PARALLELISM: Max number of sites a SiteSeedingSetup creates at the same time in a company. Defaults to the
+	 * number of available processors.
+	 */
+	public static final String SITE_PARALLELISM = "environment.setup.site.parallelism";
+
+	/**
+	 * CHUNK_SIZE: Number of entities written per transaction by the chunked setup steps. Defaults to 250.
+	 */
+	public static final String CHUNK_SIZE = "environment.setup.chunk.size";
+
+	/**
+	 * INDEX_DEFERRED: When <code>true</code> the steps do not index each entity as it is written, the entities are
+	 * reindexed in batches when the step is done. Worth turning on with a remote search cluster. Defaults to false.
+	 */
+	public static final String INDEX_DEFERRED = "environment.setup.index.deferred";
+
+	/**
+	 * INDEX_BATCH_SIZE: Number of documents sent per request by the deferred reindex. Defaults to 500.
+	 */
+	public static final String INDEX_BATCH_SIZE = "environment.setup.index.batch.size";
+
+	/**
+	 * USER_GROUP_ROLE_BATCH: When <code>true</code> user group roles are inserted with batched statements instead of
+	 * through the service, for seeding a lot of them. Defaults to false.
+	 */
+	public static final String USER_GROUP_ROLE_BATCH = "environment.setup.user.group.role.batch";
+
+	/**
+	 * LEASE_ENABLED: When <code>true</code> a step runs under a database lease so only one cluster node does it in a
+	 * company. Defaults to the value of cluster.link.enabled.
+	 */
+	public static final String LEASE_ENABLED = "environment.setup.lease.enabled";
+
+	/**
+	 * LEASE_DURATION: Milliseconds a lease holds without a heartbeat before another node may take it over. The holder
+	 * renews it every third of that. The claims on background steps use it too. Defaults to 60000.
+	 */
+	public static final String LEASE_DURATION = "environment.setup.lease.duration";
+
+	/**
+	 * TRACE_FILE: When set, every service call the steps make is recorded to this file, for replaying offline with
+	 * ServiceCallTraceReplay. An existing file is replaced when the bundle starts. Not set by default.
+	 */
+	public static final String TRACE_FILE = "environment.setup.trace.file";
+
+	/**
+	 * ASYNC_PARALLELISM: Max number of setup steps running in the background at the same time on a node. Defaults to 1.
+	 */
+	public static final String ASYNC_PARALLELISM = "environment.setup.async.parallelism";
+
+	/**
+	 * ASYNC_MAX_ATTEMPTS: Number of times a background step is tried before it is marked as failed. Defaults to 5.
+	 */
+	public static final String ASYNC_MAX_ATTEMPTS = "environment.setup.async.max.attempts";
+
+	/**
+	 * ASYNC_RETRY_DELAY: Milliseconds before a failed background step is retried, doubled for every retry after the
+	 * first. Defaults to 60000.
+	 */
+	public static final String ASYNC_RETRY_DELAY = "environment.setup.async.retry.delay";
+
+	/**
+	 * RESET_PARALLELISM: Max number of batches the EnvironmentReset deletes at the same time in a company. Defaults to
+	 * the number of available processors.
+	 */
+	public static final String RESET_PARALLELISM = "environment.setup.reset.parallelism";
+
+	/**
+	 * RESET_BATCH_SIZE: Number of entities the EnvironmentReset deletes per transaction. Defaults to 250.
+	 */
+	public static final String RESET_BATCH_SIZE = "environment.setup.reset.batch.size";
+
+	private EnvironmentSetupPropsKeys() {
+	}
+}
@@ -1,36 +1,74 @@
 package com.example.environment.setup;
 
+import com.example.environment.setup.async.AsyncEnvironmentSetup;
+import com.example.environment.setup.async.AsyncSetupExecutor;
+import com.example.environment.setup.async.AsyncSetupTaskStore;
+import com.example.environment.setup.instrument.ServiceCallDispatcher;
+import com.example.environment.setup.instrument.ServiceCallTraceWriter;
+import com.example.environment.setup.instrument.ServiceProxies;
+import com.example.environment.setup.loadtest.LoadTestDataSetup;
+import com.example.environment.setup.loadtest.LoadTestProfile;
+import com.example.environment.setup.manifest.ManifestEnvironmentSetup;
+import com.example.environment.setup.metrics.EnvironmentSetupMetrics;
+import com.example.environment.setup.permission.PermissionGrantSetup;
+import com.example.environment.setup.permission.ResourcePermissionGrantEngine;
+import com.example.environment.setup.provisioning.BulkUserProvisioningSetup;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.example.environment.setup.reset.EnvironmentReset;
+import com.example.environment.setup.reset.SetupCreationLog;
+import com.example.environment.setup.search.DeferredReindexer;
+import com.example.environment.setup.site.SiteSeedingSetup;
+import com.example.environment.setup.squashed.SquashedEnvironmentSetup;
 import com.example.environment.setup.v1_0_0.InitialEnvironmentSetup;
 import com.example.environment.setup.v1_1_0.UserGroupEnvironmentSetup;
 import com.example.environment.setup.v1_2_0.UserGroupRoleEnvironmentSetup;
-import com.liferay.portal.kernel.exception.PortalException;
+import com.example.environment.setup.verify.SetupVerifier;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.model.Company;
-import com.liferay.portal.kernel.model.Group;
-import com.liferay.portal.kernel.model.Role;
-import com.liferay.portal.kernel.model.RoleConstants;
-import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.model.ModelListener;
+import com.liferay.portal.kernel.model.Release;
 import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
 import com.liferay.portal.kernel.service.CompanyLocalService;
 import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.LayoutLocalService;
 import com.liferay.portal.kernel.service.OrganizationLocalService;
+import com.liferay.portal.kernel.service.ReleaseLocalService;
+import com.liferay.portal.kernel.service.ResourceActionLocalService;
+import com.liferay.portal.kernel.service.ResourcePermissionLocalService;
 import com.liferay.portal.kernel.service.RoleLocalService;
 import com.liferay.portal.kernel.service.RoleService;
 import com.liferay.portal.kernel.service.UserGroupLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleLocalService;
 import com.liferay.portal.kernel.service.UserGroupRoleService;
 import com.liferay.portal.kernel.service.UserGroupService;
 import com.liferay.portal.kernel.service.UserLocalService;
-import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
 import com.liferay.portal.kernel.util.Portal;
+import com.liferay.portal.kernel.util.PropsUtil;
 import com.liferay.portal.kernel.util.Validator;
 import com.liferay.portal.upgrade.registry.UpgradeStepRegistrator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * EnvironmentSetupUpgradeStepRegistrator: This is the upgrade step registration class. This is the only really OSGi
@@ -45,11 +83,180 @@ import java.util.List;
 public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegistrator {
 
 	private String bundleSymbolicName;
+	private String bundleVersion;
 
 	@Activate
 	private void activate(BundleContext bundleContext) {
 		// rather than hard coding, we'll take the BSN we're given.
 		bundleSymbolicName = bundleContext.getBundle().getSymbolicName();
+
+		Version version = bundleContext.getBundle().getVersion();
+
+		// the squashed step for fresh environments goes straight to the Bundle-Version, without any qualifier.
+		bundleVersion = version.getMajor() + "." + version.getMinor() + "." + version.getMicro();
+
+		_companyAdminUserResolver = new CompanyAdminUserResolver(_companyLocalService, _userLocalService, _groupLocalService, _roleLocalService);
+		_adminSecurityContextRegistry = new AdminSecurityContextRegistry(_userLocalService, _permissionCheckerFactory);
+
+		// the lookup caches live as long as the chain of steps does.
+		_adminSecurityContextRegistry.addChainEndListener(_setupLookupCaches::clear);
+
+		// the verifier checks the state the steps declare, with the raw services like the resolver, it is not a step's work.
+		_setupVerifier = new SetupVerifier(_companyLocalService, _companyAdminUserResolver, _roleLocalService, _userGroupLocalService, _userLocalService, _userGroupRoleLocalService,
+				GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.COMPANY_PARALLELISM), Runtime.getRuntime().availableProcessors()))
+				.addStep("InitialEnvironmentSetup", InitialEnvironmentSetup::getDesiredState)
+				.addStep("UserGroupEnvironmentSetup", UserGroupEnvironmentSetup::getDesiredState)
+				.addStep("UserGroupRoleEnvironmentSetup", UserGroupRoleEnvironmentSetup::getDesiredState);
+
+		// the reset removes what the steps recorded, with the raw services too. it refuses to run while a background step is busy.
+		_environmentReset = new EnvironmentReset(_companyLocalService, _companyAdminUserResolver, _permissionCheckerFactory, _userLocalService, _userGroupLocalService, _organizationLocalService,
+				_groupLocalService, _roleLocalService, _userGroupRoleLocalService, _releaseLocalService, bundleSymbolicName,
+				GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.RESET_PARALLELISM), Runtime.getRuntime().availableProcessors()),
+				GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.RESET_BATCH_SIZE), ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE))
+				.setSetupRunning(() -> _asyncSetupExecutor.getActiveTaskCount() > 0)
+				.addResetListener(_setupLookupCaches::clear);
+
+		// once the steps are done, check that what they set up is there. it runs in the background so the node start does not wait for it.
+		_adminSecurityContextRegistry.addChainEndListener(_setupVerifier::verifyInBackground);
+
+		// the resolver caches the admin per company, these listeners drop the cached value when users or roles change.
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new CompanyAdminUserResolver.UserListener(_companyAdminUserResolver), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new CompanyAdminUserResolver.RoleListener(_companyAdminUserResolver), null));
+
+		// these record what the steps change while indexing is deferred, they do nothing on any other thread.
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.UserListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.RoleListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.UserGroupListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.OrganizationListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.GroupListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.LayoutListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.ResourcePermissionListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new DeferredReindexer.UserGroupRoleListener(), null));
+
+		// these record what the steps create for the reset, they also do nothing on any other thread.
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new SetupCreationLog.UserListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new SetupCreationLog.RoleListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new SetupCreationLog.UserGroupListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new SetupCreationLog.OrganizationListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new SetupCreationLog.GroupListener(), null));
+		_modelListenerRegistrations.add(bundleContext.registerService(ModelListener.class, new SetupCreationLog.UserGroupRoleListener(), null));
+
+		// the services handed to the steps are wrapped so every call they make is counted against the running step. the
+		// resolver above keeps the raw services, the admin lookup is not part of a step's work.
+		_serviceCallDispatcher.addServiceCallListener(_environmentSetupMetrics);
+
+		String traceFile = PropsUtil.get(EnvironmentSetupPropsKeys.TRACE_FILE);
+
+		if (Validator.isNotNull(traceFile)) {
+			// records the calls for an offline replay, see ServiceCallTraceReplay in the benchmarks.
+			try {
+				_serviceCallTraceWriter = new ServiceCallTraceWriter(traceFile);
+
+				_serviceCallDispatcher.addServiceCallListener(_serviceCallTraceWriter);
+				_adminSecurityContextRegistry.addChainEndListener(_serviceCallTraceWriter::flush);
+			} catch (IOException e) {
+				_log.warn("Unable to record the service calls to " + traceFile + ": " + e.getMessage(), e);
+			}
+		}
+
+		_userLocalService = ServiceProxies.wrap(UserLocalService.class, _userLocalService, _serviceCallDispatcher);
+		_groupLocalService = ServiceProxies.wrap(GroupLocalService.class, _groupLocalService, _serviceCallDispatcher);
+		_roleLocalService = ServiceProxies.wrap(RoleLocalService.class, _roleLocalService, _serviceCallDispatcher);
+		_userGroupLocalService = ServiceProxies.wrap(UserGroupLocalService.class, _userGroupLocalService, _serviceCallDispatcher);
+		_organizationLocalService = ServiceProxies.wrap(OrganizationLocalService.class, _organizationLocalService, _serviceCallDispatcher);
+		_userGroupRoleLocalService = ServiceProxies.wrap(UserGroupRoleLocalService.class, _userGroupRoleLocalService, _serviceCallDispatcher);
+		_roleService = ServiceProxies.wrap(RoleService.class, _roleService, _serviceCallDispatcher);
+		_userGroupService = ServiceProxies.wrap(UserGroupService.class, _userGroupService, _serviceCallDispatcher);
+		_userGroupRoleService = ServiceProxies.wrap(UserGroupRoleService.class, _userGroupRoleService, _serviceCallDispatcher);
+		_layoutLocalService = ServiceProxies.wrap(LayoutLocalService.class, _layoutLocalService, _serviceCallDispatcher);
+		_resourcePermissionLocalService = ServiceProxies.wrap(ResourcePermissionLocalService.class, _resourcePermissionLocalService, _serviceCallDispatcher);
+		_resourceActionLocalService = ServiceProxies.wrap(ResourceActionLocalService.class, _resourceActionLocalService, _serviceCallDispatcher);
+
+		_asyncSetupExecutor = new AsyncSetupExecutor(new AsyncSetupTaskStore(), _companyAdminUserResolver, _environmentSetupMetrics,
+				GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.ASYNC_PARALLELISM), 1),
+				GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.ASYNC_MAX_ATTEMPTS), 5),
+				GetterUtil.getLong(PropsUtil.get(EnvironmentSetupPropsKeys.ASYNC_RETRY_DELAY), 60000),
+				GetterUtil.getLong(PropsUtil.get(EnvironmentSetupPropsKeys.LEASE_DURATION), SetupLease.DEFAULT_DURATION_MILLIS));
+
+		// background steps the upgrade records only start once the chain of steps has ended, not while it is still running.
+		_adminSecurityContextRegistry.addChainEndListener(_asyncSetupExecutor::startHeld);
+
+		registerMBean(_environmentSetupMetrics, EnvironmentSetupMetrics.OBJECT_NAME);
+		registerMBean(_asyncSetupExecutor, AsyncSetupExecutor.OBJECT_NAME);
+		registerMBean(_setupVerifier, SetupVerifier.OBJECT_NAME);
+		registerMBean(_environmentReset, EnvironmentReset.OBJECT_NAME);
+	}
+
+	@Deactivate
+	private void deactivate() {
+		for (ServiceRegistration<ModelListener> serviceRegistration : _modelListenerRegistrations) {
+			serviceRegistration.unregister();
+		}
+
+		_modelListenerRegistrations.clear();
+
+		// before the chain ends, there is nothing to verify on the way down.
+		_setupVerifier.shutdown();
+
+		// before the chain ends as well, so held background steps are not started. unfinished background steps stay
+		// recorded and are resumed when the bundle starts again.
+		_asyncSetupExecutor.shutdown();
+
+		_adminSecurityContextRegistry.endChain();
+
+		if (_serviceCallTraceWriter != null) {
+			try {
+				_serviceCallTraceWriter.close();
+			} catch (IOException e) {
+				_log.warn("Unable to close the service call trace: " + e.getMessage(), e);
+			}
+
+			_serviceCallTraceWriter = null;
+		}
+
+		unregisterMBean(EnvironmentSetupMetrics.OBJECT_NAME);
+		unregisterMBean(AsyncSetupExecutor.OBJECT_NAME);
+		unregisterMBean(SetupVerifier.OBJECT_NAME);
+		unregisterMBean(EnvironmentReset.OBJECT_NAME);
+	}
+
+	/**
+	 * registerMBean: Exposes the step metrics or the background steps through JMX. A failure here is only logged, the
+	 * setup does not need JMX.
+	 * @param mBean
+	 * @param name The object name.
+	 */
+	protected void registerMBean(final Object mBean, final String name) {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+
+			if (mBeanServer.isRegistered(objectName)) {
+				// left behind by a previous activation of the bundle.
+				mBeanServer.unregisterMBean(objectName);
+			}
+
+			mBeanServer.registerMBean(mBean, objectName);
+		} catch (JMException e) {
+			_log.warn("Unable to register the " + name + " MBean: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * unregisterMBean: Removes an MBean registered by registerMBean() from JMX.
+	 * @param name The object name.
+	 */
+	protected void unregisterMBean(final String name) {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+
+			if (mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			_log.warn("Unable to unregister the " + name + " MBean: " + e.getMessage(), e);
+		}
 	}
 
 	/**
@@ -58,27 +265,196 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 	 */
 	@Override
 	public void register(Registry registry) {
+		long start = System.nanoTime();
 
-		// use the default company for loading.
-		long companyId = getDefaultCompanyId();
+		// NOTE: nothing is resolved here. The companies, their admin users and the steps themselves are only created when the
+		// upgrade framework actually runs a step, usually the bundle is already at the current version and nothing will run.
 
-		// we should derive a user id from the company.
-		long userId = getCompanyAdminUserId(companyId);
+		// every step runs once for each company (virtual instance), the factory creates the step for a single company.
 
 		// for version 1.0.0, we need an InitialEnvironmentSetup:
-		InitialEnvironmentSetup initialEnvironmentSetup = new InitialEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getRoleService());
-
 		// NOTE: You don't have to wrap everything into one super InitialEnvironmentSetup class; this register() call accepts multiple trailing upgrade process steps as the last argument.
 		// so you can really organize your code into separate specific classes that do certain things in simple yet straight-forward manners.
-		registry.register(bundleSymbolicName, "0.0.0", "1.0.0", initialEnvironmentSetup);
+		registry.register(bundleSymbolicName, "0.0.0", "1.0.0", forAllCompanies("InitialEnvironmentSetup",
+				(companyId, userId) -> new InitialEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), newEnvironmentReconciler(companyId))));
 
 		// for version 1.1.0, we need a UserGroupEnvironmentSetup:
-		UserGroupEnvironmentSetup userGroupEnvironmentSetup = new UserGroupEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getUserGroupService());
-		registry.register(bundleSymbolicName, "1.0.0", "1.1.0", userGroupEnvironmentSetup);
+		registry.register(bundleSymbolicName, "1.0.0", "1.1.0", forAllCompanies("UserGroupEnvironmentSetup",
+				(companyId, userId) -> new UserGroupEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), newEnvironmentReconciler(companyId))));
 
 		// for version 1.2.0, we need a UserGroupRoleEnvironmentSetup:
-		UserGroupRoleEnvironmentSetup userGroupRoleEnvironmentSetup = new UserGroupRoleEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getRoleService(), getUserGroupService(), getUserGroupRoleService());
-		registry.register(bundleSymbolicName, "1.1.0", "1.2.0", userGroupRoleEnvironmentSetup);
+		registry.register(bundleSymbolicName, "1.1.0", "1.2.0", forAllCompanies("UserGroupRoleEnvironmentSetup",
+				(companyId, userId) -> new UserGroupRoleEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), newEnvironmentReconciler(companyId))));
+
+		// for version 1.3.0, the data comes from a seed manifest rather than a setup class. new data only needs a new manifest and a register() call.
+		registry.register(bundleSymbolicName, "1.2.0", "1.3.0", forAllCompanies("ManifestEnvironmentSetup",
+				(companyId, userId) -> new ManifestEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), newEnvironmentReconciler(companyId), RESOURCE_PATH + "seed-manifest-1.3.0.xml", getChunkSize())));
+
+		// for version 1.4.0, users are provisioned from a CSV in bulk.
+		registry.register(bundleSymbolicName, "1.3.0", "1.4.0", forAllCompanies("BulkUserProvisioningSetup",
+				(companyId, userId) -> new BulkUserProvisioningSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), newEnvironmentReconciler(companyId), RESOURCE_PATH + "users-1.4.0.csv", getChunkSize())));
+
+		// for version 1.5.0, load test data is generated in the environments that enable it (see configs/uat and configs/dev), elsewhere the step does nothing.
+		// a million users takes a while, so the upgrade only records the step and it runs in the background once the node is up.
+		registry.register(bundleSymbolicName, "1.4.0", "1.5.0", forAllCompaniesAsync(LOAD_TEST_DATA_SETUP,
+				(companyId, userId) -> new LoadTestDataSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), newEnvironmentReconciler(companyId), getOrganizationLocalService(), LoadTestProfile.fromProps())));
+
+		// for version 1.6.0, sites and their pages are created from a definition resource, several sites at a time.
+		registry.register(bundleSymbolicName, "1.5.0", "1.6.0", forAllCompanies("SiteSeedingSetup", this::newSiteSeedingSetup));
+
+		// for version 1.7.0, the roles get their resource permissions from a permission matrix, the sites they refer to exist by now.
+		registry.register(bundleSymbolicName, "1.6.0", "1.7.0", forAllCompanies("PermissionGrantSetup",
+				(companyId, userId) -> newPermissionGrantSetup(companyId, userId, newEnvironmentReconciler(companyId).getEnvironmentSnapshot())));
+
+		AllCompaniesUpgradeStep incrementalFinalStep = _finalStep;
+
+		// a fresh environment goes from 0.0.0 straight to the current version in one step, the upgrade framework takes the shortest path.
+		// environments that are partway through keep using the steps above. NOTE: a new version's work has to be added to the squashed step too.
+		registry.register(bundleSymbolicName, "0.0.0", bundleVersion, forAllCompanies("SquashedEnvironmentSetup", this::newSquashedEnvironmentSetup));
+
+		// the admin security contexts are shared by the chain of steps and let go of when the final step is done.
+		_adminSecurityContextRegistry.setFinalSteps(incrementalFinalStep, _finalStep);
+
+		// no step is going to run when the release is already at the bundle version. it is read on the background threads,
+		// register() only runs on the activation path.
+		BooleanSupplier upToDate = () -> {
+			Release release = _releaseLocalService.fetchRelease(bundleSymbolicName);
+
+			return (release != null) && bundleVersion.equals(release.getSchemaVersion());
+		};
+
+		// background steps a restart interrupted, and that no other node holds, carry on where they left off once the chain
+		// of steps has ended, or right away when no step is going to run.
+		_asyncSetupExecutor.resumeUnfinishedInBackground(upToDate);
+
+		// when no step is going to run, the node start is the time to check nobody has changed the set up state. otherwise the
+		// verification runs when the chain of steps ends.
+		_setupVerifier.verifyInBackground(upToDate);
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Registered environment setup steps for " + bundleSymbolicName + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, company and admin user resolution is deferred until a step runs.");
+		}
+	}
+
+	/**
+	 * forAllCompanies: Creates an upgrade step which will run the step created by the factory for every company. Steps
+	 * are registered in order, so the last one created is the final step of the chain.
+	 * @param description A short description for the log.
+	 * @param companySetupStepFactory Factory which creates the step for a single company.
+	 * @return AllCompaniesUpgradeStep The upgrade step to register.
+	 */
+	protected AllCompaniesUpgradeStep forAllCompanies(final String description, final CompanySetupStepFactory companySetupStepFactory) {
+		int parallelism = GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.COMPANY_PARALLELISM), Runtime.getRuntime().availableProcessors());
+
+		_finalStep = new AllCompaniesUpgradeStep(description, _companyLocalService, _companyAdminUserResolver, companySetupStepFactory, parallelism, _environmentSetupMetrics, _adminSecurityContextRegistry);
+
+		return _finalStep;
+	}
+
+	/**
+	 * forAllCompaniesAsync: Like forAllCompanies(), except the upgrade step only records the step for every company. The
+	 * AsyncSetupExecutor runs it in the background, retrying it if it fails.
+	 * @param description A short description for the log, also the name the background tasks are recorded under.
+	 * @param companySetupStepFactory Factory which creates the step for a single company.
+	 * @param dependsOn Names of the background steps that have to complete in a company before this one starts there.
+	 * @return AllCompaniesUpgradeStep The upgrade step to register.
+	 */
+	protected AllCompaniesUpgradeStep forAllCompaniesAsync(final String description, final CompanySetupStepFactory companySetupStepFactory, final String... dependsOn) {
+		_asyncSetupExecutor.register(description, companySetupStepFactory, dependsOn);
+
+		return forAllCompanies(description, (companyId, userId) -> new AsyncEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), _asyncSetupExecutor, description));
+	}
+
+	/**
+	 * newSquashedEnvironmentSetup: Creates the step that sets up a fresh company, including the data file steps with one
+	 * reconciler shared by all of them.
+	 * @param companyId
+	 * @param userId
+	 * @return SquashedEnvironmentSetup The step.
+	 */
+	protected SquashedEnvironmentSetup newSquashedEnvironmentSetup(final long companyId, final long userId) {
+		EnvironmentReconciler environmentReconciler = newEnvironmentReconciler(companyId);
+
+		// 1.0.0 through 1.2.0, the role and the user group are created side by side and the assignment waits for both.
+		TaskGraphEnvironmentSetup taskGraphEnvironmentSetup = newTaskGraphEnvironmentSetup("SquashedEnvironmentSetup", companyId, userId)
+				.addStep("role", new InitialEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), environmentReconciler))
+				.addStep("user-group", new UserGroupEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), environmentReconciler))
+				.addStep("assign", new UserGroupRoleEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), environmentReconciler), "role", "user-group");
+
+		return new SquashedEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), environmentReconciler)
+				.includeStep(taskGraphEnvironmentSetup)
+				.includeStep(new ManifestEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), environmentReconciler, RESOURCE_PATH + "seed-manifest-1.3.0.xml", getChunkSize()))
+				.includeStep(new BulkUserProvisioningSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), environmentReconciler, RESOURCE_PATH + "users-1.4.0.csv", getChunkSize()))
+				.includeStep(new AsyncEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), _asyncSetupExecutor, LOAD_TEST_DATA_SETUP))
+				.includeStep(newSiteSeedingSetup(companyId, userId))
+				.includeStep(newPermissionGrantSetup(companyId, userId, environmentReconciler.getEnvironmentSnapshot()));
+	}
+
+	/**
+	 * newSiteSeedingSetup: Creates the step that creates the sites of sites-1.6.0.xml in the company.
+	 * @param companyId
+	 * @param userId
+	 * @return SiteSeedingSetup The step.
+	 */
+	protected SiteSeedingSetup newSiteSeedingSetup(final long companyId, final long userId) {
+		int parallelism = GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.SITE_PARALLELISM), Runtime.getRuntime().availableProcessors());
+
+		return new SiteSeedingSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), getLayoutLocalService(), RESOURCE_PATH + "sites-1.6.0.xml", parallelism);
+	}
+
+	/**
+	 * newPermissionGrantSetup: Creates the step that grants the permissions of permissions-1.7.0.xml in the company.
+	 * @param companyId
+	 * @param userId
+	 * @param environmentSnapshot The snapshot the role ids come from.
+	 * @return PermissionGrantSetup The step.
+	 */
+	protected PermissionGrantSetup newPermissionGrantSetup(final long companyId, final long userId, final EnvironmentSnapshot environmentSnapshot) {
+		ResourcePermissionGrantEngine resourcePermissionGrantEngine = new ResourcePermissionGrantEngine(environmentSnapshot, getResourcePermissionLocalService(), getResourceActionLocalService(), getChunkSize());
+
+		return new PermissionGrantSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), resourcePermissionGrantEngine, RESOURCE_PATH + "permissions-1.7.0.xml");
+	}
+
+	/**
+	 * newEnvironmentReconciler: Creates a reconciler, with its own empty snapshot, for a step running in the given company.
+	 * @param companyId
+	 * @return EnvironmentReconciler The reconciler.
+	 */
+	protected EnvironmentReconciler newEnvironmentReconciler(final long companyId) {
+		EnvironmentSnapshot environmentSnapshot = new EnvironmentSnapshot(companyId, getSetupLookupCache(companyId), getRoleLocalService(), getUserGroupLocalService(), getUserLocalService(), getUserGroupRoleLocalService());
+
+		return new EnvironmentReconciler(environmentSnapshot, getRoleService(), getUserGroupService(), getUserGroupRoleService(), getGroupLocalService(), getUserLocalService());
+	}
+
+	/**
+	 * newTaskGraphEnvironmentSetup: Creates an empty step for the company whose parts run in dependency order, add the
+	 * parts with addStep().
+	 * @param description A short description for the log.
+	 * @param companyId
+	 * @param userId
+	 * @return TaskGraphEnvironmentSetup The step.
+	 */
+	protected TaskGraphEnvironmentSetup newTaskGraphEnvironmentSetup(final String description, final long companyId, final long userId) {
+		int parallelism = GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.TASK_PARALLELISM), Runtime.getRuntime().availableProcessors());
+
+		return new TaskGraphEnvironmentSetup(companyId, userId, getPermissionCheckerFactory(), getUserLocalService(), getGroupLocalService(), getSetupLookupCache(companyId), description, parallelism);
+	}
+
+	/**
+	 * getSetupLookupCache: Returns the lookup cache for the company, shared by every step of the chain that runs in it.
+	 * @param companyId
+	 * @return SetupLookupCache The lookup cache.
+	 */
+	protected SetupLookupCache getSetupLookupCache(final long companyId) {
+		return _setupLookupCaches.computeIfAbsent(companyId, SetupLookupCache::new);
+	}
+
+	/**
+	 * getChunkSize: Returns the number of entities the chunked steps write per transaction.
+	 * @return int The chunk size.
+	 */
+	protected int getChunkSize() {
+		return GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.CHUNK_SIZE), ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE);
 	}
 
 	/**
@@ -105,73 +481,16 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 	 * @return long The admin user id.
 	 */
 	protected long getCompanyAdminUserId(final long companyId) {
-		Company company = _companyLocalService.fetchCompany(companyId);
-
-		return getCompanyAdminUserId(company);
+		return _companyAdminUserResolver.getCompanyAdminUserId(companyId);
 	}
 
 	/**
 	 * getCompanyAdminUserId: Finds a user id who is an admin for the given company.
 	 * @param company
 	 * @return long The admin user id.
-	 * @throws PortalException
 	 */
 	protected long getCompanyAdminUserId(Company company) {
-		if (Validator.isNull(company)) {
-			// no company, nothing to find.
-			return -1;
-		}
-
-		Role role = null;
-		try {
-			role = _roleLocalService.getRole(company.getCompanyId(), RoleConstants.ADMINISTRATOR);
-		} catch (PortalException e) {
-			_log.error("Error fetching admin role for company: " + e.getMessage(), e);
-
-			return -1;
-		}
-
-		long[] userIds = _userLocalService.getRoleUserIds(role.getRoleId());
-
-		long activeUserId = getActiveUserIdFromArray(userIds);
-
-		if (activeUserId != -1) {
-			return activeUserId;
-		}
-
-		List<Group> groups = _groupLocalService.getRoleGroups(role.getRoleId());
-
-		for (Group group : groups) {
-			if (group.isOrganization()) {
-				userIds = _organizationLocalService.getUserPrimaryKeys(group.getClassPK());
-
-				activeUserId = getActiveUserIdFromArray(userIds);
-
-				if (activeUserId != -1) {
-					return activeUserId;
-				}
-			} else if (group.isRegularSite()) {
-				userIds = _groupLocalService.getUserPrimaryKeys(group.getGroupId());
-
-				activeUserId = getActiveUserIdFromArray(userIds);
-
-				if (activeUserId != -1) {
-					return activeUserId;
-				}
-			} else if (group.isUserGroup()) {
-				userIds = _userGroupLocalService.getUserPrimaryKeys(group.getClassPK());
-
-				activeUserId = getActiveUserIdFromArray(userIds);
-
-				if (activeUserId != -1) {
-					return activeUserId;
-				}
-			}
-		}
-
-		_log.error("Unable to find an administrator user in company " + company.getCompanyId());
-
-		return -1;
+		return _companyAdminUserResolver.getCompanyAdminUserId(company);
 	}
 
 	/**
@@ -179,16 +498,8 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 	 * @param userIds
 	 * @return long An active user id or <code>-1</code> if there isn't one.
 	 */
-	private long getActiveUserIdFromArray(long[] userIds) {
-		if (!ArrayUtil.isEmpty(userIds)) {
-			for (long id : userIds) {
-				if (isActive(id)) {
-					return id;
-				}
-			}
-		}
-
-		return -1;
+	protected long getActiveUserIdFromArray(long[] userIds) {
+		return _companyAdminUserResolver.getActiveUserIdFromArray(userIds);
 	}
 
 	/**
@@ -198,20 +509,7 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 	 * @return boolean <code>true</code> if the user is active and not default.
 	 */
 	protected boolean isActive(final long userId) {
-		User user = _userLocalService.fetchUser(userId);
-
-		if (Validator.isNull(user)) {
-			return false;
-		}
-
-		if (!user.isActive()) return false;
-
-		if (Validator.isNull(user.getFirstName()) || Validator.isNull(user.getLastName())) {
-			return false;
-		}
-
-		// we also want to skip the default user
-		return ! user.isDefaultUser();
+		return _companyAdminUserResolver.isActive(userId);
 	}
 
 	@Reference(unbind = "-")
@@ -264,6 +562,31 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 		this._userGroupService = userGroupService;
 	}
 
+	@Reference(unbind = "-")
+	protected void setUserGroupRoleLocalService(UserGroupRoleLocalService userGroupRoleLocalService) {
+		this._userGroupRoleLocalService = userGroupRoleLocalService;
+	}
+
+	@Reference(unbind = "-")
+	protected void setLayoutLocalService(LayoutLocalService layoutLocalService) {
+		this._layoutLocalService = layoutLocalService;
+	}
+
+	@Reference(unbind = "-")
+	protected void setResourcePermissionLocalService(ResourcePermissionLocalService resourcePermissionLocalService) {
+		this._resourcePermissionLocalService = resourcePermissionLocalService;
+	}
+
+	@Reference(unbind = "-")
+	protected void setResourceActionLocalService(ResourceActionLocalService resourceActionLocalService) {
+		this._resourceActionLocalService = resourceActionLocalService;
+	}
+
+	@Reference(unbind = "-")
+	protected void setReleaseLocalService(ReleaseLocalService releaseLocalService) {
+		this._releaseLocalService = releaseLocalService;
+	}
+
 	@Reference(unbind = "-")
 	protected void setUserGroupRoleService(UserGroupRoleService userGroupRoleService) {
 		this._userGroupRoleService = userGroupRoleService;
@@ -309,6 +632,42 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 	protected UserGroupRoleService getUserGroupRoleService() {
 		return _userGroupRoleService;
 	}
+	protected UserGroupRoleLocalService getUserGroupRoleLocalService() {
+		return _userGroupRoleLocalService;
+	}
+	protected CompanyAdminUserResolver getCompanyAdminUserResolver() {
+		return _companyAdminUserResolver;
+	}
+	protected AdminSecurityContextRegistry getAdminSecurityContextRegistry() {
+		return _adminSecurityContextRegistry;
+	}
+	protected ServiceCallDispatcher getServiceCallDispatcher() {
+		return _serviceCallDispatcher;
+	}
+	protected EnvironmentSetupMetrics getEnvironmentSetupMetrics() {
+		return _environmentSetupMetrics;
+	}
+	protected LayoutLocalService getLayoutLocalService() {
+		return _layoutLocalService;
+	}
+	protected ResourcePermissionLocalService getResourcePermissionLocalService() {
+		return _resourcePermissionLocalService;
+	}
+	protected ResourceActionLocalService getResourceActionLocalService() {
+		return _resourceActionLocalService;
+	}
+	protected ReleaseLocalService getReleaseLocalService() {
+		return _releaseLocalService;
+	}
+	protected SetupVerifier getSetupVerifier() {
+		return _setupVerifier;
+	}
+	protected AsyncSetupExecutor getAsyncSetupExecutor() {
+		return _asyncSetupExecutor;
+	}
+	protected EnvironmentReset getEnvironmentReset() {
+		return _environmentReset;
+	}
 
 	private Portal _portal;
 	private CompanyLocalService _companyLocalService;
@@ -321,6 +680,26 @@ public class EnvironmentSetupUpgradeStepRegistrator implements UpgradeStepRegist
 	private RoleService _roleService;
 	private UserGroupService _userGroupService;
 	private UserGroupRoleService _userGroupRoleService;
+	private UserGroupRoleLocalService _userGroupRoleLocalService;
+	private LayoutLocalService _layoutLocalService;
+	private ResourcePermissionLocalService _resourcePermissionLocalService;
+	private ResourceActionLocalService _resourceActionLocalService;
+	private ReleaseLocalService _releaseLocalService;
+
+	private CompanyAdminUserResolver _companyAdminUserResolver;
+	private AdminSecurityContextRegistry _adminSecurityContextRegistry;
+	private AllCompaniesUpgradeStep _finalStep;
+	private AsyncSetupExecutor _asyncSetupExecutor;
+	private SetupVerifier _setupVerifier;
+	private EnvironmentReset _environmentReset;
+	private ServiceCallTraceWriter _serviceCallTraceWriter;
+	private final Map<Long, SetupLookupCache> _setupLookupCaches = new ConcurrentHashMap<>();
+	private final List<ServiceRegistration<ModelListener>> _modelListenerRegistrations = new ArrayList<>();
+	private final ServiceCallDispatcher _serviceCallDispatcher = new ServiceCallDispatcher();
+	private final EnvironmentSetupMetrics _environmentSetupMetrics = new EnvironmentSetupMetrics();
+
+	private static final String RESOURCE_PATH = "com/example/environment/setup/";
+	private static final String LOAD_TEST_DATA_SETUP = "LoadTestDataSetup";
 
 	private static final Log _log = LogFactoryUtil.getLog(EnvironmentSetupUpgradeStepRegistrator.class);
 }
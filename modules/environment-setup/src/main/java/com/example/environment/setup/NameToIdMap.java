@@ -0,0 +1,95 @@
+package com.example.environment.setup;
+
+import java.util.Arrays;
+
+/**
+ * class NameToIdMap: An open addressing map from names to primitive long ids.
+ *
+ * The ids are kept in a long[] rather than as Long values, so a map holding thousands of names doesn't carry thousands of
+ * boxed ids with it, and a lookup doesn't unbox. Ids are never negative, so -1 marks a missing name. Not thread safe.
+ *
+ * @author dnebinger
+ */
+class NameToIdMap {
+
+	NameToIdMap() {
+		names = new String[INITIAL_CAPACITY];
+		ids = new long[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * get: Returns the id for the name.
+	 * @param name
+	 * @return long The id or <code>-1</code> if the name is not in the map.
+	 */
+	long get(final String name) {
+		int mask = names.length - 1;
+
+		for (int i = hash(name) & mask; names[i] != null; i = (i + 1) & mask) {
+			if (names[i].equals(name)) {
+				return ids[i];
+			}
+		}
+
+		return -1;
+	}
+
+	void put(final String name, final long id) {
+		if ((size + 1) * 2 > names.length) {
+			resize(names.length * 2);
+		}
+
+		int mask = names.length - 1;
+		int i = hash(name) & mask;
+
+		for (; names[i] != null; i = (i + 1) & mask) {
+			if (names[i].equals(name)) {
+				ids[i] = id;
+
+				return;
+			}
+		}
+
+		names[i] = name;
+		ids[i] = id;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		Arrays.fill(names, null);
+
+		size = 0;
+	}
+
+	private void resize(final int capacity) {
+		String[] oldNames = names;
+		long[] oldIds = ids;
+
+		names = new String[capacity];
+		ids = new long[capacity];
+		size = 0;
+
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] != null) {
+				put(oldNames[i], oldIds[i]);
+			}
+		}
+	}
+
+	private static int hash(final String name) {
+		int hash = name.hashCode();
+
+		// spread the high bits, the table index only uses the low ones.
+		return hash ^ (hash >>> 16);
+	}
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private String[] names;
+	private long[] ids;
+	private int size;
+}
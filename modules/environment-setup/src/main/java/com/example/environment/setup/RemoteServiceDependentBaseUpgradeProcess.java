@@ -1,5 +1,12 @@
 package com.example.environment.setup;
 
+import com.example.environment.setup.async.AsyncSetupExecutor;
+import com.example.environment.setup.reset.SetupCreationLog;
+import com.example.environment.setup.search.DeferredReindexer;
+import com.liferay.portal.kernel.dao.jdbc.DataAccess;
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.model.Group;
 import com.liferay.portal.kernel.model.User;
 import com.liferay.portal.kernel.security.auth.PrincipalThreadLocal;
@@ -11,6 +18,11 @@ import com.liferay.portal.kernel.service.ServiceContext;
 import com.liferay.portal.kernel.service.UserLocalService;
 import com.liferay.portal.kernel.upgrade.UpgradeProcess;
 import com.liferay.portal.kernel.upgrade.UpgradeStep;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.LocaleUtil;
+import com.liferay.portal.kernel.util.PropsKeys;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.kernel.util.Validator;
 
 import java.util.Date;
 
@@ -22,6 +34,21 @@ import java.util.Date;
  *
  * This will allow subclasses to invoke either local or remote services as necessary.
  *
+ * Long running steps can also save a checkpoint after each committed batch with saveCheckpoint(). If the node restarts
+ * partway through, the upgrade framework runs the step again and getCheckpoint() tells it where to continue from. The
+ * checkpoint is removed once setupEnvironment() completes. When the step runs in the background the checkpoint is also
+ * its progress in the EnvSetupTask table.
+ *
+ * When environment.setup.index.deferred is set, the entities are not indexed one at a time as the step writes them. The
+ * DeferredReindexer records what changed and sends it to the search engine in batches when the step is done, this also
+ * happens if the step fails so the chunks it did commit are searchable.
+ *
+ * Everything the step creates, users, user groups, organizations, sites, roles and role assignments, is recorded in the
+ * step's SetupCreationLog, which is what lets the EnvironmentReset remove it again.
+ *
+ * In a cluster every node runs the upgrade when it starts. The SetupLease lets one of them do the step in a company, the
+ * others wait for it and skip the step once it has completed.
+ *
  * @author dnebinger
  */
 public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradeProcess implements UpgradeStep {
@@ -42,6 +69,20 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 	 * @param groupLocalService
 	 */
 	public RemoteServiceDependentBaseUpgradeProcess(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService) {
+		this(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, new SetupLookupCache(companyId));
+	}
+
+	/**
+	 * RemoteServiceDependentBaseUpgradeProcess: Constructor which also takes the company's lookup cache, shared with the
+	 * other steps that run in the company.
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 */
+	public RemoteServiceDependentBaseUpgradeProcess(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache) {
 		super();
 
 		this.companyId = companyId;
@@ -49,15 +90,36 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 		this.permissionCheckerFactory = permissionCheckerFactory;
 		this.userLocalService = userLocalService;
 		this.groupLocalService = groupLocalService;
+		this.setupLookupCache = setupLookupCache;
 	}
 
 	/**
 	 * doUpgrade: This is the method the Liferay interface wants us to create. We'll just prep for the upgrade and defer to the setupEnvironment() method to do the work.
+	 * In a cluster the work is done under a lease, so only one node runs the step in a company while the others wait.
 	 * @throws Exception
 	 */
 	@Override
 	protected void doUpgrade() throws Exception {
+		SetupLease setupLease = getSetupLease();
+
+		if (setupLease == null) {
+			doSetup();
+
+			return;
+		}
+
+		if (!setupLease.runExclusively(this::doSetup) && _log.isInfoEnabled()) {
+			_log.info("Skipped " + getCheckpointName() + " for company " + getCompanyId() + ", another node completed it");
+		}
+	}
+
+	/**
+	 * doSetup: Sets up the admin, deferred indexing, the creation log and the service context, then calls setupEnvironment().
+	 * @throws Exception
+	 */
+	protected void doSetup() throws Exception {
 		// before we start the upgrade, we should pretend to be an administrator...
+		// when run by an AllCompaniesUpgradeStep the admin shared by the chain of steps is already in place and this is skipped.
 		// update the principal thread local with the admin user id.
 		long currentId = PrincipalThreadLocal.getUserId();
 		boolean changed = false;
@@ -78,7 +140,18 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 			PermissionThreadLocal.setPermissionChecker(adminChecker);
 		}
 
+		DeferredReindexer deferredReindexer = null;
+
+		if (isIndexDeferred()) {
+			deferredReindexer = DeferredReindexer.begin(getCompanyId(), GetterUtil.getInteger(PropsUtil.get(EnvironmentSetupPropsKeys.INDEX_BATCH_SIZE), DeferredReindexer.DEFAULT_BATCH_SIZE));
+		}
+
+		SetupCreationLog setupCreationLog = null;
+		boolean succeeded = false;
+
 		try {
+			setupCreationLog = beginCreationLog();
+
 			// create a service context...
 			ServiceContext serviceContext = new ServiceContext();
 
@@ -91,6 +164,14 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 			// will not be setting the service context scope group id, that can be left to the subclasses to handle if necessary.
 
 			// invoke the abstract method now that everything is set.
+			setupEnvironment(serviceContext);
+
+			if (setupCheckpoints != null) {
+				// done, a later run of the step should start from the beginning.
+				setupCheckpoints.clear();
+			}
+
+			succeeded = true;
 		} finally {
 			if (changed) {
 				// restore the permission checker
@@ -99,15 +180,220 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 				// this is here in case we wanted to support changing it back, this is often not necessary.
 				// PrincipalThreadLocal.setName(currentId);
 			}
+
+			try {
+				if (setupCreationLog != null) {
+					finishCreationLog(setupCreationLog, succeeded);
+				}
+			} finally {
+				if (deferredReindexer != null) {
+					// last, so a reindex failure can't leave the thread with the admin's permission checker.
+					finishDeferredIndexing(deferredReindexer, succeeded);
+				}
+			}
 		}
 
 	}
 
+	/**
+	 * getSetupLease: Returns the lease the step runs under, creating the table on first use. The lease is used when
+	 * environment.setup.lease.enabled is set, which defaults to cluster.link.enabled.
+	 * @return SetupLease The lease or <code>null</code> if the step does not need one.
+	 * @throws Exception
+	 */
+	protected SetupLease getSetupLease() throws Exception {
+		boolean clustered = GetterUtil.getBoolean(PropsUtil.get(PropsKeys.CLUSTER_LINK_ENABLED));
+
+		if (!GetterUtil.getBoolean(PropsUtil.get(EnvironmentSetupPropsKeys.LEASE_ENABLED), clustered)) {
+			return null;
+		}
+
+		ensureTable(SetupLease.TABLE_NAME, SetupLease.TABLE_SQL_CREATE);
+
+		return new SetupLease(DataAccess::getConnection, getCompanyId(), getCheckpointName(), SetupLease.getNodeOwner(),
+				GetterUtil.getLong(PropsUtil.get(EnvironmentSetupPropsKeys.LEASE_DURATION), SetupLease.DEFAULT_DURATION_MILLIS));
+	}
+
+	/**
+	 * isIndexDeferred: Whether the step defers indexing until it is done, from environment.setup.index.deferred.
+	 * @return boolean <code>true</code> to defer indexing.
+	 */
+	protected boolean isIndexDeferred() {
+		return GetterUtil.getBoolean(PropsUtil.get(EnvironmentSetupPropsKeys.INDEX_DEFERRED));
+	}
+
+	/**
+	 * finishDeferredIndexing: Turns indexing back on and reindexes what the step changed. A reindex failure fails a step
+	 * that otherwise succeeded, after a failed step it is only logged so the original failure is what gets reported.
+	 * @param deferredReindexer
+	 * @param succeeded
+	 * @throws Exception
+	 */
+	protected void finishDeferredIndexing(final DeferredReindexer deferredReindexer, final boolean succeeded) throws Exception {
+		deferredReindexer.end();
+
+		try {
+			deferredReindexer.reindex();
+		} catch (Exception e) {
+			if (succeeded) {
+				throw e;
+			}
+
+			_log.error("Unable to reindex the entities " + getClass().getSimpleName() + " changed in company " + getCompanyId() + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * beginCreationLog: Starts recording what the step creates on this thread and its workers, creating the table on
+	 * first use.
+	 * @return SetupCreationLog The log.
+	 * @throws Exception
+	 */
+	protected SetupCreationLog beginCreationLog() throws Exception {
+		ensureTable(SetupCreationLog.TABLE_NAME, SetupCreationLog.TABLE_SQL_CREATE);
+
+		return SetupCreationLog.begin(getCompanyId(), getCheckpointName(), SetupCreationLog.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * finishCreationLog: Stops recording and writes the records still queued, also after a failed step since the chunks
+	 * it did commit have to be reset too. A write failure fails a step that otherwise succeeded, after a failed step it
+	 * is only logged.
+	 * @param setupCreationLog
+	 * @param succeeded
+	 * @throws Exception
+	 */
+	protected void finishCreationLog(final SetupCreationLog setupCreationLog, final boolean succeeded) throws Exception {
+		try {
+			setupCreationLog.end();
+		} catch (Exception e) {
+			if (succeeded) {
+				throw e;
+			}
+
+			_log.error("Unable to record the entities " + getClass().getSimpleName() + " created in company " + getCompanyId() + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * getCheckpoint: Returns the checkpoint the step saved in an earlier, interrupted run in this company. Without an
+	 * upgrade connection, i.e. when a benchmark runs the step, there are no checkpoints and every run starts from the
+	 * beginning.
+	 * @return long The checkpoint or <code>0</code> if there isn't one.
+	 * @throws Exception
+	 */
+	protected long getCheckpoint() throws Exception {
+		if (connection == null) {
+			return 0;
+		}
+
+		long checkpoint = getSetupCheckpoints().get();
+
+		if ((checkpoint > 0) && _log.isInfoEnabled()) {
+			_log.info("Resuming " + getCheckpointName() + " for company " + getCompanyId() + " from checkpoint " + checkpoint);
+		}
+
+		return checkpoint;
+	}
+
+	/**
+	 * saveCheckpoint: Saves the step's progress, call it once a batch has committed. Does nothing without an upgrade
+	 * connection.
+	 * @param checkpoint A cursor that only ever increases, i.e. the line number of the last committed record.
+	 * @throws Exception
+	 */
+	protected void saveCheckpoint(final long checkpoint) throws Exception {
+		if (connection == null) {
+			return;
+		}
+
+		getSetupCheckpoints().save(checkpoint);
+
+		AsyncSetupExecutor.reportProgress(checkpoint);
+	}
+
+	/**
+	 * getCheckpointName: The name checkpoints are saved under, the class name unless a subclass needs something else.
+	 * @return String The name.
+	 */
+	protected String getCheckpointName() {
+		return getClass().getName();
+	}
+
+	/**
+	 * getSetupCheckpoints: Returns the checkpoints of the step in this company, creating the table on first use.
+	 * @return SetupCheckpoints The checkpoints.
+	 * @throws Exception
+	 */
+	protected SetupCheckpoints getSetupCheckpoints() throws Exception {
+		if (setupCheckpoints == null) {
+			ensureTable(SetupCheckpoints.TABLE_NAME, SetupCheckpoints.TABLE_SQL_CREATE);
+
+			setupCheckpoints = new SetupCheckpoints(connection, getCompanyId(), getCheckpointName());
+		}
+
+		return setupCheckpoints;
+	}
+
+	/**
+	 * runIncludedStep: Runs another step's setupEnvironment() as part of this one, on this step's connection and under its
+	 * admin, deferred indexing and lease. The other step keeps its own checkpoint, which is removed once it completes.
+	 * @param upgradeProcess
+	 * @param serviceContext
+	 * @throws Exception
+	 */
+	protected void runIncludedStep(final RemoteServiceDependentBaseUpgradeProcess upgradeProcess, final ServiceContext serviceContext) throws Exception {
+		upgradeProcess.connection = connection;
+
+		upgradeProcess.setupEnvironment(serviceContext);
+
+		if (upgradeProcess.setupCheckpoints != null) {
+			upgradeProcess.setupCheckpoints.clear();
+		}
+	}
+
+	/**
+	 * ensureTable: Creates one of the module's own tables if it does not exist yet.
+	 * @param tableName
+	 * @param createSQL
+	 * @throws Exception
+	 */
+	protected void ensureTable(final String tableName, final String createSQL) throws Exception {
+		if (hasTable(tableName)) {
+			return;
+		}
+
+		try {
+			runSQL(createSQL);
+		} catch (Exception e) {
+			// another company's run may have just created it.
+			if (!hasTable(tableName)) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * getSiteId: Returns the group id of the named site. Sites found by name are kept in the lookup cache, so each name is
+	 * only fetched once per company.
+	 * @param siteName
+	 * @return long The group id, the company group's id if there is no such site or <code>-1</code> if it is not a site.
+	 */
 	protected long getSiteId(final String siteName) {
-		long siteId = -1;
+		long siteId = setupLookupCache.getSiteGroupId(siteName);
+
+		if (siteId != -1) {
+			return siteId;
+		}
 
 		Group group = groupLocalService.fetchGroup(getCompanyId(), siteName);
 
+		if ((group != null) && group.isSite()) {
+			setupLookupCache.putSiteGroupId(siteName, group.getGroupId());
+
+			return group.getGroupId();
+		}
+
 		if (group == null) {
 			// well this is a weird error, use the company group then
 			group = groupLocalService.fetchCompanyGroup(getCompanyId());
@@ -121,6 +407,24 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 		return group.getGroupId();
 	}
 
+	/**
+	 * addUser: Adds a user with an auto generated password and no memberships. Memberships are better added in bulk
+	 * afterwards, one call per user group for all of its new members.
+	 * @param screenName The screen name, when empty one will be generated.
+	 * @param emailAddress
+	 * @param firstName
+	 * @param lastName
+	 * @param jobTitle
+	 * @param serviceContext
+	 * @return User The new user.
+	 * @throws PortalException
+	 */
+	protected User addUser(final String screenName, final String emailAddress, final String firstName, final String lastName, final String jobTitle, final ServiceContext serviceContext) throws PortalException {
+		return userLocalService.addUser(getAdminUserId(), getCompanyId(), true, null, null, Validator.isNull(screenName), screenName,
+				emailAddress, 0, null, LocaleUtil.getDefault(), firstName, null, lastName,
+				0, 0, true, 0, 1, 1970, GetterUtil.getString(jobTitle), null, null, null, null, false, serviceContext);
+	}
+
 	public long getAdminUserId() {
 		return adminUserId;
 	}
@@ -141,9 +445,17 @@ public abstract class RemoteServiceDependentBaseUpgradeProcess extends UpgradePr
 		return groupLocalService;
 	}
 
+	public SetupLookupCache getSetupLookupCache() {
+		return setupLookupCache;
+	}
+
 	private final long companyId;
 	private final long adminUserId;
 	private final PermissionCheckerFactory permissionCheckerFactory;
 	private final UserLocalService userLocalService;
 	private final GroupLocalService groupLocalService;
+	private final SetupLookupCache setupLookupCache;
+	private SetupCheckpoints setupCheckpoints;
+
+	private static final Log _log = LogFactoryUtil.getLog(RemoteServiceDependentBaseUpgradeProcess.class);
 }
@@ -0,0 +1,101 @@
+package com.example.environment.setup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * class SetupCheckpoints: Reads and writes the progress cursor of a step in a company, kept in the EnvSetupCheckpoint
+ * table through the upgrade connection.
+ *
+ * The upgrade connection is not part of the chunk transactions, so a cursor is saved right after its chunk has committed.
+ * A restart between the two redoes that one chunk, which the steps handle since they skip what already exists.
+ *
+ * @author dnebinger
+ */
+public class SetupCheckpoints {
+
+	public static final String TABLE_NAME = "EnvSetupCheckpoint";
+
+	public static final String TABLE_SQL_CREATE = "create table " + TABLE_NAME + " (companyId LONG not null, stepName VARCHAR(200) not null, position_ LONG, modifiedDate DATE null, primary key (companyId, stepName))";
+
+	public SetupCheckpoints(final Connection connection, final long companyId, final String stepName) {
+		super();
+
+		this.connection = connection;
+		this.companyId = companyId;
+		this.stepName = stepName;
+	}
+
+	/**
+	 * get: Returns the saved cursor.
+	 * @return long The cursor or <code>0</code> if the step has not saved one.
+	 * @throws SQLException
+	 */
+	public long get() throws SQLException {
+		try (PreparedStatement preparedStatement = connection.prepareStatement("select position_ from " + TABLE_NAME + " where companyId = ? and stepName = ?")) {
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, stepName);
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				return resultSet.next() ? resultSet.getLong(1) : 0;
+			}
+		}
+	}
+
+	/**
+	 * save: Saves the cursor.
+	 * @param position
+	 * @throws SQLException
+	 */
+	public void save(final long position) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set position_ = ?, modifiedDate = ? where companyId = ? and stepName = ?")) {
+			preparedStatement.setLong(1, position);
+			preparedStatement.setTimestamp(2, now);
+			preparedStatement.setLong(3, companyId);
+			preparedStatement.setString(4, stepName);
+
+			if (preparedStatement.executeUpdate() > 0) {
+				return;
+			}
+		}
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement("insert into " + TABLE_NAME + " (companyId, stepName, position_, modifiedDate) values (?, ?, ?, ?)")) {
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, stepName);
+			preparedStatement.setLong(3, position);
+			preparedStatement.setTimestamp(4, now);
+
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	/**
+	 * clear: Removes the cursor, the step has completed.
+	 * @throws SQLException
+	 */
+	public void clear() throws SQLException {
+		try (PreparedStatement preparedStatement = connection.prepareStatement("delete from " + TABLE_NAME + " where companyId = ? and stepName = ?")) {
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, stepName);
+
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	public String getStepName() {
+		return stepName;
+	}
+
+	private final Connection connection;
+	private final long companyId;
+	private final String stepName;
+}
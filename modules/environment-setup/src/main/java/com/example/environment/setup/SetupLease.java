@@ -0,0 +1,412 @@
+package com.example.environment.setup;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class SetupLease: Makes sure only one cluster node runs a step in a company at a time, through a lease kept in the
+ * EnvSetupLease table.
+ *
+ * The node that gets the lease runs the step and renews the lease from a heartbeat thread while it does. The other nodes
+ * poll the lease with a growing delay. When the holder completes the step they skip it, when it fails (or its node dies
+ * and stops renewing, letting the lease expire) one of them takes the lease over and runs the step itself. A completed
+ * lease stays completed, a node that only gets to the step afterwards skips it as well; EnvironmentReset removes the
+ * leases so the steps can run again. Every acquisition bumps the lease's generation, so a holder can tell when its lease
+ * was taken over.
+ *
+ * A holder whose lease was taken over, because it could not renew it in time, must not finish the step next to the node
+ * that took over. The lease is current on the step's thread (and carried to its workers by SetupThreadContext), the
+ * ChunkedTransactionProcessor calls checkHeld() before each chunk commits and the step fails when it is done.
+ *
+ * The lease uses its own connections, the heartbeat can't share the upgrade connection with the step and a change to the
+ * lease has to be visible to the other nodes right away.
+ *
+ * @author dnebinger
+ */
+public class SetupLease {
+
+	public static final String TABLE_NAME = "EnvSetupLease";
+
+	public static final String TABLE_SQL_CREATE = "create table " + TABLE_NAME + " (companyId LONG not null, stepName VARCHAR(200) not null, owner VARCHAR(200) null, generation LONG, status INTEGER, expirationTime LONG, primary key (companyId, stepName))";
+
+	public static final int STATUS_RELEASED = 0;
+	public static final int STATUS_RUNNING = 1;
+	public static final int STATUS_COMPLETED = 2;
+
+	public static final long DEFAULT_DURATION_MILLIS = 60000;
+
+	/**
+	 * interface ConnectionProvider: Where the lease gets its connections, the portal's data source unless testing.
+	 */
+	@FunctionalInterface
+	public interface ConnectionProvider {
+
+		Connection getConnection() throws SQLException;
+	}
+
+	/**
+	 * getNodeOwner: The owner name of this JVM, unique even for nodes on the same host.
+	 * @return String The owner name.
+	 */
+	public static String getNodeOwner() {
+		return NODE_OWNER;
+	}
+
+	/**
+	 * getCurrent: Returns the lease the current thread's step runs under.
+	 * @return SetupLease The lease or <code>null</code> if the step runs without one.
+	 */
+	public static SetupLease getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * setCurrent: Sets the lease the current thread's step runs under, used to hand it to worker threads.
+	 * @param setupLease The lease or <code>null</code> to clear it.
+	 */
+	public static void setCurrent(final SetupLease setupLease) {
+		if (setupLease == null) {
+			current.remove();
+		} else {
+			current.set(setupLease);
+		}
+	}
+
+	/**
+	 * checkHeld: Fails if the lease of the current thread's step was taken over by another node.
+	 * @throws IllegalStateException If the lease was lost.
+	 */
+	public static void checkHeld() {
+		SetupLease setupLease = current.get();
+
+		if ((setupLease != null) && setupLease.lost) {
+			throw new IllegalStateException("Lease of " + setupLease.stepName + " for company " + setupLease.companyId + " was taken over from " + setupLease.owner + ", stopping so the step is not run twice");
+		}
+	}
+
+	/**
+	 * SetupLease: Constructor.
+	 * @param connectionProvider
+	 * @param companyId
+	 * @param stepName
+	 * @param owner Name of the node (or thread) asking for the lease, it must be unique among the contenders.
+	 * @param durationMillis How long the lease holds without a heartbeat, the heartbeat renews it every third of that.
+	 */
+	public SetupLease(final ConnectionProvider connectionProvider, final long companyId, final String stepName, final String owner, final long durationMillis) {
+		super();
+
+		this.connectionProvider = connectionProvider;
+		this.companyId = companyId;
+		this.stepName = stepName;
+		this.owner = owner;
+		this.durationMillis = Math.max(MIN_POLL_MILLIS * 3, durationMillis);
+	}
+
+	/**
+	 * runExclusively: Runs the task while holding the lease, or waits while another node holds it.
+	 * @param setupTask The work.
+	 * @return boolean <code>true</code> if this node ran the task, <code>false</code> if another node completed it while
+	 * this one was waiting.
+	 * @throws Exception The task's failure, or if the wait was interrupted.
+	 * @throws IllegalStateException If the lease was taken over while the task ran.
+	 */
+	public boolean runExclusively(final SetupTaskGraph.SetupTask setupTask) throws Exception {
+		long generation = acquire();
+
+		if (generation < 0) {
+			return false;
+		}
+
+		lost = false;
+
+		Heartbeat heartbeat = new Heartbeat(generation);
+
+		heartbeat.start();
+
+		SetupLease previous = getCurrent();
+
+		setCurrent(this);
+
+		boolean succeeded = false;
+
+		try {
+			setupTask.run();
+
+			checkHeld();
+
+			succeeded = true;
+		} finally {
+			setCurrent(previous);
+
+			heartbeat.interrupt();
+			heartbeat.join();
+
+			try {
+				release(generation, succeeded ? STATUS_COMPLETED : STATUS_RELEASED);
+			} catch (SQLException e) {
+				if (succeeded) {
+					throw e;
+				}
+
+				// the task's failure is the one to report, the lease expires on its own.
+				_log.error("Unable to release the lease of " + stepName + " for company " + companyId + ": " + e.getMessage(), e);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * acquire: Gets the lease, waiting for as long as another node holds it.
+	 * @return long The generation of the acquired lease, or <code>-1</code> if another node completed the step.
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	protected long acquire() throws SQLException, InterruptedException {
+		boolean waiting = false;
+		long pollMillis = MIN_POLL_MILLIS;
+		long start = System.nanoTime();
+
+		while (true) {
+			Lease lease = fetch();
+
+			if (lease == null) {
+				if (insert()) {
+					return 1;
+				}
+
+				// another node inserted it first.
+				continue;
+			}
+
+			if (lease.status == STATUS_COMPLETED) {
+				// whether we waited for it or got here after it was done, the step must not run again.
+				if (_log.isInfoEnabled()) {
+					_log.info(stepName + " for company " + companyId + " was completed by " + lease.owner + " after waiting " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+				}
+
+				return -1;
+			}
+
+			boolean expired = (lease.status == STATUS_RUNNING) && (lease.expirationTime < System.currentTimeMillis());
+
+			if ((lease.status != STATUS_RUNNING) || expired) {
+				if (takeOver(lease.generation)) {
+					if (expired) {
+						_log.warn("Took over the expired lease of " + stepName + " for company " + companyId + " from " + lease.owner);
+					}
+
+					return lease.generation + 1;
+				}
+
+				// another node took it first.
+				continue;
+			}
+
+			if (!waiting) {
+				waiting = true;
+
+				if (_log.isInfoEnabled()) {
+					_log.info("Waiting for " + lease.owner + " to finish " + stepName + " for company " + companyId);
+				}
+			}
+
+			Thread.sleep(pollMillis);
+
+			pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+		}
+	}
+
+	protected Lease fetch() throws SQLException {
+		try (Connection connection = connectionProvider.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("select owner, generation, status, expirationTime from " + TABLE_NAME + " where companyId = ? and stepName = ?")) {
+
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, stepName);
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+
+				return new Lease(resultSet.getString(1), resultSet.getLong(2), resultSet.getInt(3), resultSet.getLong(4));
+			}
+		}
+	}
+
+	/**
+	 * insert: Creates the lease as the first generation held by this node.
+	 * @return boolean <code>true</code> if it was created, <code>false</code> if another node beat us to it.
+	 * @throws SQLException
+	 */
+	protected boolean insert() throws SQLException {
+		try (Connection connection = connectionProvider.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("insert into " + TABLE_NAME + " (companyId, stepName, owner, generation, status, expirationTime) values (?, ?, ?, 1, ?, ?)")) {
+
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, stepName);
+			preparedStatement.setString(3, owner);
+			preparedStatement.setInt(4, STATUS_RUNNING);
+			preparedStatement.setLong(5, System.currentTimeMillis() + durationMillis);
+
+			preparedStatement.executeUpdate();
+
+			return true;
+		} catch (SQLException e) {
+			// a duplicate key, unless the row still isn't there.
+			if (fetch() == null) {
+				throw e;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * takeOver: Acquires the next generation of the lease, only if nobody else did since it was read.
+	 * @param generation The generation that was read.
+	 * @return boolean <code>true</code> if this node now holds the lease.
+	 * @throws SQLException
+	 */
+	protected boolean takeOver(final long generation) throws SQLException {
+		try (Connection connection = connectionProvider.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set owner = ?, generation = ?, status = ?, expirationTime = ? where companyId = ? and stepName = ? and generation = ?")) {
+
+			preparedStatement.setString(1, owner);
+			preparedStatement.setLong(2, generation + 1);
+			preparedStatement.setInt(3, STATUS_RUNNING);
+			preparedStatement.setLong(4, System.currentTimeMillis() + durationMillis);
+			preparedStatement.setLong(5, companyId);
+			preparedStatement.setString(6, stepName);
+			preparedStatement.setLong(7, generation);
+
+			return preparedStatement.executeUpdate() > 0;
+		}
+	}
+
+	/**
+	 * renew: Pushes the expiration of the held lease out by another duration.
+	 * @param generation The generation this node holds.
+	 * @return boolean <code>false</code> if the lease was taken over in the meantime.
+	 * @throws SQLException
+	 */
+	protected boolean renew(final long generation) throws SQLException {
+		try (Connection connection = connectionProvider.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set expirationTime = ? where companyId = ? and stepName = ? and generation = ? and owner = ?")) {
+
+			preparedStatement.setLong(1, System.currentTimeMillis() + durationMillis);
+			preparedStatement.setLong(2, companyId);
+			preparedStatement.setString(3, stepName);
+			preparedStatement.setLong(4, generation);
+			preparedStatement.setString(5, owner);
+
+			return preparedStatement.executeUpdate() > 0;
+		}
+	}
+
+	protected void release(final long generation, final int status) throws SQLException {
+		try (Connection connection = connectionProvider.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set status = ?, expirationTime = 0 where companyId = ? and stepName = ? and generation = ? and owner = ?")) {
+
+			preparedStatement.setInt(1, status);
+			preparedStatement.setLong(2, companyId);
+			preparedStatement.setString(3, stepName);
+			preparedStatement.setLong(4, generation);
+			preparedStatement.setString(5, owner);
+
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	public String getStepName() {
+		return stepName;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * class Lease: A row of the lease table.
+	 */
+	protected static class Lease {
+
+		Lease(final String owner, final long generation, final int status, final long expirationTime) {
+			this.owner = owner;
+			this.generation = generation;
+			this.status = status;
+			this.expirationTime = expirationTime;
+		}
+
+		private final String owner;
+		private final long generation;
+		private final int status;
+		private final long expirationTime;
+	}
+
+	/**
+	 * class Heartbeat: Renews the held lease until interrupted.
+	 */
+	private class Heartbeat extends Thread {
+
+		Heartbeat(final long generation) {
+			super("environment-setup-lease-" + companyId + "-" + stepName);
+
+			this.generation = generation;
+
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(durationMillis / 3);
+
+					if (!renew(generation)) {
+						lost = true;
+
+						_log.error("Lease of " + stepName + " for company " + companyId + " was taken over from " + owner + ", the step will fail");
+
+						return;
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (SQLException e) {
+					// keep trying, the lease holds for a while without renewal.
+					_log.warn("Unable to renew the lease of " + stepName + " for company " + companyId + ": " + e.getMessage());
+				}
+			}
+		}
+
+		private final long generation;
+	}
+
+	private final ConnectionProvider connectionProvider;
+	private final long companyId;
+	private final String stepName;
+	private final String owner;
+	private final long durationMillis;
+	private volatile boolean lost;
+
+	private static final long MIN_POLL_MILLIS = 250;
+	private static final long MAX_POLL_MILLIS = 5000;
+
+	private static final ThreadLocal<SetupLease> current = new ThreadLocal<>();
+
+	private static final String NODE_OWNER = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+
+	private static final Log _log = LogFactoryUtil.getLog(SetupLease.class);
+}
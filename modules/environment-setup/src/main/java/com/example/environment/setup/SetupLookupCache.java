@@ -0,0 +1,95 @@
+package com.example.environment.setup;
+
+/**
+ * class SetupLookupCache: Role, user group and site name to id lookups for a single company, shared by the steps that
+ * run in the company.
+ *
+ * Entries come either from a query a step had to make anyway or from the result of creating the entity, so a role one
+ * step creates is known to the next step without another query. The registrator drops the caches when the chain of steps
+ * ends, so nothing outlives an upgrade run.
+ *
+ * @author dnebinger
+ */
+public class SetupLookupCache {
+
+	public SetupLookupCache(final long companyId) {
+		super();
+
+		this.companyId = companyId;
+	}
+
+	/**
+	 * getRoleId: Returns the id of the named role.
+	 * @param name
+	 * @return long The role id or <code>-1</code> if it is not cached.
+	 */
+	public synchronized long getRoleId(final String name) {
+		return roleIds.get(name);
+	}
+
+	public synchronized void putRoleId(final String name, final long roleId) {
+		roleIds.put(name, roleId);
+	}
+
+	/**
+	 * getUserGroupId: Returns the id of the named user group.
+	 * @param name
+	 * @return long The user group id or <code>-1</code> if it is not cached.
+	 */
+	public synchronized long getUserGroupId(final String name) {
+		return userGroupIds.get(name);
+	}
+
+	/**
+	 * getUserGroupGroupId: Returns the id of the group behind the named user group, the id role assignments use.
+	 * @param name
+	 * @return long The group id or <code>-1</code> if it is not cached.
+	 */
+	public synchronized long getUserGroupGroupId(final String name) {
+		return userGroupGroupIds.get(name);
+	}
+
+	public synchronized void putUserGroup(final String name, final long userGroupId, final long groupId) {
+		userGroupIds.put(name, userGroupId);
+		userGroupGroupIds.put(name, groupId);
+	}
+
+	/**
+	 * getSiteGroupId: Returns the group id of the named site.
+	 * @param name
+	 * @return long The group id or <code>-1</code> if it is not cached.
+	 */
+	public synchronized long getSiteGroupId(final String name) {
+		return siteGroupIds.get(name);
+	}
+
+	public synchronized void putSiteGroupId(final String name, final long groupId) {
+		siteGroupIds.put(name, groupId);
+	}
+
+	/**
+	 * clear: Drops every entry.
+	 */
+	public synchronized void clear() {
+		roleIds.clear();
+		userGroupIds.clear();
+		userGroupGroupIds.clear();
+		siteGroupIds.clear();
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SetupLookupCache for company " + companyId + ": " + roleIds.size() + " roles, " + userGroupIds.size() + " user groups, " + siteGroupIds.size() + " sites";
+	}
+
+	private final long companyId;
+
+	private final NameToIdMap roleIds = new NameToIdMap();
+	private final NameToIdMap userGroupIds = new NameToIdMap();
+	private final NameToIdMap userGroupGroupIds = new NameToIdMap();
+	private final NameToIdMap siteGroupIds = new NameToIdMap();
+}
@@ -0,0 +1,265 @@
+package com.example.environment.setup;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class SetupTaskGraph: Runs setup tasks that declare dependencies on each other. A task starts as soon as everything it
+ * depends on has finished, up to parallelism tasks at a time, so the graph takes as long as its longest chain of
+ * dependencies rather than the total of all of its tasks.
+ *
+ * The tasks run with the company, principal and permission checker of the thread that calls execute(). When a task fails
+ * no new tasks are started, the running ones are waited for and the failure is thrown.
+ *
+ * @author dnebinger
+ */
+public class SetupTaskGraph {
+
+	/**
+	 * interface SetupTask: A unit of setup work in the graph.
+	 */
+	@FunctionalInterface
+	public interface SetupTask {
+
+		void run() throws Exception;
+	}
+
+	/**
+	 * SetupTaskGraph: Constructor.
+	 * @param description A short description, used to name the worker threads.
+	 */
+	public SetupTaskGraph(final String description) {
+		super();
+
+		this.description = description;
+	}
+
+	/**
+	 * addTask: Adds a task to the graph. The tasks it depends on may be added before or after it.
+	 * @param name Unique name of the task.
+	 * @param setupTask
+	 * @param dependsOn Names of the tasks that must finish before this one starts.
+	 * @return SetupTaskGraph This graph.
+	 */
+	public SetupTaskGraph addTask(final String name, final SetupTask setupTask, final String... dependsOn) {
+		if (tasks.containsKey(name)) {
+			throw new IllegalArgumentException("Task " + name + " was already added to " + description);
+		}
+
+		tasks.put(name, new Node(name, setupTask, dependsOn));
+
+		return this;
+	}
+
+	/**
+	 * execute: Runs the tasks in dependency order and waits for them to finish.
+	 * @param parallelism Max number of tasks running at the same time.
+	 * @throws Exception The first task failure, the failures of tasks that were running at the same time are suppressed.
+	 */
+	public void execute(final int parallelism) throws Exception {
+		Map<String, List<Node>> dependents = link();
+
+		if (tasks.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		SetupThreadContext setupThreadContext = SetupThreadContext.capture();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, tasks.size())), runnable -> {
+			Thread thread = new Thread(runnable, "environment-setup-" + description + "-task-" + threadCount.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		CompletionService<Node> completionService = new ExecutorCompletionService<>(executorService);
+
+		Deque<Node> ready = new ArrayDeque<>();
+
+		for (Node node : tasks.values()) {
+			if (node.remaining == 0) {
+				ready.add(node);
+			}
+		}
+
+		int running = 0;
+		int completed = 0;
+		Exception failure = null;
+
+		try {
+			while (true) {
+				if (failure == null) {
+					while (!ready.isEmpty()) {
+						Node node = ready.poll();
+
+						completionService.submit(setupThreadContext.wrap(() -> {
+							long taskStart = System.nanoTime();
+
+							node.setupTask.run();
+
+							if (_log.isDebugEnabled()) {
+								_log.debug(description + " task " + node.name + " completed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - taskStart) + " ms");
+							}
+
+							return node;
+						}));
+
+						running++;
+					}
+				}
+
+				if (running == 0) {
+					break;
+				}
+
+				Future<Node> future = completionService.take();
+
+				running--;
+
+				try {
+					Node node = future.get();
+
+					completed++;
+
+					for (Node dependent : dependents.get(node.name)) {
+						if (--dependent.remaining == 0) {
+							ready.add(dependent);
+						}
+					}
+				} catch (ExecutionException e) {
+					Exception cause = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+
+					if (failure == null) {
+						failure = cause;
+					} else {
+						failure.addSuppressed(cause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw e;
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		if (failure != null) {
+			_log.error(description + " stopped after " + completed + " of " + tasks.size() + " tasks: " + failure.getMessage());
+
+			throw failure;
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info(description + " ran " + completed + " tasks in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public int getTaskCount() {
+		return tasks.size();
+	}
+
+	/**
+	 * link: Resolves the dependencies, counting what each task waits for, and checks the graph can actually run.
+	 * @return Map The tasks that depend on each task, by name.
+	 */
+	protected Map<String, List<Node>> link() {
+		Map<String, List<Node>> dependents = new HashMap<>();
+
+		for (Node node : tasks.values()) {
+			dependents.put(node.name, new ArrayList<>());
+		}
+
+		for (Node node : tasks.values()) {
+			node.remaining = node.dependsOn.length;
+
+			for (String dependsOn : node.dependsOn) {
+				List<Node> nodes = dependents.get(dependsOn);
+
+				if (nodes == null) {
+					throw new IllegalStateException("Task " + node.name + " of " + description + " depends on unknown task " + dependsOn);
+				}
+
+				nodes.add(node);
+			}
+		}
+
+		// a dry run of the order, if not every task is reached there is a cycle.
+		Map<String, Integer> remaining = new HashMap<>();
+		Deque<String> ready = new ArrayDeque<>();
+
+		for (Node node : tasks.values()) {
+			remaining.put(node.name, node.remaining);
+
+			if (node.remaining == 0) {
+				ready.add(node.name);
+			}
+		}
+
+		int reached = 0;
+
+		while (!ready.isEmpty()) {
+			String name = ready.poll();
+
+			reached++;
+
+			for (Node dependent : dependents.get(name)) {
+				if (remaining.merge(dependent.name, -1, Integer::sum) == 0) {
+					ready.add(dependent.name);
+				}
+			}
+		}
+
+		if (reached != tasks.size()) {
+			throw new IllegalStateException("The tasks of " + description + " have a dependency cycle");
+		}
+
+		return dependents;
+	}
+
+	/**
+	 * class Node: A task with its dependencies. remaining is only touched by the thread running execute().
+	 */
+	private static class Node {
+
+		Node(final String name, final SetupTask setupTask, final String[] dependsOn) {
+			this.name = name;
+			this.setupTask = setupTask;
+			this.dependsOn = dependsOn;
+		}
+
+		private final String name;
+		private final SetupTask setupTask;
+		private final String[] dependsOn;
+		private int remaining;
+	}
+
+	private final String description;
+	private final Map<String, Node> tasks = new LinkedHashMap<>();
+	private final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final Log _log = LogFactoryUtil.getLog(SetupTaskGraph.class);
+}
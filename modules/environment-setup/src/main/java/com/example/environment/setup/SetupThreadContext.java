@@ -0,0 +1,122 @@
+package com.example.environment.setup;
+
+import com.example.environment.setup.metrics.StepMetrics;
+import com.example.environment.setup.reset.SetupCreationLog;
+import com.example.environment.setup.search.DeferredReindexer;
+import com.liferay.portal.kernel.search.IndexStatusManagerThreadLocal;
+import com.liferay.portal.kernel.security.auth.CompanyThreadLocal;
+import com.liferay.portal.kernel.security.auth.PrincipalThreadLocal;
+import com.liferay.portal.kernel.security.permission.PermissionChecker;
+import com.liferay.portal.kernel.security.permission.PermissionThreadLocal;
+
+import java.util.concurrent.Callable;
+
+/**
+ * class SetupThreadContext: Holds the company, principal and permission checker thread locals so setup work can be handed
+ * to worker threads with a known context, and so the worker threads are left clean when the work is done.
+ *
+ * A captured context also carries the thread's SetupCreationLog and DeferredReindexer, along with its index read only
+ * flag, so what a step's workers create is recorded with the step and reindexed in batches with the rest of it, and the
+ * SetupLease the step runs under, so its workers stop when the lease is lost, and the step's StepMetrics, so the service
+ * calls of its workers are counted with the step. The company and user contexts leave these alone.
+ *
+ * @author dnebinger
+ */
+public class SetupThreadContext {
+
+	/**
+	 * capture: Captures the context of the current thread.
+	 * @return SetupThreadContext The current context.
+	 */
+	public static SetupThreadContext capture() {
+		return new SetupThreadContext(CompanyThreadLocal.getCompanyId(), PrincipalThreadLocal.getName(), PermissionThreadLocal.getPermissionChecker(), true, SetupCreationLog.getCurrent(),
+				DeferredReindexer.getCurrent(), IndexStatusManagerThreadLocal.isIndexReadOnly(), SetupLease.getCurrent(), StepMetrics.getCurrent());
+	}
+
+	/**
+	 * forCompany: Creates a clean context for the given company, no principal and no permission checker.
+	 * @param companyId
+	 * @return SetupThreadContext The company context.
+	 */
+	public static SetupThreadContext forCompany(final long companyId) {
+		return new SetupThreadContext(companyId, null, null, false, null, null, false, null, null);
+	}
+
+	/**
+	 * forUser: Creates a context for the given company with the user as the principal and the given permission checker.
+	 * @param companyId
+	 * @param userId
+	 * @param permissionChecker
+	 * @return SetupThreadContext The user context.
+	 */
+	public static SetupThreadContext forUser(final long companyId, final long userId, final PermissionChecker permissionChecker) {
+		return new SetupThreadContext(companyId, String.valueOf(userId), permissionChecker, false, null, null, false, null, null);
+	}
+
+	/**
+	 * apply: Applies this context to the current thread.
+	 * @return SetupThreadContext The context the thread had before, use it to restore the thread.
+	 */
+	public SetupThreadContext apply() {
+		SetupThreadContext previous = capture();
+
+		CompanyThreadLocal.setCompanyId(companyId);
+		PrincipalThreadLocal.setName(principalName);
+		PermissionThreadLocal.setPermissionChecker(permissionChecker);
+
+		if (captured) {
+			SetupCreationLog.setCurrent(setupCreationLog);
+			DeferredReindexer.setCurrent(deferredReindexer);
+			IndexStatusManagerThreadLocal.setIndexReadOnly(indexReadOnly);
+			SetupLease.setCurrent(setupLease);
+			StepMetrics.setCurrent(stepMetrics);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * wrap: Wraps the callable so it runs with this context and restores the thread afterwards.
+	 * @param callable
+	 * @return Callable The wrapped callable.
+	 */
+	public <T> Callable<T> wrap(final Callable<T> callable) {
+		return () -> {
+			SetupThreadContext previous = apply();
+
+			try {
+				return callable.call();
+			} finally {
+				previous.apply();
+			}
+		};
+	}
+
+	public Long getCompanyId() {
+		return companyId;
+	}
+
+	private SetupThreadContext(Long companyId, String principalName, PermissionChecker permissionChecker, boolean captured, SetupCreationLog setupCreationLog, DeferredReindexer deferredReindexer, boolean indexReadOnly, SetupLease setupLease, StepMetrics stepMetrics) {
+		super();
+
+		this.companyId = companyId;
+		this.principalName = principalName;
+		this.permissionChecker = permissionChecker;
+		this.captured = captured;
+		this.setupCreationLog = setupCreationLog;
+		this.deferredReindexer = deferredReindexer;
+		this.indexReadOnly = indexReadOnly;
+		this.setupLease = setupLease;
+		this.stepMetrics = stepMetrics;
+	}
+
+	private final Long companyId;
+	private final String principalName;
+	private final PermissionChecker permissionChecker;
+	private final boolean captured;
+	private final SetupCreationLog setupCreationLog;
+	private final DeferredReindexer deferredReindexer;
+	private final boolean indexReadOnly;
+	private final SetupLease setupLease;
+	private final StepMetrics stepMetrics;
+}
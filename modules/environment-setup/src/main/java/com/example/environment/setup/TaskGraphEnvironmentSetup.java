@@ -0,0 +1,62 @@
+package com.example.environment.setup;
+
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+
+/**
+ * class TaskGraphEnvironmentSetup: A step made of other setup steps that declare dependencies on each other, i.e. "assign
+ * role" depends on "create role" and "create user group" while those two can run side by side.
+ *
+ * The registry runs its versions strictly in order, this lets one registered step run its independent parts in parallel.
+ * Each part is a regular setup step and runs with its own upgrade connection, under the admin this step runs as.
+ *
+ * @author dnebinger
+ */
+public class TaskGraphEnvironmentSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * TaskGraphEnvironmentSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param description A short description for the log.
+	 * @param parallelism Max number of parts running at the same time.
+	 */
+	public TaskGraphEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, String description, int parallelism) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.setupTaskGraph = new SetupTaskGraph(description);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * addStep: Adds a part to the step.
+	 * @param name Unique name of the part, used by the parts that depend on it.
+	 * @param upgradeProcess The setup step which does the work.
+	 * @param dependsOn Names of the parts that must finish first.
+	 * @return TaskGraphEnvironmentSetup This step.
+	 */
+	public TaskGraphEnvironmentSetup addStep(final String name, final RemoteServiceDependentBaseUpgradeProcess upgradeProcess, final String... dependsOn) {
+		setupTaskGraph.addTask(name, () -> upgradeProcess.upgrade(), dependsOn);
+
+		return this;
+	}
+
+	@Override
+	protected void setupEnvironment(ServiceContext serviceContext) throws Exception {
+		setupTaskGraph.execute(parallelism);
+	}
+
+	public SetupTaskGraph getSetupTaskGraph() {
+		return setupTaskGraph;
+	}
+
+	private final SetupTaskGraph setupTaskGraph;
+	private final int parallelism;
+}
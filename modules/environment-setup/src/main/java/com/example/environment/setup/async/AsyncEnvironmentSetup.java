@@ -0,0 +1,70 @@
+package com.example.environment.setup.async;
+
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+
+/**
+ * class AsyncEnvironmentSetup: Stands in for a heavy step in the upgrade. It only records that the step has to run for
+ * the company and hands it to the AsyncSetupExecutor, so the upgrade (and the node start) does not wait for it.
+ *
+ * The bundle is at the new version as soon as this returns, the EnvSetupTask table is where to look to see whether the
+ * work itself is done.
+ *
+ * @author dnebinger
+ */
+public class AsyncEnvironmentSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * AsyncEnvironmentSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param asyncSetupExecutor The executor the step is registered with.
+	 * @param stepName Name the step is registered under.
+	 */
+	public AsyncEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, AsyncSetupExecutor asyncSetupExecutor, String stepName) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.asyncSetupExecutor = asyncSetupExecutor;
+		this.stepName = stepName;
+	}
+
+	@Override
+	protected void setupEnvironment(ServiceContext serviceContext) throws Exception {
+		ensureTable(AsyncSetupTaskStore.TABLE_NAME, AsyncSetupTaskStore.TABLE_SQL_CREATE);
+
+		if (!asyncSetupExecutor.getAsyncSetupTaskStore().record(getCompanyId(), stepName)) {
+			if (_log.isInfoEnabled()) {
+				_log.info(stepName + " already completed for company " + getCompanyId());
+			}
+
+			return;
+		}
+
+		// the rest of the chain may still be running, the executor starts the task once it has ended.
+		asyncSetupExecutor.submitAfterChain(getCompanyId(), stepName);
+
+		if (_log.isInfoEnabled()) {
+			_log.info(stepName + " will run in the background for company " + getCompanyId() + " once the upgrade steps are done");
+		}
+	}
+
+	public String getStepName() {
+		return stepName;
+	}
+
+	private final AsyncSetupExecutor asyncSetupExecutor;
+	private final String stepName;
+
+	private static final Log _log = LogFactoryUtil.getLog(AsyncEnvironmentSetup.class);
+}
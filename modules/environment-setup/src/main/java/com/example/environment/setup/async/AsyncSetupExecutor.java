@@ -0,0 +1,604 @@
+package com.example.environment.setup.async;
+
+import com.example.environment.setup.CompanyAdminUserResolver;
+import com.example.environment.setup.CompanySetupStepFactory;
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLease;
+import com.example.environment.setup.SetupThreadContext;
+import com.example.environment.setup.metrics.EnvironmentSetupMetrics;
+import com.example.environment.setup.metrics.StepMetrics;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * class AsyncSetupExecutor: Runs heavy setup steps in the background, after the upgrade that recorded them has finished
+ * and the node is up.
+ *
+ * Each task is a step for a company, its state is kept in the EnvSetupTask table so it can be queried and so tasks left
+ * unfinished by a restart are picked up again. A failed attempt is retried with an exponential backoff until the max
+ * number of attempts, and since the steps save checkpoints a retry continues where the failed attempt left off. A task
+ * only starts once the tasks it depends on have completed in its company.
+ *
+ * Every node of a cluster has an executor, so a node only works on a task it has claimed in the table (see
+ * AsyncSetupTaskStore). The claim is renewed from a heartbeat thread while the node holds the task, and the same thread
+ * sweeps the table for tasks whose claim has expired, i.e. because their node died, and takes them over.
+ *
+ * Tasks recorded by the upgrade, and unfinished tasks found when the node starts, are held until the chain of upgrade
+ * steps has ended, the registrator calls startHeld() from a chain end listener (or right away when no step is going to
+ * run), so a background step never competes with the steps that are still running. The sweep waits for that too.
+ *
+ * @author dnebinger
+ */
+public class AsyncSetupExecutor implements AsyncSetupExecutorMBean {
+
+	/**
+	 * OBJECT_NAME: The JMX object name the executor is registered under.
+	 */
+	public static final String OBJECT_NAME = "com.example.environment.setup:type=AsyncSetupExecutor";
+
+	/**
+	 * reportProgress: Records the progress of the task running on the current thread, does nothing on any other thread.
+	 * @param progress
+	 */
+	public static void reportProgress(final long progress) {
+		RunningTask runningTask = runningTasks.get();
+
+		if (runningTask == null) {
+			return;
+		}
+
+		try {
+			runningTask.asyncSetupTaskStore.updateProgress(runningTask.companyId, runningTask.stepName, progress);
+		} catch (SQLException e) {
+			// progress is informational, the step keeps going.
+			_log.warn("Unable to record progress of " + runningTask.stepName + " for company " + runningTask.companyId + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * AsyncSetupExecutor: Constructor.
+	 * @param asyncSetupTaskStore
+	 * @param companyAdminUserResolver Finds the admin each task runs as.
+	 * @param environmentSetupMetrics Tracks every attempt as a step run.
+	 * @param parallelism Max number of tasks running at the same time on this node.
+	 * @param maxAttempts Number of attempts before a task is marked as failed.
+	 * @param retryDelayMillis Delay before the first retry, doubled for every retry after that.
+	 * @param claimDurationMillis How long a claim on a task holds without a heartbeat, the heartbeat renews it every third
+	 * of that and the sweep runs as often.
+	 */
+	public AsyncSetupExecutor(final AsyncSetupTaskStore asyncSetupTaskStore, final CompanyAdminUserResolver companyAdminUserResolver, final EnvironmentSetupMetrics environmentSetupMetrics, final int parallelism, final int maxAttempts, final long retryDelayMillis, final long claimDurationMillis) {
+		super();
+
+		this.asyncSetupTaskStore = asyncSetupTaskStore;
+		this.companyAdminUserResolver = companyAdminUserResolver;
+		this.environmentSetupMetrics = environmentSetupMetrics;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.retryDelayMillis = Math.max(1, retryDelayMillis);
+		this.claimDurationMillis = Math.max(MIN_CLAIM_DURATION_MILLIS, claimDurationMillis);
+
+		AtomicInteger threadCount = new AtomicInteger();
+
+		ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(Math.max(1, parallelism), runnable -> {
+			Thread thread = new Thread(runnable, "environment-setup-async-" + threadCount.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		scheduledThreadPoolExecutor.setRemoveOnCancelPolicy(true);
+
+		this.scheduledExecutorService = scheduledThreadPoolExecutor;
+
+		// on its own thread, the task threads may all be busy running steps.
+		ScheduledThreadPoolExecutor heartbeatExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "environment-setup-async-heartbeat");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		heartbeatExecutor.setRemoveOnCancelPolicy(true);
+
+		this.heartbeatExecutorService = heartbeatExecutor;
+
+		long heartbeatMillis = this.claimDurationMillis / 3;
+
+		heartbeatExecutorService.scheduleWithFixedDelay(this::sweep, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * register: Registers a step that can run in the background.
+	 * @param stepName Name the tasks of the step are recorded under.
+	 * @param companySetupStepFactory Creates the step for a company.
+	 * @param dependsOn Names of the background steps that have to complete in a company before this one starts there.
+	 */
+	public void register(final String stepName, final CompanySetupStepFactory companySetupStepFactory, final String... dependsOn) {
+		registrations.put(stepName, new Registration(companySetupStepFactory, dependsOn));
+	}
+
+	/**
+	 * submit: Starts the recorded task, unless it is already active on this node.
+	 * @param companyId
+	 * @param stepName
+	 */
+	public void submit(final long companyId, final String stepName) {
+		submit(companyId, stepName, 1);
+	}
+
+	/**
+	 * submitAfterChain: Holds the recorded task until startHeld() is called at the end of the chain of upgrade steps.
+	 * @param companyId
+	 * @param stepName
+	 */
+	public void submitAfterChain(final long companyId, final String stepName) {
+		submitAfterChain(companyId, stepName, 1);
+	}
+
+	/**
+	 * startHeld: Starts the tasks held by submitAfterChain(), tasks submitted after that start right away.
+	 * @return int The number of tasks started.
+	 */
+	public synchronized int startHeld() {
+		chainEnded = true;
+
+		int count = 0;
+
+		Runnable heldTask;
+
+		while ((heldTask = heldTasks.poll()) != null) {
+			heldTask.run();
+
+			count++;
+		}
+
+		if ((count > 0) && _log.isInfoEnabled()) {
+			_log.info("Started " + count + " background setup steps now that the upgrade steps are done");
+		}
+
+		return count;
+	}
+
+	/**
+	 * resumeUnfinished: Holds the recorded tasks that had not completed when their node went down, and that no live node
+	 * holds, until the chain of upgrade steps has ended.
+	 * @return int The number of tasks held.
+	 */
+	public int resumeUnfinished() {
+		int count = 0;
+
+		try {
+			long now = System.currentTimeMillis();
+
+			for (AsyncSetupTask asyncSetupTask : asyncSetupTaskStore.fetchAll()) {
+				if (!asyncSetupTask.isClaimable(now) || !registrations.containsKey(asyncSetupTask.getStepName())) {
+					continue;
+				}
+
+				submitAfterChain(asyncSetupTask.getCompanyId(), asyncSetupTask.getStepName(), asyncSetupTask.getAttempts() + 1);
+
+				count++;
+			}
+		} catch (SQLException e) {
+			_log.error("Unable to resume the unfinished background setup steps: " + e.getMessage(), e);
+		}
+
+		if ((count > 0) && _log.isInfoEnabled()) {
+			_log.info("Resuming " + count + " unfinished background setup steps once the upgrade steps are done");
+		}
+
+		return count;
+	}
+
+	/**
+	 * resumeUnfinishedInBackground: Calls resumeUnfinished() on one of the executor's threads, so the bundle activation
+	 * does not wait for the table to be read.
+	 * @param upToDate Whether the bundle is up to date, checked on the executor's thread too. When it is no step is going
+	 * to run, so no chain is going to end, and the held tasks start right away.
+	 */
+	public void resumeUnfinishedInBackground(final BooleanSupplier upToDate) {
+		if (!scheduledExecutorService.isShutdown()) {
+			scheduledExecutorService.execute(() -> {
+				resumeUnfinished();
+
+				if (upToDate.getAsBoolean()) {
+					startHeld();
+				}
+			});
+		}
+	}
+
+	/**
+	 * sweep: Takes over the tasks whose claim has expired, once the chain of upgrade steps has ended. Run from the
+	 * heartbeat thread.
+	 * @return int The number of tasks taken over.
+	 */
+	public int sweep() {
+		synchronized (this) {
+			if (!chainEnded) {
+				return 0;
+			}
+		}
+
+		int count = 0;
+
+		try {
+			long now = System.currentTimeMillis();
+
+			for (AsyncSetupTask asyncSetupTask : asyncSetupTaskStore.fetchAll()) {
+				if (!asyncSetupTask.isClaimable(now) || !registrations.containsKey(asyncSetupTask.getStepName())) {
+					continue;
+				}
+
+				if (submit(asyncSetupTask.getCompanyId(), asyncSetupTask.getStepName(), asyncSetupTask.getAttempts() + 1)) {
+					if (asyncSetupTask.getOwner() != null) {
+						_log.warn("Taking over " + asyncSetupTask.getStepName() + " for company " + asyncSetupTask.getCompanyId() + " from " + asyncSetupTask.getOwner() + ", its claim expired");
+					}
+
+					count++;
+				}
+			}
+		} catch (Exception e) {
+			// the next sweep tries again.
+			_log.warn("Unable to sweep the background setup steps: " + e.getMessage());
+		}
+
+		return count;
+	}
+
+	/**
+	 * getStatus: Returns the recorded state of the step in the company.
+	 * @param companyId
+	 * @param stepName
+	 * @return AsyncSetupTask The task or <code>null</code> if it was never recorded.
+	 * @throws SQLException
+	 */
+	public AsyncSetupTask getStatus(final long companyId, final String stepName) throws SQLException {
+		return asyncSetupTaskStore.fetch(companyId, stepName);
+	}
+
+	/**
+	 * awaitCompleted: Waits for the step to complete in the company, for code that can't go on without it.
+	 * @param companyId
+	 * @param stepName
+	 * @param timeout
+	 * @param timeUnit
+	 * @return boolean <code>true</code> if it completed, <code>false</code> if it failed or the time ran out.
+	 * @throws Exception
+	 */
+	public boolean awaitCompleted(final long companyId, final String stepName, final long timeout, final TimeUnit timeUnit) throws Exception {
+		long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+		while (true) {
+			AsyncSetupTask asyncSetupTask = asyncSetupTaskStore.fetch(companyId, stepName);
+
+			if ((asyncSetupTask != null) && (asyncSetupTask.isCompleted() || asyncSetupTask.isFailed())) {
+				return asyncSetupTask.isCompleted();
+			}
+
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+
+			Thread.sleep(Math.min(POLL_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+		}
+	}
+
+	/**
+	 * shutdown: Stops the background work. Interrupted tasks stay recorded as unfinished and are resumed on the next start.
+	 */
+	public void shutdown() {
+		heartbeatExecutorService.shutdownNow();
+		scheduledExecutorService.shutdownNow();
+	}
+
+	public AsyncSetupTaskStore getAsyncSetupTaskStore() {
+		return asyncSetupTaskStore;
+	}
+
+	@Override
+	public int getActiveTaskCount() {
+		return activeTasks.size();
+	}
+
+	@Override
+	public String[] getTasks() {
+		try {
+			List<String> tasks = new ArrayList<>();
+
+			for (AsyncSetupTask asyncSetupTask : asyncSetupTaskStore.fetchAll()) {
+				tasks.add(asyncSetupTask.toString());
+			}
+
+			return tasks.toArray(new String[0]);
+		} catch (SQLException e) {
+			return new String[] {"Unable to read the background setup steps: " + e.getMessage()};
+		}
+	}
+
+	@Override
+	public int retryFailed() {
+		int count = 0;
+
+		try {
+			for (AsyncSetupTask asyncSetupTask : asyncSetupTaskStore.fetchAll()) {
+				if (asyncSetupTask.isFailed() && registrations.containsKey(asyncSetupTask.getStepName()) && asyncSetupTaskStore.record(asyncSetupTask.getCompanyId(), asyncSetupTask.getStepName())) {
+					submit(asyncSetupTask.getCompanyId(), asyncSetupTask.getStepName());
+
+					count++;
+				}
+			}
+		} catch (SQLException e) {
+			_log.error("Unable to retry the failed background setup steps: " + e.getMessage(), e);
+		}
+
+		return count;
+	}
+
+	/**
+	 * submit: Starts the task, unless it is already active on this node.
+	 * @param companyId
+	 * @param stepName
+	 * @param attempt The number of the attempt, following the ones that were recorded.
+	 * @return boolean <code>true</code> if it was started.
+	 */
+	protected boolean submit(final long companyId, final String stepName, final int attempt) {
+		if (!registrations.containsKey(stepName)) {
+			throw new IllegalArgumentException("Step " + stepName + " is not registered to run in the background");
+		}
+
+		if (!activeTasks.add(getKey(companyId, stepName))) {
+			return false;
+		}
+
+		schedule(companyId, stepName, attempt, 0);
+
+		return true;
+	}
+
+	protected synchronized void submitAfterChain(final long companyId, final String stepName, final int attempt) {
+		if (!registrations.containsKey(stepName)) {
+			throw new IllegalArgumentException("Step " + stepName + " is not registered to run in the background");
+		}
+
+		if (chainEnded) {
+			submit(companyId, stepName, attempt);
+		} else {
+			heldTasks.add(() -> submit(companyId, stepName, attempt));
+		}
+	}
+
+	/**
+	 * run: Claims the task and makes an attempt at it, or waits some more if its dependencies have not completed yet. A
+	 * task another node holds is left to that node.
+	 * @param companyId
+	 * @param stepName
+	 * @param attempt
+	 */
+	protected void run(final long companyId, final String stepName, final int attempt) {
+		Registration registration = registrations.get(stepName);
+		boolean finished = true;
+
+		try {
+			if (!asyncSetupTaskStore.claim(companyId, stepName, owner, getClaimExpirationTime(0))) {
+				if (_log.isDebugEnabled()) {
+					_log.debug(stepName + " for company " + companyId + " is done or held by another node");
+				}
+
+				return;
+			}
+
+			for (String dependsOn : registration.dependsOn) {
+				AsyncSetupTask dependency = asyncSetupTaskStore.fetch(companyId, dependsOn);
+
+				if ((dependency != null) && dependency.isFailed()) {
+					asyncSetupTaskStore.updateStatus(companyId, stepName, owner, AsyncSetupTask.STATUS_FAILED, attempt - 1, dependsOn + " failed", 0);
+
+					return;
+				}
+
+				if ((dependency == null) || !dependency.isCompleted()) {
+					// still ours while we wait, so other nodes don't poll it too.
+					if (asyncSetupTaskStore.updateStatus(companyId, stepName, owner, AsyncSetupTask.STATUS_PENDING, attempt - 1, null, getClaimExpirationTime(POLL_MILLIS))) {
+						finished = false;
+
+						schedule(companyId, stepName, attempt, POLL_MILLIS);
+					}
+
+					return;
+				}
+			}
+
+			if (!asyncSetupTaskStore.updateStatus(companyId, stepName, owner, AsyncSetupTask.STATUS_RUNNING, attempt, null, getClaimExpirationTime(0))) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			long heartbeatMillis = claimDurationMillis / 3;
+
+			ScheduledFuture<?> heartbeat = heartbeatExecutorService.scheduleWithFixedDelay(() -> renew(companyId, stepName), heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+
+			try {
+				runStep(companyId, stepName, registration);
+			} catch (Exception e) {
+				if (attempt >= maxAttempts) {
+					_log.error(stepName + " failed for company " + companyId + " after " + attempt + " attempts: " + e.getMessage(), e);
+
+					asyncSetupTaskStore.updateStatus(companyId, stepName, owner, AsyncSetupTask.STATUS_FAILED, attempt, String.valueOf(e.getMessage()), 0);
+
+					return;
+				}
+
+				long delayMillis = Math.min(retryDelayMillis << Math.min(attempt - 1, 20), MAX_RETRY_DELAY_MILLIS);
+
+				_log.warn(stepName + " failed for company " + companyId + " on attempt " + attempt + ", retrying in " + delayMillis + " ms: " + e.getMessage(), e);
+
+				// still ours until the retry, another node only takes it over if this one dies meanwhile.
+				if (asyncSetupTaskStore.updateStatus(companyId, stepName, owner, AsyncSetupTask.STATUS_PENDING, attempt, String.valueOf(e.getMessage()), getClaimExpirationTime(delayMillis))) {
+					finished = false;
+
+					schedule(companyId, stepName, attempt + 1, delayMillis);
+				}
+
+				return;
+			} finally {
+				heartbeat.cancel(false);
+			}
+
+			if (!asyncSetupTaskStore.updateStatus(companyId, stepName, owner, AsyncSetupTask.STATUS_COMPLETED, attempt, null, 0)) {
+				_log.error(stepName + " completed for company " + companyId + " after another node had taken it over");
+
+				return;
+			}
+
+			if (_log.isInfoEnabled()) {
+				_log.info(stepName + " completed in the background for company " + companyId + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+			}
+		} catch (SQLException e) {
+			// the database is not reachable, try the same attempt again later.
+			_log.error("Unable to record the state of " + stepName + " for company " + companyId + ": " + e.getMessage(), e);
+
+			finished = false;
+
+			schedule(companyId, stepName, attempt, retryDelayMillis);
+		} finally {
+			if (finished) {
+				activeTasks.remove(getKey(companyId, stepName));
+			}
+		}
+	}
+
+	/**
+	 * runStep: Creates the step for the company and runs it as the company's admin.
+	 * @param companyId
+	 * @param stepName
+	 * @param registration
+	 * @throws Exception
+	 */
+	protected void runStep(final long companyId, final String stepName, final Registration registration) throws Exception {
+		SetupThreadContext.forCompany(companyId).wrap(() -> {
+			long adminUserId = companyAdminUserResolver.getCompanyAdminUserId(companyId);
+
+			RemoteServiceDependentBaseUpgradeProcess upgradeProcess = registration.companySetupStepFactory.create(companyId, adminUserId);
+
+			StepMetrics stepMetrics = environmentSetupMetrics.startStep(stepName, companyId);
+			boolean failed = true;
+
+			runningTasks.set(new RunningTask(asyncSetupTaskStore, companyId, stepName));
+
+			try {
+				upgradeProcess.upgrade();
+
+				failed = false;
+			} finally {
+				runningTasks.remove();
+
+				environmentSetupMetrics.finishStep(stepMetrics, failed);
+			}
+
+			return null;
+		}).call();
+	}
+
+	/**
+	 * renew: Renews the claim on a running task, from the heartbeat thread.
+	 * @param companyId
+	 * @param stepName
+	 */
+	protected void renew(final long companyId, final String stepName) {
+		try {
+			if (!asyncSetupTaskStore.renew(companyId, stepName, owner, getClaimExpirationTime(0))) {
+				_log.error(stepName + " for company " + companyId + " was taken over by another node while " + owner + " was running it");
+			}
+		} catch (SQLException e) {
+			// keep trying, the claim holds for a while without renewal.
+			_log.warn("Unable to renew the claim on " + stepName + " for company " + companyId + ": " + e.getMessage());
+		}
+	}
+
+	protected long getClaimExpirationTime(final long delayMillis) {
+		return System.currentTimeMillis() + delayMillis + claimDurationMillis;
+	}
+
+	protected void schedule(final long companyId, final String stepName, final int attempt, final long delayMillis) {
+		if (scheduledExecutorService.isShutdown()) {
+			activeTasks.remove(getKey(companyId, stepName));
+
+			return;
+		}
+
+		scheduledExecutorService.schedule(() -> run(companyId, stepName, attempt), delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static String getKey(final long companyId, final String stepName) {
+		return companyId + "_" + stepName;
+	}
+
+	/**
+	 * class Registration: A step that can run in the background.
+	 */
+	private static class Registration {
+
+		Registration(final CompanySetupStepFactory companySetupStepFactory, final String[] dependsOn) {
+			this.companySetupStepFactory = companySetupStepFactory;
+			this.dependsOn = dependsOn;
+		}
+
+		private final CompanySetupStepFactory companySetupStepFactory;
+		private final String[] dependsOn;
+	}
+
+	/**
+	 * class RunningTask: The task running on a thread, for reportProgress().
+	 */
+	private static class RunningTask {
+
+		RunningTask(final AsyncSetupTaskStore asyncSetupTaskStore, final long companyId, final String stepName) {
+			this.asyncSetupTaskStore = asyncSetupTaskStore;
+			this.companyId = companyId;
+			this.stepName = stepName;
+		}
+
+		private final AsyncSetupTaskStore asyncSetupTaskStore;
+		private final long companyId;
+		private final String stepName;
+	}
+
+	private final AsyncSetupTaskStore asyncSetupTaskStore;
+	private final CompanyAdminUserResolver companyAdminUserResolver;
+	private final EnvironmentSetupMetrics environmentSetupMetrics;
+	private final int maxAttempts;
+	private final long retryDelayMillis;
+	private final long claimDurationMillis;
+	private final String owner = SetupLease.getNodeOwner();
+	private final ScheduledExecutorService scheduledExecutorService;
+	private final ScheduledExecutorService heartbeatExecutorService;
+	private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+	private final Set<String> activeTasks = ConcurrentHashMap.newKeySet();
+	private final Queue<Runnable> heldTasks = new ConcurrentLinkedQueue<>();
+	private boolean chainEnded;
+
+	private static final long POLL_MILLIS = 10000;
+	private static final long MIN_CLAIM_DURATION_MILLIS = 3000;
+	private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	private static final ThreadLocal<RunningTask> runningTasks = new ThreadLocal<>();
+
+	private static final Log _log = LogFactoryUtil.getLog(AsyncSetupExecutor.class);
+}
@@ -0,0 +1,26 @@
+package com.example.environment.setup.async;
+
+/**
+ * interface AsyncSetupExecutorMBean: The JMX view of the setup steps running in the background, registered as
+ * com.example.environment.setup:type=AsyncSetupExecutor.
+ *
+ * @author dnebinger
+ */
+public interface AsyncSetupExecutorMBean {
+
+	/**
+	 * getActiveTaskCount: Number of tasks on this node that are running or waiting for their next attempt.
+	 */
+	int getActiveTaskCount();
+
+	/**
+	 * getTasks: Summaries of every recorded task, from the EnvSetupTask table.
+	 */
+	String[] getTasks();
+
+	/**
+	 * retryFailed: Puts the tasks that ran out of attempts back to pending and starts them again.
+	 * @return int The number of tasks restarted.
+	 */
+	int retryFailed();
+}
@@ -0,0 +1,148 @@
+package com.example.environment.setup.async;
+
+import java.util.Date;
+
+/**
+ * class AsyncSetupTask: The recorded state of a setup step running in the background for a company, a row of the
+ * EnvSetupTask table.
+ *
+ * @author dnebinger
+ */
+public class AsyncSetupTask {
+
+	public static final int STATUS_PENDING = 0;
+	public static final int STATUS_RUNNING = 1;
+	public static final int STATUS_COMPLETED = 2;
+	public static final int STATUS_FAILED = 3;
+
+	/**
+	 * getStatusLabel: Returns the label of a status for the log and JMX.
+	 * @param status
+	 * @return String The label.
+	 */
+	public static String getStatusLabel(final int status) {
+		switch (status) {
+			case STATUS_PENDING:
+				return "pending";
+			case STATUS_RUNNING:
+				return "running";
+			case STATUS_COMPLETED:
+				return "completed";
+			case STATUS_FAILED:
+				return "failed";
+			default:
+				return "unknown";
+		}
+	}
+
+	public AsyncSetupTask(final long companyId, final String stepName, final int status, final int attempts, final long progress, final String message, final Date modifiedDate, final String owner, final long expirationTime) {
+		super();
+
+		this.companyId = companyId;
+		this.stepName = stepName;
+		this.status = status;
+		this.attempts = attempts;
+		this.progress = progress;
+		this.message = message;
+		this.modifiedDate = modifiedDate;
+		this.owner = owner;
+		this.expirationTime = expirationTime;
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	public String getStepName() {
+		return stepName;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * getProgress: The last checkpoint the step saved, i.e. the CSV line or manifest entry it has committed up to.
+	 * @return long The progress.
+	 */
+	public long getProgress() {
+		return progress;
+	}
+
+	/**
+	 * getMessage: The failure of the last attempt, if it failed.
+	 * @return String The message or <code>null</code>.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	public Date getModifiedDate() {
+		return modifiedDate;
+	}
+
+	public boolean isCompleted() {
+		return status == STATUS_COMPLETED;
+	}
+
+	public boolean isFailed() {
+		return status == STATUS_FAILED;
+	}
+
+	/**
+	 * getOwner: Returns the node that claimed the task last.
+	 * @return String The owner or <code>null</code> if no node has claimed it yet.
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * getExpirationTime: Returns until when the owner holds the task without renewing its claim, in epoch millis.
+	 * @return long The expiration time.
+	 */
+	public long getExpirationTime() {
+		return expirationTime;
+	}
+
+	/**
+	 * isClaimable: Tells whether a node can claim the task, it is pending or running and nobody holds it.
+	 * @param now
+	 * @return boolean <code>true</code> if it can be claimed.
+	 */
+	public boolean isClaimable(final long now) {
+		return ((status == STATUS_PENDING) || (status == STATUS_RUNNING)) && (expirationTime < now);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(stepName).append(" company ").append(companyId).append(": ").append(getStatusLabel(status));
+		sb.append(", attempts ").append(attempts).append(", progress ").append(progress);
+
+		if (owner != null) {
+			sb.append(", owner ").append(owner);
+		}
+
+		if (message != null) {
+			sb.append(", ").append(message);
+		}
+
+		return sb.toString();
+	}
+
+	private final long companyId;
+	private final String stepName;
+	private final int status;
+	private final int attempts;
+	private final long progress;
+	private final String message;
+	private final Date modifiedDate;
+	private final String owner;
+	private final long expirationTime;
+}
@@ -0,0 +1,262 @@
+package com.example.environment.setup.async;
+
+import com.liferay.portal.kernel.dao.jdbc.DataAccess;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * class AsyncSetupTaskStore: Reads and writes the EnvSetupTask table. The background tasks run outside of the upgrade, so
+ * every call uses its own connection from the portal's data source.
+ *
+ * The table is created by the AsyncEnvironmentSetup step that records the first task.
+ *
+ * A node runs a task only after claiming it, which is a conditional update: the task must be pending or running, and
+ * either its expiration time has passed or the node already owns it. The owner pushes the expiration out while it runs
+ * the task, and also while it waits to retry it or for its dependencies, so a task another live node holds is never
+ * claimed and a task left behind by a node that died can be claimed once its expiration passes. Every later update is
+ * made only if the node still owns the task.
+ *
+ * @author dnebinger
+ */
+public class AsyncSetupTaskStore {
+
+	public static final String TABLE_NAME = "EnvSetupTask";
+
+	public static final String TABLE_SQL_CREATE = "create table " + TABLE_NAME + " (companyId LONG not null, stepName VARCHAR(200) not null, status INTEGER, attempts INTEGER, progress LONG, message VARCHAR(1000) null, modifiedDate DATE null, owner VARCHAR(200) null, expirationTime LONG, primary key (companyId, stepName))";
+
+	/**
+	 * record: Records that the step has to run for the company. A task that already completed is left alone, as is one a
+	 * live node holds, anything else goes (back) to pending with its attempts reset.
+	 * @param companyId
+	 * @param stepName
+	 * @return boolean <code>true</code> if the task has to run, <code>false</code> if it already completed.
+	 * @throws SQLException
+	 */
+	public boolean record(final long companyId, final String stepName) throws SQLException {
+		try (Connection connection = DataAccess.getConnection()) {
+			AsyncSetupTask asyncSetupTask = fetch(connection, companyId, stepName);
+
+			if ((asyncSetupTask != null) && asyncSetupTask.isCompleted()) {
+				return false;
+			}
+
+			if ((asyncSetupTask != null) && !asyncSetupTask.isFailed() && !asyncSetupTask.isClaimable(System.currentTimeMillis())) {
+				// the owner is on it.
+				return true;
+			}
+
+			if (asyncSetupTask == null) {
+				try (PreparedStatement preparedStatement = connection.prepareStatement("insert into " + TABLE_NAME + " (companyId, stepName, status, attempts, progress, message, modifiedDate, owner, expirationTime) values (?, ?, ?, 0, 0, null, ?, null, 0)")) {
+					preparedStatement.setLong(1, companyId);
+					preparedStatement.setString(2, stepName);
+					preparedStatement.setInt(3, AsyncSetupTask.STATUS_PENDING);
+					preparedStatement.setTimestamp(4, now());
+
+					preparedStatement.executeUpdate();
+				}
+			} else {
+				try (PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set status = ?, attempts = 0, message = null, modifiedDate = ?, owner = null, expirationTime = 0 where companyId = ? and stepName = ?")) {
+					preparedStatement.setInt(1, AsyncSetupTask.STATUS_PENDING);
+					preparedStatement.setTimestamp(2, now());
+					preparedStatement.setLong(3, companyId);
+					preparedStatement.setString(4, stepName);
+
+					preparedStatement.executeUpdate();
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * claim: Makes the node the owner of the task, if it is pending or running and no other node holds it.
+	 * @param companyId
+	 * @param stepName
+	 * @param owner The node.
+	 * @param expirationTime Until when the claim holds without being renewed, in epoch millis.
+	 * @return boolean <code>true</code> if the node now owns the task.
+	 * @throws SQLException
+	 */
+	public boolean claim(final long companyId, final String stepName, final String owner, final long expirationTime) throws SQLException {
+		try (Connection connection = DataAccess.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set status = ?, owner = ?, expirationTime = ?, modifiedDate = ? where companyId = ? and stepName = ? and status in (?, ?) and (expirationTime < ? or owner = ?)")) {
+
+			preparedStatement.setInt(1, AsyncSetupTask.STATUS_RUNNING);
+			preparedStatement.setString(2, owner);
+			preparedStatement.setLong(3, expirationTime);
+			preparedStatement.setTimestamp(4, now());
+			preparedStatement.setLong(5, companyId);
+			preparedStatement.setString(6, stepName);
+			preparedStatement.setInt(7, AsyncSetupTask.STATUS_PENDING);
+			preparedStatement.setInt(8, AsyncSetupTask.STATUS_RUNNING);
+			preparedStatement.setLong(9, System.currentTimeMillis());
+			preparedStatement.setString(10, owner);
+
+			return preparedStatement.executeUpdate() > 0;
+		}
+	}
+
+	/**
+	 * renew: Pushes the expiration of a task the node owns out.
+	 * @param companyId
+	 * @param stepName
+	 * @param owner The node.
+	 * @param expirationTime
+	 * @return boolean <code>false</code> if another node has claimed the task in the meantime.
+	 * @throws SQLException
+	 */
+	public boolean renew(final long companyId, final String stepName, final String owner, final long expirationTime) throws SQLException {
+		try (Connection connection = DataAccess.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set expirationTime = ? where companyId = ? and stepName = ? and owner = ?")) {
+
+			preparedStatement.setLong(1, expirationTime);
+			preparedStatement.setLong(2, companyId);
+			preparedStatement.setString(3, stepName);
+			preparedStatement.setString(4, owner);
+
+			return preparedStatement.executeUpdate() > 0;
+		}
+	}
+
+	/**
+	 * updateStatus: Records the state of a task the node owns.
+	 * @param companyId
+	 * @param stepName
+	 * @param owner The node.
+	 * @param status
+	 * @param attempts
+	 * @param message The failure, <code>null</code> when there is none.
+	 * @param expirationTime Until when the node keeps holding the task, 0 once it is done with it.
+	 * @return boolean <code>false</code> if another node has claimed the task in the meantime.
+	 * @throws SQLException
+	 */
+	public boolean updateStatus(final long companyId, final String stepName, final String owner, final int status, final int attempts, final String message, final long expirationTime) throws SQLException {
+		try (Connection connection = DataAccess.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set status = ?, attempts = ?, message = ?, modifiedDate = ?, expirationTime = ? where companyId = ? and stepName = ? and owner = ?")) {
+
+			preparedStatement.setInt(1, status);
+			preparedStatement.setInt(2, attempts);
+			preparedStatement.setString(3, (message == null) ? null : StringUtil.shorten(message, 1000));
+			preparedStatement.setTimestamp(4, now());
+			preparedStatement.setLong(5, expirationTime);
+			preparedStatement.setLong(6, companyId);
+			preparedStatement.setString(7, stepName);
+			preparedStatement.setString(8, owner);
+
+			return preparedStatement.executeUpdate() > 0;
+		}
+	}
+
+	/**
+	 * updateProgress: Records how far the running task has got.
+	 * @param companyId
+	 * @param stepName
+	 * @param progress
+	 * @throws SQLException
+	 */
+	public void updateProgress(final long companyId, final String stepName, final long progress) throws SQLException {
+		try (Connection connection = DataAccess.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("update " + TABLE_NAME + " set progress = ?, modifiedDate = ? where companyId = ? and stepName = ?")) {
+
+			preparedStatement.setLong(1, progress);
+			preparedStatement.setTimestamp(2, now());
+			preparedStatement.setLong(3, companyId);
+			preparedStatement.setString(4, stepName);
+
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	/**
+	 * fetch: Returns the task of the step in the company.
+	 * @param companyId
+	 * @param stepName
+	 * @return AsyncSetupTask The task or <code>null</code> if it was never recorded.
+	 * @throws SQLException
+	 */
+	public AsyncSetupTask fetch(final long companyId, final String stepName) throws SQLException {
+		try (Connection connection = DataAccess.getConnection()) {
+			if (!hasTable(connection)) {
+				return null;
+			}
+
+			return fetch(connection, companyId, stepName);
+		}
+	}
+
+	/**
+	 * fetchAll: Returns every recorded task.
+	 * @return List The tasks, empty if no step ever ran in the background.
+	 * @throws SQLException
+	 */
+	public List<AsyncSetupTask> fetchAll() throws SQLException {
+		List<AsyncSetupTask> asyncSetupTasks = new ArrayList<>();
+
+		try (Connection connection = DataAccess.getConnection()) {
+			if (!hasTable(connection)) {
+				return asyncSetupTasks;
+			}
+
+			try (PreparedStatement preparedStatement = connection.prepareStatement("select " + COLUMNS + " from " + TABLE_NAME + " order by companyId, stepName");
+				ResultSet resultSet = preparedStatement.executeQuery()) {
+
+				while (resultSet.next()) {
+					asyncSetupTasks.add(toAsyncSetupTask(resultSet));
+				}
+			}
+		}
+
+		return asyncSetupTasks;
+	}
+
+	protected AsyncSetupTask fetch(final Connection connection, final long companyId, final String stepName) throws SQLException {
+		try (PreparedStatement preparedStatement = connection.prepareStatement("select " + COLUMNS + " from " + TABLE_NAME + " where companyId = ? and stepName = ?")) {
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, stepName);
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				return resultSet.next() ? toAsyncSetupTask(resultSet) : null;
+			}
+		}
+	}
+
+	/**
+	 * hasTable: Checks for the table with the database metadata, the database may store the name in either case.
+	 * @param connection
+	 * @return boolean <code>true</code> if the table exists.
+	 * @throws SQLException
+	 */
+	protected boolean hasTable(final Connection connection) throws SQLException {
+		DatabaseMetaData databaseMetaData = connection.getMetaData();
+
+		for (String tableName : new String[] {TABLE_NAME, StringUtil.toUpperCase(TABLE_NAME), StringUtil.toLowerCase(TABLE_NAME)}) {
+			try (ResultSet resultSet = databaseMetaData.getTables(null, null, tableName, null)) {
+				if (resultSet.next()) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	protected AsyncSetupTask toAsyncSetupTask(final ResultSet resultSet) throws SQLException {
+		return new AsyncSetupTask(resultSet.getLong("companyId"), resultSet.getString("stepName"), resultSet.getInt("status"), resultSet.getInt("attempts"),
+				resultSet.getLong("progress"), resultSet.getString("message"), resultSet.getTimestamp("modifiedDate"), resultSet.getString("owner"), resultSet.getLong("expirationTime"));
+	}
+
+	private static Timestamp now() {
+		return new Timestamp(System.currentTimeMillis());
+	}
+
+	private static final String COLUMNS = "companyId, stepName, status, attempts, progress, message, modifiedDate, owner, expirationTime";
+}
@@ -0,0 +1,42 @@
+package com.example.environment.setup.instrument;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * class ServiceCallDispatcher: Hands each service call to all of the registered listeners. The registrator wraps its
+ * services once with this dispatcher and the listeners (metrics and so on) are added to it.
+ *
+ * A listener that fails is logged and otherwise ignored, instrumentation should never break the setup itself.
+ *
+ * @author dnebinger
+ */
+public class ServiceCallDispatcher implements ServiceCallListener {
+
+	public void addServiceCallListener(final ServiceCallListener serviceCallListener) {
+		serviceCallListeners.add(serviceCallListener);
+	}
+
+	public void removeServiceCallListener(final ServiceCallListener serviceCallListener) {
+		serviceCallListeners.remove(serviceCallListener);
+	}
+
+	@Override
+	public void afterCall(Class<?> serviceInterface, Method method, Object[] args, Object result, long elapsedNanos, Throwable throwable) {
+		for (ServiceCallListener serviceCallListener : serviceCallListeners) {
+			try {
+				serviceCallListener.afterCall(serviceInterface, method, args, result, elapsedNanos, throwable);
+			} catch (RuntimeException e) {
+				_log.warn("Service call listener " + serviceCallListener + " failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private final List<ServiceCallListener> serviceCallListeners = new CopyOnWriteArrayList<>();
+
+	private static final Log _log = LogFactoryUtil.getLog(ServiceCallDispatcher.class);
+}
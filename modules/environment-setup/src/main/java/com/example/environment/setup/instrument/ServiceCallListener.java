@@ -0,0 +1,23 @@
+package com.example.environment.setup.instrument;
+
+import java.lang.reflect.Method;
+
+/**
+ * interface ServiceCallListener: Notified after every call made through a service wrapped by ServiceProxies.
+ *
+ * @author dnebinger
+ */
+public interface ServiceCallListener {
+
+	/**
+	 * afterCall: Called after the service call has completed, whether it succeeded or not. This runs on the calling
+	 * thread, so implementations need to be quick and thread safe.
+	 * @param serviceInterface The service interface that was called.
+	 * @param method The method that was called.
+	 * @param args The call arguments, may be <code>null</code>.
+	 * @param result The value returned, <code>null</code> for void methods or failed calls.
+	 * @param elapsedNanos How long the call took.
+	 * @param throwable The exception the call threw, <code>null</code> if it succeeded.
+	 */
+	void afterCall(Class<?> serviceInterface, Method method, Object[] args, Object result, long elapsedNanos, Throwable throwable);
+}
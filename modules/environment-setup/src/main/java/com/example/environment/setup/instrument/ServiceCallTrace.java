@@ -0,0 +1,178 @@
+package com.example.environment.setup.instrument;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class ServiceCallTrace: The binary format of the service call traces, written by the ServiceCallTraceWriter and read
+ * by the ServiceCallTraceReader.
+ *
+ * A trace starts with the MAGIC int, the VERSION byte and the epoch millis the recording started at, followed by
+ * records that each start with a tag byte. Methods, threads and argument classes are written once in a definition record
+ * and referred to by id after that, a method with its parameter descriptor so overloads are told apart, numbers are written as variable length longs. A call record holds the method, the
+ * thread, the company, when it started relative to the recording start, how long it took, the size of its result and a
+ * summary of its arguments. Strings are recorded by length only, so a trace taken in prod carries no names or email
+ * addresses.
+ *
+ * @author dnebinger
+ */
+public class ServiceCallTrace {
+
+	public static final int MAGIC = 0x45535443;
+
+	public static final byte VERSION = 2;
+
+	public static final byte TAG_METHOD = 1;
+	public static final byte TAG_THREAD = 2;
+	public static final byte TAG_CLASS = 3;
+	public static final byte TAG_CALL = 4;
+
+	public static final byte ARG_NULL = 0;
+	public static final byte ARG_LONG = 1;
+	public static final byte ARG_BOOLEAN = 2;
+	public static final byte ARG_STRING = 3;
+	public static final byte ARG_SIZED = 4;
+	public static final byte ARG_OTHER = 5;
+
+	public static final byte FLAG_FAILED = 1;
+
+	/**
+	 * getParameterDescriptor: The JVM descriptor of the method's parameters, i.e. "(JLjava/lang/String;)" for
+	 * fetchRole(long, String).
+	 * @param method
+	 * @return String The descriptor.
+	 */
+	public static String getParameterDescriptor(final Method method) {
+		StringBuilder sb = new StringBuilder("(");
+
+		for (Class<?> parameterType : method.getParameterTypes()) {
+			appendDescriptor(sb, parameterType);
+		}
+
+		return sb.append(')').toString();
+	}
+
+	private static void appendDescriptor(final StringBuilder sb, final Class<?> clazz) {
+		if (clazz.isArray()) {
+			sb.append('[');
+
+			appendDescriptor(sb, clazz.getComponentType());
+		} else if (!clazz.isPrimitive()) {
+			sb.append('L').append(clazz.getName().replace('.', '/')).append(';');
+		} else if (clazz == long.class) {
+			sb.append('J');
+		} else if (clazz == boolean.class) {
+			sb.append('Z');
+		} else {
+			// int, short, byte, char, float, double and void are their first letter.
+			sb.append(Character.toUpperCase(clazz.getName().charAt(0)));
+		}
+	}
+
+	/**
+	 * class Call: A recorded service call.
+	 */
+	public static class Call {
+
+		public Call(final String serviceName, final String methodName, final String parameterDescriptor, final String threadName, final long companyId, final long startNanos, final long elapsedNanos, final int resultSize, final String failure, final List<String> arguments) {
+			this.serviceName = serviceName;
+			this.methodName = methodName;
+			this.parameterDescriptor = parameterDescriptor;
+			this.threadName = threadName;
+			this.companyId = companyId;
+			this.startNanos = startNanos;
+			this.elapsedNanos = elapsedNanos;
+			this.resultSize = resultSize;
+			this.failure = failure;
+			this.arguments = arguments;
+		}
+
+		/**
+		 * getServiceName: The simple name of the service interface, i.e. RoleService.
+		 * @return String The name.
+		 */
+		public String getServiceName() {
+			return serviceName;
+		}
+
+		public String getMethodName() {
+			return methodName;
+		}
+
+		/**
+		 * getParameterDescriptor: The JVM descriptor of the method's parameters, see getParameterDescriptor(Method).
+		 * @return String The descriptor.
+		 */
+		public String getParameterDescriptor() {
+			return parameterDescriptor;
+		}
+
+		/**
+		 * getMethodKey: The service, method and parameters, i.e. RoleService.fetchRole(JLjava/lang/String;).
+		 * @return String The key.
+		 */
+		public String getMethodKey() {
+			return serviceName + "." + methodName + parameterDescriptor;
+		}
+
+		public String getThreadName() {
+			return threadName;
+		}
+
+		public long getCompanyId() {
+			return companyId;
+		}
+
+		/**
+		 * getStartNanos: When the call started, relative to the start of the recording.
+		 * @return long The start.
+		 */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * getResultSize: The number of elements of a collection, array or map result, <code>1</code> for any other
+		 * result and <code>-1</code> for void methods, <code>null</code> results and failed calls.
+		 * @return int The size.
+		 */
+		public int getResultSize() {
+			return resultSize;
+		}
+
+		/**
+		 * getFailure: The class name of the exception the call threw.
+		 * @return String The class name or <code>null</code> if it succeeded.
+		 */
+		public String getFailure() {
+			return failure;
+		}
+
+		/**
+		 * getArguments: The summaries of the arguments, i.e. the value of a number or "String[12]" for a string.
+		 * @return List The summaries.
+		 */
+		public List<String> getArguments() {
+			return Collections.unmodifiableList(arguments);
+		}
+
+		private final String serviceName;
+		private final String methodName;
+		private final String parameterDescriptor;
+		private final String threadName;
+		private final long companyId;
+		private final long startNanos;
+		private final long elapsedNanos;
+		private final int resultSize;
+		private final String failure;
+		private final List<String> arguments;
+	}
+
+	private ServiceCallTrace() {
+	}
+}
@@ -0,0 +1,194 @@
+package com.example.environment.setup.instrument;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class ServiceCallTraceReader: Reads the calls back from a trace written by the ServiceCallTraceWriter, one at a time.
+ * The calls come in the order they completed.
+ *
+ * @author dnebinger
+ */
+public class ServiceCallTraceReader implements Closeable {
+
+	/**
+	 * ServiceCallTraceReader: Constructor which opens the trace file.
+	 * @param fileName
+	 * @throws IOException If the file is not a trace.
+	 */
+	public ServiceCallTraceReader(final String fileName) throws IOException {
+		this(new FileInputStream(fileName));
+	}
+
+	/**
+	 * ServiceCallTraceReader: Constructor which reads the trace from the stream.
+	 * @param inputStream
+	 * @throws IOException If the stream is not a trace.
+	 */
+	public ServiceCallTraceReader(final InputStream inputStream) throws IOException {
+		super();
+
+		this.dataInputStream = new DataInputStream(new BufferedInputStream(inputStream, 65536));
+
+		if (dataInputStream.readInt() != ServiceCallTrace.MAGIC) {
+			throw new IOException("Not a service call trace");
+		}
+
+		byte version = dataInputStream.readByte();
+
+		if (version != ServiceCallTrace.VERSION) {
+			throw new IOException("Unsupported service call trace version " + version);
+		}
+
+		this.startTime = dataInputStream.readLong();
+	}
+
+	/**
+	 * next: Reads the next call.
+	 * @return ServiceCallTrace.Call The call or <code>null</code> at the end of the trace.
+	 * @throws IOException
+	 */
+	public ServiceCallTrace.Call next() throws IOException {
+		while (true) {
+			int tag = dataInputStream.read();
+
+			if (tag < 0) {
+				return null;
+			}
+
+			try {
+				switch (tag) {
+					case ServiceCallTrace.TAG_METHOD:
+						methods.put((int) readVarLong(), new String[] {dataInputStream.readUTF(), dataInputStream.readUTF(), dataInputStream.readUTF()});
+
+						break;
+					case ServiceCallTrace.TAG_THREAD:
+						threads.put((int) readVarLong(), dataInputStream.readUTF());
+
+						break;
+					case ServiceCallTrace.TAG_CLASS:
+						classes.put((int) readVarLong(), dataInputStream.readUTF());
+
+						break;
+					case ServiceCallTrace.TAG_CALL:
+						return readCall();
+					default:
+						throw new IOException("Unknown record " + tag + " in the service call trace");
+				}
+			} catch (EOFException e) {
+				// the last record of a trace whose node went down may be cut short.
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * getStartTime: When the recording started.
+	 * @return long The epoch millis.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	@Override
+	public void close() throws IOException {
+		dataInputStream.close();
+	}
+
+	protected ServiceCallTrace.Call readCall() throws IOException {
+		String[] method = methods.get((int) readVarLong());
+		String threadName = threads.get((int) readVarLong());
+		long companyId = readVarLong();
+		long startNanos = readVarLong();
+		long elapsedNanos = readVarLong();
+		int resultSize = (int) readVarLong() - 1;
+		String failure = null;
+
+		if ((dataInputStream.readByte() & ServiceCallTrace.FLAG_FAILED) != 0) {
+			failure = classes.get((int) readVarLong());
+		}
+
+		int argCount = (int) readVarLong();
+		List<String> arguments = new ArrayList<>(argCount);
+
+		for (int i = 0; i < argCount; i++) {
+			arguments.add(readArgument());
+		}
+
+		return new ServiceCallTrace.Call(method[0], method[1], method[2], threadName, companyId, startNanos, elapsedNanos, resultSize, failure, arguments);
+	}
+
+	protected String readArgument() throws IOException {
+		byte type = dataInputStream.readByte();
+
+		switch (type) {
+			case ServiceCallTrace.ARG_NULL:
+				return "null";
+			case ServiceCallTrace.ARG_LONG:
+				long value = readVarLong();
+
+				return String.valueOf((value >>> 1) ^ -(value & 1));
+			case ServiceCallTrace.ARG_BOOLEAN:
+				return String.valueOf(dataInputStream.readBoolean());
+			case ServiceCallTrace.ARG_STRING:
+				return "String[" + readVarLong() + "]";
+			case ServiceCallTrace.ARG_SIZED:
+				String className = getSimpleName(classes.get((int) readVarLong()));
+
+				return className + "[" + readVarLong() + "]";
+			case ServiceCallTrace.ARG_OTHER:
+				return getSimpleName(classes.get((int) readVarLong()));
+			default:
+				throw new IOException("Unknown argument type " + type + " in the service call trace");
+		}
+	}
+
+	protected long readVarLong() throws IOException {
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = dataInputStream.readUnsignedByte();
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed number in the service call trace");
+	}
+
+	private static String getSimpleName(final String className) {
+		// primitive arrays are named like [J, the others like [Ljava.lang.String;
+		switch (className) {
+			case "[J":
+				return "long";
+			case "[I":
+				return "int";
+			case "[Z":
+				return "boolean";
+			case "[B":
+				return "byte";
+			default:
+				String name = className.endsWith(";") ? className.substring(0, className.length() - 1) : className;
+
+				return name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('[')) + 1);
+		}
+	}
+
+	private final DataInputStream dataInputStream;
+	private final long startTime;
+	private final Map<Integer, String[]> methods = new HashMap<>();
+	private final Map<Integer, String> threads = new HashMap<>();
+	private final Map<Integer, String> classes = new HashMap<>();
+}
@@ -0,0 +1,255 @@
+package com.example.environment.setup.instrument;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.security.auth.CompanyThreadLocal;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * class ServiceCallTraceWriter: Records every service call the steps make to a binary trace file, see ServiceCallTrace
+ * for the format. The trace can be replayed offline with the ServiceCallTraceReplay tool of the benchmarks module.
+ *
+ * The calls of all the worker threads go to the same file, so recording is synchronized. The services the steps call
+ * take milliseconds, writing a record to the buffer takes well under a microsecond.
+ *
+ * @author dnebinger
+ */
+public class ServiceCallTraceWriter implements ServiceCallListener, Closeable {
+
+	/**
+	 * ServiceCallTraceWriter: Constructor which opens the trace file, replacing an existing one.
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public ServiceCallTraceWriter(final String fileName) throws IOException {
+		this(new FileOutputStream(fileName));
+	}
+
+	/**
+	 * ServiceCallTraceWriter: Constructor which writes the trace to the stream.
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	public ServiceCallTraceWriter(final OutputStream outputStream) throws IOException {
+		super();
+
+		this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, 65536));
+
+		dataOutputStream.writeInt(ServiceCallTrace.MAGIC);
+		dataOutputStream.writeByte(ServiceCallTrace.VERSION);
+		dataOutputStream.writeLong(System.currentTimeMillis());
+	}
+
+	@Override
+	public void afterCall(Class<?> serviceInterface, Method method, Object[] args, Object result, long elapsedNanos, Throwable throwable) {
+		// the proxy measured the call up to now.
+		long startNanos = System.nanoTime() - elapsedNanos - originNanos;
+		Long companyId = CompanyThreadLocal.getCompanyId();
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			try {
+				// definitions go before the call record that refers to them.
+				int methodId = getMethodId(serviceInterface, method);
+				int threadId = getThreadId(Thread.currentThread().getName());
+				int argCount = (args == null) ? 0 : args.length;
+
+				for (int i = 0; i < argCount; i++) {
+					if (args[i] != null) {
+						getClassId(args[i].getClass());
+					}
+				}
+
+				if (throwable != null) {
+					getClassId(throwable.getClass());
+				}
+
+				dataOutputStream.writeByte(ServiceCallTrace.TAG_CALL);
+				writeVarLong(methodId);
+				writeVarLong(threadId);
+				writeVarLong((companyId == null) ? 0 : companyId);
+				writeVarLong(Math.max(0, startNanos));
+				writeVarLong(elapsedNanos);
+				writeVarLong(getResultSize(method, result, throwable) + 1);
+				dataOutputStream.writeByte((throwable == null) ? 0 : ServiceCallTrace.FLAG_FAILED);
+
+				if (throwable != null) {
+					writeVarLong(getClassId(throwable.getClass()));
+				}
+
+				writeVarLong(argCount);
+
+				for (int i = 0; i < argCount; i++) {
+					writeArgument(args[i]);
+				}
+			} catch (IOException e) {
+				// stop recording rather than fail every later call the same way.
+				_log.error("Unable to write the service call trace, recording stopped: " + e.getMessage(), e);
+
+				closed = true;
+			}
+		}
+	}
+
+	/**
+	 * flush: Writes the buffered records to the file, i.e. at the end of a chain of steps.
+	 */
+	public synchronized void flush() {
+		if (closed) {
+			return;
+		}
+
+		try {
+			dataOutputStream.flush();
+		} catch (IOException e) {
+			_log.warn("Unable to flush the service call trace: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+
+		dataOutputStream.close();
+	}
+
+	protected int getMethodId(final Class<?> serviceInterface, final Method method) throws IOException {
+		Integer methodId = methodIds.get(method);
+
+		if (methodId != null) {
+			return methodId;
+		}
+
+		methodId = methodIds.size();
+
+		methodIds.put(method, methodId);
+
+		dataOutputStream.writeByte(ServiceCallTrace.TAG_METHOD);
+		writeVarLong(methodId);
+		dataOutputStream.writeUTF(serviceInterface.getSimpleName());
+		dataOutputStream.writeUTF(method.getName());
+		dataOutputStream.writeUTF(ServiceCallTrace.getParameterDescriptor(method));
+
+		return methodId;
+	}
+
+	protected int getThreadId(final String threadName) throws IOException {
+		Integer threadId = threadIds.get(threadName);
+
+		if (threadId != null) {
+			return threadId;
+		}
+
+		threadId = threadIds.size();
+
+		threadIds.put(threadName, threadId);
+
+		dataOutputStream.writeByte(ServiceCallTrace.TAG_THREAD);
+		writeVarLong(threadId);
+		dataOutputStream.writeUTF(threadName);
+
+		return threadId;
+	}
+
+	protected int getClassId(final Class<?> clazz) throws IOException {
+		Integer classId = classIds.get(clazz);
+
+		if (classId != null) {
+			return classId;
+		}
+
+		classId = classIds.size();
+
+		classIds.put(clazz, classId);
+
+		dataOutputStream.writeByte(ServiceCallTrace.TAG_CLASS);
+		writeVarLong(classId);
+		dataOutputStream.writeUTF(clazz.getName());
+
+		return classId;
+	}
+
+	protected void writeArgument(final Object arg) throws IOException {
+		if (arg == null) {
+			dataOutputStream.writeByte(ServiceCallTrace.ARG_NULL);
+		} else if ((arg instanceof Long) || (arg instanceof Integer) || (arg instanceof Short) || (arg instanceof Byte)) {
+			dataOutputStream.writeByte(ServiceCallTrace.ARG_LONG);
+			writeVarLong(zigZag(((Number) arg).longValue()));
+		} else if (arg instanceof Boolean) {
+			dataOutputStream.writeByte(ServiceCallTrace.ARG_BOOLEAN);
+			dataOutputStream.writeBoolean((Boolean) arg);
+		} else if (arg instanceof String) {
+			// the length only, never the value.
+			dataOutputStream.writeByte(ServiceCallTrace.ARG_STRING);
+			writeVarLong(((String) arg).length());
+		} else if ((arg instanceof Collection) || (arg instanceof Map) || arg.getClass().isArray()) {
+			dataOutputStream.writeByte(ServiceCallTrace.ARG_SIZED);
+			writeVarLong(getClassId(arg.getClass()));
+			writeVarLong(getSize(arg));
+		} else {
+			dataOutputStream.writeByte(ServiceCallTrace.ARG_OTHER);
+			writeVarLong(getClassId(arg.getClass()));
+		}
+	}
+
+	protected int getResultSize(final Method method, final Object result, final Throwable throwable) {
+		if ((throwable != null) || (result == null) || (method.getReturnType() == void.class)) {
+			return -1;
+		}
+
+		if ((result instanceof Collection) || (result instanceof Map) || result.getClass().isArray()) {
+			return getSize(result);
+		}
+
+		return 1;
+	}
+
+	protected int getSize(final Object object) {
+		if (object instanceof Collection) {
+			return ((Collection<?>) object).size();
+		}
+
+		if (object instanceof Map) {
+			return ((Map<?, ?>) object).size();
+		}
+
+		return Array.getLength(object);
+	}
+
+	protected void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			dataOutputStream.writeByte((int) ((value & 0x7F) | 0x80));
+
+			value >>>= 7;
+		}
+
+		dataOutputStream.writeByte((int) value);
+	}
+
+	private static long zigZag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private final DataOutputStream dataOutputStream;
+	private final long originNanos = System.nanoTime();
+	private final Map<Method, Integer> methodIds = new HashMap<>();
+	private final Map<String, Integer> threadIds = new HashMap<>();
+	private final Map<Class<?>, Integer> classIds = new HashMap<>();
+	private boolean closed;
+
+	private static final Log _log = LogFactoryUtil.getLog(ServiceCallTraceWriter.class);
+}
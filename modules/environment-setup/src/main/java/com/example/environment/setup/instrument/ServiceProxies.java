@@ -0,0 +1,70 @@
+package com.example.environment.setup.instrument;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * class ServiceProxies: Wraps a service in a dynamic proxy which reports every call to a ServiceCallListener.
+ *
+ * @author dnebinger
+ */
+public class ServiceProxies {
+
+	/**
+	 * wrap: Wraps the service so every call made through the returned instance is reported to the listener.
+	 * @param serviceInterface The service interface, i.e. RoleService.class.
+	 * @param service The real service.
+	 * @param serviceCallListener The listener to report calls to.
+	 * @return T The wrapped service.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T wrap(final Class<T> serviceInterface, final T service, final ServiceCallListener serviceCallListener) {
+		if (service == null) {
+			return null;
+		}
+
+		return (T) Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] {serviceInterface}, new ServiceInvocationHandler(serviceInterface, service, serviceCallListener));
+	}
+
+	private static class ServiceInvocationHandler implements InvocationHandler {
+
+		ServiceInvocationHandler(Class<?> serviceInterface, Object service, ServiceCallListener serviceCallListener) {
+			this.serviceInterface = serviceInterface;
+			this.service = service;
+			this.serviceCallListener = serviceCallListener;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				// equals, hashCode and toString are not service calls.
+				return method.invoke(service, args);
+			}
+
+			long start = System.nanoTime();
+			Object result = null;
+			Throwable throwable = null;
+
+			try {
+				result = method.invoke(service, args);
+
+				return result;
+			} catch (InvocationTargetException e) {
+				throwable = e.getCause();
+
+				throw throwable;
+			} finally {
+				serviceCallListener.afterCall(serviceInterface, method, args, result, System.nanoTime() - start, throwable);
+			}
+		}
+
+		private final Class<?> serviceInterface;
+		private final Object service;
+		private final ServiceCallListener serviceCallListener;
+	}
+
+	private ServiceProxies() {
+	}
+}
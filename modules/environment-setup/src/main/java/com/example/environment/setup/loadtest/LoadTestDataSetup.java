@@ -0,0 +1,422 @@
+package com.example.environment.setup.loadtest;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.SetupThreadContext;
+import com.example.environment.setup.async.AsyncSetupExecutor;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.example.environment.setup.search.DeferredReindexer;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.GroupConstants;
+import com.liferay.portal.kernel.model.Organization;
+import com.liferay.portal.kernel.model.OrganizationConstants;
+import com.liferay.portal.kernel.model.RoleConstants;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.OrganizationLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.LocaleUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class LoadTestDataSetup: Generates load test data, i.e. a million users with their organizations, sites, user groups
+ * and role assignments, in environments whose portal-ext.properties enable it. Everywhere else it does nothing.
+ *
+ * The data is the same for the same seed. Each user is generated from its own seeded random, so the users come out the
+ * same no matter how many workers there are or in what order the batches run. Memberships are skewed towards the first
+ * groups, so there are a few very large groups and a long tail of small ones.
+ *
+ * The roles, user groups, organizations and sites are created first. The users are then created by parallel workers,
+ * each batch in its own transaction together with its memberships. Users that already exist are skipped, so an
+ * interrupted run can be run again and only creates what is missing.
+ *
+ * @author dnebinger
+ */
+public class LoadTestDataSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * LoadTestDataSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler
+	 * @param organizationLocalService
+	 * @param loadTestProfile The sizes of the data.
+	 */
+	public LoadTestDataSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler, OrganizationLocalService organizationLocalService, LoadTestProfile loadTestProfile) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.environmentReconciler = environmentReconciler;
+		this.organizationLocalService = organizationLocalService;
+		this.loadTestProfile = loadTestProfile;
+	}
+
+	@Override
+	protected void setupEnvironment(final ServiceContext serviceContext) throws Exception {
+		if (!loadTestProfile.isEnabled()) {
+			if (_log.isDebugEnabled()) {
+				_log.debug("Load test data is not enabled for this environment");
+			}
+
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Generating load test data for company " + getCompanyId() + " with " + loadTestProfile);
+		}
+
+		roleIds = addRoles(serviceContext);
+		userGroupIds = addUserGroups(serviceContext);
+		organizationIds = addOrganizations();
+		siteGroupIds = addSites(serviceContext);
+
+		addUsers(serviceContext);
+
+		if (_log.isInfoEnabled()) {
+			long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+			_log.info("Generated load test data for company " + getCompanyId() + " in " + elapsedMillis + " ms, " + createdCount.get() + " users created ("
+					+ (createdCount.get() * 1000 / elapsedMillis) + " users/s) and " + skippedCount.get() + " already existed");
+		}
+	}
+
+	protected long[] addRoles(final ServiceContext serviceContext) throws Exception {
+		DesiredState desiredState = new DesiredState();
+
+		for (int i = 0; i < loadTestProfile.getRoles(); i++) {
+			desiredState.addRole(getRoleName(i), RoleConstants.TYPE_REGULAR, "Load test role.");
+		}
+
+		environmentReconciler.reconcile(desiredState, serviceContext);
+
+		long[] ids = new long[loadTestProfile.getRoles()];
+
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = environmentReconciler.getEnvironmentSnapshot().getRoleId(getRoleName(i));
+		}
+
+		return ids;
+	}
+
+	protected long[] addUserGroups(final ServiceContext serviceContext) throws Exception {
+		DesiredState desiredState = new DesiredState();
+
+		for (int i = 0; i < loadTestProfile.getUserGroups(); i++) {
+			desiredState.addUserGroup(getUserGroupName(i), "Load test user group.");
+		}
+
+		environmentReconciler.reconcile(desiredState, serviceContext);
+
+		long[] ids = new long[loadTestProfile.getUserGroups()];
+
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = environmentReconciler.getEnvironmentSnapshot().getUserGroupId(getUserGroupName(i));
+		}
+
+		return ids;
+	}
+
+	protected long[] addOrganizations() throws Exception {
+		long[] ids = new long[loadTestProfile.getOrganizations()];
+
+		for (int i = 0; i < ids.length; i++) {
+			String name = "Load Test Organization " + i;
+
+			Organization organization = organizationLocalService.fetchOrganization(getCompanyId(), name);
+
+			if (organization == null) {
+				organization = organizationLocalService.addOrganization(getAdminUserId(), OrganizationConstants.DEFAULT_PARENT_ORGANIZATION_ID, name, false);
+			}
+
+			ids[i] = organization.getOrganizationId();
+		}
+
+		return ids;
+	}
+
+	protected long[] addSites(final ServiceContext serviceContext) throws Exception {
+		long[] ids = new long[loadTestProfile.getSites()];
+
+		for (int i = 0; i < ids.length; i++) {
+			String name = "Load Test Site " + i;
+
+			Group group = getGroupLocalService().fetchGroup(getCompanyId(), name);
+
+			if (group == null) {
+				Map<Locale, String> nameMap = Collections.singletonMap(LocaleUtil.getDefault(), name);
+
+				group = getGroupLocalService().addGroup(getAdminUserId(), GroupConstants.DEFAULT_PARENT_GROUP_ID, Group.class.getName(), 0, GroupConstants.DEFAULT_LIVE_GROUP_ID,
+						nameMap, null, GroupConstants.TYPE_SITE_OPEN, true, GroupConstants.DEFAULT_MEMBERSHIP_RESTRICTION, "/load-test-site-" + i, true, false, true, serviceContext);
+			}
+
+			getSetupLookupCache().putSiteGroupId(name, group.getGroupId());
+
+			ids[i] = group.getGroupId();
+		}
+
+		return ids;
+	}
+
+	/**
+	 * addUsers: Creates the users in batches on parallel workers. The workers run as the admin this step runs as.
+	 * @param serviceContext
+	 * @throws Exception The first batch failure, the others are suppressed.
+	 */
+	protected void addUsers(final ServiceContext serviceContext) throws Exception {
+		int batchSize = loadTestProfile.getBatchSize();
+		int batchCount = (loadTestProfile.getUsers() + batchSize - 1) / batchSize;
+
+		if (batchCount == 0) {
+			return;
+		}
+
+		SetupThreadContext setupThreadContext = SetupThreadContext.capture();
+		AtomicInteger threadCount = new AtomicInteger();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(loadTestProfile.getWorkers(), batchCount), runnable -> {
+			Thread thread = new Thread(runnable, "environment-setup-load-test-" + threadCount.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		List<Future<Void>> futures = new ArrayList<>(batchCount);
+
+		try {
+			for (int batch = 0; batch < batchCount; batch++) {
+				int first = batch * batchSize;
+				int last = Math.min(first + batchSize, loadTestProfile.getUsers());
+
+				futures.add(executorService.submit(setupThreadContext.wrap(() -> {
+					addUserBatch(first, last, serviceContext);
+
+					return null;
+				})));
+			}
+
+			Exception failure = null;
+
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+
+					// the users are not created in order, so this is only progress and not a checkpoint to resume from.
+					AsyncSetupExecutor.reportProgress(completedCount.get());
+				} catch (ExecutionException e) {
+					Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+
+					if (failure == null) {
+						failure = cause;
+
+						// no point in starting the batches that are still queued.
+						for (Future<Void> queued : futures) {
+							queued.cancel(false);
+						}
+					} else {
+						failure.addSuppressed(cause);
+					}
+				} catch (CancellationException e) {
+					// cancelled after an earlier failure.
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw e;
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * addUserBatch: Creates the users first to last (exclusive) in one transaction, then adds them to their groups with one
+	 * call per group. Runs on a worker.
+	 * @param first
+	 * @param last
+	 * @param serviceContext
+	 * @throws Exception
+	 */
+	protected void addUserBatch(final int first, final int last, final ServiceContext serviceContext) throws Exception {
+		List<Integer> indexes = new ArrayList<>(last - first);
+
+		for (int i = first; i < last; i++) {
+			indexes.add(i);
+		}
+
+		// the doUpgrade() thread defers indexing for itself, a worker reindexes each of its batches in one go.
+		DeferredReindexer deferredReindexer = isIndexDeferred() ? DeferredReindexer.begin(getCompanyId(), indexes.size()) : null;
+
+		// the workers each get their own copy of the service context.
+		ServiceContext batchServiceContext = (ServiceContext) serviceContext.clone();
+
+		try (ChunkedTransactionProcessor<Integer> processor = new ChunkedTransactionProcessor<>(chunk -> createUsers(chunk, batchServiceContext), indexes.size())) {
+			for (int index : indexes) {
+				processor.add(index);
+			}
+		} finally {
+			if (deferredReindexer != null) {
+				deferredReindexer.end();
+				deferredReindexer.reindex();
+			}
+		}
+
+		long done = completedCount.addAndGet(indexes.size());
+
+		if (_log.isInfoEnabled() && ((done / PROGRESS_INTERVAL) != ((done - indexes.size()) / PROGRESS_INTERVAL))) {
+			_log.info("Load test users for company " + getCompanyId() + ": " + done + " of " + loadTestProfile.getUsers());
+		}
+	}
+
+	protected void createUsers(final List<Integer> indexes, final ServiceContext serviceContext) throws Exception {
+		EnvironmentSnapshot environmentSnapshot = environmentReconciler.getEnvironmentSnapshot();
+
+		List<String> screenNames = new ArrayList<>(indexes.size());
+
+		for (int index : indexes) {
+			screenNames.add(getScreenName(index));
+		}
+
+		Map<String, Long> existingUserIds = environmentSnapshot.findUserIds(screenNames);
+
+		Map<Long, List<Long>> userGroupMembers = new LinkedHashMap<>();
+		Map<Long, List<Long>> siteMembers = new LinkedHashMap<>();
+		Map<Long, List<Long>> organizationMembers = new LinkedHashMap<>();
+		Map<Long, List<Long>> roleMembers = new LinkedHashMap<>();
+
+		for (int index : indexes) {
+			String screenName = getScreenName(index);
+
+			if (existingUserIds.containsKey(StringUtil.toLowerCase(screenName))) {
+				skippedCount.incrementAndGet();
+
+				continue;
+			}
+
+			Random random = new Random(loadTestProfile.getSeed() * 1000003L + index);
+
+			String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+			String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+			String jobTitle = JOB_TITLES[random.nextInt(JOB_TITLES.length)];
+
+			User user = addUser(screenName, screenName + "@loadtest.example.com", firstName, lastName, jobTitle, serviceContext);
+
+			addMember(userGroupMembers, userGroupIds, loadTestProfile.getUserGroupsPerUser(), random, user.getUserId());
+			addMember(siteMembers, siteGroupIds, loadTestProfile.getSitesPerUser(), random, user.getUserId());
+			addMember(organizationMembers, organizationIds, (organizationIds.length > 0) ? 1 : 0, random, user.getUserId());
+			addMember(roleMembers, roleIds, loadTestProfile.getRolesPerUser(), random, user.getUserId());
+
+			createdCount.incrementAndGet();
+		}
+
+		for (Map.Entry<Long, List<Long>> members : userGroupMembers.entrySet()) {
+			getUserLocalService().addUserGroupUsers(members.getKey(), ArrayUtil.toLongArray(members.getValue()));
+		}
+
+		for (Map.Entry<Long, List<Long>> members : siteMembers.entrySet()) {
+			getUserLocalService().addGroupUsers(members.getKey(), ArrayUtil.toLongArray(members.getValue()));
+		}
+
+		for (Map.Entry<Long, List<Long>> members : organizationMembers.entrySet()) {
+			getUserLocalService().addOrganizationUsers(members.getKey(), ArrayUtil.toLongArray(members.getValue()));
+		}
+
+		for (Map.Entry<Long, List<Long>> members : roleMembers.entrySet()) {
+			getUserLocalService().addRoleUsers(members.getKey(), ArrayUtil.toLongArray(members.getValue()));
+		}
+	}
+
+	/**
+	 * addMember: Picks count distinct groups for the user, skewed towards the first ones, and adds the user to their
+	 * member lists.
+	 * @param members
+	 * @param ids
+	 * @param count
+	 * @param random
+	 * @param userId
+	 */
+	protected void addMember(final Map<Long, List<Long>> members, final long[] ids, final int count, final Random random, final long userId) {
+		Set<Integer> picked = new LinkedHashSet<>();
+
+		while (picked.size() < count) {
+			picked.add((int) (ids.length * Math.pow(random.nextDouble(), loadTestProfile.getSkew())));
+		}
+
+		for (int index : picked) {
+			members.computeIfAbsent(ids[index], id -> new ArrayList<>()).add(userId);
+		}
+	}
+
+	protected String getScreenName(final int index) {
+		return "loadtest.user." + index;
+	}
+
+	protected String getRoleName(final int index) {
+		return "Load Test Role " + index;
+	}
+
+	protected String getUserGroupName(final int index) {
+		return "Load Test User Group " + index;
+	}
+
+	public LoadTestProfile getLoadTestProfile() {
+		return loadTestProfile;
+	}
+
+	private final EnvironmentReconciler environmentReconciler;
+	private final OrganizationLocalService organizationLocalService;
+	private final LoadTestProfile loadTestProfile;
+
+	private long[] roleIds;
+	private long[] userGroupIds;
+	private long[] organizationIds;
+	private long[] siteGroupIds;
+
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+
+	private static final long PROGRESS_INTERVAL = 10000;
+
+	private static final String[] FIRST_NAMES = {"Alex", "Blake", "Casey", "Dana", "Emery", "Finley", "Gray", "Harper", "Jordan", "Kai", "Logan", "Morgan", "Quinn", "Riley", "Sage", "Taylor"};
+	private static final String[] LAST_NAMES = {"Anders", "Brooks", "Chen", "Diaz", "Evans", "Fischer", "Garcia", "Hughes", "Ito", "Jensen", "Kim", "Lopez", "Novak", "Okafor", "Patel", "Silva"};
+	private static final String[] JOB_TITLES = {"Analyst", "Designer", "Developer", "Manager", "Support Engineer", "Tester"};
+
+	private static final Log _log = LogFactoryUtil.getLog(LoadTestDataSetup.class);
+}
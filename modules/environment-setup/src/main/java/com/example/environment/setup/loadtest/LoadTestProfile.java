@@ -0,0 +1,144 @@
+package com.example.environment.setup.loadtest;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+
+/**
+ * class LoadTestProfile: The sizes and distributions of the load test data, read from the environment's
+ * portal-ext.properties. Only environments that set environment.setup.load.test.enabled=true get any data.
+ *
+ * @author dnebinger
+ */
+public class LoadTestProfile {
+
+	public static final String PREFIX = "environment.setup.load.test.";
+
+	/**
+	 * fromProps: Reads the profile from the portal properties.
+	 * @return LoadTestProfile The profile.
+	 */
+	public static LoadTestProfile fromProps() {
+		return new LoadTestProfile(
+				GetterUtil.getBoolean(PropsUtil.get(PREFIX + "enabled")),
+				GetterUtil.getLong(PropsUtil.get(PREFIX + "seed"), 20200101L),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "users"), 10000),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "organizations"), 50),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "sites"), 20),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "user.groups"), 100),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "roles"), 10),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "user.groups.per.user"), 2),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "sites.per.user"), 1),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "roles.per.user"), 1),
+				GetterUtil.getDouble(PropsUtil.get(PREFIX + "skew"), 2.0),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "workers"), Runtime.getRuntime().availableProcessors()),
+				GetterUtil.getInteger(PropsUtil.get(PREFIX + "batch.size"), ChunkedTransactionProcessor.DEFAULT_CHUNK_SIZE));
+	}
+
+	/**
+	 * LoadTestProfile: Constructor.
+	 * @param enabled Whether the environment gets load test data at all.
+	 * @param seed The same seed always generates the same data.
+	 * @param users Number of users.
+	 * @param organizations Number of organizations.
+	 * @param sites Number of sites.
+	 * @param userGroups Number of user groups.
+	 * @param roles Number of regular roles.
+	 * @param userGroupsPerUser Number of user groups each user is added to.
+	 * @param sitesPerUser Number of sites each user is a member of.
+	 * @param rolesPerUser Number of roles each user is assigned.
+	 * @param skew How strongly memberships favor the first groups, 1 is uniform and higher values give a few very large
+	 *             groups and a long tail of small ones, like a real environment.
+	 * @param workers Number of batches created at the same time.
+	 * @param batchSize Number of users created per transaction.
+	 */
+	public LoadTestProfile(final boolean enabled, final long seed, final int users, final int organizations, final int sites, final int userGroups, final int roles, final int userGroupsPerUser, final int sitesPerUser, final int rolesPerUser, final double skew, final int workers, final int batchSize) {
+		super();
+
+		this.enabled = enabled;
+		this.seed = seed;
+		this.users = Math.max(0, users);
+		this.organizations = Math.max(0, organizations);
+		this.sites = Math.max(0, sites);
+		this.userGroups = Math.max(0, userGroups);
+		this.roles = Math.max(0, roles);
+		this.userGroupsPerUser = Math.max(0, Math.min(userGroupsPerUser, this.userGroups));
+		this.sitesPerUser = Math.max(0, Math.min(sitesPerUser, this.sites));
+		this.rolesPerUser = Math.max(0, Math.min(rolesPerUser, this.roles));
+		this.skew = Math.max(1.0, skew);
+		this.workers = Math.max(1, workers);
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getUsers() {
+		return users;
+	}
+
+	public int getOrganizations() {
+		return organizations;
+	}
+
+	public int getSites() {
+		return sites;
+	}
+
+	public int getUserGroups() {
+		return userGroups;
+	}
+
+	public int getRoles() {
+		return roles;
+	}
+
+	public int getUserGroupsPerUser() {
+		return userGroupsPerUser;
+	}
+
+	public int getSitesPerUser() {
+		return sitesPerUser;
+	}
+
+	public int getRolesPerUser() {
+		return rolesPerUser;
+	}
+
+	public double getSkew() {
+		return skew;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadTestProfile[enabled=" + enabled + ", seed=" + seed + ", users=" + users + ", organizations=" + organizations + ", sites=" + sites
+				+ ", userGroups=" + userGroups + ", roles=" + roles + ", workers=" + workers + ", batchSize=" + batchSize + "]";
+	}
+
+	private final boolean enabled;
+	private final long seed;
+	private final int users;
+	private final int organizations;
+	private final int sites;
+	private final int userGroups;
+	private final int roles;
+	private final int userGroupsPerUser;
+	private final int sitesPerUser;
+	private final int rolesPerUser;
+	private final double skew;
+	private final int workers;
+	private final int batchSize;
+}
@@ -0,0 +1,227 @@
+package com.example.environment.setup.manifest;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.RoleConstants;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class ManifestEnvironmentSetup: Sets up the roles, user groups, users and role assignments declared in a seed manifest
+ * resource, so new data only needs a new manifest instead of a new setup class.
+ *
+ * The manifest is streamed with the SeedManifestReader and consecutive entries of the same kind are written in chunks,
+ * each chunk in its own transaction. Each chunk is reconciled against what already exists, so re-applying a manifest only
+ * writes the entries that are missing. Keep the manifest in dependency order, i.e. roles and user groups before the users
+ * and role assignments that refer to them. The position of the last entry of each committed chunk is saved as a checkpoint,
+ * an interrupted run picks up after it. See SeedManifestReader for the format.
+ *
+ * @author dnebinger
+ */
+public class ManifestEnvironmentSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * ManifestEnvironmentSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler
+	 * @param manifestResource Class path of the manifest, i.e. com/example/environment/setup/seed-manifest-1.3.0.xml
+	 * @param chunkSize Number of entities written per transaction.
+	 */
+	public ManifestEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler, String manifestResource, int chunkSize) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.environmentReconciler = environmentReconciler;
+		this.manifestResource = manifestResource;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	protected void setupEnvironment(final ServiceContext serviceContext) throws Exception {
+		InputStream inputStream = ManifestEnvironmentSetup.class.getClassLoader().getResourceAsStream(manifestResource);
+
+		if (inputStream == null) {
+			throw new IllegalStateException("Unable to find seed manifest " + manifestResource);
+		}
+
+		long count = 0;
+
+		// entries through the checkpoint were committed by an earlier, interrupted run.
+		long checkpoint = getCheckpoint();
+
+		try (SeedManifestReader seedManifestReader = new SeedManifestReader(inputStream)) {
+			SeedManifestEntry.Type currentType = null;
+			ChunkedTransactionProcessor<SeedManifestEntry> processor = null;
+
+			SeedManifestEntry entry;
+
+			while ((entry = seedManifestReader.next()) != null) {
+				if (entry.getPosition() <= checkpoint) {
+					continue;
+				}
+
+				if (entry.getType() != currentType) {
+					// entries of a kind are chunked together, a new kind means the previous chunk has to go first.
+					if (processor != null) {
+						processor.close();
+
+						count += processor.getProcessedCount();
+					}
+
+					currentType = entry.getType();
+
+					final SeedManifestEntry.Type chunkType = currentType;
+
+					processor = new ChunkedTransactionProcessor<>(chunk -> processChunk(chunkType, chunk, serviceContext), chunkSize, chunk -> {
+						// only once the chunk has committed are its roles and user groups safe to share with later steps.
+						environmentReconciler.getEnvironmentSnapshot().publishAdded();
+
+						saveCheckpoint(chunk.get(chunk.size() - 1).getPosition());
+					});
+				}
+
+				processor.add(entry);
+			}
+
+			if (processor != null) {
+				processor.close();
+
+				count += processor.getProcessedCount();
+			}
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Processed " + count + " entries from " + manifestResource + " for company " + getCompanyId());
+		}
+	}
+
+	/**
+	 * processChunk: Writes a chunk of entries of the same kind. Called inside the chunk's transaction.
+	 * @param type
+	 * @param chunk
+	 * @param serviceContext
+	 * @throws Exception
+	 */
+	protected void processChunk(final SeedManifestEntry.Type type, final List<SeedManifestEntry> chunk, final ServiceContext serviceContext) throws Exception {
+		if (type == SeedManifestEntry.Type.USER) {
+			addUsers(chunk, serviceContext);
+
+			return;
+		}
+
+		// everything else goes through the reconciler, so entities that already exist are skipped.
+		DesiredState desiredState = new DesiredState();
+
+		for (SeedManifestEntry entry : chunk) {
+			switch (type) {
+				case ROLE:
+					desiredState.addRole(entry.getAttribute("name"), getRoleType(entry.getAttribute("type")), entry.getAttribute("description"));
+					break;
+				case USER_GROUP:
+					desiredState.addUserGroup(entry.getAttribute("name"), entry.getAttribute("description"));
+					break;
+				case ROLE_ASSIGNMENT:
+					if (Validator.isNotNull(entry.getAttribute("user-group"))) {
+						desiredState.addRoleGroupAssignment(entry.getAttribute("role"), entry.getAttribute("user-group"));
+					}
+
+					if (Validator.isNotNull(entry.getAttribute("user"))) {
+						desiredState.addRoleUserAssignment(entry.getAttribute("role"), entry.getAttribute("user"));
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		environmentReconciler.reconcile(desiredState, serviceContext);
+	}
+
+	protected void addUsers(final List<SeedManifestEntry> chunk, final ServiceContext serviceContext) throws Exception {
+		EnvironmentSnapshot environmentSnapshot = environmentReconciler.getEnvironmentSnapshot();
+
+		// one query tells us which users in the chunk already exist, those are skipped.
+		List<String> screenNames = new ArrayList<>();
+
+		for (SeedManifestEntry entry : chunk) {
+			if (Validator.isNotNull(entry.getAttribute("screen-name"))) {
+				screenNames.add(entry.getAttribute("screen-name"));
+			}
+		}
+
+		Map<String, Long> existingUserIds = environmentSnapshot.findUserIds(screenNames);
+
+		// memberships are collected for the chunk and added with one call per user group.
+		Map<String, List<Long>> userGroupMembers = new LinkedHashMap<>();
+
+		for (SeedManifestEntry entry : chunk) {
+			String screenName = entry.getAttribute("screen-name");
+
+			if (Validator.isNotNull(screenName) && existingUserIds.containsKey(StringUtil.toLowerCase(screenName))) {
+				continue;
+			}
+
+			User user = addUser(screenName, entry.getAttribute("email-address"), entry.getAttribute("first-name"), entry.getAttribute("last-name"), entry.getAttribute("job-title"), serviceContext);
+
+			for (String userGroupName : entry.getUserGroupNames()) {
+				userGroupMembers.computeIfAbsent(userGroupName, name -> new ArrayList<>()).add(user.getUserId());
+			}
+		}
+
+		for (Map.Entry<String, List<Long>> members : userGroupMembers.entrySet()) {
+			long userGroupId = environmentSnapshot.getUserGroupId(members.getKey());
+
+			if (userGroupId == -1) {
+				throw new IllegalStateException("Unable to find user group " + members.getKey() + " in company " + getCompanyId());
+			}
+
+			getUserLocalService().addUserGroupUsers(userGroupId, ArrayUtil.toLongArray(members.getValue()));
+		}
+	}
+
+	/**
+	 * getRoleType: Maps the manifest role type to the role constant, defaults to a regular role.
+	 * @param type
+	 * @return int The role type.
+	 */
+	protected int getRoleType(final String type) {
+		if ("site".equals(type)) {
+			return RoleConstants.TYPE_SITE;
+		}
+
+		if ("organization".equals(type)) {
+			return RoleConstants.TYPE_ORGANIZATION;
+		}
+
+		return RoleConstants.TYPE_REGULAR;
+	}
+
+	private final EnvironmentReconciler environmentReconciler;
+	private final String manifestResource;
+	private final int chunkSize;
+
+	private static final Log _log = LogFactoryUtil.getLog(ManifestEnvironmentSetup.class);
+}
@@ -0,0 +1,97 @@
+package com.example.environment.setup.manifest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class SeedManifestEntry: A single declaration read from a seed manifest, a role, user group, user or role assignment.
+ *
+ * @author dnebinger
+ */
+public class SeedManifestEntry {
+
+	/**
+	 * enum Type: The kinds of entries a manifest can declare, with the element name used in the manifest.
+	 */
+	public enum Type {
+		ROLE("role"), USER_GROUP("user-group"), USER("user"), ROLE_ASSIGNMENT("role-assignment");
+
+		Type(String elementName) {
+			this.elementName = elementName;
+		}
+
+		public String getElementName() {
+			return elementName;
+		}
+
+		public static Type fromElementName(final String elementName) {
+			for (Type type : values()) {
+				if (type.elementName.equals(elementName)) {
+					return type;
+				}
+			}
+
+			return null;
+		}
+
+		private final String elementName;
+	}
+
+	/**
+	 * SeedManifestEntry: Constructor which takes the kind of entry and its position in the manifest.
+	 * @param type
+	 * @param position The 1 based position of the entry in the manifest.
+	 */
+	public SeedManifestEntry(final Type type, final long position) {
+		super();
+
+		this.type = type;
+		this.position = position;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * getAttribute: Returns the value of the given attribute.
+	 * @param name
+	 * @return String The value or <code>null</code> if it was not declared.
+	 */
+	public String getAttribute(final String name) {
+		return attributes.get(name);
+	}
+
+	public void setAttribute(final String name, final String value) {
+		attributes.put(name, value);
+	}
+
+	/**
+	 * getUserGroupNames: Returns the names of the user groups a user entry is a member of.
+	 * @return List The user group names.
+	 */
+	public List<String> getUserGroupNames() {
+		return Collections.unmodifiableList(userGroupNames);
+	}
+
+	public void addUserGroupName(final String userGroupName) {
+		userGroupNames.add(userGroupName);
+	}
+
+	@Override
+	public String toString() {
+		return type.getElementName() + attributes;
+	}
+
+	private final Type type;
+	private final long position;
+	private final Map<String, String> attributes = new HashMap<>();
+	private final List<String> userGroupNames = new ArrayList<>();
+}
@@ -0,0 +1,114 @@
+package com.example.environment.setup.manifest;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * class SeedManifestReader: Streams the entries out of a seed manifest one at a time.
+ *
+ * The manifest is read with a StAX reader so only the current entry is ever held in memory, no matter how large the
+ * manifest is. A manifest looks like:
+ *
+ * <pre>
+ * &lt;seed-manifest&gt;
+ *     &lt;role name="UI Test Lead" type="regular" description="..." /&gt;
+ *     &lt;user-group name="UI Test Leads" description="..." /&gt;
+ *     &lt;user screen-name="lead" email-address="lead@example.com" first-name="UI" last-name="Lead"&gt;
+ *         &lt;user-group name="UI Test Leads" /&gt;
+ *     &lt;/user&gt;
+ *     &lt;role-assignment role="UI Test Lead" user-group="UI Test Leads" /&gt;
+ *     &lt;role-assignment role="UI Test Lead" user="lead" /&gt;
+ * &lt;/seed-manifest&gt;
+ * </pre>
+ *
+ * @author dnebinger
+ */
+public class SeedManifestReader implements Closeable {
+
+	/**
+	 * SeedManifestReader: Constructor which takes the stream to read the manifest from.
+	 * @param inputStream
+	 * @throws XMLStreamException
+	 */
+	public SeedManifestReader(final InputStream inputStream) throws XMLStreamException {
+		super();
+
+		XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+
+		// the manifest is plain data, there is no reason to allow DTDs or external entities.
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		this.inputStream = inputStream;
+		this.xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+	}
+
+	/**
+	 * next: Reads the next entry from the manifest.
+	 * @return SeedManifestEntry The next entry or <code>null</code> at the end of the manifest.
+	 * @throws XMLStreamException
+	 */
+	public SeedManifestEntry next() throws XMLStreamException {
+		SeedManifestEntry entry = null;
+
+		while (xmlStreamReader.hasNext()) {
+			int event = xmlStreamReader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String elementName = xmlStreamReader.getLocalName();
+
+				if (entry == null) {
+					SeedManifestEntry.Type type = SeedManifestEntry.Type.fromElementName(elementName);
+
+					if (type == null) {
+						// the root element or something we don't know, just move on.
+						continue;
+					}
+
+					entry = new SeedManifestEntry(type, ++position);
+
+					for (int i = 0; i < xmlStreamReader.getAttributeCount(); i++) {
+						entry.setAttribute(xmlStreamReader.getAttributeLocalName(i), xmlStreamReader.getAttributeValue(i));
+					}
+
+					depth = 1;
+				} else {
+					depth++;
+
+					if ((entry.getType() == SeedManifestEntry.Type.USER) && SeedManifestEntry.Type.USER_GROUP.getElementName().equals(elementName)) {
+						entry.addUserGroupName(xmlStreamReader.getAttributeValue(null, "name"));
+					}
+				}
+			} else if ((event == XMLStreamConstants.END_ELEMENT) && (entry != null)) {
+				depth--;
+
+				if (depth == 0) {
+					return entry;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			xmlStreamReader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private final InputStream inputStream;
+	private final XMLStreamReader xmlStreamReader;
+	private int depth;
+	private long position;
+}
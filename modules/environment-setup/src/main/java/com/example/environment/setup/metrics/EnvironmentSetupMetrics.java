@@ -0,0 +1,187 @@
+package com.example.environment.setup.metrics;
+
+import com.example.environment.setup.instrument.ServiceCallListener;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.BaseModel;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class EnvironmentSetupMetrics: Collects the StepMetrics for every step run and exposes them through JMX.
+ *
+ * A step run's StepMetrics are current on the thread that started it until it finishes, and SetupThreadContext hands
+ * them to the step's worker threads. Service calls are attributed to the current StepMetrics of the calling thread, so
+ * a background step running in a company at the same time as an upgrade step is counted on its own.
+ *
+ * @author dnebinger
+ */
+public class EnvironmentSetupMetrics implements EnvironmentSetupMetricsMBean, ServiceCallListener {
+
+	/**
+	 * OBJECT_NAME: The JMX object name the metrics are registered under.
+	 */
+	public static final String OBJECT_NAME = "com.example.environment.setup:type=EnvironmentSetupMetrics";
+
+	/**
+	 * startStep: Starts tracking a step run for the given company, the metrics are current on this thread until the run
+	 * is finished.
+	 * @param stepName
+	 * @param companyId
+	 * @return StepMetrics The metrics for the run.
+	 */
+	public StepMetrics startStep(final String stepName, final long companyId) {
+		StepMetrics stepMetrics = new StepMetrics(stepName, companyId, StepMetrics.getCurrent());
+
+		runningSteps.add(stepMetrics);
+
+		StepMetrics.setCurrent(stepMetrics);
+
+		return stepMetrics;
+	}
+
+	/**
+	 * finishStep: Stops tracking the step run, adds it to the totals and logs its summary line. Called on the thread that
+	 * started it.
+	 * @param stepMetrics
+	 * @param failed
+	 */
+	public void finishStep(final StepMetrics stepMetrics, final boolean failed) {
+		stepMetrics.finish(failed);
+
+		if (StepMetrics.getCurrent() == stepMetrics) {
+			StepMetrics.setCurrent(stepMetrics.getPrevious());
+		}
+
+		runningSteps.remove(stepMetrics);
+
+		if (failed) {
+			stepsFailed.incrementAndGet();
+		} else {
+			stepsCompleted.incrementAndGet();
+		}
+
+		serviceCalls.addAndGet(stepMetrics.getTotalServiceCalls());
+		entitiesCreated.addAndGet(stepMetrics.getEntitiesCreated());
+		maxStepMillis.accumulateAndGet(stepMetrics.getElapsedMillis(), Math::max);
+
+		recentSteps.addFirst(stepMetrics);
+
+		while (recentSteps.size() > MAX_RECENT_STEPS) {
+			recentSteps.pollLast();
+		}
+
+		if (failed) {
+			_log.warn(stepMetrics.toString());
+		} else if (_log.isInfoEnabled()) {
+			_log.info(stepMetrics.toString());
+		}
+	}
+
+	/**
+	 * afterCall: Attributes the service call to the step the calling thread is running.
+	 */
+	@Override
+	public void afterCall(Class<?> serviceInterface, Method method, Object[] args, Object result, long elapsedNanos, Throwable throwable) {
+		StepMetrics stepMetrics = StepMetrics.getCurrent();
+
+		if (stepMetrics == null) {
+			return;
+		}
+
+		// an add* call handing back a model is an entity we created.
+		boolean entityCreated = (throwable == null) && method.getName().startsWith("add") && (result instanceof BaseModel);
+
+		stepMetrics.recordCall(serviceInterface.getSimpleName(), entityCreated);
+	}
+
+	@Override
+	public long getStepsCompleted() {
+		return stepsCompleted.get();
+	}
+
+	@Override
+	public long getStepsFailed() {
+		return stepsFailed.get();
+	}
+
+	@Override
+	public int getStepsRunning() {
+		return runningSteps.size();
+	}
+
+	@Override
+	public long getLongestRunningStepMillis() {
+		long longest = 0;
+
+		for (StepMetrics stepMetrics : runningSteps) {
+			longest = Math.max(longest, stepMetrics.getElapsedMillis());
+		}
+
+		return longest;
+	}
+
+	@Override
+	public long getMaxStepMillis() {
+		return maxStepMillis.get();
+	}
+
+	@Override
+	public long getServiceCalls() {
+		return serviceCalls.get();
+	}
+
+	@Override
+	public long getEntitiesCreated() {
+		return entitiesCreated.get();
+	}
+
+	@Override
+	public String[] getRunningSteps() {
+		return toStrings(new ArrayList<>(runningSteps));
+	}
+
+	@Override
+	public String[] getRecentSteps() {
+		return toStrings(new ArrayList<>(recentSteps));
+	}
+
+	@Override
+	public void reset() {
+		stepsCompleted.set(0);
+		stepsFailed.set(0);
+		maxStepMillis.set(0);
+		serviceCalls.set(0);
+		entitiesCreated.set(0);
+		recentSteps.clear();
+	}
+
+	private static String[] toStrings(final List<StepMetrics> stepMetricsList) {
+		String[] summaries = new String[stepMetricsList.size()];
+
+		for (int i = 0; i < summaries.length; i++) {
+			summaries[i] = stepMetricsList.get(i).toString();
+		}
+
+		return summaries;
+	}
+
+	private static final int MAX_RECENT_STEPS = 100;
+
+	private final Set<StepMetrics> runningSteps = ConcurrentHashMap.newKeySet();
+	private final Deque<StepMetrics> recentSteps = new ConcurrentLinkedDeque<>();
+	private final AtomicLong stepsCompleted = new AtomicLong();
+	private final AtomicLong stepsFailed = new AtomicLong();
+	private final AtomicLong maxStepMillis = new AtomicLong();
+	private final AtomicLong serviceCalls = new AtomicLong();
+	private final AtomicLong entitiesCreated = new AtomicLong();
+
+	private static final Log _log = LogFactoryUtil.getLog(EnvironmentSetupMetrics.class);
+}
@@ -0,0 +1,61 @@
+package com.example.environment.setup.metrics;
+
+/**
+ * interface EnvironmentSetupMetricsMBean: The JMX view of the environment setup metrics, registered as
+ * com.example.environment.setup:type=EnvironmentSetupMetrics.
+ *
+ * @author dnebinger
+ */
+public interface EnvironmentSetupMetricsMBean {
+
+	/**
+	 * getStepsCompleted: Number of step runs (one per step per company) that completed.
+	 */
+	long getStepsCompleted();
+
+	/**
+	 * getStepsFailed: Number of step runs that failed.
+	 */
+	long getStepsFailed();
+
+	/**
+	 * getStepsRunning: Number of step runs in progress right now.
+	 */
+	int getStepsRunning();
+
+	/**
+	 * getLongestRunningStepMillis: How long the oldest step run still in progress has been running, 0 when nothing is
+	 * running. This is the one to alert on when a rollout stalls.
+	 */
+	long getLongestRunningStepMillis();
+
+	/**
+	 * getMaxStepMillis: The wall time of the slowest finished step run.
+	 */
+	long getMaxStepMillis();
+
+	/**
+	 * getServiceCalls: Total number of service calls made by the steps.
+	 */
+	long getServiceCalls();
+
+	/**
+	 * getEntitiesCreated: Total number of entities created by the steps.
+	 */
+	long getEntitiesCreated();
+
+	/**
+	 * getRunningSteps: Summaries of the step runs in progress.
+	 */
+	String[] getRunningSteps();
+
+	/**
+	 * getRecentSteps: Summaries of the most recently finished step runs, newest first.
+	 */
+	String[] getRecentSteps();
+
+	/**
+	 * reset: Clears the totals and the recent step runs.
+	 */
+	void reset();
+}
@@ -0,0 +1,153 @@
+package com.example.environment.setup.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * class StepMetrics: What a single setup step did for a single company, its wall time, the number of calls made to each
+ * service and the number of entities it created.
+ *
+ * The metrics of the step a thread is running are the thread's current ones, the service calls made on the thread are
+ * counted against them. SetupThreadContext hands them to the step's worker threads.
+ *
+ * @author dnebinger
+ */
+public class StepMetrics {
+
+	/**
+	 * getCurrent: Returns the metrics of the step the current thread is running.
+	 * @return StepMetrics The metrics or <code>null</code> if the thread is not running a step.
+	 */
+	public static StepMetrics getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * setCurrent: Makes the metrics the current thread's, used to hand the metrics of a step to its worker threads.
+	 * @param stepMetrics The metrics, <code>null</code> to stop counting on this thread.
+	 */
+	public static void setCurrent(final StepMetrics stepMetrics) {
+		if (stepMetrics == null) {
+			current.remove();
+		} else {
+			current.set(stepMetrics);
+		}
+	}
+
+	public StepMetrics(final String stepName, final long companyId, final StepMetrics previous) {
+		super();
+
+		this.stepName = stepName;
+		this.companyId = companyId;
+		this.previous = previous;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * recordCall: Records a call to the given service.
+	 * @param serviceName
+	 * @param entityCreated <code>true</code> if the call created an entity.
+	 */
+	public void recordCall(final String serviceName, final boolean entityCreated) {
+		serviceCalls.computeIfAbsent(serviceName, name -> new LongAdder()).increment();
+
+		if (entityCreated) {
+			entitiesCreated.increment();
+		}
+	}
+
+	/**
+	 * finish: Marks the step as done.
+	 * @param failed <code>true</code> if the step failed.
+	 */
+	public void finish(final boolean failed) {
+		this.elapsedNanos = System.nanoTime() - startNanos;
+		this.failed = failed;
+		this.finished = true;
+	}
+
+	public String getStepName() {
+		return stepName;
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	/**
+	 * getPrevious: Returns the metrics the thread had when the step started, they are current again once it is done.
+	 * @return StepMetrics The previous metrics, usually <code>null</code>.
+	 */
+	public StepMetrics getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * getElapsedMillis: Returns the wall time of the step, or how long it has been running so far if it is not done.
+	 * @return long The wall time in ms.
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(finished ? elapsedNanos : System.nanoTime() - startNanos);
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * getServiceCalls: Returns the number of calls made to each service, sorted by service name.
+	 * @return Map The call counts.
+	 */
+	public Map<String, Long> getServiceCalls() {
+		Map<String, Long> calls = new TreeMap<>();
+
+		for (Map.Entry<String, LongAdder> entry : serviceCalls.entrySet()) {
+			calls.put(entry.getKey(), entry.getValue().sum());
+		}
+
+		return calls;
+	}
+
+	public long getTotalServiceCalls() {
+		long total = 0;
+
+		for (LongAdder calls : serviceCalls.values()) {
+			total += calls.sum();
+		}
+
+		return total;
+	}
+
+	public long getEntitiesCreated() {
+		return entitiesCreated.sum();
+	}
+
+	/**
+	 * toString: The summary line used in the log and by the MBean.
+	 * @return String The summary.
+	 */
+	@Override
+	public String toString() {
+		return stepName + " for company " + companyId + (finished ? (failed ? " failed" : " completed") : " running") + " in " + getElapsedMillis() + " ms, "
+				+ getTotalServiceCalls() + " service calls " + getServiceCalls() + ", " + getEntitiesCreated() + " entities created";
+	}
+
+	private final String stepName;
+	private final long companyId;
+	private final StepMetrics previous;
+	private final long startNanos;
+	private volatile long elapsedNanos;
+	private volatile boolean failed;
+	private volatile boolean finished;
+	private final Map<String, LongAdder> serviceCalls = new ConcurrentHashMap<>();
+	private final LongAdder entitiesCreated = new LongAdder();
+
+	private static final ThreadLocal<StepMetrics> current = new ThreadLocal<>();
+}
@@ -0,0 +1,102 @@
+package com.example.environment.setup.permission;
+
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class PermissionGrantSetup: Grants the resource permissions declared in a permission resource to the roles the earlier
+ * steps created, i.e. what the UI Tester role may see and do.
+ *
+ * The grants go through a ResourcePermissionGrantEngine, so each role's permission rows are read once and only the rows
+ * missing actions are written, one call per row in batched transactions. Running the step again writes nothing.
+ *
+ * @author dnebinger
+ */
+public class PermissionGrantSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * PermissionGrantSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param resourcePermissionGrantEngine
+	 * @param permissionResource Class path of the permissions, i.e. com/example/environment/setup/permissions-1.7.0.xml
+	 */
+	public PermissionGrantSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, ResourcePermissionGrantEngine resourcePermissionGrantEngine, String permissionResource) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.resourcePermissionGrantEngine = resourcePermissionGrantEngine;
+		this.permissionResource = permissionResource;
+	}
+
+	@Override
+	protected void setupEnvironment(final ServiceContext serviceContext) throws Exception {
+		InputStream inputStream = PermissionGrantSetup.class.getClassLoader().getResourceAsStream(permissionResource);
+
+		if (inputStream == null) {
+			throw new IllegalStateException("Unable to find permissions " + permissionResource);
+		}
+
+		long start = System.nanoTime();
+
+		PermissionMatrix permissionMatrix;
+
+		try (PermissionMatrixReader permissionMatrixReader = new PermissionMatrixReader(inputStream, getCompanyId(), this::getExistingSiteId)) {
+			permissionMatrix = permissionMatrixReader.read();
+		}
+
+		int written = resourcePermissionGrantEngine.grant(permissionMatrix);
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Granted " + permissionMatrix.getGrants().size() + " permissions from " + permissionResource + " for company " + getCompanyId() + " in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + written + " permission rows written");
+		}
+	}
+
+	/**
+	 * getExistingSiteId: Returns the group id of the named site. Unlike getSiteId() there is no fall back to the company
+	 * group, a permission meant for a site must not end up on the company.
+	 * @param siteName
+	 * @return long The group id or <code>-1</code> if there is no such site.
+	 */
+	protected long getExistingSiteId(final String siteName) {
+		long siteId = getSetupLookupCache().getSiteGroupId(siteName);
+
+		if (siteId != -1) {
+			return siteId;
+		}
+
+		Group group = getGroupLocalService().fetchGroup(getCompanyId(), siteName);
+
+		if ((group == null) || !group.isSite()) {
+			return -1;
+		}
+
+		getSetupLookupCache().putSiteGroupId(siteName, group.getGroupId());
+
+		return group.getGroupId();
+	}
+
+	public String getPermissionResource() {
+		return permissionResource;
+	}
+
+	private final ResourcePermissionGrantEngine resourcePermissionGrantEngine;
+	private final String permissionResource;
+
+	private static final Log _log = LogFactoryUtil.getLog(PermissionGrantSetup.class);
+}
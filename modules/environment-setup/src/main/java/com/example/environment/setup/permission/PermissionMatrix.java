@@ -0,0 +1,81 @@
+package com.example.environment.setup.permission;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class PermissionMatrix: The resource permissions a step wants its roles to have, as role x resource x actions. Like a
+ * DesiredState it only declares what should exist, the ResourcePermissionGrantEngine works out what is missing.
+ *
+ * @author dnebinger
+ */
+public class PermissionMatrix {
+
+	/**
+	 * grant: Declares that the role may do the actions on the resource.
+	 * @param roleName
+	 * @param resourceName The model or portlet name, i.e. com.liferay.portal.kernel.model.Group.
+	 * @param scope One of the ResourceConstants scopes.
+	 * @param primKey The company id for the company scope, the group id for the group scope, 0 for the group template
+	 *                scope or the entity's primary key for the individual scope.
+	 * @param actionIds The actions, i.e. VIEW and UPDATE.
+	 * @return PermissionMatrix This matrix, so calls can be chained.
+	 */
+	public PermissionMatrix grant(final String roleName, final String resourceName, final int scope, final String primKey, final String... actionIds) {
+		grants.add(new Grant(roleName, resourceName, scope, primKey, Arrays.asList(actionIds)));
+
+		return this;
+	}
+
+	public List<Grant> getGrants() {
+		return Collections.unmodifiableList(grants);
+	}
+
+	public boolean isEmpty() {
+		return grants.isEmpty();
+	}
+
+	private final List<Grant> grants = new ArrayList<>();
+
+	/**
+	 * class Grant: The actions a role may do on one resource.
+	 */
+	public static class Grant {
+
+		public Grant(String roleName, String resourceName, int scope, String primKey, List<String> actionIds) {
+			this.roleName = roleName;
+			this.resourceName = resourceName;
+			this.scope = scope;
+			this.primKey = primKey;
+			this.actionIds = actionIds;
+		}
+
+		public String getRoleName() {
+			return roleName;
+		}
+
+		public String getResourceName() {
+			return resourceName;
+		}
+
+		public int getScope() {
+			return scope;
+		}
+
+		public String getPrimKey() {
+			return primKey;
+		}
+
+		public List<String> getActionIds() {
+			return Collections.unmodifiableList(actionIds);
+		}
+
+		private final String roleName;
+		private final String resourceName;
+		private final int scope;
+		private final String primKey;
+		private final List<String> actionIds;
+	}
+}
@@ -0,0 +1,154 @@
+package com.example.environment.setup.permission;
+
+import com.liferay.portal.kernel.model.ResourceConstants;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.ToLongFunction;
+
+/**
+ * class PermissionMatrixReader: Reads a PermissionMatrix from a permission resource. A matrix of a few thousand grants is
+ * small, so unlike the seed manifest it is read in one go. A resource looks like:
+ *
+ * <pre>
+ * &lt;permissions&gt;
+ *     &lt;role name="UI Tester"&gt;
+ *         &lt;permission resource="com.liferay.portal.kernel.model.Layout" scope="group" site="UI Test Site" actions="VIEW" /&gt;
+ *         &lt;permission resource="com.liferay.portal.kernel.model.Group" scope="company" actions="VIEW,VIEW_SITE_ADMINISTRATION" /&gt;
+ *     &lt;/role&gt;
+ * &lt;/permissions&gt;
+ * </pre>
+ *
+ * The scope is company (the default), group, group-template or individual. A group scoped permission names its site, an
+ * individual one gives the entity's primary key in a prim-key attribute.
+ *
+ * @author dnebinger
+ */
+public class PermissionMatrixReader implements Closeable {
+
+	/**
+	 * PermissionMatrixReader: Constructor which takes the stream to read the matrix from.
+	 * @param inputStream
+	 * @param companyId The company the matrix is read for, the primary key of company scoped permissions.
+	 * @param siteIdResolver Returns the group id of a site by name, <code>-1</code> if there is no such site.
+	 * @throws XMLStreamException
+	 */
+	public PermissionMatrixReader(final InputStream inputStream, final long companyId, final ToLongFunction<String> siteIdResolver) throws XMLStreamException {
+		super();
+
+		XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+
+		// the matrix is plain data, there is no reason to allow DTDs or external entities.
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		this.inputStream = inputStream;
+		this.xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+		this.companyId = companyId;
+		this.siteIdResolver = siteIdResolver;
+	}
+
+	/**
+	 * read: Reads the whole matrix.
+	 * @return PermissionMatrix The matrix.
+	 * @throws XMLStreamException
+	 */
+	public PermissionMatrix read() throws XMLStreamException {
+		PermissionMatrix permissionMatrix = new PermissionMatrix();
+		String roleName = null;
+
+		while (xmlStreamReader.hasNext()) {
+			int event = xmlStreamReader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String elementName = xmlStreamReader.getLocalName();
+
+				if (ROLE.equals(elementName)) {
+					roleName = getAttribute("name");
+				} else if (PERMISSION.equals(elementName)) {
+					if (roleName == null) {
+						throw new IllegalStateException("Permission on " + getAttribute("resource") + " is not inside a role");
+					}
+
+					int scope = getScope(getAttribute("scope"));
+
+					permissionMatrix.grant(roleName, getAttribute("resource"), scope, getPrimKey(scope), StringUtil.split(getAttribute("actions")));
+				}
+			} else if ((event == XMLStreamConstants.END_ELEMENT) && ROLE.equals(xmlStreamReader.getLocalName())) {
+				roleName = null;
+			}
+		}
+
+		return permissionMatrix;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			xmlStreamReader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	protected int getScope(final String scope) {
+		if (Validator.isNull(scope) || "company".equals(scope)) {
+			return ResourceConstants.SCOPE_COMPANY;
+		}
+
+		if ("group".equals(scope)) {
+			return ResourceConstants.SCOPE_GROUP;
+		}
+
+		if ("group-template".equals(scope)) {
+			return ResourceConstants.SCOPE_GROUP_TEMPLATE;
+		}
+
+		if ("individual".equals(scope)) {
+			return ResourceConstants.SCOPE_INDIVIDUAL;
+		}
+
+		throw new IllegalStateException("Unknown permission scope " + scope);
+	}
+
+	protected String getPrimKey(final int scope) {
+		switch (scope) {
+			case ResourceConstants.SCOPE_COMPANY:
+				return String.valueOf(companyId);
+			case ResourceConstants.SCOPE_GROUP:
+				String siteName = getAttribute("site");
+				long siteId = siteIdResolver.applyAsLong(siteName);
+
+				if (siteId == -1) {
+					throw new IllegalStateException("Unable to find site " + siteName + " in company " + companyId);
+				}
+
+				return String.valueOf(siteId);
+			case ResourceConstants.SCOPE_GROUP_TEMPLATE:
+				return "0";
+			default:
+				return getAttribute("prim-key");
+		}
+	}
+
+	protected String getAttribute(final String name) {
+		return xmlStreamReader.getAttributeValue(null, name);
+	}
+
+	private final InputStream inputStream;
+	private final XMLStreamReader xmlStreamReader;
+	private final long companyId;
+	private final ToLongFunction<String> siteIdResolver;
+
+	private static final String ROLE = "role";
+	private static final String PERMISSION = "permission";
+}
@@ -0,0 +1,240 @@
+package com.example.environment.setup.permission;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.ResourceAction;
+import com.liferay.portal.kernel.model.ResourcePermission;
+import com.liferay.portal.kernel.service.ResourceActionLocalService;
+import com.liferay.portal.kernel.service.ResourcePermissionLocalService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class ResourcePermissionGrantEngine: Grants the resource permissions of a PermissionMatrix, issuing only the writes for
+ * what is missing.
+ *
+ * A role's permissions on a resource are a single ResourcePermission row whose actionIds column is a bitmask of the
+ * actions. Granting through addResourcePermission() costs a round trip per action per resource. The engine instead
+ * combines every action the matrix grants on a row into one bitmask, and checks it against an in memory index of the
+ * rows the role already has, loaded with one query per role. A row that already has all of the actions is skipped. A
+ * row that is missing some gets a single setResourcePermissions() call with the union of the actions it has and the
+ * ones granted, so nothing granted by hand is taken away. The writes are committed in batches, one transaction per
+ * batch.
+ *
+ * Like the EnvironmentReconciler, the engine and its index are kept for the life of the step. Running it against a
+ * company that already has the permissions costs the index reads and no writes.
+ *
+ * @author dnebinger
+ */
+public class ResourcePermissionGrantEngine {
+
+	public ResourcePermissionGrantEngine(final EnvironmentSnapshot environmentSnapshot, final ResourcePermissionLocalService resourcePermissionLocalService, final ResourceActionLocalService resourceActionLocalService, final int batchSize) {
+		super();
+
+		this.environmentSnapshot = environmentSnapshot;
+		this.resourcePermissionLocalService = resourcePermissionLocalService;
+		this.resourceActionLocalService = resourceActionLocalService;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * grant: Grants whatever the matrix declares that the roles do not have yet.
+	 * @param permissionMatrix
+	 * @return int The number of rows that were written.
+	 * @throws Exception
+	 */
+	public int grant(final PermissionMatrix permissionMatrix) throws Exception {
+		long start = System.nanoTime();
+
+		// every action granted on a row is combined into the row's bitmask first.
+		Map<String, Row> rows = new LinkedHashMap<>();
+
+		for (PermissionMatrix.Grant grant : permissionMatrix.getGrants()) {
+			long roleId = environmentSnapshot.getRoleId(grant.getRoleName());
+
+			if (roleId == -1) {
+				throw new IllegalStateException("Unable to find role " + grant.getRoleName() + " in company " + environmentSnapshot.getCompanyId());
+			}
+
+			long actionIds = 0;
+
+			for (String actionId : grant.getActionIds()) {
+				actionIds |= getBitwiseValue(grant.getResourceName(), actionId);
+			}
+
+			Row row = new Row(roleId, grant.getResourceName(), grant.getScope(), grant.getPrimKey());
+
+			rows.computeIfAbsent(row.getKey(), key -> row).actionIds |= actionIds;
+		}
+
+		List<Row> missing = new ArrayList<>();
+
+		for (Row row : rows.values()) {
+			long existing = getExistingActionIds(row);
+
+			if ((existing & row.actionIds) != row.actionIds) {
+				row.actionIds |= existing;
+
+				missing.add(row);
+			}
+		}
+
+		try (ChunkedTransactionProcessor<Row> processor = new ChunkedTransactionProcessor<>(this::writeRows, batchSize, this::committedRows)) {
+			for (Row row : missing) {
+				processor.add(row);
+			}
+		}
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Granted " + permissionMatrix.getGrants().size() + " permissions in company " + environmentSnapshot.getCompanyId() + " as " + rows.size() + " rows, "
+					+ missing.size() + " written, in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+
+		return missing.size();
+	}
+
+	public EnvironmentSnapshot getEnvironmentSnapshot() {
+		return environmentSnapshot;
+	}
+
+	/**
+	 * writeRows: Sets the actions of each row. Called inside the batch's transaction.
+	 * @param batch
+	 * @throws Exception
+	 */
+	protected void writeRows(final List<Row> batch) throws Exception {
+		for (Row row : batch) {
+			resourcePermissionLocalService.setResourcePermissions(environmentSnapshot.getCompanyId(), row.resourceName, row.scope, row.primKey, row.roleId, getActionIds(row.resourceName, row.actionIds));
+		}
+	}
+
+	/**
+	 * committedRows: Records the rows of a committed batch in the index, so a later grant in the same step sees them.
+	 * @param batch
+	 */
+	protected void committedRows(final List<Row> batch) {
+		for (Row row : batch) {
+			getRoleIndex(row.roleId).put(row.getKey(), row.actionIds);
+		}
+	}
+
+	/**
+	 * getExistingActionIds: Returns the bitmask of the actions the role already has on the row's resource.
+	 * @param row
+	 * @return long The bitmask, <code>0</code> if the role has no row for the resource.
+	 */
+	protected long getExistingActionIds(final Row row) {
+		Long actionIds = getRoleIndex(row.roleId).get(row.getKey());
+
+		return (actionIds == null) ? 0 : actionIds;
+	}
+
+	/**
+	 * getRoleIndex: Returns the index of the rows the role has, loading them with one query the first time.
+	 * @param roleId
+	 * @return Map The bitmasks by row key.
+	 */
+	protected Map<String, Long> getRoleIndex(final long roleId) {
+		return roleIndexes.computeIfAbsent(roleId, id -> {
+			Map<String, Long> index = new HashMap<>();
+
+			for (ResourcePermission resourcePermission : resourcePermissionLocalService.getRoleResourcePermissions(id)) {
+				if (resourcePermission.getCompanyId() == environmentSnapshot.getCompanyId()) {
+					index.put(Row.getKey(id, resourcePermission.getName(), resourcePermission.getScope(), resourcePermission.getPrimKey()), resourcePermission.getActionIds());
+				}
+			}
+
+			return index;
+		});
+	}
+
+	/**
+	 * getBitwiseValue: Returns the bit of the action on the resource. Only actions the portal has registered for the
+	 * resource are accepted, so a misspelled action in the matrix fails the step rather than registering a new action.
+	 * @param resourceName
+	 * @param actionId
+	 * @return long The bit.
+	 */
+	protected long getBitwiseValue(final String resourceName, final String actionId) {
+		ResourceAction resourceAction = getResourceActions(resourceName).get(actionId);
+
+		if (resourceAction == null) {
+			throw new IllegalStateException("Unable to find action " + actionId + " of resource " + resourceName + ", its actions are " + getResourceActions(resourceName).keySet());
+		}
+
+		return resourceAction.getBitwiseValue();
+	}
+
+	/**
+	 * getActionIds: Turns a bitmask back into the names of the actions, the form setResourcePermissions() takes.
+	 * @param resourceName
+	 * @param actionIds
+	 * @return String[] The action names.
+	 */
+	protected String[] getActionIds(final String resourceName, final long actionIds) {
+		List<String> names = new ArrayList<>();
+
+		for (ResourceAction resourceAction : getResourceActions(resourceName).values()) {
+			if ((actionIds & resourceAction.getBitwiseValue()) != 0) {
+				names.add(resourceAction.getActionId());
+			}
+		}
+
+		return names.toArray(new String[0]);
+	}
+
+	protected Map<String, ResourceAction> getResourceActions(final String resourceName) {
+		return resourceActions.computeIfAbsent(resourceName, name -> {
+			Map<String, ResourceAction> actions = new LinkedHashMap<>();
+
+			for (ResourceAction resourceAction : resourceActionLocalService.getResourceActions(name)) {
+				actions.put(resourceAction.getActionId(), resourceAction);
+			}
+
+			return actions;
+		});
+	}
+
+	/**
+	 * class Row: A role's ResourcePermission row for one resource, with the bitmask of the actions it should have.
+	 */
+	protected static class Row {
+
+		Row(long roleId, String resourceName, int scope, String primKey) {
+			this.roleId = roleId;
+			this.resourceName = resourceName;
+			this.scope = scope;
+			this.primKey = primKey;
+		}
+
+		String getKey() {
+			return getKey(roleId, resourceName, scope, primKey);
+		}
+
+		static String getKey(final long roleId, final String resourceName, final int scope, final String primKey) {
+			return roleId + "_" + resourceName + "_" + scope + "_" + primKey;
+		}
+
+		private final long roleId;
+		private final String resourceName;
+		private final int scope;
+		private final String primKey;
+		private long actionIds;
+	}
+
+	private final EnvironmentSnapshot environmentSnapshot;
+	private final ResourcePermissionLocalService resourcePermissionLocalService;
+	private final ResourceActionLocalService resourceActionLocalService;
+	private final int batchSize;
+	private final Map<Long, Map<String, Long>> roleIndexes = new HashMap<>();
+	private final Map<String, Map<String, ResourceAction>> resourceActions = new HashMap<>();
+
+	private static final Log _log = LogFactoryUtil.getLog(ResourcePermissionGrantEngine.class);
+}
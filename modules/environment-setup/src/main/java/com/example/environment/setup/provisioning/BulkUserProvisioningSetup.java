@@ -0,0 +1,158 @@
+package com.example.environment.setup.provisioning;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class BulkUserProvisioningSetup: Creates users from a CSV resource and adds them to their user groups.
+ *
+ * The CSV is streamed with the UserCsvReader and the users are created in chunks, each chunk in its own transaction. The
+ * user group memberships for a chunk are added with one bulk call per user group rather than one call per user. Users
+ * whose screen name already exists are skipped, so the step can be re-applied. The line number of each committed chunk is
+ * saved as a checkpoint, an interrupted run picks up after the last one. See UserCsvReader for the CSV format.
+ *
+ * @author dnebinger
+ */
+public class BulkUserProvisioningSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * BulkUserProvisioningSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler
+	 * @param csvResource Class path of the CSV, i.e. com/example/environment/setup/users-1.4.0.csv
+	 * @param chunkSize Number of users created per transaction.
+	 */
+	public BulkUserProvisioningSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler, String csvResource, int chunkSize) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.environmentReconciler = environmentReconciler;
+		this.csvResource = csvResource;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	protected void setupEnvironment(final ServiceContext serviceContext) throws Exception {
+		InputStream inputStream = BulkUserProvisioningSetup.class.getClassLoader().getResourceAsStream(csvResource);
+
+		if (inputStream == null) {
+			throw new IllegalStateException("Unable to find user CSV " + csvResource);
+		}
+
+		long start = System.nanoTime();
+
+		// lines through the checkpoint were committed by an earlier, interrupted run.
+		long checkpoint = getCheckpoint();
+
+		ChunkedTransactionProcessor<UserCsvReader.UserRecord> processor = new ChunkedTransactionProcessor<>(chunk -> {
+			provisionUsers(chunk, serviceContext);
+
+			if (_log.isDebugEnabled()) {
+				_log.debug("Provisioned a chunk of " + chunk.size() + " users, through line " + chunk.get(chunk.size() - 1).getLineNumber() + " of " + csvResource);
+			}
+		}, chunkSize, chunk -> saveCheckpoint(chunk.get(chunk.size() - 1).getLineNumber()));
+
+		try (UserCsvReader userCsvReader = new UserCsvReader(inputStream)) {
+			UserCsvReader.UserRecord userRecord;
+
+			while ((userRecord = userCsvReader.next()) != null) {
+				if (userRecord.getLineNumber() <= checkpoint) {
+					continue;
+				}
+
+				processor.add(userRecord);
+			}
+
+			processor.close();
+		}
+
+		long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		long count = processor.getProcessedCount();
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Provisioned " + count + " users from " + csvResource + " for company " + getCompanyId() + " in " + elapsedMillis + " ms ("
+					+ (count * 1000 / elapsedMillis) + " users/s, " + processor.getChunkCount() + " transactions, " + skippedCount + " already existed)");
+		}
+	}
+
+	/**
+	 * provisionUsers: Creates the users in the chunk that don't exist yet and then adds the new members of each user group
+	 * with a single call. Called inside the chunk's transaction.
+	 * @param chunk
+	 * @param serviceContext
+	 * @throws Exception
+	 */
+	protected void provisionUsers(final List<UserCsvReader.UserRecord> chunk, final ServiceContext serviceContext) throws Exception {
+		EnvironmentSnapshot environmentSnapshot = environmentReconciler.getEnvironmentSnapshot();
+
+		// one query tells us which users in the chunk already exist, so a re-run does not fail on duplicates.
+		List<String> screenNames = new ArrayList<>();
+
+		for (UserCsvReader.UserRecord userRecord : chunk) {
+			if (Validator.isNotNull(userRecord.getScreenName())) {
+				screenNames.add(userRecord.getScreenName());
+			}
+		}
+
+		Map<String, Long> existingUserIds = environmentSnapshot.findUserIds(screenNames);
+
+		Map<String, List<Long>> userGroupMembers = new LinkedHashMap<>();
+
+		for (UserCsvReader.UserRecord userRecord : chunk) {
+			if (Validator.isNotNull(userRecord.getScreenName()) && existingUserIds.containsKey(StringUtil.toLowerCase(userRecord.getScreenName()))) {
+				skippedCount++;
+
+				continue;
+			}
+
+			User user = addUser(userRecord.getScreenName(), userRecord.getEmailAddress(), userRecord.getFirstName(), userRecord.getLastName(), userRecord.getJobTitle(), serviceContext);
+
+			for (String userGroupName : userRecord.getUserGroupNames()) {
+				userGroupMembers.computeIfAbsent(userGroupName, name -> new ArrayList<>()).add(user.getUserId());
+			}
+		}
+
+		for (Map.Entry<String, List<Long>> members : userGroupMembers.entrySet()) {
+			long userGroupId = environmentSnapshot.getUserGroupId(members.getKey());
+
+			if (userGroupId == -1) {
+				throw new IllegalStateException("Unable to find user group " + members.getKey() + " in company " + getCompanyId());
+			}
+
+			getUserLocalService().addUserGroupUsers(userGroupId, ArrayUtil.toLongArray(members.getValue()));
+		}
+	}
+
+	private final EnvironmentReconciler environmentReconciler;
+	private final String csvResource;
+	private final int chunkSize;
+
+	private long skippedCount;
+
+	private static final Log _log = LogFactoryUtil.getLog(BulkUserProvisioningSetup.class);
+}
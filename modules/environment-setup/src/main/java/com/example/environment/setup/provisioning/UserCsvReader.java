@@ -0,0 +1,193 @@
+package com.example.environment.setup.provisioning;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class UserCsvReader: Streams user records out of a CSV resource one line at a time.
+ *
+ * The first non-comment line is the header and names the columns, the supported columns are screenName, emailAddress,
+ * firstName, lastName, jobTitle and userGroups (a semicolon separated list of user group names). Blank lines and lines
+ * starting with # are skipped. Values may be double quoted to hold commas.
+ *
+ * @author dnebinger
+ */
+public class UserCsvReader implements Closeable {
+
+	/**
+	 * UserCsvReader: Constructor which takes the stream to read the records from.
+	 * @param inputStream
+	 */
+	public UserCsvReader(final InputStream inputStream) {
+		super();
+
+		this.bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * next: Reads the next user record.
+	 * @return UserRecord The next record or <code>null</code> at the end of the resource.
+	 * @throws IOException
+	 */
+	public UserRecord next() throws IOException {
+		String line;
+
+		while ((line = bufferedReader.readLine()) != null) {
+			lineNumber++;
+
+			String trimmed = line.trim();
+
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+
+			List<String> values = parseLine(line);
+
+			if (header == null) {
+				header = new HashMap<>();
+
+				for (int i = 0; i < values.size(); i++) {
+					header.put(values.get(i).trim(), i);
+				}
+
+				continue;
+			}
+
+			return new UserRecord(lineNumber, getValue(values, "screenName"), getValue(values, "emailAddress"), getValue(values, "firstName"),
+					getValue(values, "lastName"), getValue(values, "jobTitle"), splitUserGroups(getValue(values, "userGroups")));
+		}
+
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		bufferedReader.close();
+	}
+
+	protected String getValue(final List<String> values, final String column) {
+		Integer index = header.get(column);
+
+		if ((index == null) || (index >= values.size())) {
+			return null;
+		}
+
+		String value = values.get(index).trim();
+
+		return value.isEmpty() ? null : value;
+	}
+
+	protected List<String> splitUserGroups(final String userGroups) {
+		List<String> userGroupNames = new ArrayList<>();
+
+		if (userGroups == null) {
+			return userGroupNames;
+		}
+
+		for (String userGroupName : userGroups.split(";")) {
+			if (!userGroupName.trim().isEmpty()) {
+				userGroupNames.add(userGroupName.trim());
+			}
+		}
+
+		return userGroupNames;
+	}
+
+	/**
+	 * parseLine: Splits a CSV line into its values, honoring double quotes.
+	 * @param line
+	 * @return List The values.
+	 */
+	protected List<String> parseLine(final String line) {
+		List<String> values = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (c == '"') {
+				if (quoted && (i + 1 < line.length()) && (line.charAt(i + 1) == '"')) {
+					// escaped quote
+					sb.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if ((c == ',') && !quoted) {
+				values.add(sb.toString());
+				sb.setLength(0);
+			} else {
+				sb.append(c);
+			}
+		}
+
+		values.add(sb.toString());
+
+		return values;
+	}
+
+	/**
+	 * class UserRecord: A single user read from the CSV.
+	 */
+	public static class UserRecord {
+
+		public UserRecord(long lineNumber, String screenName, String emailAddress, String firstName, String lastName, String jobTitle, List<String> userGroupNames) {
+			this.lineNumber = lineNumber;
+			this.screenName = screenName;
+			this.emailAddress = emailAddress;
+			this.firstName = firstName;
+			this.lastName = lastName;
+			this.jobTitle = jobTitle;
+			this.userGroupNames = userGroupNames;
+		}
+
+		public long getLineNumber() {
+			return lineNumber;
+		}
+
+		public String getScreenName() {
+			return screenName;
+		}
+
+		public String getEmailAddress() {
+			return emailAddress;
+		}
+
+		public String getFirstName() {
+			return firstName;
+		}
+
+		public String getLastName() {
+			return lastName;
+		}
+
+		public String getJobTitle() {
+			return jobTitle;
+		}
+
+		public List<String> getUserGroupNames() {
+			return userGroupNames;
+		}
+
+		private final long lineNumber;
+		private final String screenName;
+		private final String emailAddress;
+		private final String firstName;
+		private final String lastName;
+		private final String jobTitle;
+		private final List<String> userGroupNames;
+	}
+
+	private final BufferedReader bufferedReader;
+	private Map<String, Integer> header;
+	private long lineNumber;
+}
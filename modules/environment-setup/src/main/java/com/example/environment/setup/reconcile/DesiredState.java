@@ -0,0 +1,228 @@
+package com.example.environment.setup.reconcile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class DesiredState: The roles, user groups and role assignments a setup step wants to exist. The EnvironmentReconciler
+ * compares it to what is already there and only writes what is missing.
+ *
+ * @author dnebinger
+ */
+public class DesiredState {
+
+	/**
+	 * addRole: Declares a role.
+	 * @param name
+	 * @param type One of the RoleConstants types.
+	 * @param description
+	 * @return DesiredState This instance, so calls can be chained.
+	 */
+	public DesiredState addRole(final String name, final int type, final String description) {
+		roles.add(new RoleSpec(name, type, description));
+
+		return this;
+	}
+
+	/**
+	 * addUserGroup: Declares a user group.
+	 * @param name
+	 * @param description
+	 * @return DesiredState This instance, so calls can be chained.
+	 */
+	public DesiredState addUserGroup(final String name, final String description) {
+		userGroups.add(new UserGroupSpec(name, description));
+
+		return this;
+	}
+
+	/**
+	 * addRoleGroupAssignment: Declares that the user group should have the role.
+	 * @param roleName
+	 * @param userGroupName
+	 * @return DesiredState This instance, so calls can be chained.
+	 */
+	public DesiredState addRoleGroupAssignment(final String roleName, final String userGroupName) {
+		roleGroupAssignments.add(new RoleGroupAssignment(roleName, userGroupName));
+
+		return this;
+	}
+
+	/**
+	 * addRoleUserAssignment: Declares that the user should have the role.
+	 * @param roleName
+	 * @param screenName
+	 * @return DesiredState This instance, so calls can be chained.
+	 */
+	public DesiredState addRoleUserAssignment(final String roleName, final String screenName) {
+		roleUserAssignments.add(new RoleUserAssignment(roleName, screenName));
+
+		return this;
+	}
+
+	/**
+	 * addUserGroupRole: Declares that the user should have the role within the user group's group.
+	 * @param userId
+	 * @param userGroupName
+	 * @param roleName
+	 * @return DesiredState This instance, so calls can be chained.
+	 */
+	public DesiredState addUserGroupRole(final long userId, final String userGroupName, final String roleName) {
+		userGroupRoles.add(new UserGroupRoleSpec(userId, userGroupName, roleName));
+
+		return this;
+	}
+
+	/**
+	 * addAll: Declares everything the other desired state declares, i.e. to combine the states of several steps.
+	 * @param desiredState
+	 * @return DesiredState This instance, so calls can be chained.
+	 */
+	public DesiredState addAll(final DesiredState desiredState) {
+		roles.addAll(desiredState.roles);
+		userGroups.addAll(desiredState.userGroups);
+		roleGroupAssignments.addAll(desiredState.roleGroupAssignments);
+		roleUserAssignments.addAll(desiredState.roleUserAssignments);
+		userGroupRoles.addAll(desiredState.userGroupRoles);
+
+		return this;
+	}
+
+	public List<RoleSpec> getRoles() {
+		return Collections.unmodifiableList(roles);
+	}
+
+	public List<UserGroupSpec> getUserGroups() {
+		return Collections.unmodifiableList(userGroups);
+	}
+
+	public List<RoleGroupAssignment> getRoleGroupAssignments() {
+		return Collections.unmodifiableList(roleGroupAssignments);
+	}
+
+	public List<RoleUserAssignment> getRoleUserAssignments() {
+		return Collections.unmodifiableList(roleUserAssignments);
+	}
+
+	public List<UserGroupRoleSpec> getUserGroupRoles() {
+		return Collections.unmodifiableList(userGroupRoles);
+	}
+
+	public boolean isEmpty() {
+		return roles.isEmpty() && userGroups.isEmpty() && roleGroupAssignments.isEmpty() && roleUserAssignments.isEmpty() && userGroupRoles.isEmpty();
+	}
+
+	public static class RoleSpec {
+
+		public RoleSpec(String name, int type, String description) {
+			this.name = name;
+			this.type = type;
+			this.description = description;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		private final String name;
+		private final int type;
+		private final String description;
+	}
+
+	public static class UserGroupSpec {
+
+		public UserGroupSpec(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		private final String name;
+		private final String description;
+	}
+
+	public static class RoleGroupAssignment {
+
+		public RoleGroupAssignment(String roleName, String userGroupName) {
+			this.roleName = roleName;
+			this.userGroupName = userGroupName;
+		}
+
+		public String getRoleName() {
+			return roleName;
+		}
+
+		public String getUserGroupName() {
+			return userGroupName;
+		}
+
+		private final String roleName;
+		private final String userGroupName;
+	}
+
+	public static class RoleUserAssignment {
+
+		public RoleUserAssignment(String roleName, String screenName) {
+			this.roleName = roleName;
+			this.screenName = screenName;
+		}
+
+		public String getRoleName() {
+			return roleName;
+		}
+
+		public String getScreenName() {
+			return screenName;
+		}
+
+		private final String roleName;
+		private final String screenName;
+	}
+
+	public static class UserGroupRoleSpec {
+
+		public UserGroupRoleSpec(long userId, String userGroupName, String roleName) {
+			this.userId = userId;
+			this.userGroupName = userGroupName;
+			this.roleName = roleName;
+		}
+
+		public long getUserId() {
+			return userId;
+		}
+
+		public String getUserGroupName() {
+			return userGroupName;
+		}
+
+		public String getRoleName() {
+			return roleName;
+		}
+
+		private final long userId;
+		private final String userGroupName;
+		private final String roleName;
+	}
+
+	private final List<RoleSpec> roles = new ArrayList<>();
+	private final List<UserGroupSpec> userGroups = new ArrayList<>();
+	private final List<RoleGroupAssignment> roleGroupAssignments = new ArrayList<>();
+	private final List<RoleUserAssignment> roleUserAssignments = new ArrayList<>();
+	private final List<UserGroupRoleSpec> userGroupRoles = new ArrayList<>();
+}
@@ -0,0 +1,242 @@
+package com.example.environment.setup.reconcile;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.RoleService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserGroupRoleService;
+import com.liferay.portal.kernel.service.UserGroupService;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.LocaleUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+import com.liferay.portal.kernel.util.Validator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * class EnvironmentReconciler: Brings a company in line with a DesiredState, issuing only the writes for what is missing.
+ *
+ * What already exists comes from an EnvironmentSnapshot, which loads it with a few queries and is kept for the life of the
+ * reconciler, so a step can reconcile many small desired states (one per chunk, say) against the same snapshot. Running
+ * against a company that is already set up costs the snapshot reads and no writes.
+ *
+ * @author dnebinger
+ */
+public class EnvironmentReconciler {
+
+	public EnvironmentReconciler(final EnvironmentSnapshot environmentSnapshot, final RoleService roleService, final UserGroupService userGroupService, final UserGroupRoleService userGroupRoleService, final GroupLocalService groupLocalService, final UserLocalService userLocalService) {
+		super();
+
+		this.environmentSnapshot = environmentSnapshot;
+		this.roleService = roleService;
+		this.userGroupService = userGroupService;
+		this.userGroupRoleService = userGroupRoleService;
+		this.groupLocalService = groupLocalService;
+		this.userLocalService = userLocalService;
+	}
+
+	/**
+	 * reconcile: Creates whatever the desired state declares that does not exist yet.
+	 * @param desiredState
+	 * @param serviceContext
+	 * @return int The number of writes that were issued.
+	 * @throws Exception
+	 */
+	public int reconcile(final DesiredState desiredState, final ServiceContext serviceContext) throws Exception {
+		int readsBefore = environmentSnapshot.getReadCount();
+		int writes = 0;
+
+		for (DesiredState.RoleSpec roleSpec : desiredState.getRoles()) {
+			if (environmentSnapshot.getRoleId(roleSpec.getName()) == -1) {
+				Map<Locale, String> titleMap = new HashMap<>();
+				Map<Locale, String> descMap = new HashMap<>();
+
+				if (Validator.isNotNull(roleSpec.getDescription())) {
+					descMap.put(LocaleUtil.getDefault(), roleSpec.getDescription());
+				}
+
+				Role role = roleService.addRole(null, 0, roleSpec.getName(), titleMap, descMap, roleSpec.getType(), null, serviceContext);
+
+				environmentSnapshot.addedRole(role);
+				writes++;
+			}
+		}
+
+		for (DesiredState.UserGroupSpec userGroupSpec : desiredState.getUserGroups()) {
+			if (environmentSnapshot.getUserGroupId(userGroupSpec.getName()) == -1) {
+				UserGroup userGroup = userGroupService.addUserGroup(userGroupSpec.getName(), GetterUtil.getString(userGroupSpec.getDescription()), serviceContext);
+
+				environmentSnapshot.addedUserGroup(userGroup);
+				writes++;
+			}
+		}
+
+		writes += reconcileRoleGroupAssignments(desiredState);
+		writes += reconcileRoleUserAssignments(desiredState);
+		writes += reconcileUserGroupRoles(desiredState);
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Reconciled company " + environmentSnapshot.getCompanyId() + " with " + (environmentSnapshot.getReadCount() - readsBefore) + " reads and " + writes + " writes");
+		}
+
+		return writes;
+	}
+
+	public EnvironmentSnapshot getEnvironmentSnapshot() {
+		return environmentSnapshot;
+	}
+
+	/**
+	 * setUserGroupRoleBatchWriter: Has the missing user group roles written with batched inserts rather than through the
+	 * user group role service, see UserGroupRoleBatchWriter.
+	 * @param userGroupRoleBatchWriter The writer, <code>null</code> to go back to the service.
+	 */
+	public void setUserGroupRoleBatchWriter(final UserGroupRoleBatchWriter userGroupRoleBatchWriter) {
+		this.userGroupRoleBatchWriter = userGroupRoleBatchWriter;
+	}
+
+	protected int reconcileRoleGroupAssignments(final DesiredState desiredState) throws Exception {
+		// missing assignments are grouped by role so each role gets a single bulk call.
+		Map<Long, List<Long>> missing = new LinkedHashMap<>();
+
+		for (DesiredState.RoleGroupAssignment assignment : desiredState.getRoleGroupAssignments()) {
+			long roleId = getRoleId(assignment.getRoleName());
+			long groupId = getUserGroupGroupId(assignment.getUserGroupName());
+
+			if (!environmentSnapshot.hasRoleGroup(roleId, groupId)) {
+				missing.computeIfAbsent(roleId, id -> new ArrayList<>()).add(groupId);
+			}
+		}
+
+		for (Map.Entry<Long, List<Long>> entry : missing.entrySet()) {
+			long[] groupIds = ArrayUtil.toLongArray(entry.getValue());
+
+			groupLocalService.addRoleGroups(entry.getKey(), groupIds);
+
+			environmentSnapshot.addedRoleGroups(entry.getKey(), groupIds);
+		}
+
+		return missing.size();
+	}
+
+	protected int reconcileRoleUserAssignments(final DesiredState desiredState) throws Exception {
+		if (desiredState.getRoleUserAssignments().isEmpty()) {
+			return 0;
+		}
+
+		List<String> screenNames = new ArrayList<>();
+
+		for (DesiredState.RoleUserAssignment assignment : desiredState.getRoleUserAssignments()) {
+			screenNames.add(assignment.getScreenName());
+		}
+
+		Map<String, Long> userIds = environmentSnapshot.getUserIds(screenNames);
+
+		Map<Long, List<Long>> missing = new LinkedHashMap<>();
+
+		for (DesiredState.RoleUserAssignment assignment : desiredState.getRoleUserAssignments()) {
+			Long userId = userIds.get(StringUtil.toLowerCase(assignment.getScreenName()));
+
+			if (userId == null) {
+				throw new IllegalStateException("Unable to find user " + assignment.getScreenName() + " in company " + environmentSnapshot.getCompanyId());
+			}
+
+			long roleId = getRoleId(assignment.getRoleName());
+
+			if (!environmentSnapshot.hasRoleUser(roleId, userId)) {
+				missing.computeIfAbsent(roleId, id -> new ArrayList<>()).add(userId);
+			}
+		}
+
+		for (Map.Entry<Long, List<Long>> entry : missing.entrySet()) {
+			long[] ids = ArrayUtil.toLongArray(entry.getValue());
+
+			userLocalService.addRoleUsers(entry.getKey(), ids);
+
+			environmentSnapshot.addedRoleUsers(entry.getKey(), ids);
+		}
+
+		return missing.size();
+	}
+
+	protected int reconcileUserGroupRoles(final DesiredState desiredState) throws Exception {
+		if (desiredState.getUserGroupRoles().isEmpty()) {
+			// nothing to do, and a batch writer another thread's reconcile set is not this one's to flush.
+			return 0;
+		}
+
+		// missing roles are grouped by user and group, the service takes all of the role ids at once.
+		Map<String, List<Long>> missing = new LinkedHashMap<>();
+
+		for (DesiredState.UserGroupRoleSpec userGroupRoleSpec : desiredState.getUserGroupRoles()) {
+			long groupId = getUserGroupGroupId(userGroupRoleSpec.getUserGroupName());
+			long roleId = getRoleId(userGroupRoleSpec.getRoleName());
+
+			if (!environmentSnapshot.hasUserGroupRole(userGroupRoleSpec.getUserId(), groupId, roleId)) {
+				missing.computeIfAbsent(userGroupRoleSpec.getUserId() + "_" + groupId, key -> new ArrayList<>()).add(roleId);
+			}
+		}
+
+		for (Map.Entry<String, List<Long>> entry : missing.entrySet()) {
+			String[] key = entry.getKey().split("_");
+
+			long userId = GetterUtil.getLong(key[0]);
+			long groupId = GetterUtil.getLong(key[1]);
+			long[] roleIds = ArrayUtil.toLongArray(entry.getValue());
+
+			if (userGroupRoleBatchWriter == null) {
+				userGroupRoleService.addUserGroupRoles(userId, groupId, roleIds);
+			} else {
+				userGroupRoleBatchWriter.addUserGroupRoles(userId, groupId, roleIds);
+			}
+
+			environmentSnapshot.addedUserGroupRoles(userId, groupId, roleIds);
+		}
+
+		if (userGroupRoleBatchWriter != null) {
+			userGroupRoleBatchWriter.flush();
+		}
+
+		return missing.size();
+	}
+
+	protected long getRoleId(final String name) {
+		long roleId = environmentSnapshot.getRoleId(name);
+
+		if (roleId == -1) {
+			throw new IllegalStateException("Unable to find role " + name + " in company " + environmentSnapshot.getCompanyId());
+		}
+
+		return roleId;
+	}
+
+	protected long getUserGroupGroupId(final String name) {
+		long groupId = environmentSnapshot.getUserGroupGroupId(name);
+
+		if (groupId == -1) {
+			throw new IllegalStateException("Unable to find user group " + name + " in company " + environmentSnapshot.getCompanyId());
+		}
+
+		return groupId;
+	}
+
+	private final EnvironmentSnapshot environmentSnapshot;
+	private final RoleService roleService;
+	private final UserGroupService userGroupService;
+	private final UserGroupRoleService userGroupRoleService;
+	private final GroupLocalService groupLocalService;
+	private final UserLocalService userLocalService;
+	private UserGroupRoleBatchWriter userGroupRoleBatchWriter;
+
+	private static final Log _log = LogFactoryUtil.getLog(EnvironmentReconciler.class);
+}
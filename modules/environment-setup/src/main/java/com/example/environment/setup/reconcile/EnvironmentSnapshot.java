@@ -0,0 +1,367 @@
+package com.example.environment.setup.reconcile;
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.SetupLookupCache;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.model.UserGroupRole;
+import com.liferay.portal.kernel.service.RoleLocalService;
+import com.liferay.portal.kernel.service.UserGroupLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleLocalService;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class EnvironmentSnapshot: In memory indexes of the roles, user groups and role assignments that already exist in a
+ * company.
+ *
+ * Roles and user groups are loaded with one query each the first time they are needed. Assignments are loaded with one
+ * query per role or group, and only for the roles and groups a desired state actually refers to. Everything the
+ * reconciler writes is recorded here too, so the snapshot stays current for the rest of the step.
+ *
+ * Role and user group ids are also kept in the company's SetupLookupCache, which outlives the snapshot. A later step
+ * asking for an id the cache has does not need to load anything. Roles and user groups created inside a
+ * ChunkedTransactionProcessor chunk are held back from the cache until publishAdded() is called from the processor's
+ * commit handler, so a rolled back chunk never leaves ids behind that other steps would trust.
+ *
+ * The snapshot is safe to share between threads, i.e. the parts of a TaskGraphEnvironmentSetup reconciling with the
+ * same reconciler or the parallel workers of a step. Roles and user groups are only touched under the snapshot's lock,
+ * the other indexes are concurrent maps and sets.
+ *
+ * @author dnebinger
+ */
+public class EnvironmentSnapshot {
+
+	public EnvironmentSnapshot(final long companyId, final SetupLookupCache setupLookupCache, final RoleLocalService roleLocalService, final UserGroupLocalService userGroupLocalService, final UserLocalService userLocalService, final UserGroupRoleLocalService userGroupRoleLocalService) {
+		super();
+
+		this.companyId = companyId;
+		this.setupLookupCache = setupLookupCache;
+		this.roleLocalService = roleLocalService;
+		this.userGroupLocalService = userGroupLocalService;
+		this.userLocalService = userLocalService;
+		this.userGroupRoleLocalService = userGroupRoleLocalService;
+	}
+
+	/**
+	 * getRole: Returns the role with the given name.
+	 * @param name
+	 * @return Role The role or <code>null</code> if it does not exist.
+	 */
+	public synchronized Role getRole(final String name) {
+		if (roles == null) {
+			roles = new HashMap<>();
+
+			for (Role role : roleLocalService.getRoles(companyId)) {
+				roles.put(role.getName(), role);
+
+				if (!pendingRoles.containsKey(role.getName())) {
+					setupLookupCache.putRoleId(role.getName(), role.getRoleId());
+				}
+			}
+
+			readCount.incrementAndGet();
+		}
+
+		return roles.get(name);
+	}
+
+	/**
+	 * getUserGroup: Returns the user group with the given name.
+	 * @param name
+	 * @return UserGroup The user group or <code>null</code> if it does not exist.
+	 */
+	public synchronized UserGroup getUserGroup(final String name) {
+		if (userGroups == null) {
+			userGroups = new HashMap<>();
+
+			for (UserGroup userGroup : userGroupLocalService.getUserGroups(companyId)) {
+				userGroups.put(userGroup.getName(), userGroup);
+
+				if (!pendingUserGroups.containsKey(userGroup.getName())) {
+					setupLookupCache.putUserGroup(userGroup.getName(), userGroup.getUserGroupId(), userGroup.getGroupId());
+				}
+			}
+
+			readCount.incrementAndGet();
+		}
+
+		return userGroups.get(name);
+	}
+
+	/**
+	 * getRoleId: Returns the id of the role with the given name, from the lookup cache when it has it.
+	 * @param name
+	 * @return long The role id or <code>-1</code> if the role does not exist.
+	 */
+	public long getRoleId(final String name) {
+		long roleId = setupLookupCache.getRoleId(name);
+
+		if (roleId != -1) {
+			return roleId;
+		}
+
+		Role role = getRole(name);
+
+		return (role == null) ? -1 : role.getRoleId();
+	}
+
+	/**
+	 * getUserGroupId: Returns the id of the user group with the given name, from the lookup cache when it has it.
+	 * @param name
+	 * @return long The user group id or <code>-1</code> if the user group does not exist.
+	 */
+	public long getUserGroupId(final String name) {
+		long userGroupId = setupLookupCache.getUserGroupId(name);
+
+		if (userGroupId != -1) {
+			return userGroupId;
+		}
+
+		UserGroup userGroup = getUserGroup(name);
+
+		return (userGroup == null) ? -1 : userGroup.getUserGroupId();
+	}
+
+	/**
+	 * getUserGroupGroupId: Returns the id of the group behind the user group with the given name, from the lookup cache
+	 * when it has it.
+	 * @param name
+	 * @return long The group id or <code>-1</code> if the user group does not exist.
+	 */
+	public long getUserGroupGroupId(final String name) {
+		long groupId = setupLookupCache.getUserGroupGroupId(name);
+
+		if (groupId != -1) {
+			return groupId;
+		}
+
+		UserGroup userGroup = getUserGroup(name);
+
+		return (userGroup == null) ? -1 : userGroup.getGroupId();
+	}
+
+	/**
+	 * getUserIds: Returns the ids of the users with the given screen names. Users not already known are fetched with a
+	 * single query and kept for the rest of the step, use this for the handful of users that assignments refer to.
+	 * @param screenNames
+	 * @return Map The user ids keyed by lower case screen name, screen names without a user are left out.
+	 */
+	public Map<String, Long> getUserIds(final Collection<String> screenNames) {
+		List<String> unknown = new ArrayList<>();
+
+		for (String screenName : screenNames) {
+			String key = StringUtil.toLowerCase(screenName);
+
+			if (!userIds.containsKey(key)) {
+				unknown.add(key);
+			}
+		}
+
+		if (!unknown.isEmpty()) {
+			userIds.putAll(findUserIds(unknown));
+		}
+
+		Map<String, Long> found = new HashMap<>();
+
+		for (String screenName : screenNames) {
+			String key = StringUtil.toLowerCase(screenName);
+
+			if (userIds.containsKey(key)) {
+				found.put(key, userIds.get(key));
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * findUserIds: Fetches the ids of the users with the given screen names with a single query. Nothing is kept, so this
+	 * is the one to use when checking large batches of users.
+	 * @param screenNames
+	 * @return Map The user ids keyed by lower case screen name, screen names without a user are left out.
+	 */
+	public Map<String, Long> findUserIds(final Collection<String> screenNames) {
+		Map<String, Long> found = new HashMap<>();
+
+		if (screenNames.isEmpty()) {
+			return found;
+		}
+
+		List<String> keys = new ArrayList<>(screenNames.size());
+
+		for (String screenName : screenNames) {
+			keys.add(StringUtil.toLowerCase(screenName));
+		}
+
+		DynamicQuery dynamicQuery = userLocalService.dynamicQuery();
+
+		dynamicQuery.add(RestrictionsFactoryUtil.eq("companyId", companyId));
+		dynamicQuery.add(RestrictionsFactoryUtil.in("screenName", keys));
+
+		List<User> users = userLocalService.dynamicQuery(dynamicQuery);
+
+		readCount.incrementAndGet();
+
+		for (User user : users) {
+			found.put(StringUtil.toLowerCase(user.getScreenName()), user.getUserId());
+		}
+
+		return found;
+	}
+
+	public boolean hasRoleGroup(final long roleId, final long groupId) {
+		return roleGroupIds.computeIfAbsent(roleId, id -> {
+			readCount.incrementAndGet();
+
+			return toSet(roleLocalService.getGroupPrimaryKeys(id));
+		}).contains(groupId);
+	}
+
+	public boolean hasRoleUser(final long roleId, final long userId) {
+		return roleUserIds.computeIfAbsent(roleId, id -> {
+			readCount.incrementAndGet();
+
+			return toSet(userLocalService.getRoleUserIds(id));
+		}).contains(userId);
+	}
+
+	public boolean hasUserGroupRole(final long userId, final long groupId, final long roleId) {
+		return getUserGroupRoleKeys(groupId).contains(userId + "_" + roleId);
+	}
+
+	public synchronized void addedRole(final Role role) {
+		// if the roles have not been loaded yet the new one will be in the load, there's no need to load them now.
+		if (roles != null) {
+			roles.put(role.getName(), role);
+		}
+
+		if (ChunkedTransactionProcessor.isInChunk()) {
+			pendingRoles.put(role.getName(), role);
+		} else {
+			setupLookupCache.putRoleId(role.getName(), role.getRoleId());
+		}
+	}
+
+	public synchronized void addedUserGroup(final UserGroup userGroup) {
+		if (userGroups != null) {
+			userGroups.put(userGroup.getName(), userGroup);
+		}
+
+		if (ChunkedTransactionProcessor.isInChunk()) {
+			pendingUserGroups.put(userGroup.getName(), userGroup);
+		} else {
+			setupLookupCache.putUserGroup(userGroup.getName(), userGroup.getUserGroupId(), userGroup.getGroupId());
+		}
+	}
+
+	/**
+	 * publishAdded: Puts the roles and user groups created in chunks into the lookup cache. Call it from the commit
+	 * handler of the ChunkedTransactionProcessor the chunks ran in.
+	 */
+	public synchronized void publishAdded() {
+		for (Role role : pendingRoles.values()) {
+			setupLookupCache.putRoleId(role.getName(), role.getRoleId());
+		}
+
+		for (UserGroup userGroup : pendingUserGroups.values()) {
+			setupLookupCache.putUserGroup(userGroup.getName(), userGroup.getUserGroupId(), userGroup.getGroupId());
+		}
+
+		pendingRoles.clear();
+		pendingUserGroups.clear();
+	}
+
+	public void addedRoleGroups(final long roleId, final long[] groupIds) {
+		Set<Long> ids = roleGroupIds.get(roleId);
+
+		for (long groupId : groupIds) {
+			ids.add(groupId);
+		}
+	}
+
+	public void addedRoleUsers(final long roleId, final long[] userIds) {
+		Set<Long> ids = roleUserIds.get(roleId);
+
+		for (long userId : userIds) {
+			ids.add(userId);
+		}
+	}
+
+	public void addedUserGroupRoles(final long userId, final long groupId, final long[] roleIds) {
+		Set<String> keys = getUserGroupRoleKeys(groupId);
+
+		for (long roleId : roleIds) {
+			keys.add(userId + "_" + roleId);
+		}
+	}
+
+	/**
+	 * getReadCount: Returns the number of queries the snapshot has made.
+	 * @return int The count.
+	 */
+	public int getReadCount() {
+		return readCount.get();
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	public SetupLookupCache getSetupLookupCache() {
+		return setupLookupCache;
+	}
+
+	protected Set<String> getUserGroupRoleKeys(final long groupId) {
+		return userGroupRoleKeys.computeIfAbsent(groupId, id -> {
+			readCount.incrementAndGet();
+
+			Set<String> keys = ConcurrentHashMap.newKeySet();
+
+			for (UserGroupRole userGroupRole : userGroupRoleLocalService.getUserGroupRolesByGroup(id)) {
+				keys.add(userGroupRole.getUserId() + "_" + userGroupRole.getRoleId());
+			}
+
+			return keys;
+		});
+	}
+
+	private static Set<Long> toSet(final long[] ids) {
+		Set<Long> set = ConcurrentHashMap.newKeySet(ids.length * 2);
+
+		for (long id : ids) {
+			set.add(id);
+		}
+
+		return set;
+	}
+
+	private final long companyId;
+	private final SetupLookupCache setupLookupCache;
+	private final RoleLocalService roleLocalService;
+	private final UserGroupLocalService userGroupLocalService;
+	private final UserLocalService userLocalService;
+	private final UserGroupRoleLocalService userGroupRoleLocalService;
+
+	private Map<String, Role> roles;
+	private Map<String, UserGroup> userGroups;
+	private final Map<String, Role> pendingRoles = new HashMap<>();
+	private final Map<String, UserGroup> pendingUserGroups = new HashMap<>();
+	private final Map<String, Long> userIds = new ConcurrentHashMap<>();
+	private final Map<Long, Set<Long>> roleGroupIds = new ConcurrentHashMap<>();
+	private final Map<Long, Set<Long>> roleUserIds = new ConcurrentHashMap<>();
+	private final Map<Long, Set<String>> userGroupRoleKeys = new ConcurrentHashMap<>();
+	private final AtomicInteger readCount = new AtomicInteger();
+}
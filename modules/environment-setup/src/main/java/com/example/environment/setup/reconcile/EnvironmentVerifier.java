@@ -0,0 +1,93 @@
+package com.example.environment.setup.reconcile;
+
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class EnvironmentVerifier: Checks that a company still has everything a DesiredState declares, without writing
+ * anything. It is the read only half of the EnvironmentReconciler.
+ *
+ * The existence checks all go through an EnvironmentSnapshot, so verifying any number of roles and user groups costs one
+ * query for each, plus one query per role or group whose assignments are checked. Give it a snapshot with an empty
+ * SetupLookupCache, otherwise an entity deleted since the cache was filled is not noticed.
+ *
+ * @author dnebinger
+ */
+public class EnvironmentVerifier {
+
+	public EnvironmentVerifier(final EnvironmentSnapshot environmentSnapshot) {
+		super();
+
+		this.environmentSnapshot = environmentSnapshot;
+	}
+
+	/**
+	 * verify: Finds whatever the desired state declares that does not exist.
+	 * @param desiredState
+	 * @return List Descriptions of what is missing, empty when the company is in line with the desired state.
+	 */
+	public List<String> verify(final DesiredState desiredState) {
+		List<String> drift = new ArrayList<>();
+
+		for (DesiredState.RoleSpec roleSpec : desiredState.getRoles()) {
+			if (environmentSnapshot.getRoleId(roleSpec.getName()) == -1) {
+				drift.add("Missing role " + roleSpec.getName());
+			}
+		}
+
+		for (DesiredState.UserGroupSpec userGroupSpec : desiredState.getUserGroups()) {
+			if (environmentSnapshot.getUserGroupId(userGroupSpec.getName()) == -1) {
+				drift.add("Missing user group " + userGroupSpec.getName());
+			}
+		}
+
+		// an assignment whose role or user group is missing is missing as well, there is no need to query for it.
+		for (DesiredState.RoleGroupAssignment assignment : desiredState.getRoleGroupAssignments()) {
+			long roleId = environmentSnapshot.getRoleId(assignment.getRoleName());
+			long groupId = environmentSnapshot.getUserGroupGroupId(assignment.getUserGroupName());
+
+			if ((roleId == -1) || (groupId == -1) || !environmentSnapshot.hasRoleGroup(roleId, groupId)) {
+				drift.add("Missing role " + assignment.getRoleName() + " for user group " + assignment.getUserGroupName());
+			}
+		}
+
+		if (!desiredState.getRoleUserAssignments().isEmpty()) {
+			List<String> screenNames = new ArrayList<>();
+
+			for (DesiredState.RoleUserAssignment assignment : desiredState.getRoleUserAssignments()) {
+				screenNames.add(assignment.getScreenName());
+			}
+
+			Map<String, Long> userIds = environmentSnapshot.findUserIds(screenNames);
+
+			for (DesiredState.RoleUserAssignment assignment : desiredState.getRoleUserAssignments()) {
+				Long userId = userIds.get(StringUtil.toLowerCase(assignment.getScreenName()));
+				long roleId = environmentSnapshot.getRoleId(assignment.getRoleName());
+
+				if ((userId == null) || (roleId == -1) || !environmentSnapshot.hasRoleUser(roleId, userId)) {
+					drift.add("Missing role " + assignment.getRoleName() + " for user " + assignment.getScreenName());
+				}
+			}
+		}
+
+		for (DesiredState.UserGroupRoleSpec userGroupRoleSpec : desiredState.getUserGroupRoles()) {
+			long groupId = environmentSnapshot.getUserGroupGroupId(userGroupRoleSpec.getUserGroupName());
+			long roleId = environmentSnapshot.getRoleId(userGroupRoleSpec.getRoleName());
+
+			if ((groupId == -1) || (roleId == -1) || !environmentSnapshot.hasUserGroupRole(userGroupRoleSpec.getUserId(), groupId, roleId)) {
+				drift.add("Missing role " + userGroupRoleSpec.getRoleName() + " for user " + userGroupRoleSpec.getUserId() + " in user group " + userGroupRoleSpec.getUserGroupName());
+			}
+		}
+
+		return drift;
+	}
+
+	public EnvironmentSnapshot getEnvironmentSnapshot() {
+		return environmentSnapshot;
+	}
+
+	private final EnvironmentSnapshot environmentSnapshot;
+}
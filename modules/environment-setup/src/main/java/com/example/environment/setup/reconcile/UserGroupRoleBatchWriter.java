@@ -0,0 +1,261 @@
+package com.example.environment.setup.reconcile;
+
+import com.example.environment.setup.EnvironmentSetupPropsKeys;
+import com.example.environment.setup.reset.SetupCreationLog;
+import com.example.environment.setup.search.DeferredReindexer;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.permission.PermissionCacheUtil;
+import com.liferay.portal.kernel.service.persistence.UserGroupRoleUtil;
+import com.liferay.portal.kernel.util.ArrayUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class UserGroupRoleBatchWriter: Fast path for assigning a lot of user group roles. The rows are inserted straight into
+ * the UserGroupRole table with batched statements over the upgrade connection, instead of going through the service
+ * with its permission checks and model listeners for every row.
+ *
+ * Since the service is bypassed, flush() does what it would have done afterwards: it clears the UserGroupRole entity
+ * and finder caches, the permission cache of the users and reindexes the users (or leaves that to the step's
+ * DeferredReindexer when indexing is deferred). The model listeners are bypassed as well, so the rows are recorded in
+ * the step's SetupCreationLog here, before each batch commits.
+ *
+ * The rows are committed on the upgrade connection, not in a chunk transaction of the step. The reconciler only hands
+ * over rows that don't exist yet, so a step that fails after a flush only writes the rest when it runs again.
+ *
+ * Only the columns the portal versions this was written against have are filled: userId, groupId and roleId, plus
+ * mvccVersion and companyId when the table has them. create() reads the table's columns and refuses a table with any
+ * other column, i.e. the userGroupRoleId primary key of newer portals, rather than writing rows the portal can't use.
+ *
+ * @author dnebinger
+ */
+public class UserGroupRoleBatchWriter {
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * create: Creates the writer for the UserGroupRole table the connection sees.
+	 * @param connection The upgrade connection.
+	 * @param companyId
+	 * @param batchSize Number of rows per batch.
+	 * @return UserGroupRoleBatchWriter The writer.
+	 * @throws SQLException
+	 * @throws IllegalStateException If the table has columns the writer can't fill.
+	 */
+	public static UserGroupRoleBatchWriter create(final Connection connection, final long companyId, final int batchSize) throws SQLException {
+		return new UserGroupRoleBatchWriter(connection, companyId, getColumns(connection), batchSize);
+	}
+
+	/**
+	 * UserGroupRoleBatchWriter: Constructor.
+	 * @param connection The upgrade connection.
+	 * @param companyId
+	 * @param columns The lower case column names of the UserGroupRole table.
+	 * @param batchSize Number of rows per batch.
+	 * @throws IllegalStateException If the table has columns the writer can't fill.
+	 */
+	protected UserGroupRoleBatchWriter(final Connection connection, final long companyId, final Set<String> columns, final int batchSize) {
+		super();
+
+		Set<String> unsupported = new TreeSet<>(columns);
+
+		unsupported.removeAll(SUPPORTED_COLUMNS);
+
+		if (!unsupported.isEmpty()) {
+			throw new IllegalStateException("The UserGroupRole table has columns " + unsupported + " the batch writer can't fill, set " + EnvironmentSetupPropsKeys.USER_GROUP_ROLE_BATCH + "=false to add the user group roles through the service");
+		}
+
+		if (!columns.containsAll(REQUIRED_COLUMNS)) {
+			throw new IllegalStateException("The UserGroupRole table has columns " + columns + ", the batch writer needs " + REQUIRED_COLUMNS);
+		}
+
+		this.connection = connection;
+		this.companyId = companyId;
+		this.mvccVersionColumn = columns.contains("mvccversion");
+		this.companyIdColumn = columns.contains("companyid");
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * addUserGroupRoles: Queues the user's roles in the group, they are written by flush().
+	 * @param userId
+	 * @param groupId
+	 * @param roleIds
+	 */
+	public void addUserGroupRoles(final long userId, final long groupId, final long[] roleIds) {
+		for (long roleId : roleIds) {
+			rows.add(new long[] {userId, groupId, roleId});
+		}
+	}
+
+	/**
+	 * flush: Writes the queued rows and brings the caches and the search index up to date.
+	 * @return int The number of rows written.
+	 * @throws Exception
+	 */
+	public int flush() throws Exception {
+		if (rows.isEmpty()) {
+			return 0;
+		}
+
+		long start = System.nanoTime();
+
+		Set<Long> userIds = new LinkedHashSet<>();
+
+		String sql = "insert into UserGroupRole (" + (mvccVersionColumn ? "mvccVersion, " : "") + "userId, groupId, roleId" + (companyIdColumn ? ", companyId" : "") + ") values (" + (mvccVersionColumn ? "0, " : "") + "?, ?, ?" + (companyIdColumn ? ", ?" : "") + ")";
+
+		boolean autoCommit = connection.getAutoCommit();
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+			connection.setAutoCommit(false);
+
+			int batched = 0;
+
+			for (long[] row : rows) {
+				preparedStatement.setLong(1, row[0]);
+				preparedStatement.setLong(2, row[1]);
+				preparedStatement.setLong(3, row[2]);
+
+				if (companyIdColumn) {
+					preparedStatement.setLong(4, companyId);
+				}
+
+				preparedStatement.addBatch();
+
+				SetupCreationLog.track(SetupCreationLog.TYPE_USER_GROUP_ROLE, row[0], row[1], row[2]);
+
+				userIds.add(row[0]);
+
+				if (++batched == batchSize) {
+					executeBatch(preparedStatement);
+
+					batched = 0;
+				}
+			}
+
+			if (batched > 0) {
+				executeBatch(preparedStatement);
+			}
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+
+		int count = rows.size();
+
+		rows.clear();
+
+		clearCaches(userIds);
+
+		reindex(userIds);
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Wrote " + count + " user group roles for " + userIds.size() + " users in company " + companyId + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+
+		return count;
+	}
+
+	/**
+	 * getPendingCount: Returns the number of rows waiting for flush().
+	 * @return int The count.
+	 */
+	public int getPendingCount() {
+		return rows.size();
+	}
+
+	/**
+	 * getColumns: Returns the columns of the UserGroupRole table.
+	 * @param connection
+	 * @return Set The lower case column names.
+	 * @throws SQLException
+	 */
+	protected static Set<String> getColumns(final Connection connection) throws SQLException {
+		Set<String> columns = new LinkedHashSet<>();
+
+		try (Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery("select * from UserGroupRole where 1 = 0")) {
+
+			ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+
+			for (int i = 1; i <= resultSetMetaData.getColumnCount(); i++) {
+				columns.add(StringUtil.toLowerCase(resultSetMetaData.getColumnName(i)));
+			}
+		}
+
+		return columns;
+	}
+
+	/**
+	 * clearCaches: The portal cached the rows it knew about, and permissions computed from them.
+	 * @param userIds
+	 */
+	protected void clearCaches(final Set<Long> userIds) {
+		UserGroupRoleUtil.clearCache();
+		PermissionCacheUtil.clearCache(ArrayUtil.toLongArray(userIds));
+	}
+
+	protected void executeBatch(final PreparedStatement preparedStatement) throws SQLException {
+		try {
+			preparedStatement.executeBatch();
+
+			SetupCreationLog.flushCurrent();
+
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * reindex: The user group roles are part of the user's document, so the users are reindexed.
+	 * @param userIds
+	 * @throws Exception
+	 */
+	protected void reindex(final Set<Long> userIds) throws Exception {
+		if (DeferredReindexer.isDeferred()) {
+			for (long userId : userIds) {
+				DeferredReindexer.track(User.class.getName(), userId);
+			}
+
+			return;
+		}
+
+		DeferredReindexer deferredReindexer = DeferredReindexer.create(companyId, DeferredReindexer.DEFAULT_BATCH_SIZE);
+
+		for (long userId : userIds) {
+			deferredReindexer.add(User.class.getName(), userId);
+		}
+
+		deferredReindexer.reindex();
+	}
+
+	private final Connection connection;
+	private final long companyId;
+	private final boolean mvccVersionColumn;
+	private final boolean companyIdColumn;
+	private final int batchSize;
+	private final List<long[]> rows = new ArrayList<>();
+
+	private static final Set<String> REQUIRED_COLUMNS = new HashSet<>(Arrays.asList("userid", "groupid", "roleid"));
+	private static final Set<String> SUPPORTED_COLUMNS = new HashSet<>(Arrays.asList("mvccversion", "userid", "groupid", "roleid", "companyid"));
+
+	private static final Log _log = LogFactoryUtil.getLog(UserGroupRoleBatchWriter.class);
+}
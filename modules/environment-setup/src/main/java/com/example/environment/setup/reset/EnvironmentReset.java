@@ -0,0 +1,649 @@
+package com.example.environment.setup.reset;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.CompanyAdminUserResolver;
+import com.example.environment.setup.SetupCheckpoints;
+import com.example.environment.setup.SetupLease;
+import com.example.environment.setup.SetupThreadContext;
+import com.example.environment.setup.async.AsyncSetupTaskStore;
+import com.example.environment.setup.search.DeferredReindexer;
+import com.liferay.portal.kernel.dao.jdbc.DataAccess;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Company;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.Organization;
+import com.liferay.portal.kernel.model.Release;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.CompanyLocalService;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.OrganizationLocalService;
+import com.liferay.portal.kernel.service.ReleaseLocalService;
+import com.liferay.portal.kernel.service.RoleLocalService;
+import com.liferay.portal.kernel.service.UserGroupLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleLocalService;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * class EnvironmentReset: Takes the data the setup steps created back out of every company, so an environment used for a
+ * load test can be set up again without restoring the database.
+ *
+ * What is removed is exactly what the steps' SetupCreationLog recorded, data users created by hand is left alone. A
+ * company is reset in dependency order: first the role assignments of entities that stay, then the users, user groups,
+ * organizations, sites and last the roles, whose removal also takes their resource permissions with them. Each kind is
+ * split in batches that are deleted on a pool of workers, one transaction per batch. Indexing is deferred on the
+ * workers, so deleting an entity does not cost a search engine request; once the company is done the documents of
+ * everything removed are deleted from the index in bulk.
+ *
+ * When every company is done the bundle's schema version is set back to 0.0.0, so the squashed step sets the
+ * environment up again the next time the bundle starts.
+ *
+ * @author dnebinger
+ */
+public class EnvironmentReset implements EnvironmentResetMBean {
+
+	/**
+	 * OBJECT_NAME: The JMX object name the reset is registered under.
+	 */
+	public static final String OBJECT_NAME = "com.example.environment.setup:type=EnvironmentReset";
+
+	/**
+	 * interface EntityDeleter: Deletes one entity, called inside the batch's transaction.
+	 */
+	@FunctionalInterface
+	public interface EntityDeleter {
+
+		/**
+		 * delete: Deletes the entity.
+		 * @param entityId
+		 * @return boolean <code>true</code> if it was deleted, <code>false</code> if it no longer existed.
+		 * @throws Exception
+		 */
+		boolean delete(long entityId) throws Exception;
+	}
+
+	public EnvironmentReset(final CompanyLocalService companyLocalService, final CompanyAdminUserResolver companyAdminUserResolver, final PermissionCheckerFactory permissionCheckerFactory, final UserLocalService userLocalService,
+			final UserGroupLocalService userGroupLocalService, final OrganizationLocalService organizationLocalService, final GroupLocalService groupLocalService, final RoleLocalService roleLocalService,
+			final UserGroupRoleLocalService userGroupRoleLocalService, final ReleaseLocalService releaseLocalService, final String bundleSymbolicName, final int parallelism, final int batchSize) {
+		super();
+
+		this.companyLocalService = companyLocalService;
+		this.companyAdminUserResolver = companyAdminUserResolver;
+		this.permissionCheckerFactory = permissionCheckerFactory;
+		this.userLocalService = userLocalService;
+		this.userGroupLocalService = userGroupLocalService;
+		this.organizationLocalService = organizationLocalService;
+		this.groupLocalService = groupLocalService;
+		this.roleLocalService = roleLocalService;
+		this.userGroupRoleLocalService = userGroupRoleLocalService;
+		this.releaseLocalService = releaseLocalService;
+		this.bundleSymbolicName = bundleSymbolicName;
+		this.parallelism = Math.max(1, parallelism);
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * setSetupRunning: Sets the check for setup steps running in the background, a reset is refused while they are.
+	 * @param setupRunning
+	 * @return EnvironmentReset This reset.
+	 */
+	public EnvironmentReset setSetupRunning(final BooleanSupplier setupRunning) {
+		this.setupRunning = setupRunning;
+
+		return this;
+	}
+
+	/**
+	 * addResetListener: Adds a listener called once a reset is done, i.e. to drop what was cached about the removed data.
+	 * @param resetListener
+	 * @return EnvironmentReset This reset.
+	 */
+	public EnvironmentReset addResetListener(final Runnable resetListener) {
+		resetListeners.add(resetListener);
+
+		return this;
+	}
+
+	@Override
+	public synchronized long reset() throws Exception {
+		if (setupRunning.getAsBoolean()) {
+			throw new IllegalStateException("Setup steps are running in the background, reset once they are done");
+		}
+
+		long start = System.nanoTime();
+		long deleted = 0;
+
+		List<Long> companyIds = getCompanyIds();
+
+		for (long companyId : companyIds) {
+			deleted += resetCompany(companyId);
+		}
+
+		resetRelease();
+
+		for (Runnable resetListener : resetListeners) {
+			resetListener.run();
+		}
+
+		lastDeletedCount = deleted;
+		lastDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		lastResetTime = System.currentTimeMillis();
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Reset " + companyIds.size() + " companies in " + lastDurationMillis + " ms, removed " + deleted + " entities and role assignments, the steps run again when "
+					+ bundleSymbolicName + " starts");
+		}
+
+		return deleted;
+	}
+
+	@Override
+	public long getRecordedCount() {
+		try (Connection connection = DataAccess.getConnection()) {
+			return SetupCreationLog.count(connection);
+		} catch (SQLException e) {
+			_log.warn("Unable to count the recorded entities: " + e.getMessage(), e);
+
+			return -1;
+		}
+	}
+
+	@Override
+	public long getLastDeletedCount() {
+		return lastDeletedCount;
+	}
+
+	@Override
+	public long getLastDurationMillis() {
+		return lastDurationMillis;
+	}
+
+	@Override
+	public long getLastResetTime() {
+		return lastResetTime;
+	}
+
+	/**
+	 * resetCompany: Removes what the steps recorded in the company, as the company's admin.
+	 * @param companyId
+	 * @return long The number of entities and role assignments removed.
+	 * @throws Exception
+	 */
+	protected long resetCompany(final long companyId) throws Exception {
+		long start = System.nanoTime();
+
+		long adminUserId = companyAdminUserResolver.getCompanyAdminUserId(companyId);
+		User adminUser = userLocalService.getUser(adminUserId);
+
+		SetupThreadContext setupThreadContext = SetupThreadContext.forUser(companyId, adminUserId, permissionCheckerFactory.create(adminUser));
+		SetupThreadContext previous = setupThreadContext.apply();
+
+		try {
+			List<long[]> userGroupRoles;
+			List<long[]> userRoles;
+			List<long[]> groupRoles;
+			Set<Long> userIds;
+			Set<Long> userGroupIds;
+			Set<Long> organizationIds;
+			Set<Long> siteIds;
+			Set<Long> roleIds;
+
+			try (Connection connection = DataAccess.getConnection()) {
+				userGroupRoles = SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_USER_GROUP_ROLE);
+				userRoles = SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_USER_ROLE);
+				groupRoles = SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_GROUP_ROLE);
+				userIds = getEntityIds(SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_USER));
+				userGroupIds = getEntityIds(SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_USER_GROUP));
+				organizationIds = getEntityIds(SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_ORGANIZATION));
+				siteIds = getEntityIds(SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_SITE));
+				roleIds = getEntityIds(SetupCreationLog.read(connection, companyId, SetupCreationLog.TYPE_ROLE));
+			}
+
+			// the reset runs as this admin, it can't take the admin away.
+			if (userIds.remove(adminUserId)) {
+				_log.warn("Not removing user " + adminUserId + " from company " + companyId + ", it is the admin the reset runs as");
+			}
+
+			long deleted = 0;
+
+			// the assignments that go with a removed user, site or role are removed with it, the others are removed first.
+			deleted += deleteAssignments(userGroupRoles, row -> !userIds.contains(row[0]) && !siteIds.contains(row[1]) && !roleIds.contains(row[2]),
+					row -> userGroupRoleLocalService.deleteUserGroupRoles(row[0], row[1], new long[] {row[2]}));
+			deleted += deleteAssignments(userRoles, row -> !userIds.contains(row[0]) && !roleIds.contains(row[2]),
+					row -> roleLocalService.unsetUserRoles(row[0], new long[] {row[2]}));
+			deleted += deleteAssignments(groupRoles, row -> !siteIds.contains(row[0]) && !roleIds.contains(row[2]),
+					row -> groupLocalService.unsetRoleGroups(row[2], new long[] {row[0]}));
+
+			deleted += deleteInParallel(setupThreadContext, "users", userIds, this::deleteUser);
+			deleted += deleteInParallel(setupThreadContext, "user groups", userGroupIds, this::deleteUserGroup);
+			deleted += deleteInParallel(setupThreadContext, "organizations", organizationIds, this::deleteOrganization);
+			deleted += deleteInParallel(setupThreadContext, "sites", siteIds, this::deleteSite);
+			deleted += deleteInParallel(setupThreadContext, "roles", roleIds, this::deleteRole);
+
+			// the workers deferred indexing, the documents of everything removed go in one pass.
+			DeferredReindexer indexCleanup = DeferredReindexer.create(companyId, batchSize);
+
+			indexCleanup.deleteDocuments(User.class.getName(), userIds);
+			indexCleanup.deleteDocuments(UserGroup.class.getName(), userGroupIds);
+			indexCleanup.deleteDocuments(Organization.class.getName(), organizationIds);
+			indexCleanup.deleteDocuments(Group.class.getName(), siteIds);
+			indexCleanup.deleteDocuments(Role.class.getName(), roleIds);
+
+			clearSetupTables(companyId);
+
+			if (_log.isInfoEnabled()) {
+				_log.info("Reset company " + companyId + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, removed " + userIds.size() + " users, " + userGroupIds.size()
+						+ " user groups, " + organizationIds.size() + " organizations, " + siteIds.size() + " sites and " + roleIds.size() + " roles");
+			}
+
+			return deleted;
+		} finally {
+			previous.apply();
+		}
+	}
+
+	/**
+	 * deleteAssignments: Removes the role assignments that pass the filter, in batched transactions on this thread. There
+	 * are only a few of these, most assignments go with the user, site or role they belong to.
+	 * @param rows The recorded assignments.
+	 * @param filter Whether the assignment has to be removed on its own.
+	 * @param remover Removes the assignment.
+	 * @return long The number of assignments removed.
+	 * @throws Exception
+	 */
+	protected long deleteAssignments(final List<long[]> rows, final RowFilter filter, final RowRemover remover) throws Exception {
+		long count = 0;
+
+		try (ChunkedTransactionProcessor<long[]> processor = new ChunkedTransactionProcessor<>(chunk -> {
+				for (long[] row : chunk) {
+					remover.remove(row);
+				}
+			}, batchSize)) {
+
+			for (long[] row : rows) {
+				if (filter.test(row)) {
+					processor.add(row);
+
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * deleteInParallel: Deletes the entities in batches on a pool of workers, each batch in a transaction of its own.
+	 * Indexing is deferred on the workers, only the entities that stay and were changed by the deletes are reindexed.
+	 * @param setupThreadContext The context the workers run with.
+	 * @param description What is deleted, for the log.
+	 * @param entityIds
+	 * @param entityDeleter
+	 * @return long The number of entities deleted.
+	 * @throws Exception The first batch failure, the others are suppressed.
+	 */
+	protected long deleteInParallel(final SetupThreadContext setupThreadContext, final String description, final Set<Long> entityIds, final EntityDeleter entityDeleter) throws Exception {
+		if (entityIds.isEmpty()) {
+			return 0;
+		}
+
+		long start = System.nanoTime();
+		long companyId = setupThreadContext.getCompanyId();
+
+		List<List<Long>> batches = new ArrayList<>();
+		List<Long> batch = new ArrayList<>(batchSize);
+
+		for (long entityId : entityIds) {
+			batch.add(entityId);
+
+			if (batch.size() == batchSize) {
+				batches.add(batch);
+
+				batch = new ArrayList<>(batchSize);
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+
+		AtomicLong deletedCount = new AtomicLong();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, batches.size()), runnable -> {
+			Thread thread = new Thread(runnable, "EnvironmentReset-" + threadNumber.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		List<Future<Void>> futures = new ArrayList<>(batches.size());
+
+		try {
+			for (List<Long> entityBatch : batches) {
+				futures.add(executorService.submit(setupThreadContext.wrap(() -> {
+					deletedCount.addAndGet(deleteBatch(companyId, entityBatch, entityDeleter));
+
+					return null;
+				})));
+			}
+
+			Exception failure = null;
+
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+
+					if (failure == null) {
+						failure = cause;
+
+						// no point in starting the batches that are still queued.
+						for (Future<Void> queued : futures) {
+							queued.cancel(false);
+						}
+					} else {
+						failure.addSuppressed(cause);
+					}
+				} catch (CancellationException e) {
+					// cancelled after an earlier failure.
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw e;
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Deleted " + deletedCount.get() + " of " + entityIds.size() + " " + description + " in company " + companyId + " in " + batches.size() + " batches, "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+
+		return deletedCount.get();
+	}
+
+	/**
+	 * deleteBatch: Deletes a batch of entities in one transaction with indexing deferred. Runs on a worker.
+	 * @param companyId
+	 * @param entityIds
+	 * @param entityDeleter
+	 * @return long The number of entities deleted.
+	 * @throws Exception
+	 */
+	protected long deleteBatch(final long companyId, final List<Long> entityIds, final EntityDeleter entityDeleter) throws Exception {
+		DeferredReindexer deferredReindexer = DeferredReindexer.begin(companyId, batchSize);
+
+		long[] deleted = new long[1];
+
+		try (ChunkedTransactionProcessor<Long> processor = new ChunkedTransactionProcessor<>(chunk -> {
+				for (long entityId : chunk) {
+					if (entityDeleter.delete(entityId)) {
+						deleted[0]++;
+					}
+				}
+			}, entityIds.size())) {
+
+			for (long entityId : entityIds) {
+				processor.add(entityId);
+			}
+		} finally {
+			deferredReindexer.end();
+			deferredReindexer.reindex();
+		}
+
+		return deleted[0];
+	}
+
+	protected boolean deleteUser(final long userId) throws Exception {
+		User user = userLocalService.fetchUser(userId);
+
+		if (user == null) {
+			return false;
+		}
+
+		userLocalService.deleteUser(user);
+
+		return true;
+	}
+
+	/**
+	 * deleteUserGroup: Deletes the user group, after taking out the members that are not removed by the reset, a user
+	 * group with members can't be deleted.
+	 * @param userGroupId
+	 * @return boolean <code>true</code> if it was deleted.
+	 * @throws Exception
+	 */
+	protected boolean deleteUserGroup(final long userGroupId) throws Exception {
+		UserGroup userGroup = userGroupLocalService.fetchUserGroup(userGroupId);
+
+		if (userGroup == null) {
+			return false;
+		}
+
+		userLocalService.clearUserGroupUsers(userGroupId);
+
+		userGroupLocalService.deleteUserGroup(userGroup);
+
+		return true;
+	}
+
+	/**
+	 * deleteOrganization: Deletes the organization, after taking out the members that are not removed by the reset, an
+	 * organization with members can't be deleted.
+	 * @param organizationId
+	 * @return boolean <code>true</code> if it was deleted.
+	 * @throws Exception
+	 */
+	protected boolean deleteOrganization(final long organizationId) throws Exception {
+		Organization organization = organizationLocalService.fetchOrganization(organizationId);
+
+		if (organization == null) {
+			return false;
+		}
+
+		userLocalService.clearOrganizationUsers(organizationId);
+
+		organizationLocalService.deleteOrganization(organization);
+
+		return true;
+	}
+
+	/**
+	 * deleteSite: Deletes the site with its pages and memberships.
+	 * @param groupId
+	 * @return boolean <code>true</code> if it was deleted.
+	 * @throws Exception
+	 */
+	protected boolean deleteSite(final long groupId) throws Exception {
+		Group group = groupLocalService.fetchGroup(groupId);
+
+		if (group == null) {
+			return false;
+		}
+
+		groupLocalService.deleteGroup(group);
+
+		return true;
+	}
+
+	/**
+	 * deleteRole: Deletes the role with its assignments and resource permissions.
+	 * @param roleId
+	 * @return boolean <code>true</code> if it was deleted.
+	 * @throws Exception
+	 */
+	protected boolean deleteRole(final long roleId) throws Exception {
+		Role role = roleLocalService.fetchRole(roleId);
+
+		if (role == null) {
+			return false;
+		}
+
+		roleLocalService.deleteRole(role);
+
+		return true;
+	}
+
+	/**
+	 * clearSetupTables: Removes the company's rows from the module's own tables, the records of what was removed and the
+	 * checkpoints, leases and background tasks of the steps, so the steps start over.
+	 * @param companyId
+	 * @throws SQLException
+	 */
+	protected void clearSetupTables(final long companyId) throws SQLException {
+		try (Connection connection = DataAccess.getConnection()) {
+			SetupCreationLog.clear(connection, companyId);
+
+			for (String tableName : new String[] {SetupCheckpoints.TABLE_NAME, SetupLease.TABLE_NAME, AsyncSetupTaskStore.TABLE_NAME}) {
+				if (!hasTable(connection, tableName)) {
+					continue;
+				}
+
+				try (PreparedStatement preparedStatement = connection.prepareStatement("delete from " + tableName + " where companyId = ?")) {
+					preparedStatement.setLong(1, companyId);
+
+					preparedStatement.executeUpdate();
+				}
+			}
+		}
+	}
+
+	/**
+	 * resetRelease: Sets the bundle's schema version back to 0.0.0, so the upgrade framework runs the steps again.
+	 */
+	protected void resetRelease() {
+		Release release = releaseLocalService.fetchRelease(bundleSymbolicName);
+
+		if (release == null) {
+			return;
+		}
+
+		release.setSchemaVersion(INITIAL_SCHEMA_VERSION);
+
+		releaseLocalService.updateRelease(release);
+	}
+
+	/**
+	 * hasTable: Checks for the table with the database metadata, the database may store the name in either case.
+	 * @param connection
+	 * @param tableName
+	 * @return boolean <code>true</code> if the table exists.
+	 * @throws SQLException
+	 */
+	protected boolean hasTable(final Connection connection, final String tableName) throws SQLException {
+		DatabaseMetaData databaseMetaData = connection.getMetaData();
+
+		for (String name : new String[] {tableName, StringUtil.toUpperCase(tableName), StringUtil.toLowerCase(tableName)}) {
+			try (ResultSet resultSet = databaseMetaData.getTables(null, null, name, null)) {
+				if (resultSet.next()) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * getEntityIds: Returns the entity ids of the records, in the order they were recorded.
+	 * @param records
+	 * @return Set The ids.
+	 */
+	protected Set<Long> getEntityIds(final List<long[]> records) {
+		Set<Long> entityIds = new LinkedHashSet<>(records.size());
+
+		for (long[] record : records) {
+			entityIds.add(record[0]);
+		}
+
+		return entityIds;
+	}
+
+	/**
+	 * getCompanyIds: Returns the ids of all of the companies.
+	 * @return List The company ids.
+	 */
+	protected List<Long> getCompanyIds() {
+		List<Long> companyIds = new ArrayList<>();
+
+		for (Company company : companyLocalService.getCompanies()) {
+			companyIds.add(company.getCompanyId());
+		}
+
+		return companyIds;
+	}
+
+	/**
+	 * interface RowFilter: Picks the recorded assignments to remove.
+	 */
+	@FunctionalInterface
+	protected interface RowFilter {
+
+		boolean test(long[] row);
+	}
+
+	/**
+	 * interface RowRemover: Removes a recorded assignment, called inside the batch's transaction.
+	 */
+	@FunctionalInterface
+	protected interface RowRemover {
+
+		void remove(long[] row) throws Exception;
+	}
+
+	private final CompanyLocalService companyLocalService;
+	private final CompanyAdminUserResolver companyAdminUserResolver;
+	private final PermissionCheckerFactory permissionCheckerFactory;
+	private final UserLocalService userLocalService;
+	private final UserGroupLocalService userGroupLocalService;
+	private final OrganizationLocalService organizationLocalService;
+	private final GroupLocalService groupLocalService;
+	private final RoleLocalService roleLocalService;
+	private final UserGroupRoleLocalService userGroupRoleLocalService;
+	private final ReleaseLocalService releaseLocalService;
+	private final String bundleSymbolicName;
+	private final int parallelism;
+	private final int batchSize;
+	private final List<Runnable> resetListeners = new CopyOnWriteArrayList<>();
+	private final AtomicInteger threadNumber = new AtomicInteger();
+	private BooleanSupplier setupRunning = () -> false;
+	private volatile long lastDeletedCount;
+	private volatile long lastDurationMillis;
+	private volatile long lastResetTime;
+
+	private static final String INITIAL_SCHEMA_VERSION = "0.0.0";
+
+	private static final Log _log = LogFactoryUtil.getLog(EnvironmentReset.class);
+}
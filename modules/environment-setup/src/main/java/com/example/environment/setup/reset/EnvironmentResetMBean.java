@@ -0,0 +1,39 @@
+package com.example.environment.setup.reset;
+
+/**
+ * interface EnvironmentResetMBean: The JMX view of the environment reset, registered as
+ * com.example.environment.setup:type=EnvironmentReset.
+ *
+ * @author dnebinger
+ */
+public interface EnvironmentResetMBean {
+
+	/**
+	 * getRecordedCount: Number of entities and role assignments the steps have recorded, i.e. what a reset would
+	 * remove.
+	 */
+	long getRecordedCount();
+
+	/**
+	 * getLastDeletedCount: Number of entities and role assignments the last reset removed.
+	 */
+	long getLastDeletedCount();
+
+	/**
+	 * getLastDurationMillis: The wall time of the last reset.
+	 */
+	long getLastDurationMillis();
+
+	/**
+	 * getLastResetTime: When the last reset finished, in epoch millis, 0 if none has.
+	 */
+	long getLastResetTime();
+
+	/**
+	 * reset: Removes everything the steps created in every company and sets the bundle's schema version back, so the
+	 * steps run again the next time the bundle starts.
+	 * @return long The number of entities and role assignments removed.
+	 * @throws Exception
+	 */
+	long reset() throws Exception;
+}
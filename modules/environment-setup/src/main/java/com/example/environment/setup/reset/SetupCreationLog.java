@@ -0,0 +1,403 @@
+package com.example.environment.setup.reset;
+
+import com.liferay.portal.kernel.dao.jdbc.DataAccess;
+import com.liferay.portal.kernel.exception.ModelListenerException;
+import com.liferay.portal.kernel.model.BaseModelListener;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.Organization;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.model.UserGroupRole;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * class SetupCreationLog: Records every user, user group, organization, site, role and role assignment a step creates in
+ * the EnvSetupCreated table, so the EnvironmentReset can take exactly that data out again.
+ *
+ * The log is begun by the step on its thread and handed to the step's worker threads with the SetupThreadContext. The
+ * model listeners below record what is created, but only on a thread that has a log, so what users create elsewhere in
+ * the portal is never recorded. The records are written in batches on a connection of their own. A
+ * ChunkedTransactionProcessor writes them before the chunk commits, so a chunk's entities are never committed without
+ * their records.
+ *
+ * @author dnebinger
+ */
+public class SetupCreationLog {
+
+	public static final String TABLE_NAME = "EnvSetupCreated";
+
+	public static final String TABLE_SQL_CREATE = "create table " + TABLE_NAME + " (companyId LONG not null, stepName VARCHAR(200) not null, entityType VARCHAR(75) not null, entityId LONG, groupId LONG, roleId LONG, createDate DATE null)";
+
+	public static final String TYPE_USER = "User";
+	public static final String TYPE_USER_GROUP = "UserGroup";
+	public static final String TYPE_ORGANIZATION = "Organization";
+	public static final String TYPE_SITE = "Site";
+	public static final String TYPE_ROLE = "Role";
+	public static final String TYPE_USER_ROLE = "UserRole";
+	public static final String TYPE_GROUP_ROLE = "GroupRole";
+	public static final String TYPE_USER_GROUP_ROLE = "UserGroupRole";
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * begin: Starts recording what the current thread creates.
+	 * @param companyId
+	 * @param stepName The name the records are written under.
+	 * @param batchSize Number of records written per batch.
+	 * @return SetupCreationLog The log, call end() when the step is done.
+	 */
+	public static SetupCreationLog begin(final long companyId, final String stepName, final int batchSize) {
+		SetupCreationLog setupCreationLog = new SetupCreationLog(companyId, stepName, batchSize, current.get());
+
+		current.set(setupCreationLog);
+
+		return setupCreationLog;
+	}
+
+	/**
+	 * track: Records an entity created on the current thread, nothing happens if the thread has no log.
+	 * @param entityType One of the TYPE_ constants.
+	 * @param entityId The id of the entity, for an assignment the id of the user or group the role is assigned to.
+	 * @param groupId The site of a user group role, otherwise <code>0</code>.
+	 * @param roleId The role of an assignment, otherwise <code>0</code>.
+	 */
+	public static void track(final String entityType, final long entityId, final long groupId, final long roleId) {
+		SetupCreationLog setupCreationLog = current.get();
+
+		if (setupCreationLog == null) {
+			return;
+		}
+
+		try {
+			setupCreationLog.add(entityType, entityId, groupId, roleId);
+		} catch (SQLException e) {
+			// better to fail the creation than to create something that can't be reset.
+			throw new ModelListenerException("Unable to record the " + entityType + " " + entityId + " created by " + setupCreationLog.stepName, e);
+		}
+	}
+
+	/**
+	 * flushCurrent: Writes the records the current thread's log has queued, nothing happens if the thread has no log.
+	 * @throws SQLException
+	 */
+	public static void flushCurrent() throws SQLException {
+		SetupCreationLog setupCreationLog = current.get();
+
+		if (setupCreationLog != null) {
+			setupCreationLog.flush();
+		}
+	}
+
+	/**
+	 * getCurrent: Returns the log of the current thread.
+	 * @return SetupCreationLog The log or <code>null</code> if nothing is recorded on this thread.
+	 */
+	public static SetupCreationLog getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * setCurrent: Makes the log the current thread's, used to hand the log of a step to its worker threads.
+	 * @param setupCreationLog The log, <code>null</code> to stop recording on this thread.
+	 */
+	public static void setCurrent(final SetupCreationLog setupCreationLog) {
+		if (setupCreationLog == null) {
+			current.remove();
+		} else {
+			current.set(setupCreationLog);
+		}
+	}
+
+	private SetupCreationLog(final long companyId, final String stepName, final int batchSize, final SetupCreationLog previous) {
+		super();
+
+		this.companyId = companyId;
+		this.stepName = stepName;
+		this.batchSize = Math.max(1, batchSize);
+		this.previous = previous;
+	}
+
+	/**
+	 * add: Queues a record, writing the queue once a batch is full. The workers of a step share the log.
+	 * @param entityType
+	 * @param entityId
+	 * @param groupId
+	 * @param roleId
+	 * @throws SQLException
+	 */
+	public synchronized void add(final String entityType, final long entityId, final long groupId, final long roleId) throws SQLException {
+		if (entityId <= 0) {
+			return;
+		}
+
+		pending.add(new Record(entityType, entityId, groupId, roleId));
+
+		if (pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * flush: Writes the queued records, committed right away on a connection of the log's own.
+	 * @throws SQLException
+	 */
+	public synchronized void flush() throws SQLException {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+
+		try (Connection connection = DataAccess.getConnection();
+			PreparedStatement preparedStatement = connection.prepareStatement("insert into " + TABLE_NAME + " (companyId, stepName, entityType, entityId, groupId, roleId, createDate) values (?, ?, ?, ?, ?, ?, ?)")) {
+
+			for (Record record : pending) {
+				preparedStatement.setLong(1, companyId);
+				preparedStatement.setString(2, stepName);
+				preparedStatement.setString(3, record.entityType);
+				preparedStatement.setLong(4, record.entityId);
+				preparedStatement.setLong(5, record.groupId);
+				preparedStatement.setLong(6, record.roleId);
+				preparedStatement.setTimestamp(7, now);
+
+				preparedStatement.addBatch();
+			}
+
+			preparedStatement.executeBatch();
+		}
+
+		writtenCount += pending.size();
+
+		pending.clear();
+	}
+
+	/**
+	 * end: Stops recording on the current thread and writes what is still queued.
+	 * @throws SQLException
+	 */
+	public void end() throws SQLException {
+		if (current.get() == this) {
+			setCurrent(previous);
+		}
+
+		flush();
+	}
+
+	/**
+	 * read: Reads the records of a company, for the reset.
+	 * @param connection
+	 * @param companyId
+	 * @param entityType One of the TYPE_ constants.
+	 * @return List The records as {entityId, groupId, roleId}, empty if nothing was recorded.
+	 * @throws SQLException
+	 */
+	public static List<long[]> read(final Connection connection, final long companyId, final String entityType) throws SQLException {
+		List<long[]> records = new ArrayList<>();
+
+		if (!hasTable(connection)) {
+			return records;
+		}
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement("select entityId, groupId, roleId from " + TABLE_NAME + " where companyId = ? and entityType = ?")) {
+			preparedStatement.setLong(1, companyId);
+			preparedStatement.setString(2, entityType);
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				while (resultSet.next()) {
+					records.add(new long[] {resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3)});
+				}
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * count: Returns the number of records, of every company.
+	 * @param connection
+	 * @return long The count, 0 if nothing was ever recorded.
+	 * @throws SQLException
+	 */
+	public static long count(final Connection connection) throws SQLException {
+		if (!hasTable(connection)) {
+			return 0;
+		}
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement("select count(*) from " + TABLE_NAME);
+			ResultSet resultSet = preparedStatement.executeQuery()) {
+
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * clear: Removes the records of a company, once its data is gone.
+	 * @param connection
+	 * @param companyId
+	 * @throws SQLException
+	 */
+	public static void clear(final Connection connection, final long companyId) throws SQLException {
+		if (!hasTable(connection)) {
+			return;
+		}
+
+		try (PreparedStatement preparedStatement = connection.prepareStatement("delete from " + TABLE_NAME + " where companyId = ?")) {
+			preparedStatement.setLong(1, companyId);
+
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	/**
+	 * hasTable: Checks for the table with the database metadata, the database may store the name in either case.
+	 * @param connection
+	 * @return boolean <code>true</code> if the table exists.
+	 * @throws SQLException
+	 */
+	protected static boolean hasTable(final Connection connection) throws SQLException {
+		DatabaseMetaData databaseMetaData = connection.getMetaData();
+
+		for (String tableName : new String[] {TABLE_NAME, StringUtil.toUpperCase(TABLE_NAME), StringUtil.toLowerCase(TABLE_NAME)}) {
+			try (ResultSet resultSet = databaseMetaData.getTables(null, null, tableName, null)) {
+				if (resultSet.next()) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	public String getStepName() {
+		return stepName;
+	}
+
+	/**
+	 * getWrittenCount: Returns the number of records written so far.
+	 * @return long The count.
+	 */
+	public synchronized long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/**
+	 * class UserListener: Records users that are added.
+	 */
+	public static class UserListener extends BaseModelListener<User> {
+
+		@Override
+		public void onAfterCreate(User user) throws ModelListenerException {
+			track(TYPE_USER, user.getUserId(), 0, 0);
+		}
+	}
+
+	/**
+	 * class RoleListener: Records roles that are added, and roles given to users or to groups (sites, organizations and
+	 * user groups) through an association.
+	 */
+	public static class RoleListener extends BaseModelListener<Role> {
+
+		@Override
+		public void onAfterCreate(Role role) throws ModelListenerException {
+			track(TYPE_ROLE, role.getRoleId(), 0, 0);
+		}
+
+		@Override
+		public void onAfterAddAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			if (User.class.getName().equals(associationClassName)) {
+				track(TYPE_USER_ROLE, GetterUtil.getLong(associationClassPK), 0, GetterUtil.getLong(classPK));
+			} else if (Group.class.getName().equals(associationClassName)) {
+				track(TYPE_GROUP_ROLE, GetterUtil.getLong(associationClassPK), 0, GetterUtil.getLong(classPK));
+			}
+		}
+	}
+
+	/**
+	 * class UserGroupListener: Records user groups that are added.
+	 */
+	public static class UserGroupListener extends BaseModelListener<UserGroup> {
+
+		@Override
+		public void onAfterCreate(UserGroup userGroup) throws ModelListenerException {
+			track(TYPE_USER_GROUP, userGroup.getUserGroupId(), 0, 0);
+		}
+	}
+
+	/**
+	 * class OrganizationListener: Records organizations that are added.
+	 */
+	public static class OrganizationListener extends BaseModelListener<Organization> {
+
+		@Override
+		public void onAfterCreate(Organization organization) throws ModelListenerException {
+			track(TYPE_ORGANIZATION, organization.getOrganizationId(), 0, 0);
+		}
+	}
+
+	/**
+	 * class GroupListener: Records sites that are added. The groups the portal creates for users, user groups and
+	 * organizations go with their owner and are not recorded.
+	 */
+	public static class GroupListener extends BaseModelListener<Group> {
+
+		@Override
+		public void onAfterCreate(Group group) throws ModelListenerException {
+			if (group.isSite() && Group.class.getName().equals(group.getClassName())) {
+				track(TYPE_SITE, group.getGroupId(), 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * class UserGroupRoleListener: Records the site roles given to users.
+	 */
+	public static class UserGroupRoleListener extends BaseModelListener<UserGroupRole> {
+
+		@Override
+		public void onAfterCreate(UserGroupRole userGroupRole) throws ModelListenerException {
+			track(TYPE_USER_GROUP_ROLE, userGroupRole.getUserId(), userGroupRole.getGroupId(), userGroupRole.getRoleId());
+		}
+	}
+
+	/**
+	 * class Record: A created entity waiting to be written.
+	 */
+	protected static class Record {
+
+		Record(String entityType, long entityId, long groupId, long roleId) {
+			this.entityType = entityType;
+			this.entityId = entityId;
+			this.groupId = groupId;
+			this.roleId = roleId;
+		}
+
+		private final String entityType;
+		private final long entityId;
+		private final long groupId;
+		private final long roleId;
+	}
+
+	private final long companyId;
+	private final String stepName;
+	private final int batchSize;
+	private final SetupCreationLog previous;
+	private final List<Record> pending = new ArrayList<>();
+	private long writtenCount;
+
+	private static final ThreadLocal<SetupCreationLog> current = new ThreadLocal<>();
+}
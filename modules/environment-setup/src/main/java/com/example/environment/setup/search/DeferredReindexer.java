@@ -0,0 +1,456 @@
+package com.example.environment.setup.search;
+
+import com.liferay.portal.kernel.exception.ModelListenerException;
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.BaseModelListener;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.model.Organization;
+import com.liferay.portal.kernel.model.PersistedModel;
+import com.liferay.portal.kernel.model.ResourceConstants;
+import com.liferay.portal.kernel.model.ResourcePermission;
+import com.liferay.portal.kernel.model.Role;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.model.UserGroup;
+import com.liferay.portal.kernel.model.UserGroupRole;
+import com.liferay.portal.kernel.search.Document;
+import com.liferay.portal.kernel.search.DocumentImpl;
+import com.liferay.portal.kernel.search.Field;
+import com.liferay.portal.kernel.search.IndexStatusManagerThreadLocal;
+import com.liferay.portal.kernel.search.IndexWriterHelperUtil;
+import com.liferay.portal.kernel.search.Indexer;
+import com.liferay.portal.kernel.search.IndexerRegistryUtil;
+import com.liferay.portal.kernel.service.PersistedModelLocalService;
+import com.liferay.portal.kernel.service.PersistedModelLocalServiceRegistryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * class DeferredReindexer: Suspends the per entity indexing on the current thread while a step runs, and sends the
+ * entities the step touched to the search engine in a few batches once it is done.
+ *
+ * While indexing is suspended the portal skips the index write it normally makes for every add, update and association.
+ * The model listeners below record which entities those were, but only on a thread that has a DeferredReindexer, so
+ * changes made elsewhere in the portal are not affected.
+ *
+ * Deletes are suspended the same way, deleteDocuments() removes the documents of the deleted entities afterwards.
+ *
+ * Users, roles, user groups, organizations, sites and pages are recorded, and so are the resources that get individual
+ * permissions since their documents carry the permission fields. A step's workers record into the step's reindexer
+ * when they run with a SetupThreadContext captured on the step's thread, so the reindexer is safe to share.
+ *
+ * @author dnebinger
+ */
+public class DeferredReindexer {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * begin: Suspends indexing on the current thread and starts recording the entities that change.
+	 * @param companyId
+	 * @param batchSize Number of documents sent per request when reindexing.
+	 * @return DeferredReindexer The reindexer, call end() and then reindex() when the work is done.
+	 */
+	public static DeferredReindexer begin(final long companyId, final int batchSize) {
+		DeferredReindexer deferredReindexer = new DeferredReindexer(companyId, batchSize, current.get(), IndexStatusManagerThreadLocal.isIndexReadOnly());
+
+		IndexStatusManagerThreadLocal.setIndexReadOnly(true);
+
+		current.set(deferredReindexer);
+
+		return deferredReindexer;
+	}
+
+	/**
+	 * track: Records an entity that changed on the current thread, nothing happens if indexing is not deferred.
+	 * @param className
+	 * @param classPK
+	 */
+	public static void track(final String className, final long classPK) {
+		DeferredReindexer deferredReindexer = current.get();
+
+		if (deferredReindexer != null) {
+			deferredReindexer.add(className, classPK);
+		}
+	}
+
+	/**
+	 * getCurrent: Returns the reindexer of the current thread.
+	 * @return DeferredReindexer The reindexer or <code>null</code> if indexing is not deferred.
+	 */
+	public static DeferredReindexer getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * setCurrent: Has the current thread record into the given reindexer, i.e. a worker doing part of a step's work. The
+	 * caller sets the thread's index read only flag to match.
+	 * @param deferredReindexer The reindexer, <code>null</code> for none.
+	 */
+	public static void setCurrent(final DeferredReindexer deferredReindexer) {
+		if (deferredReindexer == null) {
+			current.remove();
+		} else {
+			current.set(deferredReindexer);
+		}
+	}
+
+	/**
+	 * isDeferred: Whether indexing is deferred on the current thread.
+	 * @return boolean <code>true</code> if a DeferredReindexer has begun on this thread.
+	 */
+	public static boolean isDeferred() {
+		return current.get() != null;
+	}
+
+	/**
+	 * create: Creates a reindexer that does not suspend anything, for batching the reindex of entities that were written
+	 * around the services and so were never indexed.
+	 * @param companyId
+	 * @param batchSize
+	 * @return DeferredReindexer The reindexer, add() the entities and then reindex().
+	 */
+	public static DeferredReindexer create(final long companyId, final int batchSize) {
+		DeferredReindexer deferredReindexer = new DeferredReindexer(companyId, batchSize, null, false);
+
+		deferredReindexer.ended = true;
+
+		return deferredReindexer;
+	}
+
+	private DeferredReindexer(final long companyId, final int batchSize, final DeferredReindexer previous, final boolean previousIndexReadOnly) {
+		super();
+
+		this.companyId = companyId;
+		this.batchSize = Math.max(1, batchSize);
+		this.previous = previous;
+		this.previousIndexReadOnly = previousIndexReadOnly;
+	}
+
+	/**
+	 * add: Records an entity to reindex.
+	 * @param className
+	 * @param classPK
+	 */
+	public synchronized void add(final String className, final long classPK) {
+		if (classPK > 0) {
+			classPKs.computeIfAbsent(className, name -> new LinkedHashSet<>()).add(classPK);
+		}
+	}
+
+	/**
+	 * end: Stops recording and puts the thread's indexing back the way it was.
+	 */
+	public void end() {
+		if (ended) {
+			return;
+		}
+
+		ended = true;
+
+		IndexStatusManagerThreadLocal.setIndexReadOnly(previousIndexReadOnly);
+
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * reindex: Sends the documents of the recorded entities to the search engine, batchSize documents per request. Entities
+	 * that no longer exist, i.e. their transaction rolled back, are skipped.
+	 * @return int The number of documents sent.
+	 * @throws Exception
+	 */
+	public synchronized int reindex() throws Exception {
+		if (!ended) {
+			throw new IllegalStateException("Indexing is still deferred, call end() first");
+		}
+
+		int count = 0;
+		int requests = 0;
+
+		for (Map.Entry<String, Set<Long>> entry : classPKs.entrySet()) {
+			Indexer<PersistedModel> indexer = IndexerRegistryUtil.getIndexer(entry.getKey());
+			PersistedModelLocalService persistedModelLocalService = PersistedModelLocalServiceRegistryUtil.getPersistedModelLocalService(entry.getKey());
+
+			if ((indexer == null) || (persistedModelLocalService == null)) {
+				continue;
+			}
+
+			List<Document> documents = new ArrayList<>(Math.min(batchSize, entry.getValue().size()));
+
+			for (long classPK : entry.getValue()) {
+				PersistedModel persistedModel;
+
+				try {
+					persistedModel = persistedModelLocalService.getPersistedModel(classPK);
+				} catch (PortalException e) {
+					continue;
+				}
+
+				documents.add(indexer.getDocument(persistedModel));
+
+				if (documents.size() == batchSize) {
+					IndexWriterHelperUtil.updateDocuments(indexer.getSearchEngineId(), companyId, documents, indexer.isCommitImmediately());
+
+					count += documents.size();
+					requests++;
+
+					documents = new ArrayList<>(batchSize);
+				}
+			}
+
+			if (!documents.isEmpty()) {
+				IndexWriterHelperUtil.updateDocuments(indexer.getSearchEngineId(), companyId, documents, indexer.isCommitImmediately());
+
+				count += documents.size();
+				requests++;
+			}
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Reindexed " + count + " documents for company " + companyId + " in " + requests + " requests");
+		}
+
+		classPKs.clear();
+
+		return count;
+	}
+
+	/**
+	 * deleteDocuments: Removes the documents of entities that were deleted while indexing was deferred, batchSize
+	 * documents per request. Documents that are not in the index are ignored by the search engine.
+	 * @param className
+	 * @param classPKs
+	 * @return int The number of documents removed.
+	 * @throws Exception
+	 */
+	public int deleteDocuments(final String className, final Collection<Long> classPKs) throws Exception {
+		Indexer<PersistedModel> indexer = IndexerRegistryUtil.getIndexer(className);
+
+		if ((indexer == null) || classPKs.isEmpty()) {
+			return 0;
+		}
+
+		int count = 0;
+		List<String> uids = new ArrayList<>(Math.min(batchSize, classPKs.size()));
+
+		for (long classPK : classPKs) {
+			Document document = new DocumentImpl();
+
+			document.addUID(className, classPK);
+
+			uids.add(document.get(Field.UID));
+
+			if (uids.size() == batchSize) {
+				IndexWriterHelperUtil.deleteDocuments(indexer.getSearchEngineId(), companyId, uids, indexer.isCommitImmediately());
+
+				count += uids.size();
+
+				uids = new ArrayList<>(batchSize);
+			}
+		}
+
+		if (!uids.isEmpty()) {
+			IndexWriterHelperUtil.deleteDocuments(indexer.getSearchEngineId(), companyId, uids, indexer.isCommitImmediately());
+
+			count += uids.size();
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Deleted " + count + " " + className + " documents for company " + companyId);
+		}
+
+		return count;
+	}
+
+	public long getCompanyId() {
+		return companyId;
+	}
+
+	/**
+	 * getTrackedCount: Returns the number of entities recorded so far.
+	 * @return int The count.
+	 */
+	public synchronized int getTrackedCount() {
+		int count = 0;
+
+		for (Set<Long> pks : classPKs.values()) {
+			count += pks.size();
+		}
+
+		return count;
+	}
+
+	/**
+	 * class UserListener: Records users that are added or updated, or whose roles, groups or user groups change.
+	 */
+	public static class UserListener extends BaseModelListener<User> {
+
+		@Override
+		public void onAfterCreate(User user) throws ModelListenerException {
+			track(User.class.getName(), user.getUserId());
+		}
+
+		@Override
+		public void onAfterUpdate(User user) throws ModelListenerException {
+			track(User.class.getName(), user.getUserId());
+		}
+
+		@Override
+		public void onAfterAddAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			track(User.class.getName(), GetterUtil.getLong(classPK));
+		}
+
+		@Override
+		public void onAfterRemoveAssociation(Object classPK, String associationClassName, Object associationClassPK) throws ModelListenerException {
+			track(User.class.getName(), GetterUtil.getLong(classPK));
+		}
+	}
+
+	/**
+	 * class RoleListener: Records roles that are added or updated.
+	 */
+	public static class RoleListener extends BaseModelListener<Role> {
+
+		@Override
+		public void onAfterCreate(Role role) throws ModelListenerException {
+			track(Role.class.getName(), role.getRoleId());
+		}
+
+		@Override
+		public void onAfterUpdate(Role role) throws ModelListenerException {
+			track(Role.class.getName(), role.getRoleId());
+		}
+	}
+
+	/**
+	 * class UserGroupListener: Records user groups that are added or updated.
+	 */
+	public static class UserGroupListener extends BaseModelListener<UserGroup> {
+
+		@Override
+		public void onAfterCreate(UserGroup userGroup) throws ModelListenerException {
+			track(UserGroup.class.getName(), userGroup.getUserGroupId());
+		}
+
+		@Override
+		public void onAfterUpdate(UserGroup userGroup) throws ModelListenerException {
+			track(UserGroup.class.getName(), userGroup.getUserGroupId());
+		}
+	}
+
+	/**
+	 * class OrganizationListener: Records organizations that are added or updated.
+	 */
+	public static class OrganizationListener extends BaseModelListener<Organization> {
+
+		@Override
+		public void onAfterCreate(Organization organization) throws ModelListenerException {
+			track(Organization.class.getName(), organization.getOrganizationId());
+		}
+
+		@Override
+		public void onAfterUpdate(Organization organization) throws ModelListenerException {
+			track(Organization.class.getName(), organization.getOrganizationId());
+		}
+	}
+
+	/**
+	 * class GroupListener: Records groups, i.e. sites, that are added or updated.
+	 */
+	public static class GroupListener extends BaseModelListener<Group> {
+
+		@Override
+		public void onAfterCreate(Group group) throws ModelListenerException {
+			track(Group.class.getName(), group.getGroupId());
+		}
+
+		@Override
+		public void onAfterUpdate(Group group) throws ModelListenerException {
+			track(Group.class.getName(), group.getGroupId());
+		}
+	}
+
+	/**
+	 * class LayoutListener: Records pages that are added or updated.
+	 */
+	public static class LayoutListener extends BaseModelListener<Layout> {
+
+		@Override
+		public void onAfterCreate(Layout layout) throws ModelListenerException {
+			track(Layout.class.getName(), layout.getPlid());
+		}
+
+		@Override
+		public void onAfterUpdate(Layout layout) throws ModelListenerException {
+			track(Layout.class.getName(), layout.getPlid());
+		}
+	}
+
+	/**
+	 * class ResourcePermissionListener: The permissions of an individual resource are part of its document, so the
+	 * resource is recorded when they change. Reindex skips the resources that have no indexer.
+	 */
+	public static class ResourcePermissionListener extends BaseModelListener<ResourcePermission> {
+
+		@Override
+		public void onAfterCreate(ResourcePermission resourcePermission) throws ModelListenerException {
+			trackResource(resourcePermission);
+		}
+
+		@Override
+		public void onAfterUpdate(ResourcePermission resourcePermission) throws ModelListenerException {
+			trackResource(resourcePermission);
+		}
+
+		@Override
+		public void onAfterRemove(ResourcePermission resourcePermission) throws ModelListenerException {
+			trackResource(resourcePermission);
+		}
+
+		protected void trackResource(final ResourcePermission resourcePermission) {
+			if (resourcePermission.getScope() == ResourceConstants.SCOPE_INDIVIDUAL) {
+				track(resourcePermission.getName(), GetterUtil.getLong(resourcePermission.getPrimKey()));
+			}
+		}
+	}
+
+	/**
+	 * class UserGroupRoleListener: A user's group roles are part of the user's document, so the user is recorded.
+	 */
+	public static class UserGroupRoleListener extends BaseModelListener<UserGroupRole> {
+
+		@Override
+		public void onAfterCreate(UserGroupRole userGroupRole) throws ModelListenerException {
+			track(User.class.getName(), userGroupRole.getUserId());
+		}
+
+		@Override
+		public void onAfterRemove(UserGroupRole userGroupRole) throws ModelListenerException {
+			track(User.class.getName(), userGroupRole.getUserId());
+		}
+	}
+
+	private final long companyId;
+	private final int batchSize;
+	private final DeferredReindexer previous;
+	private final boolean previousIndexReadOnly;
+	private final Map<String, Set<Long>> classPKs = new LinkedHashMap<>();
+	private boolean ended;
+
+	private static final ThreadLocal<DeferredReindexer> current = new ThreadLocal<>();
+
+	private static final Log _log = LogFactoryUtil.getLog(DeferredReindexer.class);
+}
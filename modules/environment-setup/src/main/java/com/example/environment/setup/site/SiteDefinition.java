@@ -0,0 +1,143 @@
+package com.example.environment.setup.site;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class SiteDefinition: A single site read from a site definition resource, with its tree of pages.
+ *
+ * @author dnebinger
+ */
+public class SiteDefinition {
+
+	/**
+	 * SiteDefinition: Constructor which takes the site's name and its position in the resource.
+	 * @param name
+	 * @param friendlyURL The site's friendly URL, i.e. /ui-test.
+	 * @param description May be <code>null</code>.
+	 * @param position The 1 based position of the site in the resource.
+	 */
+	public SiteDefinition(final String name, final String friendlyURL, final String description, final long position) {
+		super();
+
+		this.name = name;
+		this.friendlyURL = friendlyURL;
+		this.description = description;
+		this.position = position;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getFriendlyURL() {
+		return friendlyURL;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * getPages: Returns the top level pages of the site, in the order they are declared.
+	 * @return List The pages.
+	 */
+	public List<PageDefinition> getPages() {
+		return Collections.unmodifiableList(pages);
+	}
+
+	public void addPage(final PageDefinition pageDefinition) {
+		pages.add(pageDefinition);
+	}
+
+	/**
+	 * getPageCount: Returns the number of pages in the whole tree.
+	 * @return int The count.
+	 */
+	public int getPageCount() {
+		int count = 0;
+
+		for (PageDefinition pageDefinition : pages) {
+			count += pageDefinition.getPageCount();
+		}
+
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "Site " + name + " (" + friendlyURL + ")";
+	}
+
+	private final String name;
+	private final String friendlyURL;
+	private final String description;
+	private final long position;
+	private final List<PageDefinition> pages = new ArrayList<>();
+
+	/**
+	 * class PageDefinition: A page of a site, with its child pages.
+	 */
+	public static class PageDefinition {
+
+		public PageDefinition(final String name, final String friendlyURL, final boolean privateLayout, final boolean hidden) {
+			this.name = name;
+			this.friendlyURL = friendlyURL;
+			this.privateLayout = privateLayout;
+			this.hidden = hidden;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * getFriendlyURL: The page's friendly URL, i.e. /home.
+		 * @return String The friendly URL or <code>null</code> to have one generated from the name.
+		 */
+		public String getFriendlyURL() {
+			return friendlyURL;
+		}
+
+		public boolean isPrivateLayout() {
+			return privateLayout;
+		}
+
+		public boolean isHidden() {
+			return hidden;
+		}
+
+		public List<PageDefinition> getChildren() {
+			return Collections.unmodifiableList(children);
+		}
+
+		public void addChild(final PageDefinition pageDefinition) {
+			children.add(pageDefinition);
+		}
+
+		/**
+		 * getPageCount: Returns the number of pages in this page's tree, this page included.
+		 * @return int The count.
+		 */
+		public int getPageCount() {
+			int count = 1;
+
+			for (PageDefinition child : children) {
+				count += child.getPageCount();
+			}
+
+			return count;
+		}
+
+		private final String name;
+		private final String friendlyURL;
+		private final boolean privateLayout;
+		private final boolean hidden;
+		private final List<PageDefinition> children = new ArrayList<>();
+	}
+}
@@ -0,0 +1,123 @@
+package com.example.environment.setup.site;
+
+import com.liferay.portal.kernel.util.GetterUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * class SiteDefinitionReader: Streams the sites out of a site definition resource one at a time.
+ *
+ * Like the SeedManifestReader, the resource is read with a StAX reader so only the current site and its pages are held
+ * in memory, no matter how many sites there are. Pages nest to build the page tree:
+ *
+ * <pre>
+ * &lt;sites&gt;
+ *     &lt;site name="UI Test Site" friendly-url="/ui-test" description="..."&gt;
+ *         &lt;page name="Home" friendly-url="/home" /&gt;
+ *         &lt;page name="Products" friendly-url="/products"&gt;
+ *             &lt;page name="Details" friendly-url="/details" hidden="true" /&gt;
+ *         &lt;/page&gt;
+ *         &lt;page name="Admin" friendly-url="/admin" private="true" /&gt;
+ *     &lt;/site&gt;
+ * &lt;/sites&gt;
+ * </pre>
+ *
+ * @author dnebinger
+ */
+public class SiteDefinitionReader implements Closeable {
+
+	/**
+	 * SiteDefinitionReader: Constructor which takes the stream to read the sites from.
+	 * @param inputStream
+	 * @throws XMLStreamException
+	 */
+	public SiteDefinitionReader(final InputStream inputStream) throws XMLStreamException {
+		super();
+
+		XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+
+		// the definitions are plain data, there is no reason to allow DTDs or external entities.
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		this.inputStream = inputStream;
+		this.xmlStreamReader = xmlInputFactory.createXMLStreamReader(inputStream);
+	}
+
+	/**
+	 * next: Reads the next site from the resource.
+	 * @return SiteDefinition The next site or <code>null</code> at the end of the resource.
+	 * @throws XMLStreamException
+	 */
+	public SiteDefinition next() throws XMLStreamException {
+		SiteDefinition siteDefinition = null;
+		Deque<SiteDefinition.PageDefinition> parents = new ArrayDeque<>();
+
+		while (xmlStreamReader.hasNext()) {
+			int event = xmlStreamReader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String elementName = xmlStreamReader.getLocalName();
+
+				if (siteDefinition == null) {
+					if (SITE.equals(elementName)) {
+						siteDefinition = new SiteDefinition(getAttribute("name"), getAttribute("friendly-url"), getAttribute("description"), ++position);
+					}
+
+					// otherwise the root element or something we don't know, just move on.
+				} else if (PAGE.equals(elementName)) {
+					SiteDefinition.PageDefinition pageDefinition = new SiteDefinition.PageDefinition(getAttribute("name"), getAttribute("friendly-url"),
+							GetterUtil.getBoolean(getAttribute("private")), GetterUtil.getBoolean(getAttribute("hidden")));
+
+					if (parents.isEmpty()) {
+						siteDefinition.addPage(pageDefinition);
+					} else {
+						parents.peek().addChild(pageDefinition);
+					}
+
+					parents.push(pageDefinition);
+				}
+			} else if ((event == XMLStreamConstants.END_ELEMENT) && (siteDefinition != null)) {
+				String elementName = xmlStreamReader.getLocalName();
+
+				if (PAGE.equals(elementName)) {
+					parents.pop();
+				} else if (SITE.equals(elementName)) {
+					return siteDefinition;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			xmlStreamReader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	protected String getAttribute(final String name) {
+		return xmlStreamReader.getAttributeValue(null, name);
+	}
+
+	private final InputStream inputStream;
+	private final XMLStreamReader xmlStreamReader;
+	private long position;
+
+	private static final String SITE = "site";
+	private static final String PAGE = "page";
+}
@@ -0,0 +1,225 @@
+package com.example.environment.setup.site;
+
+import com.example.environment.setup.ChunkedTransactionProcessor;
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.SetupThreadContext;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.GroupConstants;
+import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.model.LayoutConstants;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.LayoutLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.LocaleUtil;
+import com.liferay.portal.kernel.util.Validator;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * class SiteSeedingSetup: Creates the sites declared in a site definition resource, each with its tree of pages.
+ *
+ * The definitions are streamed from the resource and every site is handed to a fork join pool as soon as it is read, so
+ * seeding hundreds of sites takes about as long as the number of sites divided by the number of workers. Each site and
+ * its pages are created in a transaction of their own, so a site is either there with all of its pages or not at all.
+ * Sites that already exist are skipped, which makes the step safe to run again after an interruption without a
+ * checkpoint. Only a few sites per worker are read ahead, the rest of the resource waits until there is room.
+ *
+ * The sites are private, users can't join them or even request to, only an administrator adds members.
+ *
+ * The group ids of the sites go into the company's SetupLookupCache, so getSiteId() in the steps that follow does not
+ * need to look them up.
+ *
+ * @author dnebinger
+ */
+public class SiteSeedingSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * SiteSeedingSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param layoutLocalService
+	 * @param siteResource Class path of the site definitions, i.e. com/example/environment/setup/sites-1.6.0.xml
+	 * @param parallelism Max number of sites created at the same time.
+	 */
+	public SiteSeedingSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, LayoutLocalService layoutLocalService, String siteResource, int parallelism) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.layoutLocalService = layoutLocalService;
+		this.siteResource = siteResource;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	@Override
+	protected void setupEnvironment(final ServiceContext serviceContext) throws Exception {
+		InputStream inputStream = SiteSeedingSetup.class.getClassLoader().getResourceAsStream(siteResource);
+
+		if (inputStream == null) {
+			throw new IllegalStateException("Unable to find site definitions " + siteResource);
+		}
+
+		long start = System.nanoTime();
+
+		SetupThreadContext setupThreadContext = SetupThreadContext.capture();
+		ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+
+		// bounds the sites read ahead of the workers.
+		int maxQueued = parallelism * 2;
+		Semaphore queued = new Semaphore(maxQueued);
+
+		AtomicReference<Exception> failure = new AtomicReference<>();
+
+		try (SiteDefinitionReader siteDefinitionReader = new SiteDefinitionReader(inputStream)) {
+			SiteDefinition siteDefinition;
+
+			while ((failure.get() == null) && ((siteDefinition = siteDefinitionReader.next()) != null)) {
+				final SiteDefinition site = siteDefinition;
+
+				queued.acquire();
+
+				forkJoinPool.submit(setupThreadContext.wrap(() -> {
+					try {
+						// no point in creating more sites once one has failed.
+						if (failure.get() == null) {
+							seedSite(site, serviceContext);
+						}
+					} catch (Exception e) {
+						_log.error("Unable to create " + site + " in company " + getCompanyId() + ": " + e.getMessage(), e);
+
+						if (!failure.compareAndSet(null, e)) {
+							failure.get().addSuppressed(e);
+						}
+					} finally {
+						queued.release();
+					}
+
+					return null;
+				}));
+			}
+
+			// every permit back means every site has been handled.
+			queued.acquire(maxQueued);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw e;
+		} finally {
+			forkJoinPool.shutdownNow();
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Seeded sites from " + siteResource + " for company " + getCompanyId() + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+					+ createdCount.get() + " sites with " + pageCount.get() + " pages created and " + skippedCount.get() + " already existed");
+		}
+	}
+
+	/**
+	 * seedSite: Creates the site and its pages in one transaction, unless the site already exists. Runs on a worker.
+	 * @param siteDefinition
+	 * @param serviceContext
+	 * @throws Exception
+	 */
+	protected void seedSite(final SiteDefinition siteDefinition, final ServiceContext serviceContext) throws Exception {
+		Group group = getGroupLocalService().fetchGroup(getCompanyId(), siteDefinition.getName());
+
+		if (group != null) {
+			getSetupLookupCache().putSiteGroupId(siteDefinition.getName(), group.getGroupId());
+
+			skippedCount.incrementAndGet();
+
+			return;
+		}
+
+		// the workers each get their own copy of the service context.
+		ServiceContext siteServiceContext = (ServiceContext) serviceContext.clone();
+
+		long[] groupId = new long[1];
+
+		try (ChunkedTransactionProcessor<SiteDefinition> processor = new ChunkedTransactionProcessor<>(chunk -> groupId[0] = addSite(chunk.get(0), siteServiceContext), 1)) {
+			processor.add(siteDefinition);
+		}
+
+		// only once the site's transaction has committed.
+		getSetupLookupCache().putSiteGroupId(siteDefinition.getName(), groupId[0]);
+
+		createdCount.incrementAndGet();
+		pageCount.addAndGet(siteDefinition.getPageCount());
+	}
+
+	/**
+	 * addSite: Adds the site and its page tree.
+	 * @param siteDefinition
+	 * @param serviceContext
+	 * @return long The site's group id.
+	 * @throws Exception
+	 */
+	protected long addSite(final SiteDefinition siteDefinition, final ServiceContext serviceContext) throws Exception {
+		Map<Locale, String> nameMap = Collections.singletonMap(LocaleUtil.getDefault(), siteDefinition.getName());
+		Map<Locale, String> descriptionMap = Validator.isNull(siteDefinition.getDescription()) ? null : Collections.singletonMap(LocaleUtil.getDefault(), siteDefinition.getDescription());
+
+		Group group = getGroupLocalService().addGroup(getAdminUserId(), GroupConstants.DEFAULT_PARENT_GROUP_ID, Group.class.getName(), 0, GroupConstants.DEFAULT_LIVE_GROUP_ID,
+				nameMap, descriptionMap, GroupConstants.TYPE_SITE_PRIVATE, true, GroupConstants.DEFAULT_MEMBERSHIP_RESTRICTION, siteDefinition.getFriendlyURL(), true, false, true, serviceContext);
+
+		serviceContext.setScopeGroupId(group.getGroupId());
+
+		for (SiteDefinition.PageDefinition pageDefinition : siteDefinition.getPages()) {
+			addPage(group.getGroupId(), pageDefinition.isPrivateLayout(), LayoutConstants.DEFAULT_PARENT_LAYOUT_ID, pageDefinition, serviceContext);
+		}
+
+		return group.getGroupId();
+	}
+
+	/**
+	 * addPage: Adds the page and, below it, its children. A child is always on the same side (public or private) as its
+	 * parent.
+	 * @param groupId
+	 * @param privateLayout
+	 * @param parentLayoutId
+	 * @param pageDefinition
+	 * @param serviceContext
+	 * @throws Exception
+	 */
+	protected void addPage(final long groupId, final boolean privateLayout, final long parentLayoutId, final SiteDefinition.PageDefinition pageDefinition, final ServiceContext serviceContext) throws Exception {
+		Layout layout = layoutLocalService.addLayout(getAdminUserId(), groupId, privateLayout, parentLayoutId, pageDefinition.getName(), null, null,
+				LayoutConstants.TYPE_PORTLET, pageDefinition.isHidden(), pageDefinition.getFriendlyURL(), serviceContext);
+
+		for (SiteDefinition.PageDefinition child : pageDefinition.getChildren()) {
+			addPage(groupId, privateLayout, layout.getLayoutId(), child, serviceContext);
+		}
+	}
+
+	public String getSiteResource() {
+		return siteResource;
+	}
+
+	private final LayoutLocalService layoutLocalService;
+	private final String siteResource;
+	private final int parallelism;
+
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong pageCount = new AtomicLong();
+
+	private static final Log _log = LogFactoryUtil.getLog(SiteSeedingSetup.class);
+}
@@ -0,0 +1,77 @@
+package com.example.environment.setup.squashed;
+
+import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
+import com.liferay.portal.kernel.service.GroupLocalService;
+import com.liferay.portal.kernel.service.ServiceContext;
+import com.liferay.portal.kernel.service.UserLocalService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class SquashedEnvironmentSetup: Takes a fresh environment from 0.0.0 straight to the current version in one step,
+ * rather than replaying every version's step with its own admin setup, snapshot and commit.
+ *
+ * The steps are included in order and share this step's reconciler, so the entities one of them creates are already in
+ * the snapshot for the next. The first is a TaskGraphEnvironmentSetup running the steps of 1.0.0 through 1.2.0, the role
+ * and the user group side by side and the assignment once both exist. The data file steps run after it on this step's
+ * connection, as its admin and under its deferred indexing, and each still saves checkpoints so an interrupted run picks
+ * up where it was.
+ *
+ * NOTE: When a version is added, its work has to be added here as well since a fresh environment skips the incremental
+ * steps.
+ *
+ * @author dnebinger
+ */
+public class SquashedEnvironmentSetup extends RemoteServiceDependentBaseUpgradeProcess {
+
+	/**
+	 * SquashedEnvironmentSetup: Constructor which takes values we need to properly set up the environment.
+	 *
+	 * @param companyId
+	 * @param adminUserId
+	 * @param permissionCheckerFactory
+	 * @param userLocalService
+	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler The reconciler, shared with the included steps.
+	 */
+	public SquashedEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
+
+		this.environmentReconciler = environmentReconciler;
+	}
+
+	/**
+	 * includeStep: Adds a step to run, in the order the steps are added. It should be created with this step's reconciler.
+	 * @param upgradeProcess
+	 * @return SquashedEnvironmentSetup This step.
+	 */
+	public SquashedEnvironmentSetup includeStep(final RemoteServiceDependentBaseUpgradeProcess upgradeProcess) {
+		includedSteps.add(upgradeProcess);
+
+		return this;
+	}
+
+	@Override
+	protected void setupEnvironment(ServiceContext serviceContext) throws Exception {
+		for (RemoteServiceDependentBaseUpgradeProcess upgradeProcess : includedSteps) {
+			runIncludedStep(upgradeProcess, serviceContext);
+		}
+	}
+
+	public EnvironmentReconciler getEnvironmentReconciler() {
+		return environmentReconciler;
+	}
+
+	public List<RemoteServiceDependentBaseUpgradeProcess> getIncludedSteps() {
+		return Collections.unmodifiableList(includedSteps);
+	}
+
+	private final EnvironmentReconciler environmentReconciler;
+	private final List<RemoteServiceDependentBaseUpgradeProcess> includedSteps = new ArrayList<>();
+}
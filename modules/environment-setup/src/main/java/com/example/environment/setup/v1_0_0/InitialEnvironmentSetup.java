@@ -1,18 +1,15 @@
 package com.example.environment.setup.v1_0_0;
 
 import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
-import com.liferay.portal.kernel.model.Role;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
 import com.liferay.portal.kernel.model.RoleConstants;
 import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
 import com.liferay.portal.kernel.service.GroupLocalService;
-import com.liferay.portal.kernel.service.RoleService;
 import com.liferay.portal.kernel.service.ServiceContext;
 import com.liferay.portal.kernel.service.UserLocalService;
 
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
-
 /**
  * class InitialEnvironmentSetup: This is stuff we want to do initially, things we know about up front.
  *
@@ -27,22 +24,31 @@ public class InitialEnvironmentSetup extends RemoteServiceDependentBaseUpgradePr
 	 * @param permissionCheckerFactory
 	 * @param userLocalService
 	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler
 	 */
-	public InitialEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, RoleService roleService) {
-		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService);
+	public InitialEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
 
-		this.roleService = roleService;
+		this.environmentReconciler = environmentReconciler;
 	}
 
 	@Override
 	protected void setupEnvironment(ServiceContext serviceContext) throws Exception {
 
-		// we're good to go, let's create a new role...
-		Map<Locale, String> titleMap = new HashMap<>();
-		Map<Locale, String> descMap = new HashMap<>();
+		// we're good to go, we want a new role. the reconciler only creates it if it isn't there already.
+		environmentReconciler.reconcile(getDesiredState(serviceContext.getUserId()), serviceContext);
+	}
 
-		Role role = roleService.addRole(null, 0,"UI Tester", titleMap, descMap, RoleConstants.TYPE_REGULAR, null, serviceContext);
+	/**
+	 * getDesiredState: The state this step sets up, also used to verify it is still there.
+	 * @param adminUserId
+	 * @return DesiredState The desired state.
+	 */
+	public static DesiredState getDesiredState(final long adminUserId) {
+		return new DesiredState()
+				.addRole("UI Tester", RoleConstants.TYPE_REGULAR, null);
 	}
 
-	private final RoleService roleService;
+	private final EnvironmentReconciler environmentReconciler;
 }
@@ -1,11 +1,12 @@
 package com.example.environment.setup.v1_1_0;
 
 import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
-import com.liferay.portal.kernel.model.UserGroup;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
 import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
 import com.liferay.portal.kernel.service.GroupLocalService;
 import com.liferay.portal.kernel.service.ServiceContext;
-import com.liferay.portal.kernel.service.UserGroupService;
 import com.liferay.portal.kernel.service.UserLocalService;
 
 /**
@@ -24,19 +25,32 @@ public class UserGroupEnvironmentSetup extends RemoteServiceDependentBaseUpgrade
 	 * @param permissionCheckerFactory
 	 * @param userLocalService
 	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler
 	 */
-	public UserGroupEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, UserGroupService userGroupService) {
-		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService);
+	public UserGroupEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
 
-		this.userGroupService = userGroupService;
+		this.environmentReconciler = environmentReconciler;
 	}
 
 	@Override
 	protected void setupEnvironment(ServiceContext serviceContext) throws Exception {
-		UserGroup userGroup = userGroupService.addUserGroup("UI Testers", "User group that contains all UI Tester users.", serviceContext);
+		environmentReconciler.reconcile(getDesiredState(serviceContext.getUserId()), serviceContext);
 
 		// now that we have the group, we might want to create new users in this account or if users already exist we might add them to the user.
+		// see the BulkUserProvisioningSetup for that.
 	}
 
-	private final UserGroupService userGroupService;
+	/**
+	 * getDesiredState: The state this step sets up, also used to verify it is still there.
+	 * @param adminUserId
+	 * @return DesiredState The desired state.
+	 */
+	public static DesiredState getDesiredState(final long adminUserId) {
+		return new DesiredState()
+				.addUserGroup("UI Testers", "User group that contains all UI Tester users.");
+	}
+
+	private final EnvironmentReconciler environmentReconciler;
 }
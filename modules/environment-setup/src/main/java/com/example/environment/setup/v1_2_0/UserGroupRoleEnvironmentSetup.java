@@ -1,15 +1,17 @@
 package com.example.environment.setup.v1_2_0;
 
+import com.example.environment.setup.EnvironmentSetupPropsKeys;
 import com.example.environment.setup.RemoteServiceDependentBaseUpgradeProcess;
-import com.liferay.portal.kernel.model.Role;
-import com.liferay.portal.kernel.model.UserGroup;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentReconciler;
+import com.example.environment.setup.reconcile.UserGroupRoleBatchWriter;
 import com.liferay.portal.kernel.security.permission.PermissionCheckerFactory;
 import com.liferay.portal.kernel.service.GroupLocalService;
-import com.liferay.portal.kernel.service.RoleService;
 import com.liferay.portal.kernel.service.ServiceContext;
-import com.liferay.portal.kernel.service.UserGroupRoleService;
-import com.liferay.portal.kernel.service.UserGroupService;
 import com.liferay.portal.kernel.service.UserLocalService;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
 
 /**
  * class UserGroupRoleEnvironmentSetup: In 1.0.0 we added the role and in v 1.1.0 we added the user group, but we forgot to assign the role to the group.
@@ -27,30 +29,43 @@ public class UserGroupRoleEnvironmentSetup extends RemoteServiceDependentBaseUpg
 	 * @param permissionCheckerFactory
 	 * @param userLocalService
 	 * @param groupLocalService
+	 * @param setupLookupCache
+	 * @param environmentReconciler
 	 */
-	public UserGroupRoleEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, RoleService roleService, UserGroupService userGroupService, UserGroupRoleService userGroupRoleService) {
-		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService);
+	public UserGroupRoleEnvironmentSetup(long companyId, long adminUserId, PermissionCheckerFactory permissionCheckerFactory, UserLocalService userLocalService, GroupLocalService groupLocalService, SetupLookupCache setupLookupCache, EnvironmentReconciler environmentReconciler) {
+		super(companyId, adminUserId, permissionCheckerFactory, userLocalService, groupLocalService, setupLookupCache);
 
-		this.userGroupService = userGroupService;
-		this.roleService = roleService;
-		this.userGroupRoleService = userGroupRoleService;
+		this.environmentReconciler = environmentReconciler;
 	}
 
 	@Override
 	protected void setupEnvironment(ServiceContext serviceContext) throws Exception {
-		// fetch the role
-		Role role = roleService.getRole(serviceContext.getCompanyId(), "UI Tester");
+		// the role and the user group come from 1.0.0 and 1.1.0, the reconciler looks both up from its snapshot and
+		// complains if either is missing.
 
-		// we could be defensive and make sure the role exists, but this upgrade process only runs if the 1.0.0 ran successfully.
+		if (GetterUtil.getBoolean(PropsUtil.get(EnvironmentSetupPropsKeys.USER_GROUP_ROLE_BATCH))) {
+			// bulk seeding, write the rows directly rather than one service call (and permission check) per user and group.
+			environmentReconciler.setUserGroupRoleBatchWriter(UserGroupRoleBatchWriter.create(connection, getCompanyId(), UserGroupRoleBatchWriter.DEFAULT_BATCH_SIZE));
+		}
 
-		// fetch the user group
-		UserGroup userGroup = userGroupService.getUserGroup("UI Testers");
+		try {
+			// we have both of the elements, let's assign the role to the user group
+			environmentReconciler.reconcile(getDesiredState(serviceContext.getUserId()), serviceContext);
+		} finally {
+			// the writer uses this step's connection, the reconciler may be shared with steps that run after it.
+			environmentReconciler.setUserGroupRoleBatchWriter(null);
+		}
+	}
 
-		// we now have both of the elements, let's assign the role to the user group
-		userGroupRoleService.addUserGroupRoles(serviceContext.getUserId(), userGroup.getGroupId(), new long[] {role.getRoleId()});
+	/**
+	 * getDesiredState: The state this step sets up, also used to verify it is still there.
+	 * @param adminUserId The admin the step runs as, who gets the role within the user group.
+	 * @return DesiredState The desired state.
+	 */
+	public static DesiredState getDesiredState(final long adminUserId) {
+		return new DesiredState()
+				.addUserGroupRole(adminUserId, "UI Testers", "UI Tester");
 	}
 
-	private final UserGroupService userGroupService;
-	private final RoleService roleService;
-	private final UserGroupRoleService userGroupRoleService;
+	private final EnvironmentReconciler environmentReconciler;
 }
@@ -0,0 +1,270 @@
+package com.example.environment.setup.verify;
+
+import com.example.environment.setup.CompanyAdminUserResolver;
+import com.example.environment.setup.SetupLookupCache;
+import com.example.environment.setup.SetupThreadContext;
+import com.example.environment.setup.reconcile.DesiredState;
+import com.example.environment.setup.reconcile.EnvironmentSnapshot;
+import com.example.environment.setup.reconcile.EnvironmentVerifier;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Company;
+import com.liferay.portal.kernel.service.CompanyLocalService;
+import com.liferay.portal.kernel.service.RoleLocalService;
+import com.liferay.portal.kernel.service.UserGroupLocalService;
+import com.liferay.portal.kernel.service.UserGroupRoleLocalService;
+import com.liferay.portal.kernel.service.UserLocalService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongFunction;
+
+/**
+ * class SetupVerifier: Checks that every company still has the state the setup steps declare, i.e. that nobody deleted
+ * the UI Tester role or took it away from the UI Testers user group since the steps ran.
+ *
+ * Each step's desired state is read from the step itself, so what is verified is exactly what the step reconciles.
+ * Companies are checked in parallel, each with its own EnvironmentSnapshot and an empty lookup cache, so a company costs
+ * a handful of queries whatever the number of entities. Nothing is written, drift is only reported, in the log and on
+ * the com.example.environment.setup:type=SetupVerifier MBean. Running the steps again is what repairs it.
+ *
+ * @author dnebinger
+ */
+public class SetupVerifier implements SetupVerifierMBean {
+
+	/**
+	 * OBJECT_NAME: The JMX object name the verifier is registered under.
+	 */
+	public static final String OBJECT_NAME = "com.example.environment.setup:type=SetupVerifier";
+
+	public SetupVerifier(final CompanyLocalService companyLocalService, final CompanyAdminUserResolver companyAdminUserResolver, final RoleLocalService roleLocalService, final UserGroupLocalService userGroupLocalService, final UserLocalService userLocalService, final UserGroupRoleLocalService userGroupRoleLocalService, final int parallelism) {
+		super();
+
+		this.companyLocalService = companyLocalService;
+		this.companyAdminUserResolver = companyAdminUserResolver;
+		this.roleLocalService = roleLocalService;
+		this.userGroupLocalService = userGroupLocalService;
+		this.userLocalService = userLocalService;
+		this.userGroupRoleLocalService = userGroupRoleLocalService;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * addStep: Adds a step's desired state to what is verified.
+	 * @param stepName The name drift is reported under.
+	 * @param desiredStateFactory Creates the step's desired state from the company's admin user id, usually the step's
+	 *                            static getDesiredState() method.
+	 * @return SetupVerifier This verifier.
+	 */
+	public SetupVerifier addStep(final String stepName, final LongFunction<DesiredState> desiredStateFactory) {
+		desiredStateFactories.put(stepName, desiredStateFactory);
+
+		return this;
+	}
+
+	@Override
+	public boolean verify() {
+		// one verification at a time, a second caller waits for the first one and then verifies again.
+		synchronized (verifyLock) {
+			return verifyCompanies();
+		}
+	}
+
+	/**
+	 * verifyInBackground: Verifies every company on a thread of its own, so a node start does not wait for it. The result
+	 * shows on the MBean once it is done.
+	 */
+	public void verifyInBackground() {
+		verifyInBackground(() -> true);
+	}
+
+	/**
+	 * verifyInBackground: Like verifyInBackground(), except the background thread first asks the condition whether to
+	 * verify at all, for a check that needs the database itself.
+	 * @param condition
+	 */
+	public synchronized void verifyInBackground(final BooleanSupplier condition) {
+		if (shutdown) {
+			return;
+		}
+
+		backgroundThread = new Thread(() -> {
+			if (condition.getAsBoolean()) {
+				verify();
+			}
+		}, "SetupVerifier");
+
+		backgroundThread.setDaemon(true);
+
+		backgroundThread.start();
+	}
+
+	/**
+	 * shutdown: Stops a background verification that is still running, and keeps new ones from starting.
+	 */
+	public void shutdown() {
+		Thread thread;
+
+		synchronized (this) {
+			shutdown = true;
+
+			thread = backgroundThread;
+		}
+
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	@Override
+	public boolean isInSync() {
+		return (lastVerifiedTime > 0) && lastDrift.isEmpty();
+	}
+
+	@Override
+	public int getDriftCount() {
+		return lastDrift.size();
+	}
+
+	@Override
+	public String[] getDrift() {
+		return lastDrift.toArray(new String[0]);
+	}
+
+	@Override
+	public long getLastDurationMillis() {
+		return lastDurationMillis;
+	}
+
+	@Override
+	public long getLastVerifiedTime() {
+		return lastVerifiedTime;
+	}
+
+	/**
+	 * verifyCompanies: Verifies every company in parallel and keeps the result for the MBean.
+	 * @return boolean <code>true</code> if nothing is missing.
+	 */
+	protected boolean verifyCompanies() {
+		long start = System.nanoTime();
+
+		List<Long> companyIds = getCompanyIds();
+		List<String> drift = new ArrayList<>();
+
+		if (!companyIds.isEmpty()) {
+			ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, companyIds.size()), runnable -> {
+				Thread thread = new Thread(runnable, "SetupVerifier-" + threadNumber.incrementAndGet());
+
+				thread.setDaemon(true);
+
+				return thread;
+			});
+
+			Map<Long, Future<List<String>>> futures = new LinkedHashMap<>();
+
+			try {
+				for (long companyId : companyIds) {
+					futures.put(companyId, executorService.submit(SetupThreadContext.forCompany(companyId).wrap(() -> verifyCompany(companyId))));
+				}
+
+				for (Map.Entry<Long, Future<List<String>>> entry : futures.entrySet()) {
+					try {
+						drift.addAll(entry.getValue().get());
+					} catch (ExecutionException e) {
+						_log.warn("Unable to verify company " + entry.getKey() + ": " + e.getCause().getMessage(), e.getCause());
+
+						drift.add("Company " + entry.getKey() + ": unable to verify, " + e.getCause().getMessage());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				drift.add("Verification interrupted");
+			} finally {
+				executorService.shutdownNow();
+			}
+		}
+
+		lastDrift = Collections.unmodifiableList(drift);
+		lastDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		lastVerifiedTime = System.currentTimeMillis();
+
+		if (!drift.isEmpty()) {
+			_log.warn("Verified " + companyIds.size() + " companies in " + lastDurationMillis + " ms, found " + drift.size() + " differences from the set up state: " + drift);
+		} else if (_log.isInfoEnabled()) {
+			_log.info("Verified " + companyIds.size() + " companies in " + lastDurationMillis + " ms, the set up state is in place");
+		}
+
+		return drift.isEmpty();
+	}
+
+	/**
+	 * verifyCompany: Verifies every step's desired state in the company. This is called on a worker thread that already
+	 * has the company thread local set.
+	 * @param companyId
+	 * @return List Descriptions of what is missing.
+	 */
+	protected List<String> verifyCompany(final long companyId) {
+		long adminUserId = companyAdminUserResolver.getCompanyAdminUserId(companyId);
+
+		// a fresh lookup cache, the ids the steps cached may belong to entities that are gone.
+		EnvironmentSnapshot environmentSnapshot = new EnvironmentSnapshot(companyId, new SetupLookupCache(companyId), roleLocalService, userGroupLocalService, userLocalService, userGroupRoleLocalService);
+		EnvironmentVerifier environmentVerifier = new EnvironmentVerifier(environmentSnapshot);
+
+		List<String> drift = new ArrayList<>();
+
+		for (Map.Entry<String, LongFunction<DesiredState>> entry : desiredStateFactories.entrySet()) {
+			for (String missing : environmentVerifier.verify(entry.getValue().apply(adminUserId))) {
+				drift.add("Company " + companyId + ", " + entry.getKey() + ": " + missing);
+			}
+		}
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Verified company " + companyId + " with " + environmentSnapshot.getReadCount() + " reads, found " + drift.size() + " differences");
+		}
+
+		return drift;
+	}
+
+	/**
+	 * getCompanyIds: Returns the ids of all of the companies.
+	 * @return List The company ids.
+	 */
+	protected List<Long> getCompanyIds() {
+		List<Long> companyIds = new ArrayList<>();
+
+		for (Company company : companyLocalService.getCompanies()) {
+			companyIds.add(company.getCompanyId());
+		}
+
+		return companyIds;
+	}
+
+	private final CompanyLocalService companyLocalService;
+	private final CompanyAdminUserResolver companyAdminUserResolver;
+	private final RoleLocalService roleLocalService;
+	private final UserGroupLocalService userGroupLocalService;
+	private final UserLocalService userLocalService;
+	private final UserGroupRoleLocalService userGroupRoleLocalService;
+	private final int parallelism;
+	private final Map<String, LongFunction<DesiredState>> desiredStateFactories = new LinkedHashMap<>();
+	private final AtomicInteger threadNumber = new AtomicInteger();
+	private volatile List<String> lastDrift = Collections.emptyList();
+	private volatile long lastDurationMillis;
+	private volatile long lastVerifiedTime;
+	private final Object verifyLock = new Object();
+	private boolean shutdown;
+	private Thread backgroundThread;
+
+	private static final Log _log = LogFactoryUtil.getLog(SetupVerifier.class);
+}
@@ -0,0 +1,42 @@
+package com.example.environment.setup.verify;
+
+/**
+ * interface SetupVerifierMBean: The JMX view of the set up state verification, registered as
+ * com.example.environment.setup:type=SetupVerifier.
+ *
+ * @author dnebinger
+ */
+public interface SetupVerifierMBean {
+
+	/**
+	 * isInSync: Whether the last verification found every company in line with the steps' desired states, false until
+	 * the first verification has finished. This is the one to use as a readiness check.
+	 */
+	boolean isInSync();
+
+	/**
+	 * getDriftCount: Number of things the last verification found missing.
+	 */
+	int getDriftCount();
+
+	/**
+	 * getDrift: Descriptions of what the last verification found missing, by company and step.
+	 */
+	String[] getDrift();
+
+	/**
+	 * getLastDurationMillis: The wall time of the last verification.
+	 */
+	long getLastDurationMillis();
+
+	/**
+	 * getLastVerifiedTime: When the last verification finished, in epoch millis, 0 if none has.
+	 */
+	long getLastVerifiedTime();
+
+	/**
+	 * verify: Verifies every company again.
+	 * @return boolean <code>true</code> if nothing is missing.
+	 */
+	boolean verify();
+}